@@ -1,26 +1,64 @@
 package ch.emf.dao;
 
+import ch.emf.dao.counters.BlockPkAllocator;
+import ch.emf.dao.counters.VersionTokens;
 import ch.emf.dao.exceptions.JpaException;
 import ch.emf.dao.filtering.Search;
 import ch.emf.dao.filtering.Search2;
+import ch.emf.dao.helpers.EntityGraph;
 import ch.emf.dao.helpers.Logger;
 import ch.emf.dao.helpers.ScriptHelper;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.helpers.SqlScriptReader;
+import ch.emf.dao.io.ExportFormat;
+import ch.emf.dao.models.BatchReport;
+import ch.emf.dao.models.ColumnInfo;
 import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.models.ScriptOptions;
+import ch.emf.dao.models.SyncOptions;
+import ch.emf.dao.models.SyncReport;
+import ch.emf.dao.transactions.Propagation;
+import ch.emf.dao.transactions.RetryPolicy;
 import ch.emf.dao.transactions.Transaction;
 import com.google.inject.Singleton;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.NoResultException;
-import javax.persistence.OptimisticLockException;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
 import javax.persistence.metamodel.EntityType;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.queries.CursoredStream;
+import org.eclipse.persistence.queries.InMemoryQueryIndirectionPolicy;
+import org.eclipse.persistence.sessions.IdentityMapAccessor;
+import org.eclipse.persistence.sessions.UnitOfWork;
 
 /**
  * Couche DAO qui cache tout détail de la persistance à l'utilisateur de cette couche.
@@ -41,15 +79,26 @@ import javax.persistence.metamodel.EntityType;
 public class JpaDao implements JpaDaoAPI {
   private final String DAOLAYER_VERSION = "DaoLayer 6.1.8 / 21.3.2025";
   private final String JPA2_PREFIX_KEY = "javax.persistence.jdbc";
+  private final int MAX_IN_PARAMS = 500;
+  private final int TENANT_CHUNK_SIZE = 5000;
+  private final int TENANT_MAX_THREADS = 8;
+  private final Pattern WRITTEN_TABLE = Pattern.compile(
+          "^\\s*(?:INSERT\\s+(?:IGNORE\\s+)?INTO|REPLACE\\s+INTO|UPDATE|DELETE\\s+FROM|TRUNCATE\\s+(?:TABLE\\s+)?)\\s*[`\"]?([A-Za-z0-9_.$]+)",
+          Pattern.CASE_INSENSITIVE);
 
   private final Class<?> clazz;
   private EntityManagerFactory emf;
   private EntityManager em;
   private Transaction tr;
+  private RetryPolicy retryPolicy;
+  private BlockPkAllocator pkAllocator;
+  private Set<Class<?>> touchedInScope;
   protected Map<Class<?>, EntityInfo> entitiesMap;
 
   public JpaDao() {
     this.clazz = this.getClass(); 
+    this.retryPolicy = new RetryPolicy();
+    this.touchedInScope = new LinkedHashSet<>();
 
     // initialisé lors d'un "setConnection" pour mémoriser les infos sur les classes-entités
     entitiesMap = new HashMap<>();
@@ -65,7 +114,7 @@ public class JpaDao implements JpaDaoAPI {
     if (em != null) {
       Logger.info(clazz, em.getMetamodel().getEntities().size());
       for (EntityType<?> entityType : em.getMetamodel().getEntities()) {
-        EntityInfo ei = new EntityInfo(entityType.getBindableJavaType());
+        EntityInfo ei = new EntityInfo(entityType.getBindableJavaType(), em.getMetamodel());
         Logger.debug(clazz, ei.toString());
         entitiesMap.put(ei.getEntityClass(), ei);
       }
@@ -94,15 +143,193 @@ public class JpaDao implements JpaDaoAPI {
     }
   }
 
+  /**
+   * Unité de travail qui peut être rejouée selon la politique de reprise.
+   * Elle doit elle-même annuler sa transaction en cas d'erreur.
+   */
+  private interface Work<T> {
+    T run() throws Exception;
+  }
+
+  /**
+   * Méthode privée pour exécuter une unité de travail avec la politique de
+   * reprise courante. Une reprise n'est tentée que si la couche DAO gère
+   * seule la transaction (mode autocommit au début de l'appel), sinon
+   * le travail déjà effectué dans la transaction manuelle serait perdu.
+   * Avant une reprise, seuls les objets de l'unité de travail doivent être
+   * détachés (voir detachInvolved), les autres objets managés sont conservés.
+   *
+   * @param work l'unité de travail à exécuter
+   * @param beforeRetry un traitement à effectuer avant chaque reprise (ou null)
+   * @param conflictRetryable TRUE si un conflit de verrouillage optimiste peut être repris
+   *
+   * @return le résultat de l'unité de travail
+   * @throws Exception l'exception de la dernière tentative
+   */
+  private <T> T runWithRetry(Work<T> work, Runnable beforeRetry, boolean conflictRetryable) throws Exception {
+    boolean owner = tr.isAutoCommit();
+    int attempt = 1;
+    while (true) {
+      try {
+        return work.run();
+      } catch (Exception ex) {
+        boolean conflict = retryPolicy.isConflict(ex);
+        if (!owner || (conflict && !conflictRetryable) || !retryPolicy.shouldRetry(ex, attempt)) {
+          throw ex;
+        }
+        Logger.debug(clazz, "retry", attempt, ex.getMessage());
+        if (beforeRetry != null) {
+          beforeRetry.run();
+        }
+        retryPolicy.pause(attempt);
+        attempt++;
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour détacher l'objet managé d'une classe-entité avec la
+   * PK spécifiée (s'il existe dans l'entity-manager).
+   */
+  private void detachManaged(Class<?> cl, Object pk) {
+    if (pk != null) {
+      Object managed = em.unwrap(UnitOfWork.class).getIdentityMapAccessor().getFromIdentityMap(pk, cl);
+      if (managed != null) {
+        em.detach(managed);
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour détacher, avant une reprise, les objets d'une unité
+   * de travail annulée : l'objet lui-même s'il est managé, sinon sa copie
+   * managée (après un "merge"). Les autres objets managés ne sont pas touchés.
+   */
+  private <E> void detachInvolved(List<E> list) {
+    try {
+      Map<Class<?>, Method> getters = new HashMap<>();
+      for (E e : list) {
+        if (em.contains(e)) {
+          em.detach(e);
+        } else {
+          Method getter = getters.computeIfAbsent(e.getClass(), k -> getEntityInfo(k).findMethod("getPk"));
+          detachManaged(e.getClass(), getPk(e, getter));
+        }
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+  }
+
+  /**
+   * Méthode privée pour relire depuis la BD la version actuelle d'un objet
+   * (verrouillage optimiste) avant de le fusionner à nouveau.
+   */
+  private void reloadVersion(Object e) {
+    EntityInfo ei = getEntityInfo(e.getClass());
+    Field vf = ei.getVersionField();
+    if (vf != null) {
+      try {
+        Object pk = getPk(e, ei.findMethod("getPk"));
+        em.getEntityManagerFactory().getCache().evict(e.getClass(), pk);
+        Query query = getQuery(ei.buildSelectClause(vf.getName()) + ei.buildWhereClause(ei.getPkName()), new Object[]{pk});
+        Object version = getSingleResult(query);
+        if (version != null) {
+          vf.set(e, version);
+        }
+      } catch (IllegalAccessException | IllegalArgumentException ex) {
+        Logger.error(clazz, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour mémoriser les PK d'une liste d'objets avant une
+   * unité de travail qui pourrait être rejouée.
+   */
+  private <E> List<Object> savePks(List<E> list, Method getter) {
+    List<Object> pks = new ArrayList<>(list.size());
+    for (E e : list) {
+      pks.add(getPk(e, getter));
+    }
+    return pks;
+  }
+
+  /**
+   * Méthode privée pour mémoriser les versions (@Version) d'une liste d'objets
+   * avant une unité de travail qui pourrait être rejouée (null sans version).
+   */
+  private <E> List<Object> saveVersions(List<E> list, Field vf) {
+    List<Object> versions = null;
+    if (vf != null) {
+      versions = new ArrayList<>(list.size());
+      try {
+        for (E e : list) {
+          versions.add(vf.get(e));
+        }
+      } catch (IllegalAccessException ex) {
+        Logger.error(clazz, ex.getMessage());
+        versions = null;
+      }
+    }
+    return versions;
+  }
+
+  /**
+   * Méthode privée pour remettre les versions mémorisées avant de rejouer
+   * une unité de travail (une version incrémentée par la tentative annulée
+   * provoquerait un faux conflit).
+   */
+  private <E> void restoreVersions(List<E> list, Field vf, List<Object> versions) {
+    if (versions != null) {
+      try {
+        for (int i = 0; i < list.size(); i++) {
+          vf.set(list.get(i), versions.get(i));
+        }
+      } catch (IllegalAccessException ex) {
+        Logger.error(clazz, ex.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour retrouver, par lots de MAX_IN_PARAMS avec une seule
+   * requête IN par lot, les PK d'une liste qui existent déjà dans la BD.
+   */
+  @SuppressWarnings("unchecked")
+  private Set<Object> findExistingPks(EntityInfo ei, List<Object> pks) {
+    Set<Object> found = new HashSet<>();
+    String jpql = ei.buildSelectClause(ei.getPkName()) + ei.buildWhereInClause(ei.getPkName());
+    for (int from = 0; from < pks.size(); from += MAX_IN_PARAMS) {
+      List<Object> chunk = new ArrayList<>(pks.subList(from, Math.min(from + MAX_IN_PARAMS, pks.size())));
+      found.addAll(getQuery(jpql, new Object[]{chunk}).getResultList());
+    }
+    return found;
+  }
+
+  /**
+   * Méthode privée pour remettre les PK mémorisées avant de rejouer
+   * une unité de travail (les PK générées par la tentative annulée sont perdues).
+   */
+  private <E> void restorePks(List<E> list, Method setter, List<Object> pks) {
+    for (int i = 0; i < list.size(); i++) {
+      setPk(list.get(i), setter, pks.get(i));
+    }
+  }
+
   /**
    * Méthode privée pour mettre à jour dans une table de séquence
    * la dernière valeur de PK.
    */
   private void updatePkMax(EntityInfo ei, Object pkMax) {
     if (ei.isTableSeqUsed()) {
+      if (pkAllocator != null) {
+        pkAllocator.reset(ei.getEntityClass());
+      }
       String sql = ei.buildUpdatePkMaxClause(pkMax);
       try {
         Query query = em.createNativeQuery(sql);
+        tr.beginIfNeeded();
         query.executeUpdate();
         tr.commit();
       } catch (Exception ex1) {
@@ -111,6 +338,20 @@ public class JpaDao implements JpaDaoAPI {
     }
   }
 
+  /**
+   * Méthode privée pour attribuer les PK manquantes d'une liste avec l'allocateur
+   * par blocs (seulement pour une classe-entité avec table de séquence).
+   * Retourne TRUE si l'allocateur a été utilisé : la table de séquence est alors
+   * déjà à jour et "updatePkMax" est inutile.
+   */
+  private <E> boolean allocatePks(EntityInfo ei, List<E> list) {
+    boolean used = pkAllocator != null && ei != null && ei.isTableSeqUsed();
+    if (used) {
+      pkAllocator.assignPks(em.getEntityManagerFactory(), ei, list);
+    }
+    return used;
+  }
+
   /**
    * Méthode privée pour construire une requête de type Query basée
    * sur une requête au format String et un tableau de valeurs en paramètre.
@@ -343,6 +584,22 @@ public class JpaDao implements JpaDaoAPI {
     return url;
   }  
      
+  /**
+   * Retourne le dialecte SQL de la BD connectée, retrouvé avec l'URL JDBC
+   * de l'unité de persistance.
+   *
+   * @return le dialecte SQL (MYSQL, H2 ou STANDARD)
+   */
+  @Override
+  public SqlDialect getSqlDialect() {
+    String url = getConnectionProperty(JPA2_PREFIX_KEY + ".url");
+    if (url.isEmpty() && em != null) {
+      // entity-manager fourni par une couche supérieure (voir setEntityManager)
+      url = String.valueOf(em.getEntityManagerFactory().getProperties().get(JPA2_PREFIX_KEY + ".url"));
+    }
+    return SqlDialect.fromUrl(url);
+  }
+
   /**
    * Retourne l'entityManager stocké dans la couche dao.
    * 
@@ -381,6 +638,237 @@ public class JpaDao implements JpaDaoAPI {
     return tr;
   }
 
+  /**
+   * Définit la politique de reprise automatique utilisée par "update", "delete",
+   * "insertList", "updateList" et "executeScript" en cas d'erreur passagère
+   * (conflit de verrouillage optimiste, deadlock, attente d'un verrou trop longue).
+   *
+   * @param retryPolicy une politique de reprise (null = pas de reprise)
+   */
+  @Override
+  public void setRetryPolicy(RetryPolicy retryPolicy) {
+    this.retryPolicy = (retryPolicy == null) ? new RetryPolicy() : retryPolicy;
+  }
+
+  /**
+   * Retourne la politique de reprise courante (avec ses compteurs de reprises
+   * et d'abandons).
+   *
+   * @return la politique de reprise courante
+   */
+  @Override
+  public RetryPolicy getRetryPolicy() {
+    return retryPolicy;
+  }
+
+  /**
+   * Définit un allocateur de PK par blocs pour les classes-entités avec table
+   * de séquence (@TableGenerator). Les PK manquantes sont alors attribuées
+   * en mémoire avant la persistance ("create", "insertList", "updateList",
+   * "insertBatch" et "updateBatch") et la table de séquence n'est plus
+   * recalculée avec MAX(pk) après chaque liste.
+   *
+   * @param pkAllocator un allocateur de PK par blocs (null = désactivé)
+   */
+  @Override
+  public void setPkAllocator(BlockPkAllocator pkAllocator) {
+    this.pkAllocator = pkAllocator;
+  }
+
+  /**
+   * Retourne l'allocateur de PK par blocs courant (null si désactivé).
+   *
+   * @return l'allocateur de PK par blocs
+   */
+  @Override
+  public BlockPkAllocator getPkAllocator() {
+    return pkAllocator;
+  }
+
+  /**
+   * Méthode privée pour compter une écriture validée dans une classe-entité.
+   * Dans un scope transactionnel, la version n'est incrémentée qu'à la fin
+   * du scope propriétaire (après la validation).
+   */
+  private void touched(Class<?> cl) {
+    if (tr.getNestingLevel() > 0) {
+      touchedInScope.add(cl);
+    } else {
+      incrementVersion(cl);
+    }
+  }
+
+  /**
+   * Méthode privée pour incrémenter les versions des classes-entités écrites
+   * pendant un scope transactionnel, seulement si sa transaction a été
+   * validée (après une annulation, les classes sont simplement oubliées).
+   */
+  private void flushTouched(boolean committed) {
+    if (!touchedInScope.isEmpty()) {
+      Class<?>[] classes = touchedInScope.toArray(new Class<?>[0]);
+      touchedInScope.clear();
+      if (committed) {
+        incrementVersion(classes);
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour compter une commande SQL native : la table écrite
+   * est reconnue pour INSERT, REPLACE, UPDATE, DELETE et TRUNCATE, sinon
+   * toutes les classes-entités sont considérées comme modifiées.
+   */
+  private void touchedBySql(String sql) {
+    Matcher m = WRITTEN_TABLE.matcher(sql);
+    if (m.find()) {
+      String table = m.group(1);
+      table = table.substring(table.lastIndexOf('.') + 1);
+      for (EntityInfo ei : entitiesMap.values()) {
+        if (ei.getTableName().equalsIgnoreCase(table)) {
+          touched(ei.getEntityClass());
+        }
+      }
+    } else {
+      for (Class<?> cl : entitiesMap.keySet()) {
+        touched(cl);
+      }
+    }
+  }
+
+  /**
+   * Définit une table des versions dans la BD (créée si nécessaire) pour
+   * partager les jetons de version entre plusieurs serveurs. Avec null, les
+   * versions sont seulement comptées en mémoire (voir VersionTokens).
+   *
+   * @param table le nom de la table des versions (par ex. "t_table_version") ou null
+   * @return TRUE si la table est utilisable
+   */
+  @Override
+  public boolean setVersionTable(String table) {
+    if (table != null && !SqlDialect.isSqlName(table)) {
+      Logger.error(clazz, "invalid table name " + table);
+      return false;
+    }
+    EntityManagerFactory factory = em.getEntityManagerFactory();
+    return VersionTokens.of(factory).setTable(factory, table);
+  }
+
+  /**
+   * Incrémente la version des classes-entités spécifiées, par exemple après
+   * une écriture faite sans passer par la couche DAO (JDBC, chargement natif).
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   */
+  @Override
+  public void incrementVersion(Class<?>... classes) {
+    EntityManagerFactory factory = em.getEntityManagerFactory();
+    VersionTokens.of(factory).increment(factory, classes);
+  }
+
+  /**
+   * Retourne un jeton de version pour une ou plusieurs classes-entités. Il
+   * change après chaque écriture validée par la couche DAO dans l'une de ces
+   * classes-entités et peut servir d'ETag HTTP ou de clé de cache, sans
+   * relire les données.
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   * @return le jeton de version de ces classes-entités
+   */
+  @Override
+  public String getVersionToken(Class<?>... classes) {
+    EntityManagerFactory factory = em.getEntityManagerFactory();
+    try {
+      return VersionTokens.of(factory).getToken(factory, classes);
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Exécute plusieurs appels à la couche DAO dans une seule transaction validée
+   * à la fin du scope (propagation REQUIRED). Les scopes peuvent être imbriqués :
+   * seul le scope le plus externe valide la transaction.<br>
+   * <br>
+   * Exemple :<br>
+   * <pre>
+   *   int n = dao.inTransaction(() -> dao.create(c1) + dao.create(c2));
+   * </pre>
+   *
+   * @param <T>  le type du résultat de l'unité de travail
+   * @param work l'unité de travail avec les appels à la couche DAO
+   *
+   * @return le résultat de l'unité de travail
+   */
+  @Override
+  public <T> T inTransaction(Supplier<T> work) {
+    return inTransaction(Propagation.REQUIRED, work);
+  }
+
+  /**
+   * Exécute plusieurs appels à la couche DAO dans un scope transactionnel
+   * avec le mode de propagation spécifié. Si l'unité de travail lève une exception
+   * ou si l'un des appels à la couche DAO a échoué, la transaction est annulée
+   * et une exception (RuntimeException) est levée à la fin du scope propriétaire.<br>
+   * <br>
+   * Avec REQUIRES_NEW, la transaction en cours est suspendue et l'unité de travail
+   * s'exécute sur un entity-manager séparé. Les objets lus dans ce scope sont
+   * détachés à la fin de celui-ci.
+   *
+   * @param <T>  le type du résultat de l'unité de travail
+   * @param propagation le mode de propagation (REQUIRED ou REQUIRES_NEW)
+   * @param work l'unité de travail avec les appels à la couche DAO
+   *
+   * @return le résultat de l'unité de travail
+   */
+  @Override
+  public <T> T inTransaction(Propagation propagation, Supplier<T> work) {
+    if (propagation == Propagation.REQUIRES_NEW && (!tr.isAutoCommit() || tr.isActive())) {
+      return inNewTransaction(work);
+    }
+    T result;
+    boolean committed = false;
+    boolean owner = tr.enterScope();
+    try {
+      result = work.get();
+      if (owner) {
+        tr.commitScope();
+        committed = true;
+      }
+    } catch (Exception ex) {
+      tr.rollbackScope(owner);
+      Logger.error(clazz, ex.getMessage());
+      throw (ex instanceof RuntimeException) ? (RuntimeException) ex : new PersistenceException(ex);
+    } finally {
+      tr.exitScope(owner);
+      if (owner) {
+        flushTouched(committed);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour exécuter un scope REQUIRES_NEW : la transaction courante
+   * est suspendue le temps d'exécuter l'unité de travail sur un entity-manager séparé.
+   */
+  private <T> T inNewTransaction(Supplier<T> work) {
+    EntityManager outerEm = em;
+    Transaction outerTr = tr;
+    Set<Class<?>> outerTouched = touchedInScope;
+    em = outerEm.getEntityManagerFactory().createEntityManager();
+    tr = new Transaction(em.getTransaction());
+    touchedInScope = new LinkedHashSet<>();
+    try {
+      return inTransaction(Propagation.REQUIRED, work);
+    } finally {
+      em.close();
+      em = outerEm;
+      tr = outerTr;
+      touchedInScope = outerTouched;
+    }
+  }
+
 
 
   /**
@@ -394,9 +882,12 @@ public class JpaDao implements JpaDaoAPI {
   public <E> int create(E e) {
     int n = 0;
     try {
+      allocatePks(getEntityInfo(e.getClass()), Collections.singletonList(e));
+      tr.beginIfNeeded();
       em.persist(e);
       tr.commit();
       n = 1;
+      touched(e.getClass());
     } catch (Exception ex1) {
       rollbackAfterError(ex1, true);
     }
@@ -447,14 +938,27 @@ public class JpaDao implements JpaDaoAPI {
   public <E> int update(E e) {
     int n = 0;
     try {
-      em.merge(e);
-      tr.commit();
-      n = 1;
-    } catch (OptimisticLockException ex1) {
-      n = -1;
-      rollbackAfterError(ex1, false);
-    } catch (Exception ex2) {
-      rollbackAfterError(ex2, true);
+      n = runWithRetry(() -> {
+        try {
+          tr.beginIfNeeded();
+          em.merge(e);
+          tr.commit();
+          return 1;
+        } catch (Exception ex) {
+          rollbackAfterError(ex, false);
+          throw ex;
+        }
+      }, () -> {
+        detachInvolved(Collections.singletonList(e));
+        reloadVersion(e);
+      }, retryPolicy.isMergeOnConflict());
+      touched(e.getClass());
+    } catch (Exception ex1) {
+      if (retryPolicy.isConflict(ex1)) {
+        n = -1;
+      } else {
+        Logger.error(clazz, ex1.getMessage());
+      }
     }
     return n;
   }
@@ -471,16 +975,29 @@ public class JpaDao implements JpaDaoAPI {
   @Override
   public int delete(Class<?> cl, Object pk) {
     int n = 0;
-    Object e = read(cl, pk, false, false);
     try {
-      em.remove(e);
-      tr.commit();
-      n = 1;
-    } catch (OptimisticLockException ex1) {
-      n = -1;
-      rollbackAfterError(ex1, false);
-    } catch (Exception ex2) {
-      rollbackAfterError(ex2, true);
+      n = runWithRetry(() -> {
+        try {
+          Object e = read(cl, pk, false, false);
+          tr.beginIfNeeded();
+          em.remove(e);
+          tr.commit();
+          return 1;
+        } catch (Exception ex) {
+          rollbackAfterError(ex, false);
+          throw ex;
+        }
+      }, () -> {
+        detachManaged(cl, pk);
+        em.getEntityManagerFactory().getCache().evict(cl, pk);
+      }, true);
+      touched(cl);
+    } catch (Exception ex1) {
+      if (retryPolicy.isConflict(ex1)) {
+        n = -1;
+      } else {
+        Logger.error(clazz, ex1.getMessage());
+      }
     }
     return n;
   }
@@ -505,50 +1022,187 @@ public class JpaDao implements JpaDaoAPI {
     return ok;
   }
 
-
-
-
   /**
-   * Méthode privée de plus bas niveau pour trouver un seul objet
-   * basée sur une requête de type Query.
-   *
-   * @param query une requête de type Query (JPA)
+   * Méthode privée pour retirer du cache partagé les objets modifiés directement
+   * dans la BD par une requête de mise à jour globale. Les objets encore managés
+   * par l'entity-manager sont rafraîchis, sinon ils garderaient d'anciennes
+   * valeurs (et une ancienne version pour le verrouillage optimiste).
    *
-   * @return l'objet recherché
+   * @param cl une classe entité managée par JPA
+   * @param pk la pk de l'objet modifié ou null pour toute la classe-entité
    */
   @SuppressWarnings("unchecked")
-  private <E> E getSingleResult(Query query) {
-    E result = null;
-    if (query != null) {
-      try {
-        result = (E) query.getSingleResult();
-      } catch (NoResultException ex) {
-      } catch (Exception ex) {
-        Logger.error(clazz, ex.getMessage());
+  private void evictAfterBulkUpdate(Class<?> cl, Object pk) {
+    try {
+      List<Object> managed = new ArrayList<>();
+      IdentityMapAccessor ima = em.unwrap(UnitOfWork.class).getIdentityMapAccessor();
+      if (pk == null) {
+        em.getEntityManagerFactory().getCache().evict(cl);
+        managed.addAll(ima.getAllFromIdentityMap(null, cl, null, new InMemoryQueryIndirectionPolicy()));
+      } else {
+        em.getEntityManagerFactory().getCache().evict(cl, pk);
+        Object e = ima.getFromIdentityMap(pk, cl);
+        if (e != null) {
+          managed.add(e);
+        }
+      }
+      for (Object e : managed) {
+        em.refresh(e);
       }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
     }
-    return result;
   }
 
   /**
-   * Méthode de plus bas niveau pour retrouver un objet unique
-   * d'après une requête jqpl et un tableau de valeurs paramètres
+   * Pour la classe-entité spécifiée, incrémente (ou décrémente avec un delta
+   * négatif) un attribut numérique directement dans la BD avec une seule
+   * requête "UPDATE ... SET f = f + ?". Aucune lecture préalable n'est
+   * nécessaire et aucune incrémentation n'est perdue en cas d'accès concurrents.
    *
-   * @param jpql   une requête jpql déjà préparée, manque juste les paramètres
-   * @param params un tableau de valeurs pour les paramètres de la requête
+   * @param cl    une classe entité managée par JPA
+   * @param pk    une pk pour identifier l'objet à modifier
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter (négative pour décrémenter)
    *
-   * @return l'objet recherché
+   * @return 1=ok objet modifié, 0=objet non trouvé ou problème
    */
   @Override
-  public <E> E getSingleResult(String jpql, Object[] params) {
-    Query query = getQuery(jpql, params);
-    return getSingleResult(query);
+  public int increment(Class<?> cl, Object pk, String field, long delta) {
+    int n = 0;
+    EntityInfo ei = getEntityInfo(cl);
+    String jpql = ei.buildIncrementClause(field, 2) + ei.buildWhereClause(ei.getPkName());
+    try {
+      Query query = getQuery(jpql, new Object[]{pk, delta});
+      tr.beginIfNeeded();
+      n = query.executeUpdate();
+      tr.commit();
+      evictAfterBulkUpdate(cl, pk);
+      if (n > 0) {
+        touched(cl);
+      }
+    } catch (Exception ex1) {
+      n = 0;
+      rollbackAfterError(ex1, true);
+    }
+    return n;
   }
 
   /**
-   * Retrouve un objet unique d'une classe-entité donnée avec un critère
-   * de recherche basée sur une égalité d'un attribut de cette classe avec
-   * une valeur spécifiée.
+   * Idem à la méthode précédente, mais retourne la nouvelle valeur de l'attribut.
+   * Celle-ci est relue dans la même transaction que l'incrémentation
+   * (la ligne est encore verrouillée), elle est donc exacte même en cas
+   * d'accès concurrents.
+   *
+   * @param cl    une classe entité managée par JPA
+   * @param pk    une pk pour identifier l'objet à modifier
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter (négative pour décrémenter)
+   *
+   * @return la nouvelle valeur de l'attribut, =0 si l'objet n'a pas été trouvé
+   */
+  @Override
+  public long incrementAndGet(Class<?> cl, Object pk, String field, long delta) {
+    long value = 0;
+    EntityInfo ei = getEntityInfo(cl);
+    String where = ei.buildWhereClause(ei.getPkName());
+    try {
+      Query query = getQuery(ei.buildIncrementClause(field, 2) + where, new Object[]{pk, delta});
+      tr.beginIfNeeded();
+      if (query.executeUpdate() > 0) {
+        query = getQuery(ei.buildSelectClause(field) + where, new Object[]{pk});
+        Number result = (Number) query.getSingleResult();
+        value = (result == null) ? 0 : result.longValue();
+      }
+      tr.commit();
+      evictAfterBulkUpdate(cl, pk);
+      touched(cl);
+    } catch (Exception ex1) {
+      value = 0;
+      rollbackAfterError(ex1, true);
+    }
+    return value;
+  }
+
+  /**
+   * Incrémente (ou décrémente) un attribut numérique de tous les objets
+   * sélectionnés par les filtres d'un objet Search, ceci avec une seule
+   * requête "UPDATE ... SET f = f + ? WHERE ...".
+   *
+   * @param search un objet pour spécifier la classe-entité et les filtres
+   * @param field  le nom de l'attribut numérique à incrémenter
+   * @param delta  la valeur à ajouter (négative pour décrémenter)
+   *
+   * @return le nombre d'objets modifiés
+   */
+  @Override
+  public int increment(Search search, String field, long delta) {
+    int n = 0;
+    EntityInfo ei = getEntityInfo(search.getEntity());
+    Object[] filterParams = ei.getParams(search);
+    Object[] params = Arrays.copyOf(filterParams, filterParams.length + 1);
+    params[filterParams.length] = delta;
+    String jpql = ei.buildIncrementClause(field, params.length) + ei.getWhereClause(search);
+    try {
+      Query query = getQuery(jpql, params);
+      tr.beginIfNeeded();
+      n = query.executeUpdate();
+      tr.commit();
+      evictAfterBulkUpdate(search.getEntity(), null);
+      if (n > 0) {
+        touched(search.getEntity());
+      }
+    } catch (Exception ex1) {
+      n = 0;
+      rollbackAfterError(ex1, true);
+    }
+    return n;
+  }
+
+
+
+
+  /**
+   * Méthode privée de plus bas niveau pour trouver un seul objet
+   * basée sur une requête de type Query.
+   *
+   * @param query une requête de type Query (JPA)
+   *
+   * @return l'objet recherché
+   */
+  @SuppressWarnings("unchecked")
+  private <E> E getSingleResult(Query query) {
+    E result = null;
+    if (query != null) {
+      try {
+        result = (E) query.getSingleResult();
+      } catch (NoResultException ex) {
+      } catch (Exception ex) {
+        Logger.error(clazz, ex.getMessage());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Méthode de plus bas niveau pour retrouver un objet unique
+   * d'après une requête jqpl et un tableau de valeurs paramètres
+   *
+   * @param jpql   une requête jpql déjà préparée, manque juste les paramètres
+   * @param params un tableau de valeurs pour les paramètres de la requête
+   *
+   * @return l'objet recherché
+   */
+  @Override
+  public <E> E getSingleResult(String jpql, Object[] params) {
+    Query query = getQuery(jpql, params);
+    return getSingleResult(query);
+  }
+
+  /**
+   * Retrouve un objet unique d'une classe-entité donnée avec un critère
+   * de recherche basée sur une égalité d'un attribut de cette classe avec
+   * une valeur spécifiée.
    *
    * @param cl    une classe entité managée par JPA
    * @param attr  un nom d'attribut de la classe comme critère de recherche
@@ -824,6 +1478,129 @@ public class JpaDao implements JpaDaoAPI {
     return getList(query, search.getFirstResult(), search.getMaxResults());
   }
 
+  /**
+   * Exporte en flux le résultat d'une recherche vers un "writer" : les objets
+   * (ou les attributs choisis dans la recherche) sont lus avec un curseur de
+   * la BD et écrits au fur et à mesure, sans liste en mémoire. Les colonnes
+   * d'une classe-entité sont déterminées une seule fois (un objet lié est
+   * exporté avec sa PK). Avec MySQL, l'URL de connexion doit contenir
+   * "useCursorFetch=true" pour que le pilote ne lise pas tout le résultat.
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param writer le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  @Override
+  public long export(Search search, Writer writer, ExportFormat format) {
+    long n = 0;
+    EntityInfo ei = getEntityInfo(search.getEntity());
+    List<ColumnInfo> cols = search.getFields().isEmpty() && search.getFunctions().isEmpty() ? ei.getColumns() : null;
+    List<String> names = new ArrayList<>();
+    if (cols != null) {
+      for (ColumnInfo c : cols) {
+        names.add(c.getField().getName());
+      }
+    } else {
+      for (Field f : search.getFields()) {
+        names.add(f.getName());
+      }
+      names.addAll(search.getFunctions());
+    }
+    String[] header = names.toArray(new String[0]);
+    Object[] values = new Object[header.length];
+    Query query = getQuery(search);
+    if (query == null) {
+      return n;
+    }
+    if (search.getFirstResult() > 0) {
+      query.setFirstResult(search.getFirstResult());
+    }
+    if (search.getMaxResults() > 0) {
+      query.setMaxResults(search.getMaxResults());
+    }
+    query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+    query.setHint(QueryHints.CURSOR, HintValues.TRUE);
+    query.setHint(QueryHints.CURSOR_PAGE_SIZE, MAX_IN_PARAMS);
+    query.setHint(QueryHints.JDBC_FETCH_SIZE, MAX_IN_PARAMS);
+    try {
+      CursoredStream cursor = (CursoredStream) query.getSingleResult();
+      try {
+        format.writeHeader(writer, header);
+        while (cursor.hasMoreElements()) {
+          Object row = cursor.nextElement();
+          if (cols != null) {
+            for (int i = 0; i < values.length; i++) {
+              values[i] = cols.get(i).toJdbcValue(row);
+            }
+          } else if (row instanceof Object[]) {
+            System.arraycopy((Object[]) row, 0, values, 0, values.length);
+          } else {
+            values[0] = row;
+          }
+          format.writeRow(writer, header, values);
+          n++;
+          if (n % MAX_IN_PARAMS == 0) {
+            cursor.releasePrevious();
+            writer.flush();
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+      writer.flush();
+    } catch (Exception ex) {
+      n = 0;
+      Logger.error(clazz, search.getEntity().getSimpleName(), ex.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Exporte en flux le résultat d'une recherche vers un flux d'octets (UTF-8),
+   * compressé ou non au format GZIP (voir la méthode précédente).
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param out le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   * @param gzip TRUE pour compresser l'exportation au format GZIP
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  @Override
+  public long export(Search search, OutputStream out, ExportFormat format, boolean gzip) {
+    long n = 0;
+    try {
+      GZIPOutputStream zip = gzip ? new GZIPOutputStream(out, 64 * 1024) : null;
+      Writer writer = new BufferedWriter(new OutputStreamWriter(gzip ? zip : out, StandardCharsets.UTF_8), 64 * 1024);
+      n = export(search, writer, format);
+      if (zip != null) {
+        zip.finish();
+      }
+      out.flush();
+    } catch (IOException ex) {
+      n = 0;
+      Logger.error(clazz, ex.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Exporte en flux le résultat d'une recherche vers un flux d'octets (UTF-8),
+   * sans compression.
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param out le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  @Override
+  public long export(Search search, OutputStream out, ExportFormat format) {
+    return export(search, out, format, false);
+  }
+
   /**
    * Exécute une commande SQL native pour une
    * mise à jour (insert/update) ou un effacement (delete).
@@ -839,8 +1616,10 @@ public class JpaDao implements JpaDaoAPI {
       Query query = em.createNativeQuery(sql);
       Logger.debug(clazz, sql);
       if (query != null) {
+        tr.beginIfNeeded();
         n = query.executeUpdate();
         tr.commit();
+        touchedBySql(sql);
       }
     } catch (Exception ex1) {
       n = 0;
@@ -862,29 +1641,121 @@ public class JpaDao implements JpaDaoAPI {
    */
   @Override
   public int executeScript(String sqlScriptFileName, Object... objects) {
-    List<String> commands;
+    ScriptOptions options = new ScriptOptions();
     if (objects.length == 2) {
-      commands = ScriptHelper.readSqlScriptFile(sqlScriptFileName,
-              (String) objects[0], (String) objects[1]);
-    } else {
-      commands = ScriptHelper.readSqlScriptFile(sqlScriptFileName);
+      options.setDbNames((String) objects[0], (String) objects[1]);
+    }
+    return executeScript(sqlScriptFileName, options);
+  }
+
+  /**
+   * Méthode privée pour tester si une commande SQL est une mise à jour de
+   * données qui peut être regroupée avec d'autres dans un lot JDBC.
+   */
+  private boolean isBatchableCommand(String sql) {
+    return sql.regionMatches(true, 0, "INSERT ", 0, 7)
+            || sql.regionMatches(true, 0, "UPDATE ", 0, 7)
+            || sql.regionMatches(true, 0, "DELETE ", 0, 7)
+            || sql.regionMatches(true, 0, "REPLACE ", 0, 8);
+  }
+
+  /**
+   * Méthode privée pour exécuter un script SQL depuis le point de reprise
+   * (commandes déjà validées), une transaction par intervalle de validation.
+   * Le point de reprise est avancé après chaque validation.
+   */
+  private void runScript(String sqlScriptFileName, ScriptOptions options, long[] committed) throws Exception {
+    boolean mysql = getSqlDialect() == SqlDialect.MYSQL;
+    boolean rename = options.getOldDbName() != null && options.getNewDbName() != null;
+    int interval = options.getCommitInterval();
+    try (SqlScriptReader reader = ScriptHelper.openSqlScript(sqlScriptFileName, mysql)) {
+      String sql = reader.next();
+      long index = 1;
+      while (sql != null && index <= committed[0]) {
+        sql = reader.next();
+        index++;
+      }
+      while (sql != null) {
+        long done = 0;
+        tr.beginManualTransaction();
+        try {
+          Connection con = em.unwrap(Connection.class);
+          try (Statement st = con.createStatement()) {
+            int batched = 0;
+            while (sql != null && (interval == 0 || done < interval)) {
+              if (rename) {
+                sql = ScriptHelper.renameDb(sql, options.getOldDbName(), options.getNewDbName());
+              }
+              Logger.debug(clazz, sql);
+              if (isBatchableCommand(sql)) {
+                st.addBatch(sql);
+                batched++;
+                if (batched >= options.getBatchSize()) {
+                  st.executeBatch();
+                  batched = 0;
+                }
+              } else {
+                if (batched > 0) {
+                  st.executeBatch();
+                  batched = 0;
+                }
+                st.execute(sql);
+              }
+              done++;
+              sql = reader.next();
+            }
+            if (batched > 0) {
+              st.executeBatch();
+            }
+          }
+          tr.commitManualTransaction();
+        } catch (Exception ex) {
+          Logger.error(clazz, "line " + reader.getLineNumber(), ex.getMessage());
+          rollbackAfterError(ex, false);
+          throw ex;
+        } finally {
+          tr.finishManualTransaction();
+        }
+        committed[0] += done;
+        if (options.getProgressListener() != null) {
+          options.getProgressListener().accept(committed[0]);
+        }
+      }
     }
+  }
+
+  /**
+   * Exécute un script SQL en flux, sans le charger en mémoire, ce qui permet
+   * d'importer des "dumps" de plusieurs Go. Les commandes de mise à jour
+   * consécutives (INSERT, UPDATE, DELETE, REPLACE) sont envoyées par lots JDBC.
+   * Avec un intervalle de validation, l'écouteur de progression reçoit le
+   * nombre de commandes validées : en cas d'erreur, le script peut être
+   * repris à partir de ce point (voir ScriptOptions).
+   *
+   * @param sqlScriptFileName un nom de fichier script avec des commandes sql
+   * @param options les options d'exécution (noms de BD, lots, validations, reprise)
+   *
+   * @return le nombre de commandes effectuées par cet appel (sans celles sautées), =0 en cas d'erreur
+   */
+  @Override
+  public int executeScript(String sqlScriptFileName, ScriptOptions options) {
     int n = 0;
+    long[] committed = {options.getSkipStatements()};
     try {
-      tr.beginManualTransaction();
-      for (String sql : commands) {
-        Query query = em.createNativeQuery(sql);
-        Logger.debug(clazz, sql);
-        int how = query.executeUpdate();
-//        System.out.println(i + " " + sql + " how="+how);
-        n = n + 1; // + how ;
-      }
-      tr.commitManualTransaction();
+      runWithRetry(() -> {
+        runScript(sqlScriptFileName, options, committed);
+        return null;
+      }, null, false);
+      n = (int) (committed[0] - options.getSkipStatements());
     } catch (Exception ex1) {
       Logger.error(clazz, ex1.getMessage());
       n = 0;
-    } finally {
-      tr.finishManualTransaction();
+    }
+    em.getEntityManagerFactory().getCache().evictAll();
+    if (committed[0] > options.getSkipStatements()) {
+      for (Class<?> cl : entitiesMap.keySet()) {
+        touched(cl);
+      }
     }
     return n;
   }
@@ -907,6 +1778,7 @@ public class JpaDao implements JpaDaoAPI {
       n = query.executeUpdate();
       updatePkMax(ei, 0L);
       tr.commitManualTransaction();
+      touched(cl);
     } catch (Exception ex1) {
       n = 0;
       rollbackAfterError(ex1, true);
@@ -918,7 +1790,10 @@ public class JpaDao implements JpaDaoAPI {
 
   /**
    * Permet d'effacer le contenu global d'une liste de tables d'après
-   * un tenant spécifié avec son nom et sa valeur.
+   * un tenant spécifié avec son nom et sa valeur (voir deleteTenant).
+   * Après une erreur (journalisée), le nombre retourné est celui des lignes
+   * déjà effacées dans les lots validés. Refusé (=0) dans un scope
+   * transactionnel ou en mode manuel (voir deleteTenant).
    *
    * @param tenantName le nom d'un tenant
    * @param tenantId l'id de ce tenant (une pk)
@@ -928,26 +1803,304 @@ public class JpaDao implements JpaDaoAPI {
    */
   @Override
   public int deleteAll(String tenantName, int tenantId, String... tables) {
+    long n = 0;
+    Map<String, Long> counts = Collections.synchronizedMap(new LinkedHashMap<>());
+    deleteTenant(tenantName, tenantId, tables, counts);
+    synchronized (counts) {
+      for (long c : counts.values()) {
+        n += c;
+      }
+    }
+    return (int) n;
+  }
+
+  /**
+   * Méthode privée pour effacer les lignes d'un tenant dans une table, avec
+   * sa propre connexion, par lots de TENANT_CHUNK_SIZE lignes (une
+   * transaction par lot). Le compteur de la table est mis à jour après
+   * chaque lot validé.
+   */
+  private void deleteTenantRows(EntityManagerFactory factory, SqlDialect dialect, String table, String pkCol,
+          String tenantName, Object tenantId, Map<String, Long> counts) throws Exception {
+    String sql = dialect.buildDeleteLimit(table, pkCol, tenantName + " = ?", TENANT_CHUNK_SIZE);
+    boolean limited = dialect != SqlDialect.STANDARD || pkCol != null;
+    EntityManager wem = factory.createEntityManager();
+    try {
+      int n;
+      do {
+        wem.getTransaction().begin();
+        try {
+          Connection con = wem.unwrap(Connection.class);
+          try (PreparedStatement ps = con.prepareStatement(sql)) {
+            ps.setObject(1, tenantId);
+            n = ps.executeUpdate();
+          }
+          wem.getTransaction().commit();
+        } finally {
+          if (wem.getTransaction().isActive()) {
+            wem.getTransaction().rollback();
+          }
+        }
+        counts.merge(table, (long) n, Long::sum);
+      } while (limited && n == TENANT_CHUNK_SIZE);
+    } finally {
+      wem.close();
+    }
+    Logger.debug(clazz, table, tenantName + "=" + tenantId, counts.get(table));
+  }
+
+  /**
+   * Efface toutes les lignes d'un tenant dans une liste de tables. L'ordre est
+   * calculé avec les clés étrangères du métamodèle JPA (enfants d'abord) : les
+   * tables indépendantes d'un même niveau sont traitées en parallèle, chacune
+   * avec sa propre connexion (au plus TENANT_MAX_THREADS à la fois). Les
+   * lignes sont effacées par lots avec une requête paramétrée, une
+   * transaction courte par lot, pour ne pas verrouiller longtemps les tables
+   * partagées. Les tables sans classe-entité sont traitées en premier, dans
+   * l'ordre spécifié (et en une seule fois sans LIMIT dans le dialecte, leur
+   * PK étant inconnue).<br>
+   * <br>
+   * Attention, l'effacement n'est pas fait dans la transaction courante :
+   * l'appel est donc refusé dans un scope transactionnel ou en mode manuel
+   * (autocommit à false). Après une erreur, les lots déjà validés restent
+   * effacés et il suffit de relancer l'opération.
+   *
+   * @param tenantName le nom de la colonne du tenant
+   * @param tenantId la valeur de ce tenant (une pk)
+   * @param tables une liste des tables à effacer (dans n'importe quel ordre)
+   *
+   * @return le nombre de lignes effacées par table (dans l'ordre des effacements), null en cas d'erreur
+   */
+  @Override
+  public Map<String, Long> deleteTenant(String tenantName, Object tenantId, String... tables) {
+    Map<String, Long> counts = Collections.synchronizedMap(new LinkedHashMap<>());
+    if (!deleteTenant(tenantName, tenantId, tables, counts)) {
+      return null;
+    }
+    synchronized (counts) {
+      return new LinkedHashMap<>(counts);
+    }
+  }
+
+  /**
+   * Méthode privée pour effacer les lignes d'un tenant (voir deleteTenant).
+   * Les compteurs des tables sont remplis au fur et à mesure, même en cas
+   * d'erreur.
+   */
+  private boolean deleteTenant(String tenantName, Object tenantId, String[] tables, Map<String, Long> counts) {
+    List<List<String>> steps = new ArrayList<>();
+    Map<Class<?>, String> entityTables = new LinkedHashMap<>();
+    Map<String, String> pkCols = new HashMap<>();
+    int threads = 1;
+    try {
+      if (tr.getNestingLevel() > 0 || !tr.isAutoCommit()) {
+        throw new JpaException(clazz.getSimpleName(), "deleteTenant", "not allowed inside a transaction");
+      }
+      if (!SqlDialect.isSqlName(tenantName)) {
+        throw new JpaException(clazz.getSimpleName(), "deleteTenant", "invalid column name " + tenantName);
+      }
+      for (String table : tables) {
+        EntityInfo found = null;
+        for (EntityInfo ei : entitiesMap.values()) {
+          if (ei.getTableName().equalsIgnoreCase(table)) {
+            found = ei;
+          }
+        }
+        if (found != null) {
+          entityTables.put(found.getEntityClass(), table);
+          if (!found.getColumns().isEmpty() && found.getColumns().get(0).isPk()) {
+            pkCols.put(table, found.getColumns().get(0).getName());
+          }
+        } else if (SqlDialect.isSqlName(table)) {
+          steps.add(Collections.singletonList(table));
+        } else {
+          throw new JpaException(clazz.getSimpleName(), "deleteTenant", "invalid table name " + table);
+        }
+      }
+      List<List<Class<?>>> levels = EntityGraph.levels(em.getMetamodel(), entityTables.keySet());
+      for (int i = levels.size() - 1; i >= 0; i--) {
+        List<String> step = new ArrayList<>();
+        for (Class<?> cl : levels.get(i)) {
+          step.add(entityTables.get(cl));
+        }
+        steps.add(step);
+        threads = Math.max(threads, step.size());
+      }
+    } catch (JpaException ex1) {
+      Logger.error(clazz, ex1.getMessage());
+      return false;
+    }
+    boolean ok = true;
+    EntityManagerFactory factory = em.getEntityManagerFactory();
+    SqlDialect dialect = getSqlDialect();
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, TENANT_MAX_THREADS));
+    try {
+      for (List<String> step : steps) {
+        Map<String, Future<?>> futures = new LinkedHashMap<>();
+        for (String table : step) {
+          counts.put(table, 0L);
+          futures.put(table, pool.submit(() -> {
+            deleteTenantRows(factory, dialect, table, pkCols.get(table), tenantName, tenantId, counts);
+            return null;
+          }));
+        }
+        Throwable error = null;
+        for (Map.Entry<String, Future<?>> entry : futures.entrySet()) {
+          try {
+            entry.getValue().get();
+          } catch (ExecutionException ex1) {
+            error = (ex1.getCause() != null) ? ex1.getCause() : ex1;
+          }
+        }
+        if (error != null) {
+          throw new JpaException(clazz.getSimpleName(), "deleteTenant", error.getMessage());
+        }
+      }
+    } catch (JpaException | InterruptedException ex1) {
+      Logger.error(clazz, tenantName + "=" + tenantId, ex1.getMessage(), "done: " + counts);
+      ok = false;
+    } finally {
+      pool.shutdownNow();
+      for (Class<?> cl : entityTables.keySet()) {
+        factory.getCache().evict(cl);
+        touched(cl);
+      }
+    }
+    return ok;
+  }
+
+  /**
+   * Méthode privée pour retrouver les classes-entités hors d'une liste qui
+   * référencent une classe de cette liste (clés étrangères du métamodèle).
+   */
+  private Set<Class<?>> findReferencingClasses(List<Class<?>> classes) {
+    Set<Class<?>> result = new LinkedHashSet<>();
+    for (EntityType<?> et : em.getMetamodel().getEntities()) {
+      Class<?> cl = et.getJavaType();
+      if (!classes.contains(cl)) {
+        for (Field f : EntityGraph.getReferenceFields(em.getMetamodel(), cl)) {
+          for (Class<?> ref : classes) {
+            if (f.getType().isAssignableFrom(ref) || ref.isAssignableFrom(f.getType())) {
+              result.add(cl);
+            }
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Vide rapidement les tables des classes-entités spécifiées et remet à zéro
+   * leurs compteurs de PK (table de séquence ou IDENTITY). L'ordre est calculé
+   * avec les clés étrangères du métamodèle JPA (enfants d'abord). Avec MySQL
+   * et H2, les tables sont vidées avec TRUNCATE, le contrôle des clés
+   * étrangères étant suspendu pendant l'opération, sinon avec un DELETE global
+   * par table. Les commandes sont envoyées en un lot JDBC, suivi d'un second
+   * lot pour les compteurs de PK, et le cache de second niveau est vidé à la
+   * fin.<br>
+   * <br>
+   * Si une classe-entité hors de la liste référence une des tables, le
+   * contrôle des clés étrangères reste actif et les tables sont vidées avec
+   * DELETE : le vidage échoue (et il est annulé) tant que des lignes de cette
+   * autre table les référencent, au lieu de les laisser orphelines.<br>
+   * <br>
+   * Attention, avec MySQL et H2, TRUNCATE valide implicitement la transaction
+   * en cours : le vidage ne peut pas être annulé et il est refusé dans un
+   * scope transactionnel. Avec H2, la suspension du contrôle des clés
+   * étrangères (REFERENTIAL_INTEGRITY) vaut pour toute la BD : aucune autre
+   * connexion ne devrait écrire pendant l'opération.
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   *
+   * @return le nombre de tables vidées, =0 en cas d'erreur
+   */
+  @Override
+  public int reset(Class<?>... classes) {
     int n = 0;
-    String sql;
-    Query query;
+    SqlDialect dialect = getSqlDialect();
+    if (dialect != SqlDialect.STANDARD && tr.getNestingLevel() > 0) {
+      Logger.error(clazz, "reset (TRUNCATE) is not allowed in a transaction scope");
+      return n;
+    }
     try {
+      List<List<Class<?>>> levels = EntityGraph.levels(em.getMetamodel(), Arrays.asList(classes));
+      Set<Class<?>> referencing = findReferencingClasses(Arrays.asList(classes));
+      boolean fast = referencing.isEmpty();
+      if (!fast) {
+        Logger.debug(clazz, "referenced by", referencing, "DELETE with foreign key checks");
+      }
+      List<String> sql = new ArrayList<>();
+      List<String> counters = new ArrayList<>();
+      for (int i = levels.size() - 1; i >= 0; i--) {
+        for (Class<?> cl : levels.get(i)) {
+          EntityInfo ei = getEntityInfo(cl);
+          String truncate = fast ? dialect.buildTruncate(ei.getTableName()) : null;
+          sql.add((truncate != null) ? truncate : "DELETE FROM " + ei.getTableName());
+          if (ei.isTableSeqUsed()) {
+            if (pkAllocator != null) {
+              pkAllocator.reset(cl);
+            }
+            counters.add(ei.buildUpdatePkMaxClause(0L));
+          } else if (ei.isIdentityUsed() && truncate == null) {
+            counters.add(dialect.buildIdentityRestart(ei.getTableName(), ei.getColumns().get(0).getName(), 1));
+          }
+        }
+      }
+      String fkChecksOff = fast ? dialect.buildForeignKeyChecks(false) : null;
       tr.beginManualTransaction();
-      for (String tableName : tables) {
-        sql = "DELETE FROM " + tableName + " WHERE " + tenantName + "=" + tenantId;
-        query = em.createNativeQuery(sql);
-        n += query.executeUpdate();
+      Connection con = em.unwrap(Connection.class);
+      try (Statement st = con.createStatement()) {
+        if (fkChecksOff != null) {
+          st.execute(fkChecksOff);
+        }
+        try {
+          for (String cmd : sql) {
+            Logger.debug(clazz, cmd);
+            st.addBatch(cmd);
+          }
+          st.executeBatch();
+
+          // compteurs après le vidage complet (ALTER TABLE valide la transaction)
+          for (String cmd : counters) {
+            Logger.debug(clazz, cmd);
+            st.addBatch(cmd);
+          }
+          if (!counters.isEmpty()) {
+            st.executeBatch();
+          }
+        } finally {
+          if (fkChecksOff != null) {
+            st.execute(dialect.buildForeignKeyChecks(true));
+          }
+        }
       }
       tr.commitManualTransaction();
+      n = classes.length;
+      for (Class<?> cl : classes) {
+        touched(cl);
+      }
     } catch (Exception ex1) {
       n = 0;
       rollbackAfterError(ex1, true);
     } finally {
       tr.finishManualTransaction();
     }
+    em.getEntityManagerFactory().getCache().evictAll();
     return n;
   }
 
+  /**
+   * Vide rapidement toutes les tables des classes-entités de l'unité de
+   * persistance et remet à zéro leurs compteurs de PK (voir reset).
+   *
+   * @return le nombre de tables vidées, =0 en cas d'erreur
+   */
+  @Override
+  public int resetAll() {
+    return reset(entitiesMap.keySet().toArray(new Class<?>[0]));
+  }
+
   /**
    * Méthode privée pour récupérer la valeur de la PK d'un objet spécifié.
    */
@@ -987,7 +2140,8 @@ public class JpaDao implements JpaDaoAPI {
     int n = 0;
     EntityInfo ei = getEntityInfo(cl);
 //    Class type = ei.getEntityClass();
-    if (count(ei) == 0 && !list.isEmpty() && resetPk) {
+    boolean reset = count(ei) == 0 && !list.isEmpty() && resetPk;
+    if (reset) {
       Method m = ei.findMethod("setPk");
       long i = ei.getPkInitialValue();
       long j = ei.getPkAllocationSize();
@@ -996,19 +2150,37 @@ public class JpaDao implements JpaDaoAPI {
         i = i + j;
       }
     }
+    boolean seqUpToDate = !reset && allocatePks(ei, list);
+    Method setter = ei.findMethod("setPk");
+    List<Object> pks = savePks(list, ei.findMethod("getPk"));
     try {
-      tr.beginManualTransaction();
-      for (E e : list) {
-        em.persist(e);
-        em.flush(); // STT 5.1.2017
+      n = runWithRetry(() -> {
+        tr.beginManualTransaction();
+        try {
+          for (E e : list) {
+            em.persist(e);
+            em.flush(); // STT 5.1.2017
+          }
+          if (!seqUpToDate) {
+            updatePkMax(ei, getPkMax(ei));
+          }
+          tr.commitManualTransaction();
+        } catch (Exception ex) {
+          rollbackAfterError(ex, false);
+          throw ex;
+        } finally {
+          tr.finishManualTransaction();
+        }
+        return list.size();
+      }, () -> {
+        detachInvolved(list);
+        restorePks(list, setter, pks);
+      }, false);
+      if (n > 0) {
+        touched(cl);
       }
-      updatePkMax(ei, getPkMax(ei));
-      tr.commitManualTransaction();
-      n = list.size();
     } catch (Exception ex1) {
-      rollbackAfterError(ex1, true);
-    } finally {
-      tr.finishManualTransaction();
+      Logger.error(clazz, ex1.getMessage());
     }
     return n;
   }
@@ -1028,30 +2200,782 @@ public class JpaDao implements JpaDaoAPI {
     int n[] = new int[] {0, 0};
     EntityInfo ei = getEntityInfo(cl);
     Method m = ei.findMethod("getPk");
+    Method setter = ei.findMethod("setPk");
+    boolean seqUpToDate = allocatePks(ei, list);
+    List<Object> pks = savePks(list, m);
     try {
-      tr.beginManualTransaction();
-      for (E e : list) {
-        if (exists(cl, getPk(e, m))) {
+      n = runWithRetry(() -> {
+        int cnt[] = new int[] {0, 0};
+        tr.beginManualTransaction();
+        try {
+          for (E e : list) {
+            if (exists(cl, getPk(e, m))) {
+              em.merge(e);
+              cnt[0]++;
+            } else {
+              em.persist(e);
+              cnt[1]++;
+            }
+            em.flush(); // STT 5.1.2017
+          }
+          if (!seqUpToDate) {
+            updatePkMax(ei, getPkMax(ei));
+          }
+          tr.commitManualTransaction();
+        } catch (Exception ex) {
+          rollbackAfterError(ex, false);
+          throw ex;
+        } finally {
+          tr.finishManualTransaction();
+        }
+        return cnt;
+      }, () -> {
+        detachInvolved(list);
+        restorePks(list, setter, pks);
+      }, false);
+      if (n[0] + n[1] > 0) {
+        touched(cl);
+      }
+    } catch (Exception ex1) {
+      n[0] = 0;
+      n[1] = 0;
+      Logger.error(clazz, ex1.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour écrire un lot [from, to[ d'une liste dans sa propre
+   * transaction. Si le lot échoue, il est annulé puis coupé en deux et
+   * chaque moitié est rejouée, ceci jusqu'à isoler les objets fautifs.
+   */
+  private <E> void writeBatchChunk(Class<?> cl, EntityInfo ei, List<E> list, int from, int to,
+          boolean update, BatchReport<E> report) {
+    Method getter = ei.findMethod("getPk");
+    Method setter = ei.findMethod("setPk");
+    List<E> chunk = list.subList(from, to);
+    List<Object> pks = savePks(chunk, getter);
+    List<Object> versions = saveVersions(chunk, ei.getVersionField());
+    int cnt[] = new int[] {0, 0};
+    Exception error = null;
+    report.addTransaction();
+    tr.beginManualTransaction();
+    try {
+      Set<Object> existing = Collections.emptySet();
+      if (update) {
+        List<Object> keys = new ArrayList<>();
+        for (Object pk : pks) {
+          if (pk != null) {
+            keys.add(pk);
+          }
+        }
+        existing = findExistingPks(ei, keys);
+      }
+      for (int i = 0; i < chunk.size(); i++) {
+        E e = chunk.get(i);
+        Object pk = pks.get(i);
+        if (pk != null && existing.contains(pk)) {
           em.merge(e);
-          n[0]++;
+          cnt[0]++;
         } else {
           em.persist(e);
-          n[1]++;
+          cnt[1]++;
         }
-        em.flush(); // STT 5.1.2017
       }
-      updatePkMax(ei, getPkMax(ei));
+      em.flush();
       tr.commitManualTransaction();
-    } catch (Exception ex1) {
-      n[0] = 0;
-      n[1] = 0;
-      rollbackAfterError(ex1, true);
+      report.addSucceeded(chunk, cnt[0], cnt[1]);
+      touched(cl);
+    } catch (Exception ex) {
+      error = ex;
+      rollbackAfterError(ex, false);
     } finally {
       tr.finishManualTransaction();
     }
+    if (error != null) {
+      em.clear();
+      restorePks(chunk, setter, pks);
+      restoreVersions(chunk, ei.getVersionField(), versions);
+      if (to - from == 1) {
+        Logger.debug(clazz, "rejected", from, error.getMessage());
+        report.addFailure(from, list.get(from), error);
+      } else {
+        int mid = (from + to) >>> 1;
+        writeBatchChunk(cl, ei, list, from, mid, update, report);
+        writeBatchChunk(cl, ei, list, mid, to, update, report);
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour écrire une liste par lots avec isolation des erreurs.
+   */
+  private <E> BatchReport<E> writeBatch(Class<?> cl, List<E> list, int chunkSize, boolean update) {
+    BatchReport<E> report = new BatchReport<>();
+    EntityInfo ei = getEntityInfo(cl);
+    if (tr.getNestingLevel() > 0) {
+      Logger.error(clazz, "not allowed inside a transaction scope");
+      for (int i = 0; i < list.size(); i++) {
+        report.addFailure(i, list.get(i), new IllegalStateException("transaction scope in progress"));
+      }
+      return report;
+    }
+    boolean seqUpToDate = allocatePks(ei, list);
+    int size = Math.max(1, chunkSize);
+    for (int from = 0; from < list.size(); from += size) {
+      writeBatchChunk(cl, ei, list, from, Math.min(from + size, list.size()), update, report);
+    }
+    if (report.getSucceededCount() > 0 && !seqUpToDate) {
+      updatePkMax(ei, getPkMax(ei));
+    }
+    Logger.debug(clazz, cl.getSimpleName(), report);
+    return report;
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, insert une liste d'objets par lots avec
+   * isolation des erreurs. Chaque lot est validé dans sa propre transaction.
+   * Un lot qui échoue (violation de contrainte, valeur trop longue, ...) est
+   * annulé puis coupé en deux jusqu'à trouver les objets fautifs : tous les
+   * autres objets sont écrits dans la BD.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à insérer dans la persistance
+   * @param chunkSize le nombre d'objets par lot
+   *
+   * @return un rapport avec les objets insérés et les objets refusés (avec leur cause)
+   */
+  @Override
+  public <E> BatchReport<E> insertBatch(Class<?> cl, List<E> list, int chunkSize) {
+    return writeBatch(cl, list, chunkSize, false);
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, met à jour une liste d'objets par lots avec
+   * isolation des erreurs (idem à "insertBatch"). Si un objet n'existe pas,
+   * il est rajouté.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à modifier (ou à ajouter) dans la persistance
+   * @param chunkSize le nombre d'objets par lot
+   *
+   * @return un rapport avec les objets écrits et les objets refusés (avec leur cause)
+   */
+  @Override
+  public <E> BatchReport<E> updateBatch(Class<?> cl, List<E> list, int chunkSize) {
+    return writeBatch(cl, list, chunkSize, true);
+  }
+
+  /**
+   * Méthode privée pour exécuter un "upsert" natif pour un lot de lignes
+   * avec le "batching" JDBC : les requêtes de "rowsPerStmt" lignes partagent
+   * la même requête préparée, le reste est envoyé avec une requête plus courte.
+   */
+  private <E> void executeUpsert(Connection con, EntityInfo ei, List<ColumnInfo> cols, List<E> rows,
+          int rowsPerStmt) throws Exception {
+    SqlDialect dialect = getSqlDialect();
+    List<String> names = new ArrayList<>();
+    List<String> fixed = new ArrayList<>();
+    String versionCol = null;
+    for (ColumnInfo c : cols) {
+      names.add(c.getName());
+      if (c.isVersion()) {
+        versionCol = c.getName();
+      }
+      if (!c.isUpdatable()) {
+        fixed.add(c.getName());
+      }
+    }
+    int full = (rows.size() / rowsPerStmt) * rowsPerStmt;
+    if (full > 0) {
+      String sql = dialect.buildUpsert(ei.getTableName(), names, cols.get(0).getName(), versionCol, fixed, rowsPerStmt);
+      try (PreparedStatement ps = con.prepareStatement(sql)) {
+        for (int from = 0; from < full; from += rowsPerStmt) {
+          bindRows(ps, dialect, cols, rows.subList(from, from + rowsPerStmt));
+          ps.addBatch();
+        }
+        ps.executeBatch();
+      }
+    }
+    if (full < rows.size()) {
+      List<E> rest = rows.subList(full, rows.size());
+      String sql = dialect.buildUpsert(ei.getTableName(), names, cols.get(0).getName(), versionCol, fixed, rest.size());
+      try (PreparedStatement ps = con.prepareStatement(sql)) {
+        bindRows(ps, dialect, cols, rest);
+        ps.executeUpdate();
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour lier les valeurs de plusieurs objets aux paramètres
+   * d'une requête préparée (une ligne par objet).
+   */
+  private <E> void bindRows(PreparedStatement ps, SqlDialect dialect, List<ColumnInfo> cols, List<E> rows)
+          throws Exception {
+    int i = 1;
+    for (E e : rows) {
+      for (ColumnInfo c : cols) {
+        Object value = c.toJdbcValue(e);
+        if (c.isVersion() && (value == null || (value instanceof Number && ((Number) value).longValue() == 0))) {
+          value = 1; // valeur initiale de JPA pour un nouvel objet
+        }
+        ps.setObject(i++, dialect.toParam(value));
+      }
+    }
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, ajoute ou modifie une liste d'objets
+   * directement dans la BD avec des requêtes natives de plusieurs lignes
+   * ("INSERT ... ON DUPLICATE KEY UPDATE" avec MySQL, "MERGE" avec H2 et
+   * les autres BD), construites avec les colonnes du métamodèle (@Column,
+   * @JoinColumn) et envoyées par lots JDBC. Aucune lecture préalable n'est
+   * nécessaire pour savoir si un objet existe déjà.<br>
+   * <br>
+   * Les objets sans PK (PK générée par la BD) sont simplement ajoutés avec
+   * "insertList". Après la validation, les objets concernés sont retirés
+   * du cache partagé. La version (@Version) des objets modifiés est
+   * incrémentée dans la BD, mais pas dans les objets de la liste.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à ajouter ou à modifier dans la persistance
+   *
+   * @return le nombre d'objets écrits dans la BD, =0 autrement
+   */
+  @Override
+  public <E> int upsertList(Class<?> cl, List<E> list) {
+    int n = 0;
+    EntityInfo ei = getEntityInfo(cl);
+    List<ColumnInfo> cols = ei.getColumns();
+    if (list.isEmpty() || cols.isEmpty() || !cols.get(0).isPk()) {
+      return n;
+    }
+    boolean seqUpToDate = allocatePks(ei, list);
+    Method getter = ei.findMethod("getPk");
+    List<E> withPk = new ArrayList<>();
+    List<E> withoutPk = new ArrayList<>();
+    for (E e : list) {
+      Object pk = getPk(e, getter);
+      if (pk == null || (pk instanceof Number && ((Number) pk).longValue() == 0)) {
+        withoutPk.add(e);
+      } else {
+        withPk.add(e);
+      }
+    }
+    int rowsPerStmt = Math.max(1, MAX_IN_PARAMS / cols.size());
+    try {
+      if (!withPk.isEmpty()) {
+        n = runWithRetry(() -> {
+          tr.beginManualTransaction();
+          try {
+            em.flush();
+            executeUpsert(em.unwrap(Connection.class), ei, cols, withPk, rowsPerStmt);
+            if (!seqUpToDate) {
+              updatePkMax(ei, getPkMax(ei));
+            }
+            tr.commitManualTransaction();
+          } catch (Exception ex) {
+            rollbackAfterError(ex, false);
+            throw ex;
+          } finally {
+            tr.finishManualTransaction();
+          }
+          return withPk.size();
+        }, null, false);
+        touched(cl);
+        if (withPk.size() > MAX_IN_PARAMS) {
+          evictAfterBulkUpdate(cl, null);
+        } else {
+          for (E e : withPk) {
+            evictAfterBulkUpdate(cl, getPk(e, getter));
+          }
+        }
+      }
+      if (!withoutPk.isEmpty()) {
+        n += insertList(cl, withoutPk, false);
+      }
+    } catch (Exception ex1) {
+      Logger.error(clazz, ex1.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour lire la valeur d'un attribut d'un objet, d'abord avec
+   * son getter (pour les relations chargées à la demande), sinon directement.
+   */
+  private Object getFieldValue(Object e, Field f) {
+    Object value = null;
+    String name = f.getName();
+    try {
+      Method m = e.getClass().getMethod("get" + Character.toUpperCase(name.charAt(0)) + name.substring(1));
+      value = m.invoke(e);
+    } catch (NoSuchMethodException ex1) {
+      try {
+        value = f.get(e);
+      } catch (IllegalAccessException ex2) {
+        Logger.error(clazz, ex2.getMessage());
+      }
+    } catch (IllegalAccessException | InvocationTargetException ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+    return value;
+  }
+
+  /**
+   * Méthode privée pour construire une clé comparable à partir des valeurs d'un
+   * objet : un objet lié (classe-entité) est remplacé par sa PK, une date par
+   * sa valeur en millisecondes.
+   */
+  private List<Object> normalizeKey(Object[] values) {
+    List<Object> key = new ArrayList<>(values.length);
+    for (Object v : values) {
+      if (v != null && entitiesMap.containsKey(v.getClass())) {
+        v = getPk(v, getEntityInfo(v.getClass()).findMethod("getPk"));
+      } else if (v instanceof Date) {
+        v = ((Date) v).getTime();
+      }
+      key.add(v);
+    }
+    return key;
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, insert seulement les objets d'une liste dont
+   * la clé naturelle (simple ou composée de plusieurs attributs) n'existe pas
+   * encore dans la BD. Les clés existantes sont recherchées par lots avec une
+   * seule requête (IN ou suite de conditions OR), puis les objets manquants de
+   * chaque lot sont insérés en une seule transaction. Un objet dont la clé
+   * apparaît plusieurs fois dans la liste n'est inséré qu'une seule fois.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à insérer dans la persistance
+   * @param keyFields le ou les attributs qui forment la clé naturelle
+   *
+   * @return un tableau avec [0]= nb d'objets ajoutés, [1]= nb d'objets ignorés (déjà présents)
+   */
+  @Override
+  public <E> int[] insertIfAbsent(Class<?> cl, List<E> list, String... keyFields) {
+    int n[] = new int[] {0, 0};
+    EntityInfo ei = getEntityInfo(cl);
+    List<Field> fields = new ArrayList<>();
+    for (String keyField : keyFields) {
+      Field f = ei.findField(keyField);
+      if (f == null) {
+        Logger.error(clazz, cl.getSimpleName(), "unknown key field", keyField);
+        return n;
+      }
+      fields.add(f);
+    }
+    int rows = Math.max(1, MAX_IN_PARAMS / Math.max(1, fields.size()));
+    Set<List<Object>> known = new HashSet<>();
+    try {
+      for (int from = 0; from < list.size(); from += rows) {
+        List<E> chunk = list.subList(from, Math.min(from + rows, list.size()));
+
+        // clés du lot (sans doublons)
+        Map<List<Object>, Object[]> keys = new LinkedHashMap<>();
+        List<List<Object>> chunkKeys = new ArrayList<>(chunk.size());
+        for (E e : chunk) {
+          Object[] values = new Object[fields.size()];
+          for (int i = 0; i < values.length; i++) {
+            values[i] = getFieldValue(e, fields.get(i));
+          }
+          List<Object> key = normalizeKey(values);
+          chunkKeys.add(key);
+          if (!known.contains(key)) {
+            keys.putIfAbsent(key, values);
+          }
+        }
+
+        // recherche des clés déjà présentes dans la BD
+        if (!keys.isEmpty()) {
+          List<Object> params = new ArrayList<>();
+          String jpql = ei.buildSelectClause() + ei.buildKeysWhereClause(keyFields, new ArrayList<>(keys.values()), params);
+          for (Object o : getQuery(jpql, params.toArray()).getResultList()) {
+            Object[] values = new Object[fields.size()];
+            for (int i = 0; i < values.length; i++) {
+              values[i] = getFieldValue(o, fields.get(i));
+            }
+            known.add(normalizeKey(values));
+          }
+        }
+
+        // insertion des seuls objets manquants (clés connues seulement si l'insertion réussit)
+        List<E> missing = new ArrayList<>();
+        Set<List<Object>> pending = new HashSet<>();
+        for (int i = 0; i < chunk.size(); i++) {
+          List<Object> key = chunkKeys.get(i);
+          if (!known.contains(key) && pending.add(key)) {
+            missing.add(chunk.get(i));
+          } else {
+            n[1]++;
+          }
+        }
+        if (!missing.isEmpty()) {
+          int inserted = insertList(cl, missing, false);
+          if (inserted == missing.size()) {
+            known.addAll(pending);
+          }
+          n[0] += inserted;
+        }
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
     return n;
   }
 
+  /**
+   * Méthode privée pour modifier la valeur d'un attribut d'un objet, d'abord avec
+   * son setter, sinon directement.
+   */
+  private void setFieldValue(Object e, Field f, Object value) {
+    String name = f.getName();
+    try {
+      Method m = e.getClass().getMethod("set" + Character.toUpperCase(name.charAt(0)) + name.substring(1), f.getType());
+      m.invoke(e, value);
+    } catch (NoSuchMethodException ex1) {
+      try {
+        f.set(e, value);
+      } catch (IllegalAccessException ex2) {
+        Logger.error(clazz, ex2.getMessage());
+      }
+    } catch (IllegalAccessException | InvocationTargetException ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, retrouve les objets correspondant à une liste
+   * de clés métier (par ex. les abréviations des cantons). Les objets sont lus
+   * par lots avec une seule requête IN par lot.
+   *
+   * @param <K> le type de la clé métier
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param keyField l'attribut qui contient la clé métier
+   * @param keys les clés métier à retrouver
+   *
+   * @return une table clé métier vers objet managé (sans les clés inexistantes)
+   */
+  @Override
+  public <K, E> Map<K, E> resolve(Class<?> cl, String keyField, Collection<K> keys) {
+    return resolve(cl, keyField, keys, null);
+  }
+
+  /**
+   * Pour la classe-entité spécifiée, retrouve les objets correspondant à une liste
+   * de clés métier et crée au besoin les objets manquants. Ceux-ci sont construits
+   * avec la fabrique fournie et ajoutés en une seule fois avec "insertList".
+   *
+   * @param <K> le type de la clé métier
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param keyField l'attribut qui contient la clé métier
+   * @param keys les clés métier à retrouver
+   * @param factory une fabrique pour créer un objet manquant (null = pas de création)
+   *
+   * @return une table clé métier vers objet managé
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <K, E> Map<K, E> resolve(Class<?> cl, String keyField, Collection<K> keys, Function<K, E> factory) {
+    Map<K, E> map = new LinkedHashMap<>();
+    EntityInfo ei = getEntityInfo(cl);
+    Field f = ei.findField(keyField);
+    if (f == null) {
+      Logger.error(clazz, cl.getSimpleName(), "unknown key field", keyField);
+      return map;
+    }
+    List<K> distinct = new ArrayList<>(new LinkedHashSet<>(keys));
+    distinct.remove(null);
+    try {
+      String jpql = ei.buildSelectClause() + ei.buildWhereInClause(keyField);
+      for (int from = 0; from < distinct.size(); from += MAX_IN_PARAMS) {
+        List<K> chunk = new ArrayList<>(distinct.subList(from, Math.min(from + MAX_IN_PARAMS, distinct.size())));
+        for (Object o : getQuery(jpql, new Object[]{chunk}).getResultList()) {
+          map.put((K) getFieldValue(o, f), (E) o);
+        }
+      }
+      if (factory != null) {
+        List<E> missing = new ArrayList<>();
+        for (K key : distinct) {
+          if (!map.containsKey(key)) {
+            E e = factory.apply(key);
+            if (e != null) {
+              missing.add(e);
+              map.put(key, e);
+            }
+          }
+        }
+        if (!missing.isEmpty() && insertList(cl, missing, false) == 0) {
+          map.values().removeAll(missing);
+        }
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+    return map;
+  }
+
+  /**
+   * Remplace dans tous les objets d'une liste une référence ManyToOne par l'objet
+   * managé correspondant d'une table de clés métier (voir "resolve"). La clé
+   * est lue dans l'objet actuellement référencé (souvent un objet provisoire
+   * qui ne contient que la clé métier, par ex. l'abréviation d'un canton).
+   * Une référence dont la clé est absente de la table est mise à null (et la
+   * clé non résolue est journalisée) plutôt que de garder l'objet provisoire.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param list une liste d'objets à modifier
+   * @param refField l'attribut ManyToOne à remplacer (par ex. "canton")
+   * @param keyField l'attribut de la classe référencée qui contient la clé métier
+   * @param resolved une table clé métier vers objet managé
+   *
+   * @return le nombre de références remplacées
+   */
+  @Override
+  public <E> int rewire(List<E> list, String refField, String keyField, Map<?, ?> resolved) {
+    int n = 0;
+    Field rf = null;
+    Field kf = null;
+    for (E e : list) {
+      if (e == null) {
+        continue;
+      }
+      if (rf == null) {
+        rf = getEntityInfo(e.getClass()).findField(refField);
+        if (rf == null) {
+          Logger.error(clazz, e.getClass().getSimpleName(), "unknown reference field", refField);
+          break;
+        }
+      }
+      Object ref = getFieldValue(e, rf);
+      if (ref != null) {
+        if (kf == null) {
+          kf = getEntityInfo(ref.getClass()).findField(keyField);
+          if (kf == null) {
+            Logger.error(clazz, ref.getClass().getSimpleName(), "unknown key field", keyField);
+            break;
+          }
+        }
+        Object key = getFieldValue(ref, kf);
+        Object target = resolved.get(key);
+        if (target == null) {
+          Logger.error(clazz, ref.getClass().getSimpleName(), "unresolved key", key);
+          setFieldValue(e, rf, null);
+        } else if (target != ref) {
+          setFieldValue(e, rf, target);
+          n++;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour calculer une empreinte 64 bits (FNV-1a) du contenu
+   * d'un objet, soit des valeurs JDBC des colonnes spécifiées.
+   */
+  private long contentHash(Object e, List<ColumnInfo> cols) throws ReflectiveOperationException {
+    long h = 0xcbf29ce484222325L;
+    for (ColumnInfo c : cols) {
+      Object v = c.toJdbcValue(e);
+      if (v instanceof BigDecimal) {
+        v = ((BigDecimal) v).stripTrailingZeros().toPlainString();
+      }
+      String s = (v == null) ? "\u0000" : v.toString();
+      for (int i = 0; i < s.length(); i++) {
+        h = (h ^ s.charAt(i)) * 0x100000001b3L;
+      }
+      h = (h ^ 0x1f) * 0x100000001b3L; // séparateur de colonnes
+    }
+    return h;
+  }
+
+  /**
+   * Méthode privée pour lire la clé (PK ou clé naturelle) d'un objet.
+   */
+  private List<Object> keyOf(Object e, List<Field> keyFields) {
+    Object[] values = new Object[keyFields.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = getFieldValue(e, keyFields.get(i));
+    }
+    return normalizeKey(values);
+  }
+
+  /**
+   * Méthode privée pour supprimer des objets par lots de PK avec une requête
+   * "DELETE ... WHERE pk IN (...)" par lot. Retourne le nombre de suppressions.
+   */
+  private int deleteByPks(Class<?> cl, EntityInfo ei, List<Object> pks) {
+    int n = 0;
+    String jpql = ei.buildDeleteClause() + ei.buildWhereInClause(ei.getPkName());
+    for (int from = 0; from < pks.size(); from += MAX_IN_PARAMS) {
+      List<Object> chunk = new ArrayList<>(pks.subList(from, Math.min(from + MAX_IN_PARAMS, pks.size())));
+      tr.beginManualTransaction();
+      try {
+        int cnt = getQuery(jpql, new Object[]{chunk}).executeUpdate();
+        tr.commitManualTransaction();
+        n += cnt;
+      } catch (Exception ex) {
+        rollbackAfterError(ex, false);
+        break;
+      } finally {
+        tr.finishManualTransaction();
+      }
+    }
+    if (n > 0) {
+      touched(cl);
+      try {
+        IdentityMapAccessor ima = em.unwrap(UnitOfWork.class).getIdentityMapAccessor();
+        for (Object pk : pks) {
+          em.getEntityManagerFactory().getCache().evict(cl, pk);
+          Object e = ima.getFromIdentityMap(pk, cl);
+          if (e != null) {
+            em.detach(e);
+          }
+        }
+      } catch (Exception ex) {
+        Logger.error(clazz, ex.getMessage());
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Synchronise complètement une table avec une liste d'objets (par exemple
+   * un fichier externe de référence). La table est lue par lots (pagination
+   * par PK, objets en lecture seule) et chaque ligne est comparée avec l'objet
+   * de même clé (PK ou clé naturelle des options) grâce à une empreinte du
+   * contenu de ses colonnes (sans la PK, ni la version). Seules les écritures
+   * nécessaires sont ensuite effectuées par lots :<br>
+   * - suppression des lignes absentes de la liste (si demandé dans les options); <br>
+   * - modification des lignes dont le contenu a changé ("upsertList"); <br>
+   * - ajout des objets absents de la table. <br>
+   * <br>
+   * Une liste identique au contenu de la table ne provoque aucune écriture.
+   * Attention, les suppressions sont faites avec des requêtes globales
+   * (sans les cascades de JPA).
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list la liste complète des objets attendus dans la table
+   * @param options les options de synchronisation (clé, suppressions, taille des lots)
+   *
+   * @return un résumé des différences traitées (ajouts, modifications, suppressions)
+   */
+  @Override
+  public <E> SyncReport syncList(Class<?> cl, List<E> list, SyncOptions options) {
+    SyncReport report = new SyncReport();
+    EntityInfo ei = getEntityInfo(cl);
+    SyncOptions opt = (options != null) ? options : new SyncOptions();
+    boolean naturalKey = opt.getKeyFields().length > 0;
+    String[] keyNames = naturalKey ? opt.getKeyFields() : new String[]{ei.getPkName()};
+    List<Field> keyFields = new ArrayList<>();
+    for (String keyName : keyNames) {
+      Field f = ei.findField(keyName);
+      if (f == null) {
+        Logger.error(clazz, cl.getSimpleName(), "unknown key field", keyName);
+        report.setComplete(false);
+        return report;
+      }
+      keyFields.add(f);
+    }
+    Set<String> ignored = new HashSet<>(Arrays.asList(opt.getIgnoredFields()));
+    List<ColumnInfo> cols = new ArrayList<>();
+    for (ColumnInfo c : ei.getColumns()) {
+      if (!c.isPk() && !c.isVersion() && !ignored.contains(c.getField().getName())) {
+        cols.add(c);
+      }
+    }
+    Method getter = ei.findMethod("getPk");
+    Method setter = ei.findMethod("setPk");
+    int chunkSize = opt.getChunkSize();
+    try {
+      // empreintes des objets de la liste
+      Map<List<Object>, E> expected = new LinkedHashMap<>();
+      Map<List<Object>, Long> hashes = new HashMap<>();
+      List<E> inserts = new ArrayList<>();
+      for (E e : list) {
+        List<Object> key = keyOf(e, keyFields);
+        if (key.contains(null)) {
+          inserts.add(e);
+        } else if (expected.putIfAbsent(key, e) == null) {
+          hashes.put(key, contentHash(e, cols));
+        } else {
+          report.setDuplicates(report.getDuplicates() + 1);
+        }
+      }
+
+      // lecture de la table par lots et comparaison des empreintes
+      List<E> updates = new ArrayList<>();
+      List<Object> deletes = new ArrayList<>();
+      String select = ei.buildSelectClause();
+      String orderBy = ei.getOrderByClause(ei.getPkName());
+      Object last = null;
+      int unchanged = 0;
+      List<?> rows;
+      do {
+        Query query = (last == null)
+                ? getQuery(select + orderBy, null)
+                : getQuery(select + ei.buildKeysetWhereClause(ei.getPkName()) + orderBy, new Object[]{last});
+        query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+        query.setMaxResults(chunkSize);
+        rows = query.getResultList();
+        for (Object o : rows) {
+          Object pk = getPk(o, getter);
+          List<Object> key = keyOf(o, keyFields);
+          E e = expected.remove(key);
+          if (e == null) {
+            if (opt.isDeleteMissing()) {
+              deletes.add(pk);
+            }
+          } else if (hashes.get(key) == contentHash(o, cols)) {
+            unchanged++;
+          } else {
+            setPk(e, setter, pk);
+            updates.add(e);
+          }
+          last = pk;
+        }
+      } while (rows.size() == chunkSize);
+      report.setUnchanged(unchanged);
+
+      // les objets restants sont absents de la table
+      for (E e : expected.values()) {
+        if (naturalKey) {
+          setPk(e, setter, null); // PK attribuée lors de l'ajout
+        }
+        inserts.add(e);
+      }
+
+      // écritures par lots
+      if (!deletes.isEmpty()) {
+        report.setDeleted(deleteByPks(cl, ei, deletes));
+      }
+      for (int from = 0; from < updates.size(); from += chunkSize) {
+        report.setUpdated(report.getUpdated() + upsertList(cl, updates.subList(from, Math.min(from + chunkSize, updates.size()))));
+      }
+      for (int from = 0; from < inserts.size(); from += chunkSize) {
+        report.setInserted(report.getInserted() + upsertList(cl, inserts.subList(from, Math.min(from + chunkSize, inserts.size()))));
+      }
+      report.setComplete(report.getDeleted() == deletes.size() && report.getUpdated() == updates.size()
+              && report.getInserted() == inserts.size());
+    } catch (Exception ex) {
+      report.setComplete(false);
+      Logger.error(clazz, ex.getMessage());
+    }
+    Logger.debug(clazz, cl.getSimpleName(), report);
+    return report;
+  }
+
   /**
    * Détache tous les objets managés par JPA (liste en entrée-sortie).
    *
@@ -1074,18 +2998,101 @@ public class JpaDao implements JpaDaoAPI {
    */
   @Override
   public <E> void refreshList(List<E> list) {
+    refreshList(list, false);
+  }
+
+  /**
+   * Méthode privée pour retrouver, dans un lot de PK, celles dont la version
+   * (@Version) dans la BD diffère de la version des objets de la liste.
+   */
+  private <E> List<Object> findChangedPks(EntityInfo ei, List<Object> pks,
+          List<E> list, Map<Object, List<Integer>> positions) throws IllegalAccessException {
+    List<Object> changed = new ArrayList<>();
+    Field vf = ei.getVersionField();
+    String jpql = ei.buildSelectClause(ei.getPkName(), vf.getName()) + ei.buildWhereInClause(ei.getPkName());
+    Query query = getQuery(jpql, new Object[]{pks});
+    for (Object row : query.getResultList()) {
+      Object[] t = (Object[]) row;
+      List<Integer> idx = positions.get(t[0]);
+      if (idx != null) {
+        Object version = vf.get(list.get(idx.get(0)));
+        boolean same = (version instanceof Date && t[1] instanceof Date)
+                ? ((Date) version).getTime() == ((Date) t[1]).getTime()
+                : Objects.equals(version, t[1]);
+        if (!same) {
+          changed.add(t[0]);
+        }
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Rafraichit tous les objets d'une liste d'objets en mémoire avec une seule
+   * requête "SELECT ... WHERE pk IN (...)" par classe-entité (découpée en lots
+   * de 500 PK). Les objets de la liste sont remplacés sur place par les objets
+   * managés relus depuis la BD, l'ordre de la liste est conservé. Un objet
+   * sans PK ou qui n'existe plus dans la BD reste tel quel dans la liste.<br>
+   * <br>
+   * Avec "changedOnly", seules les versions (@Version, numérique ou timestamp)
+   * sont d'abord lues et seuls les objets modifiés depuis leur lecture sont
+   * relus entièrement. Pour une classe-entité sans @Version, tous ses objets
+   * sont relus.
+   *
+   * @param list une liste d'objets managés par JPA (entrée-sortie)
+   * @param changedOnly TRUE pour ne relire que les objets dont la version a changé
+   *
+   * @return le nombre d'objets de la liste rafraichis
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <E> int refreshList(List<E> list, boolean changedOnly) {
+    int n = 0;
+
+    // regroupement des positions dans la liste par classe-entité et par PK
+    Map<Class<?>, Map<Object, List<Integer>>> groups = new LinkedHashMap<>();
+    for (int i = 0; i < list.size(); i++) {
+      E e = list.get(i);
+      if (e != null) {
+        Object pk = getPk(e, getEntityInfo(e.getClass()).findMethod("getPk"));
+        if (pk != null) {
+          groups.computeIfAbsent(e.getClass(), k -> new LinkedHashMap<>())
+                  .computeIfAbsent(pk, k -> new ArrayList<>()).add(i);
+        }
+      }
+    }
+
+    // relecture par lots avec une requête IN
     try {
-      tr.beginManualTransaction();
-      for (int i = 0; i < list.size(); i++) {
-        list.set(i, em.merge(list.get(i)));
-        em.refresh(list.get(i));
+      for (Map.Entry<Class<?>, Map<Object, List<Integer>>> group : groups.entrySet()) {
+        EntityInfo ei = getEntityInfo(group.getKey());
+        Method getter = ei.findMethod("getPk");
+        Map<Object, List<Integer>> positions = group.getValue();
+        List<Object> pks = new ArrayList<>(positions.keySet());
+        for (int from = 0; from < pks.size(); from += MAX_IN_PARAMS) {
+          List<Object> chunk = new ArrayList<>(pks.subList(from, Math.min(from + MAX_IN_PARAMS, pks.size())));
+          if (changedOnly && ei.getVersionField() != null) {
+            chunk = findChangedPks(ei, chunk, list, positions);
+          }
+          if (!chunk.isEmpty()) {
+            Query query = getQuery(ei.buildSelectClause() + ei.buildWhereInClause(ei.getPkName()), new Object[]{chunk});
+            query.setHint(QueryHints.REFRESH, HintValues.TRUE);
+            for (Object o : query.getResultList()) {
+              List<Integer> idx = positions.get(getPk(o, getter));
+              if (idx != null) {
+                for (int i : idx) {
+                  list.set(i, (E) o);
+                  n++;
+                }
+              }
+            }
+          }
+        }
       }
-      tr.commitManualTransaction();
-    } catch (Exception ex1) {
-      rollbackAfterError(ex1, true);
-    } finally {
-      tr.finishManualTransaction();
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
     }
+    return n;
   }
   
   
@@ -1,17 +1,31 @@
 package ch.emf.dao;
 
+import ch.emf.dao.counters.BlockPkAllocator;
 import ch.emf.dao.exceptions.JpaException;
 import ch.emf.dao.filtering.Search;
 import ch.emf.dao.filtering.Search2;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.io.ExportFormat;
+import ch.emf.dao.models.BatchReport;
 import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.models.ScriptOptions;
+import ch.emf.dao.models.SyncOptions;
+import ch.emf.dao.models.SyncReport;
+import ch.emf.dao.transactions.Propagation;
+import ch.emf.dao.transactions.RetryPolicy;
 import ch.emf.dao.transactions.Transaction;
 import com.google.inject.ImplementedBy;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import javax.persistence.EntityManager;
 
 /**
@@ -106,6 +120,15 @@ public interface JpaDaoAPI {
    * @return L'URL simpifiée
    */
   public String getConnectionURL();
+
+  /**
+   * Retourne le dialecte SQL de la BD connectée, retrouvé avec l'URL JDBC
+   * de l'unité de persistance.
+   *
+   * @return le dialecte SQL (MYSQL, H2 ou STANDARD)
+   */
+  SqlDialect getSqlDialect();
+
   /**
    * Retourne l'entityManager stocké dans la couche dao.
    * @return un objet EntityManager
@@ -127,6 +150,92 @@ public interface JpaDaoAPI {
    */
   Transaction getTransaction();
 
+  /**
+   * Définit la politique de reprise automatique utilisée par "update", "delete",
+   * "insertList", "updateList" et "executeScript" en cas d'erreur passagère
+   * (conflit de verrouillage optimiste, deadlock, attente d'un verrou trop longue).
+   * Une reprise n'est effectuée qu'en mode autocommit.
+   *
+   * @param retryPolicy une politique de reprise (null = pas de reprise)
+   */
+  void setRetryPolicy(RetryPolicy retryPolicy);
+
+  /**
+   * Retourne la politique de reprise courante (avec ses compteurs de reprises
+   * et d'abandons).
+   *
+   * @return la politique de reprise courante
+   */
+  RetryPolicy getRetryPolicy();
+
+  /**
+   * Définit un allocateur de PK par blocs pour les classes-entités avec table
+   * de séquence (@TableGenerator). Les PK manquantes sont attribuées en mémoire
+   * avant la persistance, sans recalcul de la table de séquence avec MAX(pk).
+   *
+   * @param pkAllocator un allocateur de PK par blocs (null = désactivé)
+   */
+  void setPkAllocator(BlockPkAllocator pkAllocator);
+
+  /**
+   * Retourne l'allocateur de PK par blocs courant (null si désactivé).
+   *
+   * @return l'allocateur de PK par blocs
+   */
+  BlockPkAllocator getPkAllocator();
+
+  /**
+   * Définit une table des versions dans la BD (créée si nécessaire) pour
+   * partager les jetons de version entre plusieurs serveurs. Avec null, les
+   * versions sont seulement comptées en mémoire.
+   *
+   * @param table le nom de la table des versions ou null
+   * @return TRUE si la table est utilisable
+   */
+  boolean setVersionTable(String table);
+
+  /**
+   * Incrémente la version des classes-entités spécifiées (après une écriture
+   * faite sans passer par la couche DAO).
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   */
+  void incrementVersion(Class<?>... classes);
+
+  /**
+   * Retourne un jeton de version pour une ou plusieurs classes-entités, qui
+   * change après chaque écriture validée dans l'une d'elles (ETag HTTP,
+   * validation d'un cache).
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   * @return le jeton de version de ces classes-entités
+   */
+  String getVersionToken(Class<?>... classes);
+
+  /**
+   * Exécute plusieurs appels à la couche DAO dans une seule transaction validée
+   * à la fin du scope (propagation REQUIRED). Les scopes peuvent être imbriqués.
+   *
+   * @param <T>  le type du résultat de l'unité de travail
+   * @param work l'unité de travail avec les appels à la couche DAO
+   *
+   * @return le résultat de l'unité de travail
+   */
+  <T> T inTransaction(Supplier<T> work);
+
+  /**
+   * Exécute plusieurs appels à la couche DAO dans un scope transactionnel
+   * avec le mode de propagation spécifié (REQUIRED ou REQUIRES_NEW).
+   * Une RuntimeException est levée si la transaction a dû être annulée.
+   *
+   * @param <T>  le type du résultat de l'unité de travail
+   * @param propagation le mode de propagation
+   * @param work l'unité de travail avec les appels à la couche DAO
+   *
+   * @return le résultat de l'unité de travail
+   */
+  <T> T inTransaction(Propagation propagation, Supplier<T> work);
+
 
 
   /**
@@ -188,6 +297,45 @@ public interface JpaDaoAPI {
    */
   boolean exists(Class<?> cl, Object pk);
 
+  /**
+   * Pour la classe-entité spécifiée, incrémente (ou décrémente avec un delta
+   * négatif) un attribut numérique directement dans la BD avec une seule
+   * requête "UPDATE ... SET f = f + ?" (pas de lecture préalable).
+   *
+   * @param cl une classe entité managée par JPA
+   * @param pk une pk pour identifier l'objet à modifier
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter (négative pour décrémenter)
+   *
+   * @return 1=ok objet modifié, 0=objet non trouvé ou problème
+   */
+  int increment(Class<?> cl, Object pk, String field, long delta);
+
+  /**
+   * Idem à la méthode précédente, mais retourne la nouvelle valeur de l'attribut
+   * relue dans la même transaction que l'incrémentation.
+   *
+   * @param cl une classe entité managée par JPA
+   * @param pk une pk pour identifier l'objet à modifier
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter (négative pour décrémenter)
+   *
+   * @return la nouvelle valeur de l'attribut, =0 si l'objet n'a pas été trouvé
+   */
+  long incrementAndGet(Class<?> cl, Object pk, String field, long delta);
+
+  /**
+   * Incrémente (ou décrémente) un attribut numérique de tous les objets
+   * sélectionnés par les filtres d'un objet Search.
+   *
+   * @param search un objet pour spécifier la classe-entité et les filtres
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter (négative pour décrémenter)
+   *
+   * @return le nombre d'objets modifiés
+   */
+  int increment(Search search, String field, long delta);
+
 
 
 
@@ -346,6 +494,44 @@ public interface JpaDaoAPI {
    */
   <E> List<E> getAggregateList(Search2 search);
 
+  /**
+   * Exporte en flux le résultat d'une recherche vers un "writer" (CSV ou
+   * JSON Lines). Les objets sont lus avec un curseur de la BD et écrits au
+   * fur et à mesure, sans liste en mémoire.
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param writer le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  long export(Search search, Writer writer, ExportFormat format);
+
+  /**
+   * Exporte en flux le résultat d'une recherche vers un flux d'octets (UTF-8),
+   * compressé ou non au format GZIP.
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param out le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   * @param gzip TRUE pour compresser l'exportation au format GZIP
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  long export(Search search, OutputStream out, ExportFormat format, boolean gzip);
+
+  /**
+   * Exporte en flux le résultat d'une recherche vers un flux d'octets (UTF-8),
+   * sans compression.
+   *
+   * @param search un objet pour spécifier les critères de la recherche
+   * @param out le flux de sortie (il est vidé mais pas fermé)
+   * @param format le format de l'exportation (CSV ou JSON_LINES)
+   *
+   * @return le nombre de lignes exportées, =0 en cas d'erreur
+   */
+  long export(Search search, OutputStream out, ExportFormat format);
+
 
 
 
@@ -373,6 +559,19 @@ public interface JpaDaoAPI {
    */
   int executeScript(String sqlScriptFileName, Object... objects);
 
+  /**
+   * Exécute un script SQL en flux, sans le charger en mémoire. Les commandes
+   * de mise à jour consécutives sont envoyées par lots JDBC et, avec un
+   * intervalle de validation, un script interrompu peut être repris à partir
+   * du nombre de commandes validées reçu par l'écouteur de progression.
+   *
+   * @param sqlScriptFileName un nom de fichier script avec des commandes sql
+   * @param options les options d'exécution (noms de BD, lots, validations, reprise)
+   *
+   * @return le nombre de commandes effectuées par cet appel, =0 en cas d'erreur
+   */
+  int executeScript(String sqlScriptFileName, ScriptOptions options);
+
   /**
    * Pour la classe-entité spécifiée, efface tous les objets managés.
    *
@@ -384,7 +583,9 @@ public interface JpaDaoAPI {
 
   /**
    * Permet d'effacer le contenu global d'une liste de tables d'après
-   * un tenant spécifié avec son nom et sa valeur.
+   * un tenant spécifié avec son nom et sa valeur (voir deleteTenant).
+   * Après une erreur, le nombre retourné est celui des lignes déjà effacées.
+   * Refusé (=0) dans un scope transactionnel ou en mode manuel.
    *
    * @param tenantName le nom d'un tenant
    * @param tenantId l'id de ce tenant (une pk)
@@ -394,6 +595,44 @@ public interface JpaDaoAPI {
    */
   int deleteAll(String tenantName, int tenantId, String... tables);
 
+  /**
+   * Efface toutes les lignes d'un tenant dans une liste de tables, dans
+   * l'ordre des clés étrangères (enfants d'abord), par lots avec une requête
+   * paramétrée et les tables indépendantes en parallèle. Les lots sont
+   * validés sur leurs propres connexions : l'appel est refusé dans un scope
+   * transactionnel ou en mode manuel (autocommit à false).
+   *
+   * @param tenantName le nom de la colonne du tenant
+   * @param tenantId la valeur de ce tenant (une pk)
+   * @param tables une liste des tables à effacer (dans n'importe quel ordre)
+   *
+   * @return le nombre de lignes effacées par table, null en cas d'erreur
+   */
+  Map<String, Long> deleteTenant(String tenantName, Object tenantId, String... tables);
+
+  /**
+   * Vide rapidement les tables des classes-entités spécifiées (TRUNCATE si
+   * possible, dans l'ordre des clés étrangères) et remet à zéro leurs
+   * compteurs de PK. Avec TRUNCATE (MySQL et H2), l'opération valide
+   * implicitement la transaction et n'est donc pas permise dans un scope
+   * transactionnel. Si une autre classe-entité référence une des tables,
+   * elles sont vidées avec DELETE et le contrôle des clés étrangères reste
+   * actif (aucune ligne orpheline).
+   *
+   * @param classes une ou plusieurs classes entités managées par JPA
+   *
+   * @return le nombre de tables vidées, =0 en cas d'erreur
+   */
+  int reset(Class<?>... classes);
+
+  /**
+   * Vide rapidement toutes les tables des classes-entités de l'unité de
+   * persistance et remet à zéro leurs compteurs de PK.
+   *
+   * @return le nombre de tables vidées, =0 en cas d'erreur
+   */
+  int resetAll();
+
   /**
    * Pour la classe-entité spécifiée, insert une liste globale d'objets.
    *
@@ -418,6 +657,120 @@ public interface JpaDaoAPI {
    */
   <E> int[] updateList(Class<?> cl, List<E> list);
 
+  /**
+   * Pour la classe-entité spécifiée, insert une liste d'objets par lots (une
+   * transaction par lot) avec isolation des erreurs : un lot qui échoue est
+   * coupé en deux jusqu'à trouver les objets fautifs, les autres sont écrits.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à insérer dans la persistance
+   * @param chunkSize le nombre d'objets par lot
+   *
+   * @return un rapport avec les objets insérés et les objets refusés (avec leur cause)
+   */
+  <E> BatchReport<E> insertBatch(Class<?> cl, List<E> list, int chunkSize);
+
+  /**
+   * Pour la classe-entité spécifiée, met à jour une liste d'objets par lots
+   * avec isolation des erreurs (idem à "insertBatch"). Si un objet n'existe pas,
+   * il est rajouté.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à modifier (ou à ajouter) dans la persistance
+   * @param chunkSize le nombre d'objets par lot
+   *
+   * @return un rapport avec les objets écrits et les objets refusés (avec leur cause)
+   */
+  <E> BatchReport<E> updateBatch(Class<?> cl, List<E> list, int chunkSize);
+
+  /**
+   * Pour la classe-entité spécifiée, ajoute ou modifie une liste d'objets
+   * directement dans la BD avec des requêtes natives de plusieurs lignes
+   * ("INSERT ... ON DUPLICATE KEY UPDATE" avec MySQL, "MERGE" sinon),
+   * envoyées par lots JDBC. Les objets concernés sont ensuite retirés du cache.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à ajouter ou à modifier dans la persistance
+   *
+   * @return le nombre d'objets écrits dans la BD, =0 autrement
+   */
+  <E> int upsertList(Class<?> cl, List<E> list);
+
+  /**
+   * Pour la classe-entité spécifiée, insert seulement les objets d'une liste dont
+   * la clé naturelle (simple ou composée) n'existe pas encore dans la BD.
+   * Les clés existantes sont recherchées par lots avec une seule requête par lot.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à insérer dans la persistance
+   * @param keyFields le ou les attributs qui forment la clé naturelle
+   *
+   * @return un tableau avec [0]= nb d'objets ajoutés, [1]= nb d'objets ignorés (déjà présents)
+   */
+  <E> int[] insertIfAbsent(Class<?> cl, List<E> list, String... keyFields);
+
+  /**
+   * Pour la classe-entité spécifiée, retrouve les objets correspondant à une liste
+   * de clés métier avec une seule requête IN par lot.
+   *
+   * @param <K> le type de la clé métier
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param keyField l'attribut qui contient la clé métier
+   * @param keys les clés métier à retrouver
+   *
+   * @return une table clé métier vers objet managé (sans les clés inexistantes)
+   */
+  <K, E> Map<K, E> resolve(Class<?> cl, String keyField, Collection<K> keys);
+
+  /**
+   * Idem à la méthode précédente, mais crée au besoin les objets manquants
+   * avec la fabrique fournie (ajoutés en une seule fois avec "insertList").
+   *
+   * @param <K> le type de la clé métier
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param keyField l'attribut qui contient la clé métier
+   * @param keys les clés métier à retrouver
+   * @param factory une fabrique pour créer un objet manquant (null = pas de création)
+   *
+   * @return une table clé métier vers objet managé
+   */
+  <K, E> Map<K, E> resolve(Class<?> cl, String keyField, Collection<K> keys, Function<K, E> factory);
+
+  /**
+   * Remplace dans tous les objets d'une liste une référence ManyToOne par l'objet
+   * managé correspondant d'une table de clés métier (voir "resolve"). Une
+   * référence dont la clé n'est pas résolue est mise à null.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param list une liste d'objets à modifier
+   * @param refField l'attribut ManyToOne à remplacer (par ex. "canton")
+   * @param keyField l'attribut de la classe référencée qui contient la clé métier
+   * @param resolved une table clé métier vers objet managé
+   *
+   * @return le nombre de références remplacées
+   */
+  <E> int rewire(List<E> list, String refField, String keyField, Map<?, ?> resolved);
+
+  /**
+   * Synchronise complètement une table avec une liste d'objets. La table est lue
+   * par lots et le contenu de chaque ligne est comparé avec une empreinte : seuls
+   * les ajouts, modifications et (si demandé) suppressions nécessaires sont écrits.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list la liste complète des objets attendus dans la table
+   * @param options les options de synchronisation (clé, suppressions, taille des lots)
+   *
+   * @return un résumé des différences traitées (ajouts, modifications, suppressions)
+   */
+  <E> SyncReport syncList(Class<?> cl, List<E> list, SyncOptions options);
+
   /**
    * Détache tous les objets managés par JPA (liste en entrée-sortie).
    *
@@ -434,6 +787,19 @@ public interface JpaDaoAPI {
    */
   <E> void refreshList(List<E> list);
 
+  /**
+   * Rafraichit tous les objets d'une liste avec une requête IN par lot de PK
+   * (et par classe-entité), en conservant l'ordre de la liste. Avec "changedOnly",
+   * seuls les objets dont la version (@Version) a changé dans la BD sont relus.
+   *
+   * @param <E> une classe-entité générique
+   * @param list une liste d'objets managés par JPA (entrée-sortie)
+   * @param changedOnly TRUE pour ne relire que les objets dont la version a changé
+   *
+   * @return le nombre d'objets de la liste rafraichis
+   */
+  <E> int refreshList(List<E> list, boolean changedOnly);
+
 
 
   /**
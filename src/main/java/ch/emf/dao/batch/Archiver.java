@@ -0,0 +1,276 @@
+package ch.emf.dao.batch;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.filtering.Search;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.transactions.Transaction;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.Query;
+
+/**
+ * Archivage et purge par petits lots des lignes d'une table qui répondent à
+ * une recherche (par exemple les activités terminées avant une date). Au
+ * contraire d'un "deleteAll", chaque lot de PK (dans l'ordre des PK) est
+ * traité dans sa propre transaction courte : les verrous et le journal
+ * d'annulation restent petits et la table reste utilisable pendant
+ * l'opération.<br>
+ * <br>
+ * Avec une table d'archive (créée si nécessaire avec les mêmes colonnes,
+ * une seule fois et avant le premier lot, car un "CREATE TABLE" valide
+ * implicitement la transaction en cours avec MySQL), les lignes d'un lot y
+ * sont d'abord copiées, puis effacées, dans la même transaction. Les lignes d'un lot sont relues avec la recherche et
+ * verrouillées au début de cette transaction : une ligne modifiée entre la
+ * lecture des PK et le traitement du lot n'est pas archivée si elle ne
+ * répond plus à la recherche. Une pause entre les lots limite la charge de la BD. Après une
+ * interruption, il suffit de relancer la même opération : les lignes déjà
+ * traitées ne répondent plus à la recherche et ne sont pas archivées deux
+ * fois. Attention, une ligne encore référencée par une clé étrangère fait
+ * échouer son lot (et arrête l'opération). L'opération est refusée dans un
+ * scope transactionnel ou en mode manuel (autocommit à false), où les lots
+ * ne seraient plus validés séparément.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   Search search = new Search(Activite.class);
+ *   search.addFilterLessThan("dateSortie", dateLimite);
+ *   Archiver archiver = new Archiver(dao);
+ *   archiver.setPauseMillis(50);
+ *   BulkReport report = archiver.archive(search, "t_activite_archive");
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class Archiver {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private int chunkSize;
+  private long pauseMillis;
+
+  /**
+   * Constructeur avec des lots de 500 lignes, sans pause entre les lots.
+   *
+   * @param dao la couche DAO connectée
+   */
+  public Archiver(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.chunkSize = 500;
+    this.pauseMillis = 0;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  public long getPauseMillis() {
+    return pauseMillis;
+  }
+
+  public void setPauseMillis(long pauseMillis) {
+    this.pauseMillis = Math.max(0, pauseMillis);
+  }
+
+
+
+  /**
+   * Méthode privée pour construire une liste de paramètres "?, ?, ...".
+   */
+  private static String buildParams(int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      sb.append(i > 0 ? ", ?" : "?");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Méthode privée pour copier (facultatif) puis effacer un lot de lignes
+   * dans une seule transaction. Les lignes du lot sont d'abord relues avec le
+   * prédicat de la recherche et verrouillées (SELECT ... FOR UPDATE) : une
+   * ligne modifiée entre-temps qui ne répond plus à la recherche n'est ni
+   * copiée ni effacée, et aucune ligne ne peut changer entre la copie et
+   * l'effacement.
+   */
+  private int moveChunk(EntityInfo ei, String archiveTable, String lockJpql, Object[] params, List<?> chunk) throws Exception {
+    int n = 0;
+    List<ColumnInfo> cols = ei.getColumns();
+    String pkCol = cols.get(0).getName();
+    Transaction tr = dao.getTransaction();
+    tr.beginManualTransaction();
+    try {
+      Query query = dao.getEntityManager().createQuery(lockJpql);
+      for (int i = 0; i < params.length; i++) {
+        query.setParameter(i + 1, params[i]);
+      }
+      query.setParameter(params.length + 1, chunk);
+      query.setLockMode(LockModeType.PESSIMISTIC_WRITE);
+      List<?> pks = query.getResultList();
+      if (!pks.isEmpty()) {
+        String in = " WHERE " + pkCol + " IN (" + buildParams(pks.size()) + ")";
+        Connection con = dao.getEntityManager().unwrap(Connection.class);
+        if (archiveTable != null) {
+          StringBuilder names = new StringBuilder();
+          for (int i = 0; i < cols.size(); i++) {
+            names.append(i > 0 ? ", " : "").append(cols.get(i).getName());
+          }
+          try (PreparedStatement ps = con.prepareStatement("INSERT INTO " + archiveTable + " (" + names + ") SELECT "
+                  + names + " FROM " + ei.getTableName() + in)) {
+            for (int i = 0; i < pks.size(); i++) {
+              ps.setObject(i + 1, pks.get(i));
+            }
+            ps.executeUpdate();
+          }
+        }
+        try (PreparedStatement ps = con.prepareStatement("DELETE FROM " + ei.getTableName() + in)) {
+          for (int i = 0; i < pks.size(); i++) {
+            ps.setObject(i + 1, pks.get(i));
+          }
+          n = ps.executeUpdate();
+        }
+      }
+      tr.commitManualTransaction();
+    } catch (Exception ex) {
+      tr.rollbackManualTransaction();
+      throw ex;
+    } finally {
+      tr.finishManualTransaction();
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour créer la table d'archive si nécessaire, dans sa propre
+   * transaction, avant tout lot (l'appelant n'est dans aucune transaction).
+   */
+  private void createArchiveTable(EntityInfo ei, String archiveTable) throws Exception {
+    Transaction tr = dao.getTransaction();
+    tr.beginManualTransaction();
+    try {
+      dao.getEntityManager().createNativeQuery(dao.getSqlDialect().buildCreateTableLike(archiveTable, ei.getTableName())).executeUpdate();
+      tr.commitManualTransaction();
+    } catch (Exception ex) {
+      tr.rollbackManualTransaction();
+      throw ex;
+    } finally {
+      tr.finishManualTransaction();
+    }
+  }
+
+  /**
+   * Méthode privée pour traiter toutes les lignes de la recherche par lots
+   * de PK, avec ou sans table d'archive.
+   */
+  private BulkReport move(Search search, String archiveTable) {
+    BulkReport report = new BulkReport();
+    report.setThreads(1);
+    long start = System.currentTimeMillis();
+    Class<?> cl = search.getEntity();
+    EntityInfo ei = dao.getEntityInfo(cl);
+    EntityManager em = dao.getEntityManager();
+    String select = "SELECT e." + ei.getPkName() + " " + ei.buildFromClause();
+    String where = ei.getWhereClause(search);
+    String keyset = ei.getKeysetWhereClause(search);
+    String orderBy = ei.getOrderByClause(ei.getPkName());
+    String lock = select + (where.isEmpty() ? " WHERE " : " WHERE (" + where.substring(" WHERE".length()).trim() + ") AND ")
+            + "e." + ei.getPkName() + " IN ?" + (ei.getParams(search).length + 1);
+    Object[] params = ei.getParams(search);
+    Object last = null;
+    Transaction tr = dao.getTransaction();
+    if (archiveTable != null && !SqlDialect.isSqlName(archiveTable)) {
+      Logger.error(clazz, "invalid archive table name", archiveTable);
+      report.abort("invalid archive table name: " + archiveTable);
+    } else if (tr.getNestingLevel() > 0 || !tr.isAutoCommit()) {
+      Logger.error(clazz, ei.getTableName(), "not allowed inside a transaction");
+      report.abort("not allowed inside a transaction");
+    } else {
+      try {
+        if (archiveTable != null) {
+          createArchiveTable(ei, archiveTable);
+        }
+        List<?> pks;
+        do {
+          Query query = em.createQuery(select + ((last == null) ? where : keyset) + orderBy);
+          for (int i = 0; i < params.length; i++) {
+            query.setParameter(i + 1, params[i]);
+          }
+          if (last != null) {
+            query.setParameter(params.length + 1, last);
+          }
+          query.setMaxResults(chunkSize);
+          pks = query.getResultList();
+          if (!pks.isEmpty()) {
+            int n = moveChunk(ei, archiveTable, lock, params, pks);
+            report.addChunk(cl, n, 0);
+            last = pks.get(pks.size() - 1);
+            Logger.debug(clazz, ei.getTableName(), "up to pk " + last, report.getWritten());
+            if (pauseMillis > 0 && pks.size() == chunkSize) {
+              Thread.sleep(pauseMillis);
+            }
+          }
+        } while (pks.size() == chunkSize);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        Logger.info(clazz, ei.getTableName(), "interrupted after pk " + last);
+        report.abort("interrupted after pk " + last);
+      } catch (Exception ex) {
+        Logger.error(clazz, ei.getTableName(), "after pk " + last, ex.getMessage());
+        report.abort(ex.getMessage());
+      } finally {
+        em.getEntityManagerFactory().getCache().evict(cl);
+        if (report.getWritten() > 0) {
+          dao.incrementVersion(cl);
+        }
+      }
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+  /**
+   * Efface par lots (dans l'ordre des PK, une transaction par lot) toutes
+   * les lignes qui répondent à une recherche.
+   *
+   * @param search la recherche qui sélectionne les lignes à effacer (ses tris sont ignorés)
+   *
+   * @return un rapport avec le nombre de lignes effacées, la durée et le débit
+   *         (interrompu si une transaction est en cours)
+   */
+  public BulkReport purge(Search search) {
+    return move(search, null);
+  }
+
+  /**
+   * Déplace par lots (dans l'ordre des PK, une transaction par lot) toutes
+   * les lignes qui répondent à une recherche vers une table d'archive :
+   * chaque lot est copié dans l'archive, puis effacé de la table.
+   *
+   * @param search       la recherche qui sélectionne les lignes à archiver (ses tris sont ignorés)
+   * @param archiveTable le nom de la table d'archive (créée si nécessaire avant le premier lot)
+   *
+   * @return un rapport avec le nombre de lignes archivées, la durée et le débit
+   *         (interrompu si le nom de la table est invalide ou si une transaction est en cours)
+   */
+  public BulkReport archive(Search search, String archiveTable) {
+    return move(search, archiveTable);
+  }
+
+}
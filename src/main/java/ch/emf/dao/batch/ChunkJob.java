@@ -0,0 +1,420 @@
+package ch.emf.dao.batch;
+
+import ch.emf.dao.JpaDao;
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.filtering.Search;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.transactions.Transaction;
+import java.lang.reflect.Field;
+import java.lang.reflect.Type;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+/**
+ * Traitement par lots ("chunks") du résultat d'une recherche : lecture,
+ * transformation, puis écriture. La table est lue par pagination sur la PK
+ * ("keyset"), un lot à la fois, avec un entity-manager de lecture vidé après
+ * chaque lot : la mémoire utilisée ne dépend que de la taille des lots.<br>
+ * <br>
+ * Chaque lot est transformé puis écrit dans sa propre transaction par un
+ * "worker" (avec son propre entity-manager, vidé après chaque lot). Avec
+ * plusieurs "workers", les lots sont traités en parallèle.<br>
+ * <br>
+ * Après chaque lot validé (dans l'ordre de lecture), la dernière PK du lot
+ * est mémorisée dans une table de points de reprise (t_job_checkpoint par
+ * défaut, créée si nécessaire). Après une erreur, un nouvel appel de run
+ * reprend après ce point. Un lot validé juste avant une interruption peut
+ * être traité une seconde fois (au plus les lots en cours) : la
+ * transformation doit donc pouvoir être rejouée. Le point de reprise est
+ * effacé à la fin d'un traitement complet.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   Search search = new Search(Conseiller.class);
+ *   search.addFilterEqual("actif", true);
+ *   ChunkJob&lt;Conseiller&gt; job = new ChunkJob&lt;&gt;(dao, "majNoms", search, c -&gt; {
+ *     c.setNom(c.getNom().toUpperCase());
+ *     return c;
+ *   });
+ *   job.setThreads(4);
+ *   BulkReport report = job.run();
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @param <E> une classe-entité générique
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class ChunkJob<E> {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private final String jobName;
+  private final Search search;
+  private final Function<E, E> processor;
+  private ChunkWriter<E> writer;
+  private String checkpointTable;
+  private int chunkSize;
+  private int threads;
+
+  /**
+   * Écriture d'un lot transformé, appelée dans la transaction du lot.
+   *
+   * @param <E> une classe-entité générique
+   */
+  @FunctionalInterface
+  public interface ChunkWriter<E> {
+
+    /**
+     * Écrit les objets d'un lot.
+     *
+     * @param em    l'entity-manager du "worker" (transaction déjà ouverte)
+     * @param items les objets transformés du lot
+     * @throws Exception une erreur qui annule le lot et arrête le traitement
+     */
+    void write(EntityManager em, List<E> items) throws Exception;
+  }
+
+  /**
+   * Constructeur. Par défaut, les objets transformés sont modifiés dans la
+   * BD avec "merge", par lots de 500, avec un seul "worker".
+   *
+   * @param dao       la couche DAO connectée
+   * @param jobName   le nom du traitement (identifie son point de reprise)
+   * @param search    la recherche qui sélectionne les objets à traiter (ses tris sont ignorés)
+   * @param processor la transformation d'un objet (null = objet non écrit)
+   */
+  public ChunkJob(JpaDaoAPI dao, String jobName, Search search, Function<E, E> processor) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.jobName = jobName;
+    this.search = search;
+    this.processor = processor;
+    this.writer = (em, items) -> {
+      for (E e : items) {
+        em.merge(e);
+      }
+    };
+    this.checkpointTable = "t_job_checkpoint";
+    this.chunkSize = 500;
+    this.threads = 1;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public String getJobName() {
+    return jobName;
+  }
+
+  public ChunkWriter<E> getWriter() {
+    return writer;
+  }
+
+  public void setWriter(ChunkWriter<E> writer) {
+    this.writer = writer;
+  }
+
+  public String getCheckpointTable() {
+    return checkpointTable;
+  }
+
+  public void setCheckpointTable(String checkpointTable) {
+    this.checkpointTable = checkpointTable;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = Math.max(1, threads);
+  }
+
+
+
+  /**
+   * Un lot lu, avec sa dernière PK.
+   */
+  private static class Chunk<E> {
+    private final List<E> items;
+    private final Object lastKey;
+    private int written;
+    private Exception error;
+
+    private Chunk(List<E> items, Object lastKey) {
+      this.items = items;
+      this.lastKey = lastKey;
+      this.written = 0;
+      this.error = null;
+    }
+  }
+
+  /**
+   * Méthode privée pour exécuter une commande de la table des points de
+   * reprise dans une transaction de l'entity-manager de lecture.
+   */
+  private int executeCheckpointCommand(EntityManager em, String sql, Object... params) {
+    EntityTransaction et = em.getTransaction();
+    et.begin();
+    try {
+      Query query = em.createNativeQuery(sql);
+      for (int i = 0; i < params.length; i++) {
+        query.setParameter(i + 1, params[i]);
+      }
+      int n = query.executeUpdate();
+      et.commit();
+      return n;
+    } finally {
+      if (et.isActive()) {
+        et.rollback();
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour créer la table des points de reprise si nécessaire.
+   */
+  private void createCheckpointTable(EntityManager em) {
+    executeCheckpointCommand(em, "CREATE TABLE IF NOT EXISTS " + checkpointTable
+            + " (job VARCHAR(100) NOT NULL PRIMARY KEY, lastKey VARCHAR(255), items BIGINT)");
+  }
+
+  /**
+   * Méthode privée pour lire le point de reprise du traitement (null = aucun).
+   */
+  private String readCheckpoint(EntityManager em) {
+    Query query = em.createNativeQuery("SELECT lastKey FROM " + checkpointTable + " WHERE job = ?1");
+    query.setParameter(1, jobName);
+    List<?> rows = query.getResultList();
+    return rows.isEmpty() ? null : (String) rows.get(0);
+  }
+
+  /**
+   * Méthode privée pour mémoriser le point de reprise du traitement.
+   */
+  private void writeCheckpoint(EntityManager em, Object lastKey, long items) {
+    String key = String.valueOf(lastKey);
+    int n = executeCheckpointCommand(em, "UPDATE " + checkpointTable + " SET lastKey = ?1, items = ?2 WHERE job = ?3",
+            key, items, jobName);
+    if (n == 0) {
+      executeCheckpointCommand(em, "INSERT INTO " + checkpointTable + " (job, lastKey, items) VALUES (?1, ?2, ?3)",
+              jobName, key, items);
+    }
+  }
+
+  /**
+   * Méthode privée pour convertir une PK mémorisée dans le type de la PK.
+   */
+  private static Object toKey(String s, Type pkType) {
+    Object key = s;
+    if (pkType == Integer.class || pkType == int.class) {
+      key = Integer.valueOf(s);
+    } else if (pkType == Long.class || pkType == long.class) {
+      key = Long.valueOf(s);
+    } else if (pkType == Short.class || pkType == short.class) {
+      key = Short.valueOf(s);
+    }
+    return key;
+  }
+
+  /**
+   * Efface le point de reprise du traitement : le prochain appel de run
+   * recommencera au début.
+   *
+   * @return TRUE si un point de reprise a été effacé
+   */
+  public boolean resetCheckpoint() {
+    EntityManager em = dao.getEntityManager().getEntityManagerFactory().createEntityManager();
+    try {
+      createCheckpointTable(em);
+      return executeCheckpointCommand(em, "DELETE FROM " + checkpointTable + " WHERE job = ?1", jobName) > 0;
+    } catch (Exception ex) {
+      Logger.error(clazz, jobName, ex.getMessage());
+      return false;
+    } finally {
+      em.close();
+    }
+  }
+
+  /**
+   * Méthode privée pour transformer et écrire un lot avec un "worker" libre
+   * (une erreur est mémorisée dans le lot).
+   */
+  private Chunk<E> processChunk(BlockingQueue<JpaDao> workers, Chunk<E> chunk) throws InterruptedException {
+    JpaDao worker = workers.take();
+    EntityManager em = worker.getEntityManager();
+    Transaction tr = worker.getTransaction();
+    try {
+      List<E> out = new ArrayList<>(chunk.items.size());
+      for (E e : chunk.items) {
+        E r = processor.apply(e);
+        if (r != null) {
+          out.add(r);
+        }
+      }
+      tr.beginManualTransaction();
+      try {
+        writer.write(em, out);
+        tr.commitManualTransaction();
+      } catch (Exception ex) {
+        if (em.getTransaction().isActive()) {
+          tr.rollbackManualTransaction();
+        }
+        throw ex;
+      } finally {
+        tr.finishManualTransaction();
+      }
+      chunk.written = out.size();
+    } catch (Exception ex) {
+      chunk.error = ex;
+    } finally {
+      em.clear();
+      workers.put(worker);
+    }
+    return chunk;
+  }
+
+  /**
+   * Méthode privée pour attendre le plus ancien lot en cours et mémoriser
+   * son point de reprise. Retourne FALSE si le lot a échoué.
+   */
+  private boolean completeOldest(ArrayDeque<Future<Chunk<E>>> pending, EntityManager reader,
+          Class<?> cl, BulkReport report, long[] items) throws InterruptedException {
+    Future<Chunk<E>> f = pending.poll();
+    Chunk<E> chunk;
+    try {
+      chunk = f.get();
+    } catch (ExecutionException ex) {
+      Logger.error(clazz, jobName, ex.getMessage());
+      return false;
+    }
+    if (chunk.error != null) {
+      Logger.error(clazz, jobName, "chunk after " + items[0] + " items", chunk.error.getMessage());
+      report.addChunk(cl, 0, chunk.items.size());
+      return false;
+    }
+    items[0] += chunk.items.size();
+    writeCheckpoint(reader, chunk.lastKey, items[0]);
+    report.addChunk(cl, chunk.written, 0);
+    return true;
+  }
+
+  /**
+   * Exécute (ou reprend après son point de reprise) le traitement : lecture
+   * des lots dans l'ordre de la PK, transformation et écriture de chaque
+   * lot dans sa propre transaction, mémorisation du point de reprise. Le
+   * traitement s'arrête au premier lot refusé.
+   *
+   * @return un rapport avec les objets écrits et refusés, la durée et le débit
+   */
+  @SuppressWarnings("unchecked")
+  public BulkReport run() {
+    BulkReport report = new BulkReport();
+    report.setThreads(threads);
+    long start = System.currentTimeMillis();
+    Class<?> cl = search.getEntity();
+    EntityInfo ei = dao.getEntityInfo(cl);
+    Field pkField = ei.getColumns().get(0).getField();
+    String where = ei.getWhereClause(search);
+    Object[] params = ei.getParams(search);
+    String keyset = ei.getKeysetWhereClause(search);
+    String orderBy = ei.getOrderByClause(ei.getPkName());
+    EntityManagerFactory emf = dao.getEntityManager().getEntityManagerFactory();
+    EntityManager reader = emf.createEntityManager();
+    List<EntityManager> ems = new ArrayList<>();
+    BlockingQueue<JpaDao> workers = new ArrayBlockingQueue<>(threads);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    ArrayDeque<Future<Chunk<E>>> pending = new ArrayDeque<>();
+    boolean ok = true;
+    try {
+      for (int i = 0; i < threads; i++) {
+        EntityManager em = emf.createEntityManager();
+        ems.add(em);
+        JpaDao workerDao = new JpaDao();
+        workerDao.setEntityManager(em);
+        workers.add(workerDao);
+      }
+      createCheckpointTable(reader);
+      String checkpoint = readCheckpoint(reader);
+      Object last = (checkpoint != null) ? toKey(checkpoint, ei.getPkType()) : null;
+      if (last != null) {
+        Logger.info(clazz, jobName, "restart after " + last);
+      }
+      long[] items = {0};
+      List<?> rows;
+      do {
+        Query query = reader.createQuery(ei.buildSelectClause() + ((last == null) ? where : keyset) + orderBy);
+        for (int i = 0; i < params.length; i++) {
+          query.setParameter(i + 1, params[i]);
+        }
+        if (last != null) {
+          query.setParameter(params.length + 1, last);
+        }
+        query.setMaxResults(chunkSize);
+        rows = query.getResultList();
+        reader.clear();
+        if (!rows.isEmpty()) {
+          last = pkField.get(rows.get(rows.size() - 1));
+          Chunk<E> chunk = new Chunk<>((List<E>) rows, last);
+          pending.add(pool.submit(() -> processChunk(workers, chunk)));
+          while (ok && pending.size() >= threads * 2) {
+            ok = completeOldest(pending, reader, cl, report, items);
+          }
+        }
+      } while (ok && rows.size() == chunkSize);
+      while (ok && !pending.isEmpty()) {
+        ok = completeOldest(pending, reader, cl, report, items);
+      }
+      if (ok) {
+        executeCheckpointCommand(reader, "DELETE FROM " + checkpointTable + " WHERE job = ?1", jobName);
+      }
+    } catch (Exception ex) {
+      ok = false;
+      Logger.error(clazz, jobName, ex.getMessage());
+    } finally {
+      for (Future<Chunk<E>> f : pending) {
+        try {
+          f.get();
+        } catch (InterruptedException | ExecutionException ex) {
+          Logger.error(clazz, jobName, ex.getMessage());
+        }
+      }
+      pool.shutdownNow();
+      reader.close();
+      for (EntityManager em : ems) {
+        em.close();
+      }
+      if (report.getWritten() > 0) {
+        dao.incrementVersion(search.getEntity());
+      }
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, jobName, ok ? "completed" : "interrupted", report);
+    return report;
+  }
+
+}
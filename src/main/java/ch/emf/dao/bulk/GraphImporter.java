@@ -0,0 +1,358 @@
+package ch.emf.dao.bulk;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.helpers.EntityGraph;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.persistence.metamodel.Metamodel;
+
+/**
+ * Importation d'un graphe d'objets (par exemple lu dans un fichier XML ou
+ * JSON) dans l'ordre des dépendances entre les tables. Les dépendances sont
+ * lues dans le métamodèle JPA (ManyToOne et OneToOne propriétaire), les
+ * classes-entités sont ordonnées par niveaux (voir EntityGraph) et chaque
+ * niveau est écrit en parallèle avec un ParallelBulkWriter.<br>
+ * <br>
+ * En parcourant le graphe depuis les objets donnés :<br>
+ * - un objet atteint plusieurs fois n'est écrit qu'une seule fois; <br>
+ * - avec une clé naturelle (voir setKey), les doublons d'un même objet sont
+ * remplacés par le premier objet rencontré (les références sont reliées); <br>
+ * - un objet qui a déjà une PK générée (donc déjà dans la BD) n'est pas
+ * écrit, il sert seulement de référence. <br>
+ * Les PK générées lors de l'écriture d'un niveau sont mises dans les objets,
+ * les clés étrangères des niveaux suivants sont donc correctes. Une relation
+ * récursive (vers la même classe-entité) est écrite par vagues successives
+ * selon la profondeur des objets. Un cycle entre les classes-entités (ou
+ * entre les objets d'une relation récursive) est refusé avant toute écriture.
+ * Dès qu'un niveau (ou une vague) a des lignes refusées, les niveaux suivants
+ * ne sont pas écrits (leurs objets pourraient référencer des objets refusés)
+ * et le rapport est marqué comme interrompu.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   GraphImporter importer = new GraphImporter(dao, 4);
+ *   importer.setKey(Canton.class, "abrev");
+ *   importer.setKey(Parti.class, "nomParti");
+ *   BulkReport report = importer.importGraph(conseillers);
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - ParallelBulkWriter
+ * @depend - - - EntityGraph
+ */
+public class GraphImporter {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private final int threads;
+  private final Map<Class<?>, Field[]> keys;
+  private int chunkSize;
+  private int relinked;
+
+  /**
+   * Constructeur.
+   *
+   * @param dao     la couche DAO connectée
+   * @param threads le nombre de "workers" (connexions) en parallèle
+   */
+  public GraphImporter(JpaDaoAPI dao, int threads) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.threads = Math.max(1, threads);
+    this.keys = new HashMap<>();
+    this.chunkSize = 5000;
+    this.relinked = 0;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  /**
+   * Retourne le nombre de références remplacées par un objet équivalent
+   * (même clé naturelle) lors de la dernière importation.
+   *
+   * @return le nombre de références reliées
+   */
+  public int getRelinked() {
+    return relinked;
+  }
+
+
+
+  /**
+   * Définit la clé naturelle d'une classe-entité : deux objets avec les mêmes
+   * valeurs pour ces attributs sont considérés comme un seul objet.
+   *
+   * @param cl        une classe entité managée par JPA
+   * @param keyFields le ou les noms des attributs de la clé naturelle
+   * @return TRUE si tous les attributs ont été trouvés
+   */
+  public boolean setKey(Class<?> cl, String... keyFields) {
+    EntityInfo ei = dao.getEntityInfo(cl);
+    Field[] fields = new Field[keyFields.length];
+    for (int i = 0; i < keyFields.length; i++) {
+      fields[i] = ei.findField(keyFields[i]);
+      if (fields[i] == null) {
+        Logger.error(clazz, "unknown field " + cl.getSimpleName() + "." + keyFields[i]);
+        return false;
+      }
+      fields[i].setAccessible(true);
+    }
+    keys.put(cl, fields);
+    return true;
+  }
+
+  /**
+   * Méthode privée pour tester si un objet est déjà dans la BD (PK générée
+   * déjà attribuée). Avec une PK non générée, l'objet est toujours écrit.
+   */
+  private boolean isPersisted(EntityInfo ei, Object o) throws IllegalAccessException {
+    List<ColumnInfo> cols = ei.getColumns();
+    if ((!ei.isIdentityUsed() && !ei.isTableSeqUsed()) || cols.isEmpty() || !cols.get(0).isPk()) {
+      return false;
+    }
+    Object pk = cols.get(0).getField().get(o);
+    return pk != null && !(pk instanceof Number && ((Number) pk).longValue() == 0);
+  }
+
+  /**
+   * Méthode privée pour entrer dans un objet du graphe : retourne l'objet à
+   * utiliser à sa place et, pour un nouvel objet, empile ses références à
+   * parcourir.
+   */
+  private Object enter(Object o, Metamodel mm, Map<Class<?>, List<Field>> refFields,
+          IdentityHashMap<Object, Object> canonical, Map<Class<?>, Map<List<Object>, Object>> byKey,
+          Deque<Object[]> stack) throws IllegalAccessException {
+    Object c = canonical.get(o);
+    if (c != null) {
+      return c;
+    }
+    Class<?> cl = o.getClass();
+    Field[] keyFields = keys.get(cl);
+    if (keyFields != null) {
+      Object[] values = new Object[keyFields.length];
+      for (int i = 0; i < keyFields.length; i++) {
+        values[i] = keyFields[i].get(o);
+      }
+      List<Object> key = Arrays.asList(values);
+      Map<List<Object>, Object> map = byKey.computeIfAbsent(cl, k -> new HashMap<>());
+      c = map.get(key);
+      if (c != null) {
+        canonical.put(o, c);
+        return c;
+      }
+      map.put(key, o);
+    }
+    canonical.put(o, o);
+    stack.push(new Object[]{o, refFields.computeIfAbsent(cl, k -> EntityGraph.getReferenceFields(mm, k)).iterator()});
+    return o;
+  }
+
+  /**
+   * Méthode privée pour parcourir le graphe depuis un objet (les références
+   * d'abord) et retourner l'objet à utiliser à sa place. Le parcours utilise
+   * une pile explicite : la profondeur du graphe n'est pas limitée par la
+   * pile d'appels.
+   */
+  @SuppressWarnings("unchecked")
+  private Object visit(Object root, Metamodel mm, Map<Class<?>, List<Field>> refFields,
+          IdentityHashMap<Object, Object> canonical, Map<Class<?>, Map<List<Object>, Object>> byKey,
+          Map<Class<?>, List<Object>> byClass) throws IllegalAccessException {
+    Deque<Object[]> stack = new ArrayDeque<>();
+    Object result = enter(root, mm, refFields, canonical, byKey, stack);
+    while (!stack.isEmpty()) {
+      Object[] frame = stack.peek();
+      Object o = frame[0];
+      Iterator<Field> it = (Iterator<Field>) frame[1];
+      if (it.hasNext()) {
+        Field f = it.next();
+        Object ref = f.get(o);
+        if (ref != null) {
+          Object r = enter(ref, mm, refFields, canonical, byKey, stack);
+          if (r != ref) {
+            f.set(o, r);
+            relinked++;
+          }
+        }
+      } else {
+        stack.pop();
+        if (!isPersisted(dao.getEntityInfo(o.getClass()), o)) {
+          byClass.computeIfAbsent(o.getClass(), k -> new ArrayList<>()).add(o);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour calculer la profondeur d'un objet dans une relation
+   * récursive (0 = sans parent à écrire). Les parents sont parcourus avec une
+   * pile explicite (-1 = profondeur en cours de calcul).
+   */
+  private int depth(Object o, List<Field> selfRefs, IdentityHashMap<Object, Integer> depths,
+          IdentityHashMap<Object, Boolean> toWrite) throws IllegalAccessException, JpaException {
+    Deque<Object> stack = new ArrayDeque<>();
+    stack.push(o);
+    while (!stack.isEmpty()) {
+      Object x = stack.peek();
+      Integer d = depths.get(x);
+      if (d == null) {
+        depths.put(x, -1);
+        for (Field f : selfRefs) {
+          Object parent = f.get(x);
+          if (parent != null && toWrite.containsKey(parent)) {
+            Integer pd = depths.get(parent);
+            if (pd == null) {
+              stack.push(parent);
+            } else if (pd < 0) {
+              throw new JpaException(clazz.getSimpleName(), "depth", "cycle in " + x.getClass().getSimpleName());
+            }
+          }
+        }
+      } else {
+        if (d < 0) {
+          int max = 0;
+          for (Field f : selfRefs) {
+            Object parent = f.get(x);
+            if (parent != null && toWrite.containsKey(parent)) {
+              max = Math.max(max, depths.get(parent) + 1);
+            }
+          }
+          depths.put(x, max);
+        }
+        stack.pop();
+      }
+    }
+    return depths.get(o);
+  }
+
+  /**
+   * Méthode privée pour découper les objets d'une classe-entité en vagues
+   * selon leur profondeur dans une relation récursive (une seule vague sans
+   * relation récursive).
+   */
+  private List<List<Object>> waves(Class<?> cl, List<Object> items, List<Field> fields)
+          throws IllegalAccessException, JpaException {
+    List<Field> selfRefs = new ArrayList<>();
+    for (Field f : fields) {
+      if (f.getType() == cl) {
+        selfRefs.add(f);
+      }
+    }
+    List<List<Object>> waves = new ArrayList<>();
+    if (selfRefs.isEmpty()) {
+      waves.add(items);
+      return waves;
+    }
+    IdentityHashMap<Object, Boolean> toWrite = new IdentityHashMap<>();
+    for (Object o : items) {
+      toWrite.put(o, Boolean.TRUE);
+    }
+    IdentityHashMap<Object, Integer> depths = new IdentityHashMap<>();
+    for (Object o : items) {
+      int d = depth(o, selfRefs, depths, toWrite);
+      while (waves.size() <= d) {
+        waves.add(new ArrayList<>());
+      }
+      waves.get(d).add(o);
+    }
+    return waves;
+  }
+
+  /**
+   * Importe tous les objets atteignables depuis les objets donnés, niveau par
+   * niveau (parents d'abord). Chaque niveau (et chaque vague d'une relation
+   * récursive) est écrit en parallèle et terminé avant le suivant. L'import
+   * s'arrête après le premier niveau qui a des lignes refusées.
+   *
+   * @param roots les objets de départ du graphe (n'importe quelles classes-entités)
+   * @return un rapport avec les lignes écrites et refusées, la durée et le débit
+   */
+  public BulkReport importGraph(Collection<?> roots) {
+    BulkReport report = new BulkReport();
+    report.setThreads(threads);
+    long start = System.currentTimeMillis();
+    relinked = 0;
+    Metamodel mm = dao.getEntityManager().getMetamodel();
+    Map<Class<?>, List<Field>> refFields = new HashMap<>();
+    Map<Class<?>, List<Object>> byClass = new LinkedHashMap<>();
+    List<List<List<Object>>> plan = new ArrayList<>();
+    List<List<Class<?>>> planClasses = new ArrayList<>();
+    try {
+      IdentityHashMap<Object, Object> canonical = new IdentityHashMap<>();
+      Map<Class<?>, Map<List<Object>, Object>> byKey = new HashMap<>();
+      for (Object o : roots) {
+        if (o != null) {
+          visit(o, mm, refFields, canonical, byKey, byClass);
+        }
+      }
+      for (List<Class<?>> level : EntityGraph.levels(mm, byClass.keySet())) {
+        int first = plan.size();
+        for (Class<?> cl : level) {
+          List<List<Object>> waves = waves(cl, byClass.get(cl), refFields.get(cl));
+          for (int w = 0; w < waves.size(); w++) {
+            while (plan.size() <= first + w) {
+              plan.add(new ArrayList<>());
+              planClasses.add(new ArrayList<>());
+            }
+            plan.get(first + w).add(waves.get(w));
+            planClasses.get(first + w).add(cl);
+          }
+        }
+      }
+    } catch (IllegalAccessException | IllegalArgumentException | JpaException ex) {
+      Logger.error(clazz, ex.getMessage());
+      report.abort(ex.getMessage());
+      return report;
+    }
+    Logger.debug(clazz, "classes=" + byClass.size() + ", steps=" + plan.size() + ", relinked=" + relinked);
+    for (int s = 0; s < plan.size(); s++) {
+      ParallelBulkWriter writer = new ParallelBulkWriter(dao, threads);
+      writer.setChunkSize(chunkSize);
+      for (int i = 0; i < plan.get(s).size(); i++) {
+        writer.add(planClasses.get(s).get(i), plan.get(s).get(i));
+      }
+      BulkReport step = writer.execute();
+      report.addReport(step);
+      if (step.getFailed() > 0 && !report.isAborted()) {
+        report.abort("step " + (s + 1) + "/" + plan.size() + ": " + step.getFailed() + " rows rejected, next steps skipped");
+      }
+      if (report.isAborted()) {
+        Logger.error(clazz, report.getError());
+        break;
+      }
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    return report;
+  }
+
+}
@@ -0,0 +1,348 @@
+package ch.emf.dao.bulk;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.counters.BlockPkAllocator;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.transactions.Transaction;
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * Écriture d'ajouts en masse directement avec JDBC, sans passer par l'unité de
+ * travail de JPA (ni "persist", ni suivi des modifications, ni "flush" par objet).
+ * Destinée aux ajouts purs (historiques, journaux), elle construit les requêtes
+ * "INSERT" à partir des colonnes de la classe-entité (@Column, @JoinColumn) et
+ * les envoie par lots JDBC (addBatch / executeBatch) dans une seule transaction.<br>
+ * <br>
+ * Deux formes de requêtes sont possibles :<br>
+ * - plusieurs lignes par requête ("INSERT ... VALUES (...), (...)"), par défaut; <br>
+ * - une ligne par requête (rowsPerStatement = 1), la forme que le pilote MySQL
+ * réécrit lui-même en requêtes de plusieurs lignes avec "rewriteBatchedStatements=true". <br>
+ * <br>
+ * Les PK générées par la BD (IDENTITY) sont relues et copiées dans les objets.
+ * Pour une PK avec table de séquence, les PK manquantes sont réservées par blocs
+ * (allocateur de la couche DAO ou, à défaut, allocateur propre à cet objet).<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   JdbcBatchWriter writer = new JdbcBatchWriter(dao);
+ *   int n = writer.insert(Activite.class, activites);
+ * </pre>
+ * <br>
+ * Attention, les objets écrits ne sont pas managés par l'entity-manager.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JpaDaoAPI
+ */
+public class JdbcBatchWriter {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private int rowsPerStatement;
+  private int statementsPerBatch;
+  private BlockPkAllocator pkAllocator;
+
+  /**
+   * Constructeur avec 100 lignes par requête et 50 requêtes par lot JDBC.
+   *
+   * @param dao la couche DAO dont la connexion (et la transaction) est utilisée
+   */
+  public JdbcBatchWriter(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.rowsPerStatement = 100;
+    this.statementsPerBatch = 50;
+    this.pkAllocator = null;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getRowsPerStatement() {
+    return rowsPerStatement;
+  }
+
+  public void setRowsPerStatement(int rowsPerStatement) {
+    this.rowsPerStatement = Math.max(1, rowsPerStatement);
+  }
+
+  public int getStatementsPerBatch() {
+    return statementsPerBatch;
+  }
+
+  public void setStatementsPerBatch(int statementsPerBatch) {
+    this.statementsPerBatch = Math.max(1, statementsPerBatch);
+  }
+
+
+
+  /**
+   * Méthode privée pour tester si une PK est absente (null ou 0).
+   */
+  private static boolean isNoPk(Object pk) {
+    return pk == null || (pk instanceof Number && ((Number) pk).longValue() == 0);
+  }
+
+  /**
+   * Méthode privée pour convertir une clé générée dans le type de la PK.
+   */
+  private static Object toPkType(EntityInfo ei, Number value) {
+    Object pk = value.longValue();
+    if (ei.getPkType() == Integer.class || ei.getPkType() == int.class) {
+      pk = value.intValue();
+    } else if (ei.getPkType() == Short.class || ei.getPkType() == short.class) {
+      pk = value.shortValue();
+    }
+    return pk;
+  }
+
+  /**
+   * Méthode privée pour construire une requête "INSERT" de plusieurs lignes.
+   */
+  private static String buildInsert(EntityInfo ei, List<ColumnInfo> cols, int nbRows) {
+    StringBuilder sb = new StringBuilder("INSERT INTO ").append(ei.getTableName()).append(" (");
+    StringBuilder row = new StringBuilder("(");
+    for (int i = 0; i < cols.size(); i++) {
+      sb.append(i > 0 ? ", " : "").append(cols.get(i).getName());
+      row.append(i > 0 ? ", ?" : "?");
+    }
+    sb.append(") VALUES ");
+    row.append(")");
+    for (int i = 0; i < nbRows; i++) {
+      sb.append(i > 0 ? ", " : "").append(row);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Lecture de la valeur JDBC d'une colonne dans une ligne à écrire (un objet
+   * ou un tableau de valeurs).
+   */
+  private interface RowValues<E> {
+    Object get(E row, int col) throws Exception;
+  }
+
+  /**
+   * Méthode privée pour lire la valeur JDBC d'une colonne d'un objet.
+   */
+  private static Object entityValue(List<ColumnInfo> cols, Object e, int col) throws Exception {
+    ColumnInfo c = cols.get(col);
+    Object value = c.toJdbcValue(e);
+    if (c.isVersion() && isNoPk(value)) {
+      value = 1; // valeur initiale de JPA pour un nouvel objet
+    }
+    return value;
+  }
+
+  /**
+   * Méthode privée pour écrire un groupe d'objets qui ont les mêmes colonnes.
+   * Les requêtes complètes partagent la même requête préparée et sont envoyées
+   * par lots, le reste est envoyé avec une requête plus courte.
+   */
+  private <E> void write(Connection con, SqlDialect dialect, EntityInfo ei, List<ColumnInfo> cols,
+          Field pkField, List<E> rows, boolean generated, RowValues<E> values) throws Exception {
+    int full = (rows.size() / rowsPerStatement) * rowsPerStatement;
+    int[] bounds = {0, full, rows.size()};
+    for (int part = 0; part < 2; part++) {
+      int from = bounds[part];
+      int to = bounds[part + 1];
+      if (from == to) {
+        continue;
+      }
+      int nbRows = (part == 0) ? rowsPerStatement : to - from;
+      String sql = buildInsert(ei, cols, nbRows);
+      try (PreparedStatement ps = generated
+              ? con.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)
+              : con.prepareStatement(sql)) {
+        int keyIndex = from;
+        int pending = 0;
+        for (int i = from; i < to; i += nbRows) {
+          int p = 1;
+          for (E e : rows.subList(i, i + nbRows)) {
+            for (int k = 0; k < cols.size(); k++) {
+              ps.setObject(p++, dialect.toParam(values.get(e, k)));
+            }
+          }
+          ps.addBatch();
+          pending++;
+          if (pending == statementsPerBatch || i + nbRows >= to) {
+            ps.executeBatch();
+            pending = 0;
+            if (generated) {
+              try (ResultSet rs = ps.getGeneratedKeys()) {
+                while (rs.next() && keyIndex < to) {
+                  pkField.set(rows.get(keyIndex++), toPkType(ei, (Number) rs.getObject(1)));
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Ajoute une liste d'objets dans la BD avec des requêtes "INSERT" JDBC par lots,
+   * dans une seule transaction (ou dans le scope transactionnel en cours).
+   * En cas d'erreur, la transaction est annulée et les PK des objets sont
+   * remises à leurs valeurs d'avant l'appel.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à ajouter dans la BD
+   *
+   * @return le nombre d'objets ajoutés, =0 autrement
+   */
+  public <E> int insert(Class<?> cl, List<E> list) {
+    int n = 0;
+    EntityInfo ei = dao.getEntityInfo(cl);
+    List<ColumnInfo> cols = ei.getColumns();
+    if (list.isEmpty() || cols.isEmpty() || !cols.get(0).isPk()) {
+      return n;
+    }
+    Field pkField = cols.get(0).getField();
+    EntityManager em = dao.getEntityManager();
+    Transaction tr = dao.getTransaction();
+    List<E> withPk = new ArrayList<>();
+    List<E> withoutPk = new ArrayList<>();
+    List<Object> pks = new ArrayList<>(list.size());
+    try {
+      for (E e : list) {
+        pks.add(pkField.get(e));
+      }
+      if (ei.isTableSeqUsed()) {
+        BlockPkAllocator allocator = dao.getPkAllocator();
+        if (allocator == null) {
+          if (pkAllocator == null) {
+            pkAllocator = new BlockPkAllocator(rowsPerStatement * statementsPerBatch);
+          }
+          allocator = pkAllocator;
+        }
+        allocator.assignPks(em.getEntityManagerFactory(), ei, list);
+      }
+      for (E e : list) {
+        if (ei.isIdentityUsed() && isNoPk(pkField.get(e))) {
+          withoutPk.add(e);
+        } else {
+          withPk.add(e);
+        }
+      }
+      tr.beginManualTransaction();
+      try {
+        Connection con = em.unwrap(Connection.class);
+        SqlDialect dialect = dao.getSqlDialect();
+        if (!withPk.isEmpty()) {
+          write(con, dialect, ei, cols, pkField, withPk, false, (e, k) -> entityValue(cols, e, k));
+        }
+        if (!withoutPk.isEmpty()) {
+          List<ColumnInfo> noPkCols = cols.subList(1, cols.size());
+          write(con, dialect, ei, noPkCols, pkField, withoutPk, true, (e, k) -> entityValue(noPkCols, e, k));
+        }
+        tr.commitManualTransaction();
+        n = list.size();
+        dao.incrementVersion(cl);
+      } catch (Exception ex) {
+        tr.rollbackManualTransaction();
+        throw ex;
+      } finally {
+        tr.finishManualTransaction();
+      }
+    } catch (Exception ex) {
+      n = 0;
+      Logger.error(clazz, cl.getSimpleName(), ex.getMessage());
+      restorePks(pkField, list, pks);
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour remettre les PK mémorisées avant l'insertion
+   * (valeurs du même type, sans erreur possible pour une PK primitive).
+   */
+  private <E> void restorePks(Field pkField, List<E> list, List<Object> pks) {
+    try {
+      for (int i = 0; i < pks.size(); i++) {
+        pkField.set(list.get(i), pks.get(i));
+      }
+    } catch (IllegalAccessException ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+  }
+
+
+  /**
+   * Ajoute des lignes déjà converties en valeurs JDBC (par exemple lues dans
+   * une sauvegarde) avec des requêtes "INSERT" JDBC par lots, dans une seule
+   * transaction. Les valeurs d'une ligne sont dans l'ordre des colonnes
+   * spécifiées et les PK sont écrites telles quelles.
+   *
+   * @param cl une classe entité managée par JPA
+   * @param cols les colonnes écrites (voir EntityInfo.getColumns)
+   * @param rows les lignes à ajouter, une valeur par colonne
+   *
+   * @return le nombre de lignes ajoutées, =0 autrement
+   */
+  public int insertRows(Class<?> cl, List<ColumnInfo> cols, List<Object[]> rows) {
+    int n = 0;
+    EntityInfo ei = dao.getEntityInfo(cl);
+    if (rows.isEmpty() || cols.isEmpty()) {
+      return n;
+    }
+    Transaction tr = dao.getTransaction();
+    try {
+      tr.beginManualTransaction();
+      try {
+        Connection con = dao.getEntityManager().unwrap(Connection.class);
+        write(con, dao.getSqlDialect(), ei, cols, null, rows, false, (r, k) -> r[k]);
+        tr.commitManualTransaction();
+        n = rows.size();
+        dao.incrementVersion(cl);
+      } catch (Exception ex) {
+        tr.rollbackManualTransaction();
+        throw ex;
+      } finally {
+        tr.finishManualTransaction();
+      }
+    } catch (Exception ex) {
+      n = 0;
+      Logger.error(clazz, cl.getSimpleName(), ex.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Remet à jour la table de séquence ou le compteur IDENTITY d'une table
+   * après l'ajout de lignes avec leurs PK (voir insertRows) : la prochaine
+   * PK générée suit la plus grande PK de la table.
+   *
+   * @param cl une classe entité managée par JPA
+   */
+  public void resetPkCounter(Class<?> cl) {
+    EntityInfo ei = dao.getEntityInfo(cl);
+    Object max = dao.getPkMax(cl);
+    long pkMax = (max instanceof Number) ? ((Number) max).longValue() : 0;
+    if (ei.isTableSeqUsed()) {
+      if (dao.getPkAllocator() != null) {
+        dao.getPkAllocator().reset(cl);
+      }
+      if (pkAllocator != null) {
+        pkAllocator.reset(cl);
+      }
+      dao.executeCommand(ei.buildUpdatePkMaxClause(pkMax));
+    } else if (ei.isIdentityUsed()) {
+      dao.executeCommand(dao.getSqlDialect().buildIdentityRestart(ei.getTableName(), ei.getColumns().get(0).getName(), pkMax + 1));
+    }
+  }
+
+}
@@ -0,0 +1,356 @@
+package ch.emf.dao.bulk;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.counters.BlockPkAllocator;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.transactions.Transaction;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * Chargement initial en masse avec le chemin natif de la BD. Les objets sont
+ * d'abord écrits dans un fichier délimité temporaire, puis ce fichier est
+ * chargé en une seule requête ("LOAD DATA LOCAL INFILE" avec MySQL, "CSVREAD"
+ * avec H2). Un fichier délimité déjà préparé (par exemple un CSV transformé)
+ * peut aussi être chargé directement. Pour les autres BD, les objets sont
+ * écrits avec JdbcBatchWriter.<br>
+ * <br>
+ * En mode "bulk" (MySQL seulement), le contrôle des clés étrangères et des
+ * index uniques est suspendu pour la session pendant le chargement. Les clés
+ * étrangères sont ensuite validées avec une requête par colonne : s'il y a des
+ * lignes orphelines, elles sont comptées dans le rapport et tout le chargement
+ * est annulé. Le mode "bulk" est refusé dans un scope transactionnel (voir
+ * inTransaction), car le chargement ne pourrait pas y être annulé seul.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   NativeBulkLoader loader = new NativeBulkLoader(dao);
+ *   loader.setBulkMode(true);
+ *   BulkReport report = loader.load(Conseiller.class, conseillers);
+ * </pre>
+ * <br>
+ * Attention, avec MySQL, l'URL de connexion doit autoriser les fichiers
+ * locaux ("allowLoadLocalInfile=true") et les PK générées par la BD ne sont
+ * pas relues dans les objets.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JpaDaoAPI
+ */
+public class NativeBulkLoader {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private boolean bulkMode;
+  private File tempDir;
+  private BlockPkAllocator pkAllocator;
+
+  /**
+   * Constructeur.
+   *
+   * @param dao la couche DAO dont la connexion (et la transaction) est utilisée
+   */
+  public NativeBulkLoader(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.bulkMode = false;
+    this.tempDir = null;
+    this.pkAllocator = null;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public boolean isBulkMode() {
+    return bulkMode;
+  }
+
+  public void setBulkMode(boolean bulkMode) {
+    this.bulkMode = bulkMode;
+  }
+
+  public File getTempDir() {
+    return tempDir;
+  }
+
+  /**
+   * Définit le dossier des fichiers temporaires (par défaut, celui du système).
+   *
+   * @param tempDir un dossier accessible en écriture
+   */
+  public void setTempDir(File tempDir) {
+    this.tempDir = tempDir;
+  }
+
+
+
+  /**
+   * Méthode privée pour retourner les colonnes à charger : sans la PK si elle
+   * est générée par la BD et qu'aucun objet n'en possède.
+   */
+  private <E> List<ColumnInfo> loadColumns(EntityInfo ei, List<E> list) throws IllegalAccessException {
+    List<ColumnInfo> cols = ei.getColumns();
+    if (ei.isIdentityUsed()) {
+      Field pkField = cols.get(0).getField();
+      boolean noPk = true;
+      for (E e : list) {
+        Object pk = pkField.get(e);
+        if (pk != null && !(pk instanceof Number && ((Number) pk).longValue() == 0)) {
+          noPk = false;
+          break;
+        }
+      }
+      if (noPk) {
+        cols = cols.subList(1, cols.size());
+      }
+    }
+    return cols;
+  }
+
+  /**
+   * Méthode privée pour écrire les objets dans un fichier délimité temporaire.
+   */
+  private <E> File writeTempFile(SqlDialect dialect, List<ColumnInfo> cols, List<E> list)
+          throws IOException, ReflectiveOperationException {
+    File file = File.createTempFile("daolayer", ".csv", tempDir);
+    file.deleteOnExit();
+    try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+      for (E e : list) {
+        for (int i = 0; i < cols.size(); i++) {
+          ColumnInfo c = cols.get(i);
+          Object value = c.toJdbcValue(e);
+          if (c.isVersion() && (value == null || (value instanceof Number && ((Number) value).longValue() == 0))) {
+            value = 1; // valeur initiale de JPA pour un nouvel objet
+          }
+          if (i > 0) {
+            w.write(',');
+          }
+          w.write(dialect.toCsvField(value));
+        }
+        w.write('\n');
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Méthode privée pour compter les lignes orphelines d'une table, soit les
+   * lignes dont une clé étrangère ne référence aucune ligne de la table liée.
+   */
+  private long countOrphans(Statement st, EntityInfo ei) throws Exception {
+    long n = 0;
+    for (ColumnInfo c : ei.getColumns()) {
+      if (c.isJoin()) {
+        EntityInfo ref = dao.getEntityInfo(c.getRefClass());
+        String pk = ref.getColumns().get(0).getName();
+        String sql = "SELECT COUNT(*) FROM " + ei.getTableName() + " c LEFT JOIN " + ref.getTableName()
+                + " p ON c." + c.getName() + " = p." + pk
+                + " WHERE c." + c.getName() + " IS NOT NULL AND p." + pk + " IS NULL";
+        try (ResultSet rs = st.executeQuery(sql)) {
+          if (rs.next() && rs.getLong(1) > 0) {
+            Logger.error(clazz, ei.getTableName(), c.getName(), "orphans", rs.getLong(1));
+            n += rs.getLong(1);
+          }
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour compter les enregistrements d'un fichier délimité
+   * (les fins de ligne dans un texte entre guillemets ne sont pas comptées).
+   */
+  private static long countRecords(File file) throws IOException {
+    long n = 0;
+    boolean quoted = false;
+    boolean empty = true;
+    try (Reader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+      int c;
+      while ((c = r.read()) >= 0) {
+        if (c == '"') {
+          quoted = !quoted;
+        }
+        if (c == '\n' && !quoted) {
+          n++;
+          empty = true;
+        } else if (c != '\r') {
+          empty = false;
+        }
+      }
+    }
+    return empty ? n : n + 1;
+  }
+
+  /**
+   * Méthode privée pour charger un fichier délimité dans une table avec le
+   * chemin natif, dans une seule transaction (avec ou sans le mode "bulk").
+   * Avec "LOAD DATA LOCAL", MySQL ignore les lignes en erreur (clé dupliquée,
+   * conversion) avec un simple avertissement : elles sont comptées comme
+   * rejetées dans le rapport (lignes du fichier moins lignes chargées).
+   */
+  private void loadFile(EntityInfo ei, File file, List<String> cols, long expected, BulkReport report) throws Exception {
+    SqlDialect dialect = dao.getSqlDialect();
+    EntityManager em = dao.getEntityManager();
+    Transaction tr = dao.getTransaction();
+    List<String> bulkOn = bulkMode ? dialect.buildBulkMode(ei.getTableName(), true) : new ArrayList<>();
+    if (!bulkOn.isEmpty() && tr.getNestingLevel() > 0) {
+      throw new JpaException(clazz.getSimpleName(), "loadFile", "bulk mode is not allowed in a transaction scope");
+    }
+    int n;
+    SQLWarning warning = null;
+    tr.beginManualTransaction();
+    try {
+      Connection con = em.unwrap(Connection.class);
+      try (Statement st = con.createStatement()) {
+        for (String sql : bulkOn) {
+          st.execute(sql);
+        }
+        try {
+          n = st.executeUpdate(dialect.buildBulkLoad(ei.getTableName(), file.getAbsolutePath(), cols));
+          warning = st.getWarnings();
+        } finally {
+          if (!bulkOn.isEmpty()) {
+            for (String sql : dialect.buildBulkMode(ei.getTableName(), false)) {
+              st.execute(sql);
+            }
+          }
+        }
+        if (!bulkOn.isEmpty()) {
+          long orphans = countOrphans(st, ei);
+          if (orphans > 0) {
+            report.addOrphans(orphans);
+            throw new JpaException(clazz.getSimpleName(), "loadFile", ei.getTableName() + ": " + orphans + " orphans");
+          }
+        }
+      }
+      tr.commitManualTransaction();
+      long failed = Math.max(0, expected - n);
+      if (failed > 0) {
+        Logger.error(clazz, ei.getTableName(), "rows skipped", failed, (warning == null) ? "" : warning.getMessage());
+      }
+      report.addChunk(ei.getEntityClass(), n, failed);
+      dao.incrementVersion(ei.getEntityClass());
+    } catch (Exception ex) {
+      tr.rollbackManualTransaction();
+      throw ex;
+    } finally {
+      tr.finishManualTransaction();
+    }
+  }
+
+  /**
+   * Charge une liste d'objets dans la BD avec le chemin natif de chargement
+   * (fichier délimité temporaire). Les PK manquantes d'une classe-entité avec
+   * table de séquence sont d'abord réservées par blocs.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param list une liste d'objets à ajouter dans la BD
+   *
+   * @return un rapport avec le nombre de lignes chargées, rejetées (et orphelines en mode "bulk")
+   */
+  public <E> BulkReport load(Class<?> cl, List<E> list) {
+    BulkReport report = new BulkReport();
+    report.setThreads(1);
+    long start = System.currentTimeMillis();
+    EntityInfo ei = dao.getEntityInfo(cl);
+    SqlDialect dialect = dao.getSqlDialect();
+    if (list.isEmpty()) {
+      return report;
+    }
+    if (!dialect.hasBulkLoad()) {
+      int n = new JdbcBatchWriter(dao).insert(cl, list);
+      report.addChunk(cl, n, list.size() - n);
+    } else {
+      File file = null;
+      try {
+        if (ei.isTableSeqUsed()) {
+          BlockPkAllocator allocator = dao.getPkAllocator();
+          if (allocator == null) {
+            if (pkAllocator == null) {
+              pkAllocator = new BlockPkAllocator(1000);
+            }
+            allocator = pkAllocator;
+          }
+          allocator.assignPks(dao.getEntityManager().getEntityManagerFactory(), ei, list);
+        }
+        List<ColumnInfo> cols = loadColumns(ei, list);
+        List<String> names = new ArrayList<>();
+        for (ColumnInfo c : cols) {
+          names.add(c.getName());
+        }
+        file = writeTempFile(dialect, cols, list);
+        loadFile(ei, file, names, list.size(), report);
+      } catch (Exception ex) {
+        report.addChunk(cl, 0, list.size());
+        Logger.error(clazz, cl.getSimpleName(), ex.getMessage());
+        report.abort(ex.getMessage());
+      } finally {
+        if (file != null) {
+          file.delete();
+        }
+      }
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+  /**
+   * Charge un fichier délimité déjà préparé dans la table d'une classe-entité
+   * (virgules, textes entre guillemets, NULL écrit avec \N, UTF-8, sans ligne
+   * d'en-tête).
+   *
+   * @param cl une classe entité managée par JPA
+   * @param file le fichier délimité à charger
+   * @param columns les noms des colonnes de la table, dans l'ordre des champs du fichier
+   *
+   * @return un rapport avec le nombre de lignes chargées, rejetées (et orphelines en mode "bulk")
+   */
+  public BulkReport loadFile(Class<?> cl, File file, String... columns) {
+    BulkReport report = new BulkReport();
+    report.setThreads(1);
+    long start = System.currentTimeMillis();
+    EntityInfo ei = dao.getEntityInfo(cl);
+    if (!dao.getSqlDialect().hasBulkLoad()) {
+      Logger.error(clazz, cl.getSimpleName(), "no native bulk load for", dao.getSqlDialect());
+      report.abort("no native bulk load for " + dao.getSqlDialect());
+      return report;
+    }
+    try {
+      loadFile(ei, file, Arrays.asList(columns), countRecords(file), report);
+    } catch (Exception ex) {
+      Logger.error(clazz, cl.getSimpleName(), ex.getMessage());
+      report.abort(ex.getMessage());
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+}
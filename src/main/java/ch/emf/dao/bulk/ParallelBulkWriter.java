@@ -0,0 +1,215 @@
+package ch.emf.dao.bulk;
+
+import ch.emf.dao.JpaDao;
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.counters.BlockPkAllocator;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.helpers.EntityGraph;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.BulkReport;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Écriture en masse parallèle sur plusieurs connexions. Les objets à ajouter
+ * sont découpés en lots qui sont répartis entre N "workers", chacun avec son
+ * propre entity-manager (donc sa propre connexion) et sa propre transaction
+ * par lot. Les lots sont écrits avec JDBC (voir JdbcBatchWriter).<br>
+ * <br>
+ * Les clés étrangères sont respectées : les classes-entités sont écrites par
+ * niveaux (voir EntityGraph), les parents avant les enfants. Les classes d'un
+ * même niveau sont écrites en parallèle et un niveau n'est commencé que
+ * lorsque le niveau précédent est terminé. Attention, une relation récursive
+ * (vers la même classe-entité) n'est pas ordonnée.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   ParallelBulkWriter writer = new ParallelBulkWriter(dao, 4);
+ *   writer.add(Canton.class, cantons);
+ *   writer.add(Conseiller.class, conseillers);
+ *   BulkReport report = writer.execute();
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JdbcBatchWriter
+ * @depend - - - EntityGraph
+ */
+public class ParallelBulkWriter {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private final int threads;
+  private final Map<Class<?>, List<Iterable<?>>> sources;
+  private int chunkSize;
+  private int rowsPerStatement;
+
+  /**
+   * Constructeur.
+   *
+   * @param dao     la couche DAO connectée (sa fabrique d'entity-managers est utilisée)
+   * @param threads le nombre de "workers" (connexions) en parallèle
+   */
+  public ParallelBulkWriter(JpaDaoAPI dao, int threads) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.threads = Math.max(1, threads);
+    this.sources = new LinkedHashMap<>();
+    this.chunkSize = 5000;
+    this.rowsPerStatement = 100;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  public int getRowsPerStatement() {
+    return rowsPerStatement;
+  }
+
+  public void setRowsPerStatement(int rowsPerStatement) {
+    this.rowsPerStatement = Math.max(1, rowsPerStatement);
+  }
+
+
+
+  /**
+   * Ajoute une liste (ou tout autre source itérable) d'objets à écrire.
+   * La source n'est parcourue que lors de l'exécution.
+   *
+   * @param cl une classe entité managée par JPA
+   * @param items les objets à ajouter dans la BD
+   */
+  public void add(Class<?> cl, Iterable<?> items) {
+    sources.computeIfAbsent(cl, k -> new ArrayList<>()).add(items);
+  }
+
+  /**
+   * Ajoute un flux d'objets à écrire. Le flux n'est consommé que lors de
+   * l'exécution, lot par lot, sans être chargé entièrement en mémoire.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe entité managée par JPA
+   * @param stream un flux d'objets à ajouter dans la BD
+   */
+  public <E> void add(Class<?> cl, Stream<E> stream) {
+    Iterable<E> items = stream::iterator;
+    add(cl, items);
+  }
+
+  /**
+   * Méthode privée pour écrire un lot avec un "worker" libre.
+   */
+  private void writeChunk(BlockingQueue<JdbcBatchWriter> workers, Class<?> cl, List<Object> chunk,
+          BulkReport report) throws InterruptedException {
+    JdbcBatchWriter worker = workers.take();
+    try {
+      int n = worker.insert(cl, chunk);
+      report.addChunk(cl, n, chunk.size() - n);
+    } finally {
+      workers.put(worker);
+    }
+  }
+
+  /**
+   * Écrit tous les objets ajoutés, niveau par niveau (parents d'abord), avec
+   * les "workers" en parallèle. Chaque lot est validé dans sa propre
+   * transaction : un lot refusé n'empêche pas l'écriture des autres lots.
+   *
+   * @return un rapport avec les lignes écrites et refusées, la durée et le débit
+   */
+  public BulkReport execute() {
+    BulkReport report = new BulkReport();
+    report.setThreads(threads);
+    long start = System.currentTimeMillis();
+    List<List<Class<?>>> levels;
+    try {
+      levels = EntityGraph.levels(sources.keySet());
+    } catch (JpaException ex) {
+      Logger.error(clazz, ex.getMessage());
+      report.abort(ex.getMessage());
+      return report;
+    }
+    EntityManagerFactory emf = dao.getEntityManager().getEntityManagerFactory();
+    BlockPkAllocator allocator = (dao.getPkAllocator() != null) ? dao.getPkAllocator() : new BlockPkAllocator(chunkSize);
+    List<EntityManager> ems = new ArrayList<>();
+    BlockingQueue<JdbcBatchWriter> workers = new ArrayBlockingQueue<>(threads);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    Semaphore inFlight = new Semaphore(threads * 2);
+    try {
+      for (int i = 0; i < threads; i++) {
+        EntityManager em = emf.createEntityManager();
+        ems.add(em);
+        JpaDao workerDao = new JpaDao();
+        workerDao.setEntityManager(em);
+        workerDao.setPkAllocator(allocator);
+        JdbcBatchWriter writer = new JdbcBatchWriter(workerDao);
+        writer.setRowsPerStatement(rowsPerStatement);
+        workers.add(writer);
+      }
+      for (List<Class<?>> level : levels) {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Class<?> cl : level) {
+          for (Iterable<?> source : sources.get(cl)) {
+            Iterator<?> it = source.iterator();
+            while (it.hasNext()) {
+              List<Object> chunk = new ArrayList<>(chunkSize);
+              while (it.hasNext() && chunk.size() < chunkSize) {
+                chunk.add(it.next());
+              }
+              inFlight.acquire();
+              futures.add(pool.submit(() -> {
+                try {
+                  writeChunk(workers, cl, chunk, report);
+                } finally {
+                  inFlight.release();
+                }
+                return null;
+              }));
+            }
+          }
+        }
+        for (Future<?> f : futures) {
+          f.get();
+        }
+        Logger.debug(clazz, "level", level, report.getWritten());
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+      report.abort(ex.getMessage());
+    } finally {
+      pool.shutdownNow();
+      for (EntityManager em : ems) {
+        em.close();
+      }
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+}
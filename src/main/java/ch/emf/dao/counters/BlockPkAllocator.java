@@ -0,0 +1,173 @@
+package ch.emf.dao.counters;
+
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.EntityInfo;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+/**
+ * Allocateur de PK par blocs (algorithme "hi/lo") pour les classes-entités
+ * dont la PK est générée avec une table de séquence (@TableGenerator).<br>
+ * <br>
+ * Un bloc de PK est réservé dans la table de séquence avec un seul UPDATE
+ * (valeur = valeur + taille du bloc), dans une transaction séparée sur son
+ * propre entity-manager. Les PK du bloc sont ensuite attribuées en mémoire aux
+ * objets avant leur persistance. La table de séquence reste ainsi toujours
+ * à jour (sans requête MAX(pk)) et reste compatible avec le générateur de JPA
+ * qui réserve ses valeurs dans la même table.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   dao.setPkAllocator(new BlockPkAllocator(100));
+ *   dao.insertList(Parti.class, partis, false);
+ * </pre>
+ * <br>
+ * Cette classe est "thread-safe" : chaque classe-entité dispose de son propre
+ * bloc courant, protégé par un verrou.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - EntityInfo
+ */
+public class BlockPkAllocator {
+  private final Class<?> clazz;
+  private final int blockSize;
+  private final Map<Class<?>, Block> blocks;
+  private final AtomicLong blockCount;
+
+  /**
+   * Constructeur.
+   *
+   * @param blockSize le nombre de PK réservées à chaque accès à la table de séquence
+   */
+  public BlockPkAllocator(int blockSize) {
+    this.clazz = this.getClass();
+    this.blockSize = Math.max(1, blockSize);
+    this.blocks = new ConcurrentHashMap<>();
+    this.blockCount = new AtomicLong();
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Retourne le nombre de blocs réservés dans les tables de séquence.
+   *
+   * @return le nombre de blocs réservés
+   */
+  public long getBlockCount() {
+    return blockCount.get();
+  }
+
+  /**
+   * Méthode privée pour réserver un nouveau bloc dans la table de séquence.
+   * Retourne la dernière valeur du bloc réservé.
+   */
+  private long reserve(EntityManagerFactory emf, EntityInfo ei) {
+    EntityManager em = emf.createEntityManager();
+    EntityTransaction et = em.getTransaction();
+    try {
+      et.begin();
+      if (em.createNativeQuery(ei.buildSeqIncrementClause(blockSize)).executeUpdate() == 0) {
+        em.createNativeQuery(ei.buildSeqInsertClause(ei.getPkInitialValue() + blockSize)).executeUpdate();
+      }
+      Number hi = (Number) em.createNativeQuery(ei.buildSeqSelectClause()).getSingleResult();
+      et.commit();
+      blockCount.incrementAndGet();
+      return hi.longValue();
+    } finally {
+      if (et.isActive()) {
+        et.rollback();
+      }
+      em.close();
+    }
+  }
+
+  /**
+   * Méthode privée pour convertir une valeur de séquence dans le type de la PK.
+   */
+  private static Object toPkType(EntityInfo ei, long value) {
+    Object pk = value;
+    if (ei.getPkType() == Integer.class || ei.getPkType() == int.class) {
+      pk = (int) value;
+    } else if (ei.getPkType() == Short.class || ei.getPkType() == short.class) {
+      pk = (short) value;
+    }
+    return pk;
+  }
+
+  /**
+   * Retourne la prochaine PK pour une classe-entité avec table de séquence.
+   * Un nouveau bloc est réservé dans la BD lorsque le bloc courant est épuisé.
+   *
+   * @param emf la fabrique d'entity-managers de la couche DAO
+   * @param ei  les informations de la classe-entité
+   * @return la prochaine PK (dans le type de la PK)
+   */
+  public Object next(EntityManagerFactory emf, EntityInfo ei) {
+    Block block = blocks.computeIfAbsent(ei.getEntityClass(), k -> new Block());
+    synchronized (block) {
+      if (block.next > block.hi) {
+        block.hi = reserve(emf, ei);
+        block.next = block.hi - blockSize + 1;
+      }
+      return toPkType(ei, block.next++);
+    }
+  }
+
+  /**
+   * Attribue une PK à tous les objets d'une liste qui n'en ont pas encore.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param emf la fabrique d'entity-managers de la couche DAO
+   * @param ei  les informations de la classe-entité
+   * @param list une liste d'objets à persister
+   * @return le nombre de PK attribuées
+   */
+  public <E> int assignPks(EntityManagerFactory emf, EntityInfo ei, List<E> list) {
+    int n = 0;
+    Method getter = ei.findMethod("getPk");
+    Method setter = ei.findMethod("setPk");
+    try {
+      getter.setAccessible(true);
+      setter.setAccessible(true);
+      for (E e : list) {
+        Object pk = getter.invoke(e);
+        if (pk == null || (pk instanceof Number && ((Number) pk).longValue() == 0)) {
+          setter.invoke(e, next(emf, ei));
+          n++;
+        }
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+    return n;
+  }
+
+  /**
+   * Oublie le bloc courant d'une classe-entité (par exemple après la remise
+   * à zéro de sa table de séquence).
+   *
+   * @param cl une classe-entité
+   */
+  public void reset(Class<?> cl) {
+    blocks.remove(cl);
+  }
+
+  /**
+   * Bloc de PK réservé pour une classe-entité.
+   */
+  private static class Block {
+    private long next = 1;
+    private long hi = 0;
+  }
+
+}
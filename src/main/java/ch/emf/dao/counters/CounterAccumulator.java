@@ -0,0 +1,241 @@
+package ch.emf.dao.counters;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.helpers.Logger;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulateur de compteurs en mémoire pour les lignes très sollicitées
+ * (nombre de vues, tentatives de login, ...). Les deltas sont d'abord cumulés
+ * localement dans un LongAdder par compteur (cellules réparties entre les
+ * threads), puis écrits périodiquement dans la BD avec un seul
+ * "UPDATE ... SET f = f + ?" par compteur grâce à la méthode "increment" de
+ * la couche DAO. Un compteur sans delta depuis la dernière écriture est
+ * retiré de la mémoire.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   CounterAccumulator acc = new CounterAccumulator(dao);
+ *   acc.start(5, TimeUnit.SECONDS);
+ *   ...
+ *   acc.add(Login.class, login.getPk(), "tentatives", 1);
+ *   ...
+ *   acc.stop(); // écrit encore les deltas en attente
+ * </pre>
+ * <br>
+ * Attention, l'entity-manager de la couche DAO n'est pas "thread-safe". Si
+ * l'écriture périodique est activée, il faut fournir une instance JpaDao
+ * dédiée à cet accumulateur (connectée avec sa propre unité de persistance).
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JpaDaoAPI
+ */
+public class CounterAccumulator {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private final Map<CounterKey, LongAdder> counters;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Constructeur.
+   *
+   * @param dao la couche DAO utilisée pour écrire les deltas dans la BD
+   */
+  public CounterAccumulator(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.counters = new ConcurrentHashMap<>();
+    this.scheduler = null;
+  }
+
+  /**
+   * Méthode privée pour retirer d'un compteur la somme de ses deltas (sans
+   * perdre les deltas ajoutés en même temps par d'autres threads).
+   */
+  private static long drain(LongAdder adder) {
+    long sum = adder.sum();
+    adder.add(-sum);
+    return sum;
+  }
+
+  /**
+   * Méthode privée pour vider un compteur retiré de la table (par "flush" ou
+   * par le thread qui y a encore ajouté un delta) : un seul des deux récupère
+   * le reste.
+   */
+  private static long drainRetired(LongAdder adder) {
+    synchronized (adder) {
+      return drain(adder);
+    }
+  }
+
+  /**
+   * Ajoute un delta (positif ou négatif) en mémoire pour l'attribut d'un objet.
+   * Aucun accès à la BD n'est effectué ici.
+   *
+   * @param cl    une classe entité managée par JPA
+   * @param pk    la pk de l'objet concerné
+   * @param field le nom de l'attribut numérique à incrémenter
+   * @param delta la valeur à ajouter
+   */
+  public void add(Class<?> cl, Object pk, String field, long delta) {
+    add(new CounterKey(cl, pk, field), delta);
+  }
+
+  /**
+   * Méthode privée pour ajouter un delta à un compteur. Si le compteur vient
+   * d'être retiré de la table par "flush", le delta est reporté sur un
+   * nouveau compteur.
+   */
+  private void add(CounterKey key, long delta) {
+    LongAdder adder = counters.computeIfAbsent(key, k -> new LongAdder());
+    adder.add(delta);
+    if (counters.get(key) != adder) {
+      long rest = drainRetired(adder);
+      if (rest != 0) {
+        add(key, rest);
+      }
+    }
+  }
+
+  /**
+   * Retourne la somme des deltas pas encore écrits dans la BD pour un compteur.
+   *
+   * @param cl    une classe entité managée par JPA
+   * @param pk    la pk de l'objet concerné
+   * @param field le nom de l'attribut numérique
+   * @return la somme des deltas en attente
+   */
+  public long getPending(Class<?> cl, Object pk, String field) {
+    LongAdder adder = counters.get(new CounterKey(cl, pk, field));
+    return (adder == null) ? 0 : adder.sum();
+  }
+
+  /**
+   * Écrit dans la BD tous les deltas cumulés (un UPDATE par compteur non nul).
+   * En cas d'erreur (y compris une exception de la BD), le delta est remis en
+   * attente pour le prochain "flush", sauf si l'objet n'existe plus dans la BD,
+   * et les compteurs suivants sont quand même écrits. Les compteurs sans delta
+   * depuis le "flush" précédent sont retirés de la mémoire.
+   *
+   * @return le nombre de compteurs écrits dans la BD
+   */
+  public synchronized int flush() {
+    int n = 0;
+    for (Map.Entry<CounterKey, LongAdder> entry : counters.entrySet()) {
+      CounterKey key = entry.getKey();
+      LongAdder adder = entry.getValue();
+      long delta = drain(adder);
+      if (delta == 0 && counters.remove(key, adder)) {
+        delta = drainRetired(adder);
+        if (delta != 0) {
+          add(key, delta);
+        }
+      } else if (delta != 0) {
+        try {
+          if (dao.increment(key.cl, key.pk, key.field, delta) > 0) {
+            n++;
+          } else if (dao.exists(key.cl, key.pk)) {
+            adder.add(delta);
+          } else {
+            Logger.error(clazz, key, "object not found, delta lost", delta);
+          }
+        } catch (RuntimeException ex) {
+          adder.add(delta);
+          Logger.error(clazz, key, ex.getMessage());
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Démarre l'écriture périodique des deltas dans la BD.
+   *
+   * @param period la période entre deux écritures
+   * @param unit   l'unité de temps de cette période
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "counter-accumulator");
+        t.setDaemon(true);
+        return t;
+      });
+      scheduler.scheduleWithFixedDelay(() -> {
+        try {
+          flush();
+        } catch (Exception ex) {
+          Logger.error(clazz, ex.getMessage());
+        }
+      }, period, period, unit);
+    }
+  }
+
+  /**
+   * Arrête l'écriture périodique et écrit encore une dernière fois
+   * les deltas en attente.
+   */
+  public void stop() {
+    ScheduledExecutorService s;
+    synchronized (this) {
+      s = scheduler;
+      scheduler = null;
+    }
+    if (s != null) {
+      s.shutdown();
+      try {
+        s.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Clé d'un compteur : classe-entité, pk et attribut.
+   */
+  private static class CounterKey {
+    private final Class<?> cl;
+    private final Object pk;
+    private final String field;
+
+    CounterKey(Class<?> cl, Object pk, String field) {
+      this.cl = cl;
+      this.pk = pk;
+      this.field = field;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof CounterKey)) {
+        return false;
+      }
+      CounterKey k = (CounterKey) o;
+      return cl.equals(k.cl) && Objects.equals(pk, k.pk) && field.equals(k.field);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(cl, pk, field);
+    }
+
+    @Override
+    public String toString() {
+      return cl.getSimpleName() + "[" + pk + "]." + field;
+    }
+  }
+
+}
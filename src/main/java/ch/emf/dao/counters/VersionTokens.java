@@ -0,0 +1,262 @@
+package ch.emf.dao.counters;
+
+import ch.emf.dao.helpers.Logger;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+
+/**
+ * Compteurs de versions par classe-entité, incrémentés après chaque écriture
+ * faite par la couche DAO. Un jeton de version construit avec ces compteurs
+ * change dès qu'une des tables concernées a été modifiée : il permet de
+ * valider un cache (ETag HTTP, liste déjà chargée) sans relire les données.<br>
+ * <br>
+ * Les compteurs sont partagés par toutes les couches DAO d'une même fabrique
+ * d'entity-managers (par exemple les "workers" d'un ParallelBulkWriter). Par
+ * défaut, ils ne sont gardés qu'en mémoire : le jeton contient alors aussi
+ * l'instant de démarrage, pour qu'un jeton d'avant un redémarrage ne soit
+ * jamais reconnu. Avec une table de versions (plusieurs serveurs sur la même
+ * BD), chaque incrément est aussi écrit dans cette table (créée si
+ * nécessaire, une ligne par nom complet de classe-entité) et les jetons sont
+ * lus dans la table.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   String etag = dao.getVersionToken(Conseiller.class, Canton.class);
+ *   if (etag.equals(request.getHeader("If-None-Match"))) {
+ *     ... // 304 Not Modified
+ *   }
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class VersionTokens {
+  private static final Map<EntityManagerFactory, VersionTokens> INSTANCES = new WeakHashMap<>();
+
+  private final Class<?> clazz;
+  private final Map<Class<?>, AtomicLong> versions;
+  private final Map<Class<?>, AtomicLong> pending;
+  private final String epoch;
+  private volatile String table;
+
+  /**
+   * Constructeur.
+   */
+  public VersionTokens() {
+    this.clazz = this.getClass();
+    this.versions = new ConcurrentHashMap<>();
+    this.pending = new ConcurrentHashMap<>();
+    this.epoch = Long.toString(System.currentTimeMillis(), 36);
+    this.table = null;
+  }
+
+  /**
+   * Retourne les compteurs de versions partagés d'une fabrique
+   * d'entity-managers (créés lors du premier appel).
+   *
+   * @param emf une fabrique d'entity-managers
+   * @return les compteurs de versions de cette fabrique
+   */
+  public static VersionTokens of(EntityManagerFactory emf) {
+    synchronized (INSTANCES) {
+      return INSTANCES.computeIfAbsent(emf, k -> new VersionTokens());
+    }
+  }
+
+  public String getTable() {
+    return table;
+  }
+
+  /**
+   * Définit la table des versions partagée entre plusieurs serveurs (elle
+   * est créée si nécessaire). Avec null, les compteurs restent en mémoire.
+   *
+   * @param emf   la fabrique d'entity-managers de la BD
+   * @param table le nom de la table des versions ou null
+   * @return TRUE si la table est utilisable
+   */
+  public boolean setTable(EntityManagerFactory emf, String table) {
+    this.table = null;
+    if (table != null) {
+      try {
+        execute(emf, "CREATE TABLE IF NOT EXISTS " + table
+                + " (entity VARCHAR(255) NOT NULL PRIMARY KEY, version BIGINT NOT NULL)");
+      } catch (Exception ex) {
+        Logger.error(clazz, table, ex.getMessage());
+        return false;
+      }
+    }
+    this.table = table;
+    return true;
+  }
+
+  /**
+   * Méthode privée pour exécuter une commande dans une transaction séparée
+   * sur son propre entity-manager.
+   */
+  private static int execute(EntityManagerFactory emf, String sql, Object... params) {
+    EntityManager em = emf.createEntityManager();
+    try {
+      return execute(em, sql, params);
+    } finally {
+      em.close();
+    }
+  }
+
+  /**
+   * Méthode privée pour exécuter une commande dans une transaction séparée
+   * sur un entity-manager donné.
+   */
+  private static int execute(EntityManager em, String sql, Object... params) {
+    EntityTransaction et = em.getTransaction();
+    try {
+      et.begin();
+      Query query = em.createNativeQuery(sql);
+      for (int i = 0; i < params.length; i++) {
+        query.setParameter(i + 1, params[i]);
+      }
+      int n = query.executeUpdate();
+      et.commit();
+      return n;
+    } finally {
+      if (et.isActive()) {
+        et.rollback();
+      }
+    }
+  }
+
+  /**
+   * Incrémente la version d'une ou plusieurs classes-entités (après une
+   * écriture validée). Avec une table des versions, les incréments en
+   * attente sont écrits avant le retour de la méthode (voir flush).
+   *
+   * @param emf     la fabrique d'entity-managers de la BD (pour la table des versions)
+   * @param classes une ou plusieurs classes entités managées par JPA
+   */
+  public void increment(EntityManagerFactory emf, Class<?>... classes) {
+    String t = table;
+    for (Class<?> cl : classes) {
+      versions.computeIfAbsent(cl, k -> new AtomicLong()).incrementAndGet();
+      if (t != null) {
+        pending.computeIfAbsent(cl, k -> new AtomicLong()).incrementAndGet();
+      }
+    }
+    if (t != null && classes.length > 0) {
+      flush(emf, t);
+    }
+  }
+
+  /**
+   * Méthode privée pour écrire dans la table des versions tous les incréments
+   * en attente, dans une seule transaction sur un seul entity-manager. Les
+   * écritures concurrentes sont ainsi regroupées : un appel qui attend le
+   * verrou trouve souvent son incrément déjà écrit par l'appel précédent.
+   * Une ligne absente est ajoutée et, si un autre serveur l'a ajoutée
+   * entre-temps (clé en double), l'incrément est refait avec UPDATE. Après
+   * une erreur, les incréments restent en attente pour l'écriture suivante.
+   */
+  private void flush(EntityManagerFactory emf, String t) {
+    synchronized (pending) {
+      Map<Class<?>, Long> deltas = new LinkedHashMap<>();
+      for (Map.Entry<Class<?>, AtomicLong> entry : pending.entrySet()) {
+        long d = entry.getValue().getAndSet(0);
+        if (d > 0) {
+          deltas.put(entry.getKey(), d);
+        }
+      }
+      if (deltas.isEmpty()) {
+        return;
+      }
+      String update = "UPDATE " + t + " SET version = version + ?2 WHERE entity = ?1";
+      Map<Class<?>, Long> unwritten = deltas;
+      EntityManager em = emf.createEntityManager();
+      EntityTransaction et = em.getTransaction();
+      try {
+        Map<Class<?>, Long> missing = new LinkedHashMap<>();
+        et.begin();
+        Query query = em.createNativeQuery(update);
+        for (Map.Entry<Class<?>, Long> entry : deltas.entrySet()) {
+          query.setParameter(1, entry.getKey().getName());
+          query.setParameter(2, entry.getValue());
+          if (query.executeUpdate() == 0) {
+            missing.put(entry.getKey(), entry.getValue());
+          }
+        }
+        et.commit();
+        unwritten = new LinkedHashMap<>(missing);
+        for (Map.Entry<Class<?>, Long> entry : missing.entrySet()) {
+          String name = entry.getKey().getName();
+          try {
+            execute(em, "INSERT INTO " + t + " (entity, version) VALUES (?1, ?2)", name, entry.getValue());
+          } catch (Exception ex) {
+            execute(em, update, name, entry.getValue());
+          }
+          unwritten.remove(entry.getKey());
+        }
+      } catch (Exception ex) {
+        Logger.error(clazz, t, unwritten.keySet(), ex.getMessage());
+        for (Map.Entry<Class<?>, Long> entry : unwritten.entrySet()) {
+          pending.get(entry.getKey()).addAndGet(entry.getValue());
+        }
+      } finally {
+        if (et.isActive()) {
+          et.rollback();
+        }
+        em.close();
+      }
+    }
+  }
+
+  /**
+   * Retourne la version en mémoire d'une classe-entité.
+   *
+   * @param cl une classe entité managée par JPA
+   * @return le nombre d'écritures comptées depuis le démarrage
+   */
+  public long getVersion(Class<?> cl) {
+    AtomicLong v = versions.get(cl);
+    return (v == null) ? 0 : v.get();
+  }
+
+  /**
+   * Retourne un jeton de version pour une ou plusieurs classes-entités, par
+   * exemple "kq3x1a2b-12.0.5" (en mémoire) ou "12.0.5" (table des versions).
+   *
+   * @param emf     la fabrique d'entity-managers de la BD (pour la table des versions)
+   * @param classes une ou plusieurs classes entités managées par JPA
+   * @return le jeton de version de ces classes-entités
+   */
+  public String getToken(EntityManagerFactory emf, Class<?>... classes) {
+    StringBuilder sb = new StringBuilder();
+    String t = table;
+    if (t == null) {
+      sb.append(epoch).append('-');
+      for (int i = 0; i < classes.length; i++) {
+        sb.append(i > 0 ? "." : "").append(getVersion(classes[i]));
+      }
+    } else {
+      EntityManager em = emf.createEntityManager();
+      try {
+        Query query = em.createNativeQuery("SELECT version FROM " + t + " WHERE entity = ?1");
+        for (int i = 0; i < classes.length; i++) {
+          query.setParameter(1, classes[i].getName());
+          List<?> rows = query.getResultList();
+          sb.append(i > 0 ? "." : "").append(rows.isEmpty() ? 0 : ((Number) rows.get(0)).longValue());
+        }
+      } finally {
+        em.close();
+      }
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,155 @@
+package ch.emf.dao.helpers;
+
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.persistence.OneToOne;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+
+/**
+ * Classe de méthodes statiques d'aide pour ordonner des classes-entités selon
+ * leurs clés étrangères (ManyToOne, OneToOne), afin d'écrire les objets parents
+ * avant les objets enfants.
+ *
+ * @author jcstritt
+ *
+ * @hidden
+ */
+public class EntityGraph {
+
+  /**
+   * Retourne les classes-entités qui sont référencées par une classe-entité
+   * (sans la classe elle-même pour une relation récursive).
+   *
+   * @param ei les informations d'une classe-entité
+   * @return l'ensemble des classes-entités référencées
+   */
+  public static Set<Class<?>> getDependencies(EntityInfo ei) {
+    Set<Class<?>> deps = new LinkedHashSet<>();
+    for (ColumnInfo c : ei.getColumns()) {
+      Class<?> ref = c.getRefClass();
+      if (ref != null && ref != ei.getEntityClass()) {
+        deps.add(ref);
+      }
+    }
+    return deps;
+  }
+
+  /**
+   * Retourne les attributs d'une classe-entité qui référencent un autre objet
+   * par une clé étrangère, d'après le métamodèle JPA (ManyToOne et OneToOne
+   * propriétaire de la relation, c'est-à-dire sans "mappedBy").
+   *
+   * @param mm le métamodèle de l'unité de persistance (em.getMetamodel())
+   * @param cl une classe entité managée par JPA
+   * @return la liste des attributs de référence (rendus accessibles)
+   */
+  public static List<Field> getReferenceFields(Metamodel mm, Class<?> cl) {
+    List<Field> fields = new ArrayList<>();
+    EntityType<?> et = mm.entity(cl);
+    for (SingularAttribute<?, ?> sa : et.getSingularAttributes()) {
+      Attribute.PersistentAttributeType pat = sa.getPersistentAttributeType();
+      if (pat == Attribute.PersistentAttributeType.MANY_TO_ONE || pat == Attribute.PersistentAttributeType.ONE_TO_ONE) {
+        Field f = (sa.getJavaMember() instanceof Field) ? (Field) sa.getJavaMember() : new EntityInfo(cl).findField(sa.getName());
+        if (f != null) {
+          OneToOne oto = f.getAnnotation(OneToOne.class);
+          if (oto == null || oto.mappedBy().isEmpty()) {
+            f.setAccessible(true);
+            fields.add(f);
+          }
+        }
+      }
+    }
+    return fields;
+  }
+
+  /**
+   * Ordonne des classes-entités par niveaux d'après le métamodèle JPA : une
+   * classe d'un niveau ne dépend que de classes des niveaux précédents (ou de
+   * classes hors de la liste). Une relation récursive est ignorée.
+   *
+   * @param mm le métamodèle de l'unité de persistance (em.getMetamodel())
+   * @param classes les classes-entités à ordonner
+   * @return la liste des niveaux (parents d'abord)
+   * @throws JpaException si les clés étrangères forment un cycle
+   */
+  public static List<List<Class<?>>> levels(Metamodel mm, Collection<Class<?>> classes) throws JpaException {
+    Map<Class<?>, Set<Class<?>>> deps = new LinkedHashMap<>();
+    for (Class<?> cl : classes) {
+      Set<Class<?>> refs = new LinkedHashSet<>();
+      for (Field f : getReferenceFields(mm, cl)) {
+        if (f.getType() != cl) {
+          refs.add(f.getType());
+        }
+      }
+      deps.put(cl, refs);
+    }
+    return levels(deps);
+  }
+
+  /**
+   * Ordonne des classes-entités par niveaux : une classe d'un niveau ne dépend
+   * que de classes des niveaux précédents (ou de classes hors de la liste).
+   * Les classes d'un même niveau peuvent donc être écrites en parallèle.
+   *
+   * @param classes les classes-entités à ordonner
+   * @return la liste des niveaux (parents d'abord)
+   * @throws JpaException si les clés étrangères forment un cycle
+   */
+  public static List<List<Class<?>>> levels(Collection<Class<?>> classes) throws JpaException {
+    Map<Class<?>, Set<Class<?>>> deps = new LinkedHashMap<>();
+    for (Class<?> cl : classes) {
+      deps.put(cl, getDependencies(new EntityInfo(cl)));
+    }
+    return levels(deps);
+  }
+
+  /**
+   * Méthode privée pour ordonner des classes-entités par niveaux (tri
+   * topologique) à partir de leurs dépendances.
+   */
+  private static List<List<Class<?>>> levels(Map<Class<?>, Set<Class<?>>> deps) throws JpaException {
+    Map<Class<?>, Set<Class<?>>> remaining = new LinkedHashMap<>();
+    for (Map.Entry<Class<?>, Set<Class<?>>> entry : deps.entrySet()) {
+      Set<Class<?>> d = new LinkedHashSet<>(entry.getValue());
+      d.retainAll(deps.keySet());
+      remaining.put(entry.getKey(), d);
+    }
+    List<List<Class<?>>> levels = new ArrayList<>();
+    while (!remaining.isEmpty()) {
+      List<Class<?>> level = new ArrayList<>();
+      for (Map.Entry<Class<?>, Set<Class<?>>> entry : remaining.entrySet()) {
+        if (entry.getValue().isEmpty()) {
+          level.add(entry.getKey());
+        }
+      }
+      if (level.isEmpty()) {
+        List<String> names = new ArrayList<>();
+        for (Class<?> cl : remaining.keySet()) {
+          names.add(cl.getSimpleName());
+        }
+        throw new JpaException(EntityGraph.class.getSimpleName(), "levels", "cycle between " + names);
+      }
+      for (Class<?> cl : level) {
+        remaining.remove(cl);
+      }
+      for (Set<Class<?>> d : remaining.values()) {
+        d.removeAll(level);
+      }
+      levels.add(level);
+    }
+    return levels;
+  }
+
+}
@@ -6,8 +6,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -66,50 +71,120 @@ public class ScriptHelper {
     return stringBuilder.toString();
   }
 
+  /**
+   * Ouvre un fichier de script SQL pour le lire en flux, une commande à la
+   * fois (voir SqlScriptReader). Le fichier est d'abord recherché dans les
+   * fichiers internes de l'application puis avec le chemin spécifié.
+   *
+   * @param sqlScriptFileName le nom d'un fichier de script (UTF-8)
+   * @param mysqlSyntax TRUE pour la syntaxe MySQL (échappement avec "\", commentaires "#")
+   * @return un lecteur de commandes SQL à fermer après usage
+   * @throws IOException l'exception levée si le fichier est introuvable
+   */
+  public static SqlScriptReader openSqlScript(String sqlScriptFileName, boolean mysqlSyntax) throws IOException {
+    ReadableByteChannel channel;
+    URL url = ClassLoader.getSystemResource(sqlScriptFileName);
+    if (url != null) {
+      channel = Channels.newChannel(url.openStream());
+    } else {
+      channel = FileChannel.open(Paths.get(sqlScriptFileName), StandardOpenOption.READ);
+    }
+    return new SqlScriptReader(channel, StandardCharsets.UTF_8, mysqlSyntax);
+  }
+
+  /**
+   * Remplace un ancien nom de BD par un nouveau dans une commande SQL de type
+   * "DROP SCHEMA", "CREATE SCHEMA" ou "USE" (les autres commandes sont retournées
+   * telles quelles).
+   *
+   * @param cmd une commande SQL
+   * @param oldDbName un ancien nom de BD contenu dans le script
+   * @param newDbName un nouveau nom de BD
+   * @return la commande SQL avec le nouveau nom de BD
+   */
+  public static String renameDb(String cmd, String oldDbName, String newDbName) {
+    String c = cmd.toUpperCase();
+    if (c.startsWith("DROP SCHEMA ")
+            || c.startsWith("CREATE SCHEMA ")
+            || c.startsWith("USE ")) {
+      return cmd.replaceAll(oldDbName, newDbName);
+    }
+    return cmd;
+  }
+
   /**
    * Depuis un fichier de script, lit toutes les commandes SQL dans une liste.
-   * Le fichier doit être de type UTF-8. Les retours à la ligne sont supprimés.
+   * Le fichier doit être de type UTF-8. Les retours à la ligne sont remplacés
+   * par un espace et les commentaires sont supprimés (voir SqlScriptReader).
    * Le fichier peut être dans les ressources de l'application ou en dehors.
+   * La syntaxe MySQL (échappement avec "\", commentaires "#", "/*! *&#47;"
+   * et commande "DELIMITER") n'est reconnue qu'avec le dialecte MySQL.
    *
    * @param sqlScriptFileName le nom d'un fichier de script
+   * @param dialect le dialecte SQL de la BD cible
    * @return une liste de String contenant toutes les commandes SQL
    */
-  public static List<String> readSqlScriptFile(String sqlScriptFileName) {
+  public static List<String> readSqlScriptFile(String sqlScriptFileName, SqlDialect dialect) {
     List<String> cmdList = new ArrayList<>();
-    try {
-      String sql = readTextFile(sqlScriptFileName, "UTF-8", true, true);
-      String ls = System.getProperty("line.separator");
-      sql = sql.replace(ls, "");
-      String[] commands = sql.split(";");
-      cmdList = Arrays.asList(commands);
+    try (SqlScriptReader reader = openSqlScript(sqlScriptFileName, dialect == SqlDialect.MYSQL)) {
+      String sql;
+      while ((sql = reader.next()) != null) {
+        cmdList.add(sql);
+      }
     } catch (IOException ex) {
     }
     return cmdList;
   }
 
+  /**
+   * Depuis un fichier de script, lit toutes les commandes SQL dans une liste
+   * avec la syntaxe MySQL (dialecte par défaut de cette couche).
+   *
+   * @param sqlScriptFileName le nom d'un fichier de script
+   * @return une liste de String contenant toutes les commandes SQL
+   * @deprecated remplacée par readSqlScriptFile(String, SqlDialect)
+   */
+  @Deprecated
+  public static List<String> readSqlScriptFile(String sqlScriptFileName) {
+    return readSqlScriptFile(sqlScriptFileName, SqlDialect.MYSQL);
+  }
+
   /**
    * Idem à la méthode précédente, mais on peut spécifier une ancien nom de BD
    * qui sera modifié avec un nouveau nom. Ceci est utile pour créer un nouveau
    * nom de BD basé sur un ancien.
    *
    * @param sqlScriptFileName le nom d'un fichier de script
+   * @param dialect le dialecte SQL de la BD cible
    * @param oldDbName un ancien nom de BD contenu dans le script
    * @param newDbName un nouveau nom de BD
    * @return une liste de String contenant toutes les commandes SQL
    */
   public static List<String> readSqlScriptFile(String sqlScriptFileName,
+          SqlDialect dialect,
           String oldDbName,
           String newDbName) {
-    List<String> cmdList = readSqlScriptFile(sqlScriptFileName);
+    List<String> cmdList = readSqlScriptFile(sqlScriptFileName, dialect);
     for (int i = 0; i < cmdList.size(); i++) {
-      String cmd = cmdList.get(i);
-      String c = cmd.toUpperCase();
-      if (c.startsWith("DROP SCHEMA ")
-              || c.startsWith("CREATE SCHEMA ")
-              || c.startsWith("USE ")) {
-        cmdList.set(i, cmd.replaceAll(oldDbName, newDbName));
-      }
+      cmdList.set(i, renameDb(cmdList.get(i), oldDbName, newDbName));
     }
     return cmdList;
   }
+
+  /**
+   * Idem à la méthode précédente, avec la syntaxe MySQL (dialecte par défaut
+   * de cette couche).
+   *
+   * @param sqlScriptFileName le nom d'un fichier de script
+   * @param oldDbName un ancien nom de BD contenu dans le script
+   * @param newDbName un nouveau nom de BD
+   * @return une liste de String contenant toutes les commandes SQL
+   * @deprecated remplacée par readSqlScriptFile(String, SqlDialect, String, String)
+   */
+  @Deprecated
+  public static List<String> readSqlScriptFile(String sqlScriptFileName,
+          String oldDbName,
+          String newDbName) {
+    return readSqlScriptFile(sqlScriptFileName, SqlDialect.MYSQL, oldDbName, newDbName);
+  }
 }
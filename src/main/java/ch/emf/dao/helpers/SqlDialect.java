@@ -0,0 +1,337 @@
+package ch.emf.dao.helpers;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Dialectes SQL reconnus par la couche DAO pour les requêtes natives
+ * qui ne peuvent pas être exprimées en JPQL (par exemple un "upsert").
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public enum SqlDialect {
+  MYSQL, H2, STANDARD;
+
+  /**
+   * Retrouve le dialecte d'une BD à partir de son URL JDBC.
+   *
+   * @param url l'URL JDBC (ex: "jdbc:mysql://localhost:3306/parlement")
+   * @return le dialecte SQL correspondant (STANDARD si inconnu)
+   */
+  public static SqlDialect fromUrl(String url) {
+    SqlDialect result = STANDARD;
+    String u = (url == null) ? "" : url.toLowerCase();
+    if (u.startsWith("jdbc:mysql:") || u.startsWith("jdbc:mariadb:")) {
+      result = MYSQL;
+    } else if (u.startsWith("jdbc:h2:")) {
+      result = H2;
+    }
+    return result;
+  }
+
+  /**
+   * Teste si un nom de table ou de colonne ne contient que des lettres, des
+   * chiffres, "_", "$" ou "." (pas d'injection SQL).
+   *
+   * @param name le nom à tester
+   * @return true si le nom peut être inséré tel quel dans une requête SQL
+   */
+  public static boolean isSqlName(String name) {
+    return name != null && name.matches("[A-Za-z_][A-Za-z0-9_.$]*");
+  }
+
+  /**
+   * Adapte une valeur JDBC au dialecte avant de la lier à un paramètre.
+   * Avec MySQL et H2, un booléen est transmis avec 1 ou 0, car les colonnes
+   * booléennes sont souvent des TINYINT et les lignes d'un "VALUES" ne sont
+   * pas typées.
+   *
+   * @param value une valeur JDBC
+   * @return la valeur adaptée au dialecte
+   */
+  public Object toParam(Object value) {
+    Object result = value;
+    if (value instanceof Boolean && this != STANDARD) {
+      result = ((Boolean) value) ? 1 : 0;
+    }
+    return result;
+  }
+
+  /**
+   * Retourne TRUE si le dialecte dispose d'un chargement natif de fichiers
+   * délimités (LOAD DATA avec MySQL, CSVREAD avec H2).
+   *
+   * @return true or false
+   */
+  public boolean hasBulkLoad() {
+    return this != STANDARD;
+  }
+
+  /**
+   * Convertit une valeur JDBC en champ d'un fichier délimité (virgules) prêt
+   * pour le chargement natif : NULL est écrit avec \N, un texte est placé entre
+   * guillemets (guillemets doublés) et, pour MySQL, la barre oblique inverse
+   * est doublée.
+   *
+   * @param value une valeur JDBC
+   * @return le champ à écrire dans le fichier
+   */
+  public String toCsvField(Object value) {
+    String result;
+    Object v = toParam(value);
+    if (v == null) {
+      result = "\\N";
+    } else if (v instanceof Number) {
+      result = (v instanceof BigDecimal) ? ((BigDecimal) v).toPlainString() : v.toString();
+    } else {
+      String s = v.toString();
+      if (this == MYSQL) {
+        s = s.replace("\\", "\\\\");
+      }
+      result = "\"" + s.replace("\"", "\"\"") + "\"";
+    }
+    return result;
+  }
+
+  /**
+   * Construit la requête native qui charge un fichier délimité (virgules,
+   * textes entre guillemets, sans ligne d'en-tête) dans une table.
+   *
+   * @param table le nom de la table
+   * @param path  le chemin absolu du fichier
+   * @param cols  les noms des colonnes (dans l'ordre des champs du fichier)
+   * @return une requête SQL native ou null si le dialecte n'a pas de chargement natif
+   */
+  public String buildBulkLoad(String table, String path, List<String> cols) {
+    String result = null;
+    String file = path.replace('\\', '/').replace("'", "''");
+    if (this == MYSQL) {
+      result = "LOAD DATA LOCAL INFILE '" + file + "' INTO TABLE " + table
+              + " CHARACTER SET utf8mb4 FIELDS TERMINATED BY ',' OPTIONALLY ENCLOSED BY '\"'"
+              + " LINES TERMINATED BY '\\n' (" + String.join(", ", cols) + ")";
+    } else if (this == H2) {
+      result = "INSERT INTO " + table + " (" + String.join(", ", cols) + ") SELECT * FROM CSVREAD('"
+              + file + "', '" + String.join(",", cols) + "', 'charset=UTF-8 fieldSeparator=, null=\\\\N')"; // \ doit être échappé dans les options de CSVREAD
+    }
+    return result;
+  }
+
+  /**
+   * Retourne les requêtes natives qui suspendent (ou rétablissent) le contrôle
+   * des clés étrangères et des index uniques pendant un chargement. Seules des
+   * variables de session MySQL sont utilisées : elles ne valident pas la
+   * transaction en cours (contrairement à un "ALTER TABLE ... DISABLE KEYS")
+   * et ne concernent pas les autres connexions. Avec H2, le seul réglage
+   * disponible (REFERENTIAL_INTEGRITY) vaut pour toute la BD, demande les
+   * droits d'administration et valide la transaction : il n'est pas utilisé.
+   *
+   * @param table le nom de la table chargée
+   * @param on    TRUE pour suspendre les contrôles, FALSE pour les rétablir
+   * @return la liste des requêtes (vide si le dialecte n'en a pas)
+   */
+  public List<String> buildBulkMode(String table, boolean on) {
+    List<String> sql = new ArrayList<>();
+    if (this == MYSQL) {
+      sql.add(buildForeignKeyChecks(!on));
+      sql.add("SET UNIQUE_CHECKS=" + (on ? 0 : 1));
+    }
+    return sql;
+  }
+
+  /**
+   * Retourne la taille de lecture ("fetch size") à donner à une requête JDBC
+   * (TYPE_FORWARD_ONLY, CONCUR_READ_ONLY) pour lire un grand résultat en flux.
+   * Avec MySQL (Connector/J), une taille positive est ignorée sans l'option
+   * "useCursorFetch=true" et tout le résultat serait lu en mémoire : la valeur
+   * Integer.MIN_VALUE demande une lecture ligne par ligne. Aucune autre
+   * requête ne peut alors être envoyée sur la connexion avant la fermeture
+   * du résultat.
+   *
+   * @param rows le nombre de lignes souhaité par lecture
+   * @return la taille de lecture à utiliser
+   */
+  public int getStreamingFetchSize(int rows) {
+    return (this == MYSQL) ? Integer.MIN_VALUE : rows;
+  }
+
+  /**
+   * Construit la requête native qui active ou désactive le contrôle des clés
+   * étrangères (pour la session avec MySQL, pour toute la BD avec H2).
+   *
+   * @param enabled TRUE pour activer le contrôle, FALSE pour le désactiver
+   * @return une requête SQL native ou null si le dialecte n'en a pas
+   */
+  public String buildForeignKeyChecks(boolean enabled) {
+    String result = null;
+    if (this == MYSQL) {
+      result = "SET FOREIGN_KEY_CHECKS=" + (enabled ? 1 : 0);
+    } else if (this == H2) {
+      result = "SET REFERENTIAL_INTEGRITY " + (enabled ? "TRUE" : "FALSE");
+    }
+    return result;
+  }
+
+  /**
+   * Construit la requête native qui vide une table avec TRUNCATE, compteur
+   * IDENTITY compris (le contrôle des clés étrangères doit être désactivé
+   * si la table est référencée).
+   *
+   * @param table le nom de la table
+   * @return une requête SQL native ou null si le dialecte n'en a pas (DELETE)
+   */
+  public String buildTruncate(String table) {
+    String result = null;
+    if (this == MYSQL) {
+      result = "TRUNCATE TABLE " + table;
+    } else if (this == H2) {
+      result = "TRUNCATE TABLE " + table + " RESTART IDENTITY";
+    }
+    return result;
+  }
+
+  /**
+   * Construit la requête native qui efface au plus "limit" lignes d'une table
+   * (pour effacer une grande quantité de lignes par petits lots). Avec MySQL
+   * et H2, la requête utilise LIMIT. Sinon, les lignes du lot sont choisies
+   * dans l'ordre de la PK avec une sous-requête "FETCH FIRST" (SQL:2008) et,
+   * sans PK connue, toutes les lignes sont effacées en une fois.
+   *
+   * @param table le nom de la table
+   * @param pkCol le nom de la colonne de la PK (ou null si inconnue)
+   * @param where la condition (sans "WHERE"), avec d'éventuels paramètres "?"
+   * @param limit le nombre maximum de lignes effacées
+   * @return une requête SQL native
+   */
+  public String buildDeleteLimit(String table, String pkCol, String where, int limit) {
+    String result = "DELETE FROM " + table + " WHERE ";
+    if (this != STANDARD) {
+      result += where + " LIMIT " + limit;
+    } else if (pkCol != null) {
+      result += pkCol + " IN (SELECT " + pkCol + " FROM " + table + " WHERE " + where
+              + " ORDER BY " + pkCol + " FETCH FIRST " + limit + " ROWS ONLY)";
+    } else {
+      result += where;
+    }
+    return result;
+  }
+
+  /**
+   * Construit la requête native qui crée une table vide avec les mêmes
+   * colonnes qu'une autre table (si elle n'existe pas encore), par exemple
+   * une table d'archive. Avec MySQL, les index sont aussi repris.
+   *
+   * @param newTable le nom de la table à créer
+   * @param table    le nom de la table modèle
+   * @return une requête SQL native
+   */
+  public String buildCreateTableLike(String newTable, String table) {
+    String result;
+    if (this == MYSQL) {
+      result = "CREATE TABLE IF NOT EXISTS " + newTable + " LIKE " + table;
+    } else {
+      result = "CREATE TABLE IF NOT EXISTS " + newTable + " AS SELECT * FROM " + table + " WHERE 1=0";
+    }
+    return result;
+  }
+
+  /**
+   * Construit la requête native qui fixe la prochaine valeur d'une PK générée
+   * par la BD (IDENTITY), par exemple après le chargement de lignes avec
+   * leurs PK.
+   *
+   * @param table le nom de la table
+   * @param pkCol le nom de la colonne de la PK
+   * @param next  la prochaine valeur à générer
+   * @return une requête SQL native
+   */
+  public String buildIdentityRestart(String table, String pkCol, long next) {
+    String result;
+    if (this == MYSQL) {
+      result = "ALTER TABLE " + table + " AUTO_INCREMENT = " + next;
+    } else {
+      result = "ALTER TABLE " + table + " ALTER COLUMN " + pkCol + " RESTART WITH " + next;
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour construire "nb" lignes de paramètres "(?, ?, ...)".
+   */
+  private static String buildRows(int nbCols, int nbRows) {
+    StringBuilder row = new StringBuilder("(");
+    for (int i = 0; i < nbCols; i++) {
+      row.append(i > 0 ? ", ?" : "?");
+    }
+    row.append(")");
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < nbRows; i++) {
+      sb.append(i > 0 ? ", " : "").append(row);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Construit une requête native d'"upsert" pour plusieurs lignes : une ligne
+   * dont la PK existe déjà est modifiée, sinon elle est ajoutée. Avec MySQL,
+   * c'est un "INSERT ... AS new ON DUPLICATE KEY UPDATE" (alias de ligne,
+   * MySQL 8.0.19+, qui remplace la fonction VALUES() dépréciée), sinon un
+   * "MERGE" standard. La colonne de version éventuelle est incrémentée lors
+   * d'une modification, les colonnes non modifiables ne sont pas modifiées.
+   *
+   * @param table      le nom de la table
+   * @param cols       les noms des colonnes (dans l'ordre des paramètres d'une ligne)
+   * @param pkCol      le nom de la colonne de la PK
+   * @param versionCol le nom de la colonne de version ou null
+   * @param fixedCols  les noms des colonnes non modifiables (updatable=false)
+   * @param nbRows     le nombre de lignes de la requête
+   * @return une requête SQL native avec des paramètres "?"
+   */
+  public String buildUpsert(String table, List<String> cols, String pkCol, String versionCol,
+          Collection<String> fixedCols, int nbRows) {
+    StringBuilder sb = new StringBuilder();
+    String sep = "";
+    if (this == MYSQL) {
+      sb.append("INSERT INTO ").append(table).append(" (").append(String.join(", ", cols)).append(") VALUES ");
+      sb.append(buildRows(cols.size(), nbRows)).append(" AS new ON DUPLICATE KEY UPDATE ");
+      for (String c : cols) {
+        if (c.equals(pkCol) || fixedCols.contains(c)) {
+          continue;
+        }
+        sb.append(sep).append(c).append("=");
+        if (c.equals(versionCol)) {
+          sb.append(c).append("+1");
+        } else {
+          sb.append("new.").append(c);
+        }
+        sep = ", ";
+      }
+      if (sep.isEmpty()) {
+        sb.append(pkCol).append("=").append(pkCol);
+      }
+    } else {
+      sb.append("MERGE INTO ").append(table).append(" t USING (VALUES ").append(buildRows(cols.size(), nbRows));
+      sb.append(") s (").append(String.join(", ", cols)).append(") ON t.").append(pkCol).append("=s.").append(pkCol);
+      for (String c : cols) {
+        if (c.equals(pkCol) || fixedCols.contains(c)) {
+          continue;
+        }
+        sb.append(sep.isEmpty() ? " WHEN MATCHED THEN UPDATE SET " : sep).append(c).append("=");
+        sb.append(c.equals(versionCol) ? "t." + c + "+1" : "s." + c);
+        sep = ", ";
+      }
+      sb.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", cols)).append(") VALUES (");
+      sep = "";
+      for (String c : cols) {
+        sb.append(sep).append("s.").append(c);
+        sep = ", ";
+      }
+      sb.append(")");
+    }
+    return sb.toString();
+  }
+
+}
@@ -0,0 +1,285 @@
+package ch.emf.dao.helpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Lecture en flux des commandes d'un script SQL, une commande à la fois. Le
+ * script est lu par blocs depuis un canal NIO : la mémoire utilisée ne dépend
+ * que de la taille de la plus longue commande, pas de celle du fichier.<br>
+ * <br>
+ * L'analyse reconnaît :<br>
+ * - les textes entre apostrophes, guillemets ou accents graves (un
+ * séparateur ou un commentaire y est ignoré); <br>
+ * - les commentaires de ligne ("-- " et, en syntaxe MySQL, "#"); <br>
+ * - les commentaires de bloc ("/* ... *&#47;"), sauf les commentaires
+ * conditionnels de MySQL ("/*! ... *&#47;") qui sont conservés; <br>
+ * - la commande "DELIMITER" des scripts MySQL (procédures stockées). <br>
+ * Les sauts de ligne en dehors des textes sont remplacés par un espace.
+ *
+ * @author jcstritt
+ *
+ * @hidden
+ */
+public class SqlScriptReader implements Closeable {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int EOF = -1;
+
+  private final Reader reader;
+  private final boolean mysqlSyntax;
+  private final char[] buf;
+  private final StringBuilder sb;
+  private int pos;
+  private int len;
+  private String delimiter;
+  private long lineNumber;
+  private long statementCount;
+
+  /**
+   * Constructeur.
+   *
+   * @param channel     le canal de lecture du script
+   * @param charset     l'encodage du script (normalement UTF-8)
+   * @param mysqlSyntax TRUE pour la syntaxe MySQL (échappement avec "\",
+   *                    commentaires "#" et "/*! *&#47;")
+   */
+  public SqlScriptReader(ReadableByteChannel channel, Charset charset, boolean mysqlSyntax) {
+    this.reader = Channels.newReader(channel, charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE), BUFFER_SIZE);
+    this.mysqlSyntax = mysqlSyntax;
+    this.buf = new char[BUFFER_SIZE];
+    this.sb = new StringBuilder();
+    this.pos = 0;
+    this.len = 0;
+    this.delimiter = ";";
+    this.lineNumber = 1;
+    this.statementCount = 0;
+  }
+
+  /**
+   * Retourne le numéro de la ligne en cours de lecture dans le script.
+   *
+   * @return le numéro de la ligne courante
+   */
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * Retourne le nombre de commandes déjà lues dans le script.
+   *
+   * @return le nombre de commandes lues
+   */
+  public long getStatementCount() {
+    return statementCount;
+  }
+
+  /**
+   * Méthode privée pour lire le caractère suivant (ou EOF).
+   */
+  private int read() throws IOException {
+    if (pos >= len && !fill()) {
+      return EOF;
+    }
+    char c = buf[pos++];
+    if (c == '\n') {
+      lineNumber++;
+    }
+    return c;
+  }
+
+  /**
+   * Méthode privée pour consulter le caractère suivant sans le lire (ou EOF).
+   */
+  private int peek() throws IOException {
+    if (pos >= len && !fill()) {
+      return EOF;
+    }
+    return buf[pos];
+  }
+
+  /**
+   * Méthode privée pour remplir le tampon de lecture.
+   */
+  private boolean fill() throws IOException {
+    len = reader.read(buf, 0, buf.length);
+    pos = 0;
+    if (len <= 0) {
+      len = 0;
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Méthode privée pour ajouter un espace (un seul entre deux mots).
+   */
+  private void appendSpace() {
+    int n = sb.length();
+    if (n > 0 && sb.charAt(n - 1) != ' ') {
+      sb.append(' ');
+    }
+  }
+
+  /**
+   * Méthode privée pour lire un texte entre délimiteurs jusqu'au délimiteur
+   * de fin (un délimiteur doublé ou, en syntaxe MySQL, précédé de "\" fait
+   * partie du texte).
+   */
+  private void readQuoted(char q) throws IOException {
+    sb.append(q);
+    int c;
+    while ((c = read()) != EOF) {
+      sb.append((char) c);
+      if (c == '\\' && mysqlSyntax && q != '`') {
+        c = read();
+        if (c == EOF) {
+          break;
+        }
+        sb.append((char) c);
+      } else if (c == q) {
+        if (peek() == q) {
+          sb.append((char) read());
+        } else {
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Méthode privée pour sauter la fin d'une ligne de commentaire.
+   */
+  private void skipLine() throws IOException {
+    int c;
+    do {
+      c = read();
+    } while (c != EOF && c != '\n');
+    appendSpace();
+  }
+
+  /**
+   * Méthode privée pour lire un commentaire de bloc (le "/*" est déjà lu).
+   * Un commentaire conditionnel de MySQL est conservé dans la commande.
+   */
+  private void readBlockComment() throws IOException {
+    boolean keep = mysqlSyntax && peek() == '!';
+    if (keep) {
+      sb.append("/*");
+    }
+    int prev = 0;
+    int c;
+    while ((c = read()) != EOF) {
+      if (keep) {
+        sb.append((c == '\n' || c == '\r') ? ' ' : (char) c);
+      }
+      if (prev == '*' && c == '/') {
+        break;
+      }
+      prev = c;
+    }
+    appendSpace();
+  }
+
+  /**
+   * Méthode privée pour traiter une commande "DELIMITER" d'un script MySQL
+   * (la commande est alors complète à la fin de la ligne).
+   */
+  private boolean isDelimiterCommand() {
+    String s = sb.toString().trim();
+    if (s.length() > 10 && s.regionMatches(true, 0, "DELIMITER ", 0, 10)) {
+      delimiter = s.substring(10).trim();
+      sb.setLength(0);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Méthode privée pour tester si la commande se termine par le délimiteur.
+   */
+  private boolean endsWithDelimiter() {
+    int n = sb.length();
+    int d = delimiter.length();
+    if (n < d) {
+      return false;
+    }
+    for (int i = 0; i < d; i++) {
+      if (sb.charAt(n - d + i) != delimiter.charAt(i)) {
+        return false;
+      }
+    }
+    sb.setLength(n - d);
+    return true;
+  }
+
+  /**
+   * Lit la commande SQL suivante du script (sans le délimiteur final).
+   * Les commandes vides (par exemple un commentaire seul) sont ignorées.
+   *
+   * @return la commande suivante ou null à la fin du script
+   * @throws IOException une erreur de lecture du script
+   */
+  public String next() throws IOException {
+    sb.setLength(0);
+    int c;
+    while ((c = read()) != EOF) {
+      if (c == '\'' || c == '"' || c == '`') {
+        readQuoted((char) c);
+      } else if (c == '-' && peek() == '-') {
+        read();
+        int n = peek();
+        if (n == ' ' || n == '\t' || n == '\r' || n == '\n' || n == EOF) {
+          skipLine();
+        } else {
+          sb.append("--");
+        }
+      } else if (c == '#' && mysqlSyntax) {
+        skipLine();
+      } else if (c == '/' && peek() == '*') {
+        read();
+        readBlockComment();
+      } else if (c == '\n' || c == '\r' || c == '\t') {
+        if (c == '\n' && mysqlSyntax && isDelimiterCommand()) {
+          continue;
+        }
+        appendSpace();
+      } else {
+        if (c == ' ' && sb.length() == 0) {
+          continue;
+        }
+        sb.append((char) c);
+        if (endsWithDelimiter()) {
+          String sql = sb.toString().trim();
+          if (!sql.isEmpty()) {
+            statementCount++;
+            return sql;
+          }
+          sb.setLength(0);
+        }
+      }
+    }
+    if (mysqlSyntax) {
+      isDelimiterCommand();
+    }
+    String sql = sb.toString().trim();
+    sb.setLength(0);
+    if (sql.isEmpty()) {
+      return null;
+    }
+    statementCount++;
+    return sql;
+  }
+
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+}
@@ -0,0 +1,42 @@
+package ch.emf.dao.io;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Annotation qui associe un attribut d'une classe-entité à une colonne d'un
+ * fichier CSV (voir CsvImporter.annotationMapper).<br>
+ * <br>
+ * Exemple :<br>
+ * <pre>
+ *   &#64;CsvColumn(1)
+ *   private String prenom;
+ *
+ *   &#64;CsvColumn(value = 19, format = "yyyy-MM-dd")
+ *   private Date dateNaissance;
+ * </pre>
+ *
+ * @author jcstritt
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface CsvColumn {
+
+  /**
+   * L'indice de la colonne dans une ligne du fichier (0 pour la 1ère colonne).
+   *
+   * @return l'indice de la colonne
+   */
+  int value();
+
+  /**
+   * Le format d'une date (DateTimeFormatter) ou, pour un booléen, le texte
+   * de la valeur vraie (par défaut "true", "1", "VRAI" ou "oui").
+   *
+   * @return le format de la colonne
+   */
+  String format() default "";
+
+}
@@ -0,0 +1,462 @@
+package ch.emf.dao.io;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.bulk.JdbcBatchWriter;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.BulkReport;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Importation rapide d'un fichier CSV dans une table. Le fichier est découpé
+ * en lots de lignes complètes (environ 4 Mo par défaut), chaque lot est
+ * projeté en mémoire (NIO) puis analysé en parallèle sur un pool "fork-join".
+ * Les champs d'une ligne sont repérés sans copie (voir CsvRow) et convertis en
+ * objet par une fonction de correspondance : une lambda ou les annotations
+ * CsvColumn de la classe-entité (voir annotationMapper).<br>
+ * <br>
+ * Les lots analysés sont écrits dans l'ordre du fichier, par défaut avec
+ * JdbcBatchWriter. Le nombre de lots en cours d'analyse est borné (voir
+ * setQueueCapacity) : la lecture avance au rythme de l'écriture dans la BD et
+ * la mémoire utilisée ne dépend pas de la taille du fichier.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   CsvImporter importer = new CsvImporter(dao);
+ *   importer.setSkipLines(1);
+ *   BulkReport report = importer.importFile(file, Canton.class,
+ *     row -&gt; new Canton(row.getString(0), row.getString(1)));
+ * </pre>
+ * <br>
+ * Un texte entre guillemets peut contenir des sauts de ligne (RFC 4180) :
+ * les limites des lots sont trouvées en un seul passage séquentiel sur les
+ * octets du fichier, qui suit les guillemets pour ne couper qu'à la fin d'un
+ * enregistrement.<br>
+ * <br>
+ * Attention, le jeu de caractères doit coder le saut de ligne, le séparateur
+ * et le guillemet sur un seul octet (UTF-8, ISO-8859-1, windows-1252, ...).
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - CsvRow
+ * @depend - - - JdbcBatchWriter
+ */
+public class CsvImporter {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private char separator;
+  private char quote;
+  private Charset charset;
+  private int skipLines;
+  private int chunkSize;
+  private int parallelism;
+  private int queueCapacity;
+
+  private static final int FIELD_START = 0;
+  private static final int UNQUOTED = 1;
+  private static final int QUOTED = 2;
+  private static final int QUOTE_IN_QUOTED = 3;
+  private static final int RECORD_END = 4;
+
+  /**
+   * Méthode privée pour mémoriser le résultat de l'analyse d'un lot.
+   */
+  private static class Chunk<E> {
+    private final List<E> items = new ArrayList<>();
+    private long failed = 0;
+  }
+
+  /**
+   * Constructeur.
+   *
+   * @param dao la couche DAO utilisée pour écrire les objets importés
+   */
+  public CsvImporter(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.separator = ';';
+    this.quote = '"';
+    this.charset = StandardCharsets.UTF_8;
+    this.skipLines = 0;
+    this.chunkSize = 4 * 1024 * 1024;
+    this.parallelism = Runtime.getRuntime().availableProcessors();
+    this.queueCapacity = 2 * parallelism;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public char getSeparator() {
+    return separator;
+  }
+
+  public void setSeparator(char separator) {
+    this.separator = separator;
+  }
+
+  public char getQuote() {
+    return quote;
+  }
+
+  public void setQuote(char quote) {
+    this.quote = quote;
+  }
+
+  public Charset getCharset() {
+    return charset;
+  }
+
+  public void setCharset(Charset charset) {
+    this.charset = charset;
+  }
+
+  public int getSkipLines() {
+    return skipLines;
+  }
+
+  /**
+   * Définit le nombre d'enregistrements à ignorer au début du fichier (lignes d'en-tête).
+   *
+   * @param skipLines le nombre de lignes d'en-tête
+   */
+  public void setSkipLines(int skipLines) {
+    this.skipLines = Math.max(0, skipLines);
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Définit la taille approximative d'un lot en octets (arrondie à la fin d'enregistrement suivante).
+   *
+   * @param chunkSize la taille d'un lot en octets
+   */
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1024, chunkSize);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public void setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Définit le nombre maximum de lots analysés en avance sur l'écriture.
+   *
+   * @param queueCapacity le nombre maximum de lots en attente
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = Math.max(1, queueCapacity);
+  }
+
+
+
+  /**
+   * Méthode privée pour avancer l'état de lecture d'un enregistrement d'un
+   * caractère (comme CsvRow.tokenize) : RECORD_END signale un saut de ligne
+   * en dehors d'un texte entre guillemets.
+   */
+  private int nextState(int state, int c) {
+    int result;
+    switch (state) {
+      case QUOTED:
+        result = (c == quote) ? QUOTE_IN_QUOTED : QUOTED;
+        break;
+      case QUOTE_IN_QUOTED:
+        if (c == quote) {
+          result = QUOTED; // guillemet doublé
+        } else {
+          result = (c == separator) ? FIELD_START : (c == '\n') ? RECORD_END : UNQUOTED;
+        }
+        break;
+      case UNQUOTED:
+        result = (c == separator) ? FIELD_START : (c == '\n') ? RECORD_END : UNQUOTED;
+        break;
+      default: // FIELD_START, RECORD_END
+        if (c == quote) {
+          result = QUOTED;
+        } else {
+          result = (c == separator) ? FIELD_START : (c == '\n') ? RECORD_END : UNQUOTED;
+        }
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour découper le fichier en lots d'enregistrements
+   * complets : chaque limite est avancée jusqu'après le saut de ligne suivant
+   * qui n'est pas dans un texte entre guillemets.
+   */
+  private List<long[]> findChunks(FileChannel ch) throws IOException {
+    List<long[]> chunks = new ArrayList<>();
+    long size = ch.size();
+    ByteBuffer bb = ByteBuffer.allocate(65536);
+    long start = 0;
+    long pos = 0;
+    int state = FIELD_START;
+    while (pos < size) {
+      bb.clear();
+      int n = ch.read(bb, pos);
+      if (n <= 0) {
+        break;
+      }
+      for (int i = 0; i < n; i++) {
+        state = nextState(state, bb.get(i) & 0xFF);
+        if (state == RECORD_END && pos + i + 1 - start >= chunkSize) {
+          chunks.add(new long[]{start, pos + i + 1});
+          start = pos + i + 1;
+        }
+      }
+      pos += n;
+    }
+    if (start < size) {
+      chunks.add(new long[]{start, size});
+    }
+    return chunks;
+  }
+
+  /**
+   * Méthode privée pour analyser un lot : projection en mémoire, décodage,
+   * découpage des lignes et conversion en objets.
+   */
+  private <E> Chunk<E> parseChunk(FileChannel ch, long[] bounds, boolean first, Function<CsvRow, E> mapper)
+          throws IOException {
+    Chunk<E> result = new Chunk<>();
+    MappedByteBuffer mbb = ch.map(FileChannel.MapMode.READ_ONLY, bounds[0], bounds[1] - bounds[0]);
+    CharBuffer cb = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE)
+            .decode(mbb);
+    char[] buf = cb.array();
+    int from = cb.arrayOffset();
+    int to = from + cb.limit();
+    if (first && to > from && buf[from] == '\uFEFF') {
+      from++; // BOM
+    }
+    CsvRow row = new CsvRow(separator, quote);
+    int skip = first ? skipLines : 0;
+    long line = 0;
+    int start = from;
+    while (start < to) {
+      int end = start;
+      int state = FIELD_START;
+      while (end < to && (state = nextState(state, buf[end])) != RECORD_END) {
+        end++;
+      }
+      line++;
+      if (skip > 0) {
+        skip--;
+      } else if (end > start && !(end - start == 1 && buf[start] == '\r')) {
+        row.tokenize(buf, start, end, line);
+        try {
+          E e = mapper.apply(row);
+          if (e != null) {
+            result.items.add(e);
+          } else {
+            result.failed++;
+          }
+        } catch (RuntimeException ex) {
+          result.failed++;
+          Logger.error(clazz, "offset " + bounds[0], row, ex.getMessage());
+        }
+      }
+      start = end + 1;
+    }
+    return result;
+  }
+
+  /**
+   * Importe un fichier CSV dans une table avec une fonction de correspondance
+   * et un destinataire spécifique pour les objets (par exemple
+   * dao::insertList ou NativeBulkLoader::load). Les lots sont transmis dans
+   * l'ordre du fichier, depuis le thread appelant.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param file le fichier CSV à importer
+   * @param cl la classe entité managée par JPA des objets importés
+   * @param mapper la fonction qui convertit une ligne en objet (null pour refuser la ligne)
+   * @param sink le destinataire des lots d'objets, retourne le nombre d'objets écrits
+   *
+   * @return un rapport avec les objets écrits, les lignes refusées, la durée et le débit
+   */
+  public <E> BulkReport importFile(File file, Class<E> cl, Function<CsvRow, E> mapper, Function<List<E>, Integer> sink) {
+    BulkReport report = new BulkReport();
+    report.setThreads(parallelism);
+    long start = System.currentTimeMillis();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      List<long[]> chunks = findChunks(ch);
+      Deque<Future<Chunk<E>>> pending = new ArrayDeque<>();
+      int next = 0;
+      while (next < chunks.size() || !pending.isEmpty()) {
+        while (next < chunks.size() && pending.size() < queueCapacity) {
+          long[] bounds = chunks.get(next);
+          boolean first = next == 0;
+          pending.add(pool.submit(() -> parseChunk(ch, bounds, first, mapper)));
+          next++;
+        }
+        Chunk<E> chunk = pending.poll().get();
+        int n = chunk.items.isEmpty() ? 0 : sink.apply(chunk.items);
+        report.addChunk(cl, n, chunk.failed + chunk.items.size() - n);
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, file.getName(), ex.getMessage());
+      report.abort(ex.getMessage());
+    } finally {
+      pool.shutdownNow();
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+  /**
+   * Importe un fichier CSV dans une table avec une fonction de correspondance.
+   * Les objets sont écrits lot par lot avec des requêtes "INSERT" JDBC (voir
+   * JdbcBatchWriter), une transaction par lot.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param file le fichier CSV à importer
+   * @param cl la classe entité managée par JPA des objets importés
+   * @param mapper la fonction qui convertit une ligne en objet (null pour refuser la ligne)
+   *
+   * @return un rapport avec les objets écrits, les lignes refusées, la durée et le débit
+   */
+  public <E> BulkReport importFile(File file, Class<E> cl, Function<CsvRow, E> mapper) {
+    JdbcBatchWriter writer = new JdbcBatchWriter(dao);
+    return importFile(file, cl, mapper, (List<E> list) -> writer.insert(cl, list));
+  }
+
+  /**
+   * Importe un fichier CSV dans une table avec les annotations CsvColumn de
+   * la classe-entité (voir annotationMapper).
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param file le fichier CSV à importer
+   * @param cl la classe entité managée par JPA des objets importés
+   *
+   * @return un rapport avec les objets écrits, les lignes refusées, la durée et le débit
+   */
+  public <E> BulkReport importFile(File file, Class<E> cl) {
+    return importFile(file, cl, annotationMapper(cl));
+  }
+
+  /**
+   * Méthode privée pour convertir un champ selon le type d'un attribut. Un
+   * champ incorrect lève une exception (la ligne est alors refusée).
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Object fieldValue(CsvRow row, int i, Class<?> type, String format) {
+    boolean empty = row.isEmpty(i);
+    Object value;
+    if (type == String.class) {
+      value = row.getString(i);
+    } else if (type == int.class) {
+      value = empty ? 0 : row.getInt(i);
+    } else if (type == long.class) {
+      value = empty ? 0L : row.getLong(i);
+    } else if (type == double.class) {
+      value = empty ? 0.0 : row.getDouble(i);
+    } else if (type == boolean.class || type == Boolean.class) {
+      if (format.isEmpty()) {
+        String s = row.getString(i);
+        value = s.equalsIgnoreCase("true") || s.equals("1") || s.equalsIgnoreCase("VRAI") || s.equalsIgnoreCase("oui");
+      } else {
+        value = row.getBoolean(i, format);
+      }
+      value = (empty && type == Boolean.class) ? null : value;
+    } else if (empty) {
+      value = null;
+    } else if (type == Integer.class) {
+      value = row.getInt(i);
+    } else if (type == Long.class) {
+      value = row.getLong(i);
+    } else if (type == Double.class) {
+      value = row.getDouble(i);
+    } else if (type == BigDecimal.class) {
+      value = row.getBigDecimal(i);
+    } else if (Date.class.isAssignableFrom(type)) {
+      value = row.getDate(i, format.isEmpty() ? "yyyy-MM-dd" : format);
+    } else if (type.isEnum()) {
+      value = Enum.valueOf((Class<Enum>) type, row.getString(i));
+    } else {
+      throw new IllegalArgumentException("unsupported type " + type.getSimpleName());
+    }
+    return value;
+  }
+
+  /**
+   * Construit une fonction de correspondance à partir des annotations
+   * CsvColumn des attributs d'une classe-entité. Les types supportés sont
+   * String, int, long, double, boolean (et leurs classes), BigDecimal, Date
+   * et les énumérations (par leur nom). Un champ vide donne null (ou 0 pour
+   * un type primitif) et un champ incorrect (par ex. "12a" pour un entier,
+   * une valeur hors limites ou une date mal formée) fait refuser la ligne.
+   * La classe-entité doit avoir un constructeur sans paramètre.
+   *
+   * @param <E> un type générique pour une classe-entité
+   * @param cl une classe-entité avec des attributs annotés CsvColumn
+   *
+   * @return une fonction qui convertit une ligne en objet
+   */
+  public static <E> Function<CsvRow, E> annotationMapper(Class<E> cl) {
+    List<Field> fields = new ArrayList<>();
+    for (Class<?> c = cl; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field f : c.getDeclaredFields()) {
+        if (f.isAnnotationPresent(CsvColumn.class)) {
+          f.setAccessible(true);
+          fields.add(f);
+        }
+      }
+    }
+    Constructor<E> constructor;
+    try {
+      constructor = cl.getDeclaredConstructor();
+      constructor.setAccessible(true);
+    } catch (NoSuchMethodException ex) {
+      throw new IllegalArgumentException(cl.getSimpleName() + " has no default constructor");
+    }
+    return row -> {
+      try {
+        E e = constructor.newInstance();
+        for (Field f : fields) {
+          CsvColumn col = f.getAnnotation(CsvColumn.class);
+          f.set(e, fieldValue(row, col.value(), f.getType(), col.format()));
+        }
+        return e;
+      } catch (ReflectiveOperationException ex) {
+        throw new IllegalStateException(ex.getMessage(), ex);
+      }
+    };
+  }
+
+}
@@ -0,0 +1,362 @@
+package ch.emf.dao.io;
+
+import java.math.BigDecimal;
+import java.nio.CharBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Une ligne d'un fichier CSV découpée en champs sans copie : la ligne reste
+ * dans le tampon de caractères du lot et seules les positions de début et de
+ * fin de chaque champ sont mémorisées. Un champ n'est converti (en texte,
+ * nombre, date, ...) que lorsqu'il est demandé, et les nombres sont lus
+ * directement dans le tampon.<br>
+ * <br>
+ * Le même objet est réutilisé pour toutes les lignes d'un lot : il ne doit
+ * donc pas être conservé par la fonction de correspondance.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class CsvRow {
+  private final char separator;
+  private final char quote;
+  private final Map<String, DateTimeFormatter> formatters;
+  private char[] buf;
+  private int[] starts;
+  private int[] ends;
+  private boolean[] escaped;
+  private int count;
+  private long lineNumber;
+
+  /**
+   * Constructeur.
+   *
+   * @param separator le séparateur des champs (par ex. ';')
+   * @param quote     le caractère qui entoure un champ de texte (par ex. '"')
+   */
+  public CsvRow(char separator, char quote) {
+    this.separator = separator;
+    this.quote = quote;
+    this.formatters = new HashMap<>();
+    this.starts = new int[32];
+    this.ends = new int[32];
+    this.escaped = new boolean[32];
+    this.count = 0;
+  }
+
+  /**
+   * Découpe une ligne [from, to[ d'un tampon de caractères en champs.
+   * Un champ entre guillemets peut contenir le séparateur, des sauts de ligne
+   * et des guillemets doublés.
+   *
+   * @param buf        le tampon de caractères
+   * @param from       la position du début de la ligne
+   * @param to         la position de la fin de la ligne (exclue)
+   * @param lineNumber le numéro de la ligne dans le fichier (ou dans le lot)
+   */
+  public void tokenize(char[] buf, int from, int to, long lineNumber) {
+    this.buf = buf;
+    this.lineNumber = lineNumber;
+    this.count = 0;
+    if (to > from && buf[to - 1] == '\r') {
+      to--;
+    }
+    int i = from;
+    while (true) {
+      if (count == starts.length) {
+        starts = Arrays.copyOf(starts, count * 2);
+        ends = Arrays.copyOf(ends, count * 2);
+        escaped = Arrays.copyOf(escaped, count * 2);
+      }
+      boolean esc = false;
+      int start = i;
+      int end;
+      if (i < to && buf[i] == quote) {
+        start = ++i;
+        while (i < to) {
+          if (buf[i] == quote) {
+            if (i + 1 < to && buf[i + 1] == quote) {
+              esc = true;
+              i += 2;
+              continue;
+            }
+            break;
+          }
+          i++;
+        }
+        end = i;
+        while (i < to && buf[i] != separator) {
+          i++;
+        }
+      } else {
+        while (i < to && buf[i] != separator) {
+          i++;
+        }
+        end = i;
+      }
+      starts[count] = start;
+      ends[count] = end;
+      escaped[count] = esc;
+      count++;
+      if (i >= to) {
+        break;
+      }
+      i++; // séparateur
+    }
+  }
+
+  /**
+   * Retourne le nombre de champs de la ligne.
+   *
+   * @return le nombre de champs
+   */
+  public int size() {
+    return count;
+  }
+
+  public long getLineNumber() {
+    return lineNumber;
+  }
+
+  /**
+   * Retourne TRUE si le champ n'existe pas ou s'il est vide (ou ne contient que des espaces).
+   *
+   * @param i l'indice du champ
+   * @return true or false
+   */
+  public boolean isEmpty(int i) {
+    if (i >= count) {
+      return true;
+    }
+    for (int k = starts[i]; k < ends[i]; k++) {
+      if (!Character.isWhitespace(buf[k])) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Retourne un champ sans copie, sous la forme d'une séquence de caractères.
+   *
+   * @param i l'indice du champ
+   * @return la séquence de caractères du champ (vide s'il n'existe pas)
+   */
+  public CharSequence getChars(int i) {
+    return (i < count) ? CharBuffer.wrap(buf, starts[i], ends[i] - starts[i]) : "";
+  }
+
+  /**
+   * Retourne un champ sous la forme d'un texte sans les espaces de début et de fin.
+   *
+   * @param i l'indice du champ
+   * @return le texte du champ (vide s'il n'existe pas)
+   */
+  public String getString(int i) {
+    if (i >= count) {
+      return "";
+    }
+    int s = starts[i];
+    int e = ends[i];
+    while (s < e && Character.isWhitespace(buf[s])) {
+      s++;
+    }
+    while (e > s && Character.isWhitespace(buf[e - 1])) {
+      e--;
+    }
+    String result = new String(buf, s, e - s);
+    if (escaped[i]) {
+      String q = String.valueOf(quote);
+      result = result.replace(q + q, q);
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour lire un entier long directement dans le tampon
+   * (champ non vide). Lève une exception si le champ n'est pas un entier
+   * ou s'il dépasse la capacité d'un long.
+   */
+  private long parseLong(int i) {
+    int s = starts[i];
+    int e = ends[i];
+    while (Character.isWhitespace(buf[s])) {
+      s++;
+    }
+    while (Character.isWhitespace(buf[e - 1])) {
+      e--;
+    }
+    boolean neg = buf[s] == '-';
+    int k = (neg || buf[s] == '+') ? s + 1 : s;
+    if (k == e) {
+      throw new NumberFormatException(lineNumber + ": not an integer: " + getString(i));
+    }
+    long value = 0; // accumulé en négatif pour accepter Long.MIN_VALUE
+    for (; k < e; k++) {
+      int d = buf[k] - '0';
+      if (d < 0 || d > 9) {
+        throw new NumberFormatException(lineNumber + ": not an integer: " + getString(i));
+      }
+      if (value < (Long.MIN_VALUE + d) / 10) {
+        throw new NumberFormatException(lineNumber + ": integer overflow: " + getString(i));
+      }
+      value = value * 10 - d;
+    }
+    if (!neg && value == Long.MIN_VALUE) {
+      throw new NumberFormatException(lineNumber + ": integer overflow: " + getString(i));
+    }
+    return neg ? value : -value;
+  }
+
+  /**
+   * Retourne un champ sous la forme d'un entier long, lu directement dans le tampon.
+   *
+   * @param i l'indice du champ
+   * @return la valeur entière du champ ou null s'il est vide
+   * @throws NumberFormatException si le champ n'est pas un entier (par ex. "12a"
+   * ou "1.5") ou s'il dépasse la capacité d'un long
+   */
+  public Long getLong(int i) {
+    return isEmpty(i) ? null : parseLong(i);
+  }
+
+  /**
+   * Idem à la méthode précédente, mais retourne une valeur par défaut si le
+   * champ est vide ou incorrect.
+   *
+   * @param i l'indice du champ
+   * @param defValue la valeur retournée si le champ est vide ou n'est pas un entier
+   * @return la valeur entière du champ
+   */
+  public long getLong(int i, long defValue) {
+    try {
+      return isEmpty(i) ? defValue : parseLong(i);
+    } catch (NumberFormatException ex) {
+      return defValue;
+    }
+  }
+
+  /**
+   * Retourne un champ sous la forme d'un entier.
+   *
+   * @param i l'indice du champ
+   * @return la valeur entière du champ ou null s'il est vide
+   * @throws NumberFormatException si le champ n'est pas un entier ou s'il
+   * dépasse la capacité d'un int
+   */
+  public Integer getInt(int i) {
+    if (isEmpty(i)) {
+      return null;
+    }
+    long value = parseLong(i);
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw new NumberFormatException(lineNumber + ": integer overflow: " + getString(i));
+    }
+    return (int) value;
+  }
+
+  /**
+   * Idem à la méthode précédente, mais retourne une valeur par défaut si le
+   * champ est vide ou incorrect (sans troncature d'une valeur trop grande).
+   *
+   * @param i l'indice du champ
+   * @param defValue la valeur retournée si le champ est vide ou n'est pas un entier
+   * @return la valeur entière du champ
+   */
+  public int getInt(int i, int defValue) {
+    try {
+      return isEmpty(i) ? defValue : getInt(i);
+    } catch (NumberFormatException ex) {
+      return defValue;
+    }
+  }
+
+  /**
+   * Retourne un champ sous la forme d'un nombre réel.
+   *
+   * @param i l'indice du champ
+   * @return la valeur réelle du champ ou null s'il est vide
+   * @throws NumberFormatException si le champ n'est pas un nombre
+   */
+  public Double getDouble(int i) {
+    return isEmpty(i) ? null : Double.parseDouble(getString(i));
+  }
+
+  /**
+   * Idem à la méthode précédente, mais retourne une valeur par défaut si le
+   * champ est vide ou incorrect.
+   *
+   * @param i l'indice du champ
+   * @param defValue la valeur retournée si le champ est vide ou n'est pas un nombre
+   * @return la valeur réelle du champ
+   */
+  public double getDouble(int i, double defValue) {
+    try {
+      return isEmpty(i) ? defValue : Double.parseDouble(getString(i));
+    } catch (NumberFormatException ex) {
+      return defValue;
+    }
+  }
+
+  /**
+   * Retourne un champ sous la forme d'un nombre décimal exact.
+   *
+   * @param i l'indice du champ
+   * @return la valeur décimale du champ ou null s'il est vide
+   * @throws NumberFormatException si le champ n'est pas un nombre
+   */
+  public BigDecimal getBigDecimal(int i) {
+    return isEmpty(i) ? null : new BigDecimal(getString(i));
+  }
+
+  /**
+   * Retourne TRUE si le champ contient la valeur vraie spécifiée (sans tenir
+   * compte des majuscules).
+   *
+   * @param i l'indice du champ
+   * @param trueValue le texte de la valeur vraie (par ex. "VRAI")
+   * @return true or false
+   */
+  public boolean getBoolean(int i, String trueValue) {
+    return getString(i).equalsIgnoreCase(trueValue);
+  }
+
+  /**
+   * Retourne un champ sous la forme d'une date. Le format est celui de
+   * DateTimeFormatter (par ex. "yyyy-MM-dd" ou "dd.MM.yyyy HH:mm").
+   *
+   * @param i l'indice du champ
+   * @param pattern le format de la date
+   * @return la date du champ ou null s'il est vide
+   * @throws java.time.format.DateTimeParseException si le champ ne respecte pas le format
+   */
+  public Date getDate(int i, String pattern) {
+    if (isEmpty(i)) {
+      return null;
+    }
+    DateTimeFormatter fmt = formatters.computeIfAbsent(pattern, DateTimeFormatter::ofPattern);
+    CharSequence cs = getString(i);
+    if (pattern.contains("H")) {
+      return Date.from(LocalDateTime.parse(cs, fmt).atZone(ZoneId.systemDefault()).toInstant());
+    }
+    return Date.from(LocalDate.parse(cs, fmt).atStartOfDay(ZoneId.systemDefault()).toInstant());
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(i > 0 ? separator : "").append(getChars(i));
+    }
+    return lineNumber + ": " + sb;
+  }
+
+}
@@ -0,0 +1,338 @@
+package ch.emf.dao.io;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.bulk.JdbcBatchWriter;
+import ch.emf.dao.bulk.NativeBulkLoader;
+import ch.emf.dao.helpers.EntityGraph;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.EntityType;
+
+/**
+ * Copie en flux des tables de classes-entités d'une BD source vers une BD
+ * cible (deux couches DAO connectées sur deux unités de persistance, par
+ * exemple pour cloner une BD MySQL ou en faire une copie H2 d'analyse).<br>
+ * <br>
+ * Les tables sont copiées dans l'ordre des clés étrangères (parents d'abord)
+ * avec leurs PK d'origine. Un "thread" de lecture parcourt chaque table de
+ * la source avec un curseur JDBC et transmet les lignes par blocs à l'appelant
+ * (file d'attente bornée), qui les écrit dans la cible pendant la lecture
+ * des blocs suivants :<br>
+ * - par défaut avec des INSERT JDBC par lots (voir JdbcBatchWriter); <br>
+ * - en mode natif, la table est écrite dans un fichier délimité temporaire
+ * chargé en une seule requête (voir NativeBulkLoader). <br>
+ * Aucun objet JPA n'est créé : seules les valeurs JDBC sont copiées. Les
+ * compteurs de PK de la cible (table de séquence ou IDENTITY) sont remis à
+ * jour après chaque table.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   JpaDao source = new JpaDao();
+ *   source.connect("parlementPU");
+ *   JpaDao target = new JpaDao();
+ *   target.connect("analysePU", Optional.of(props));
+ *   DbCopier copier = new DbCopier(source, target);
+ *   copier.setResetTarget(true);
+ *   BulkReport report = copier.copyAll();
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JdbcBatchWriter
+ * @depend - - - NativeBulkLoader
+ */
+public class DbCopier {
+  private final Class<?> clazz;
+  private final JpaDaoAPI source;
+  private final JpaDaoAPI target;
+  private int blockSize;
+  private int queueCapacity;
+  private boolean nativeLoad;
+  private boolean resetTarget;
+
+  /**
+   * Un bloc de lignes lues (ou un fichier délimité en mode natif). Un bloc
+   * sans classe-entité signale la fin de la lecture.
+   */
+  private static class Block {
+    private final Class<?> cl;
+    private final List<Object[]> rows;
+    private final File file;
+    private final long nbRows;
+    private final boolean lastOfTable;
+
+    private Block(Class<?> cl, List<Object[]> rows, File file, long nbRows, boolean lastOfTable) {
+      this.cl = cl;
+      this.rows = rows;
+      this.file = file;
+      this.nbRows = nbRows;
+      this.lastOfTable = lastOfTable;
+    }
+  }
+
+  private static final Block END = new Block(null, null, null, 0, true);
+
+  /**
+   * Constructeur.
+   *
+   * @param source la couche DAO connectée à la BD source
+   * @param target la couche DAO connectée à la BD cible (mêmes classes-entités)
+   */
+  public DbCopier(JpaDaoAPI source, JpaDaoAPI target) {
+    this.clazz = this.getClass();
+    this.source = source;
+    this.target = target;
+    this.blockSize = 1000;
+    this.queueCapacity = 8;
+    this.nativeLoad = false;
+    this.resetTarget = false;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public void setBlockSize(int blockSize) {
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = Math.max(1, queueCapacity);
+  }
+
+  public boolean isNativeLoad() {
+    return nativeLoad;
+  }
+
+  /**
+   * Choisit le chemin natif de chargement de la BD cible (fichier délimité
+   * temporaire, voir NativeBulkLoader) s'il existe pour son dialecte.
+   *
+   * @param nativeLoad TRUE pour le chemin natif, FALSE pour les lots JDBC
+   */
+  public void setNativeLoad(boolean nativeLoad) {
+    this.nativeLoad = nativeLoad;
+  }
+
+  public boolean isResetTarget() {
+    return resetTarget;
+  }
+
+  /**
+   * Demande de vider les tables copiées de la BD cible avant la copie (voir
+   * JpaDaoAPI.reset).
+   *
+   * @param resetTarget TRUE pour vider les tables de la cible
+   */
+  public void setResetTarget(boolean resetTarget) {
+    this.resetTarget = resetTarget;
+  }
+
+
+
+  /**
+   * Méthode privée pour lire les tables de la source (dans un "thread" séparé,
+   * avec son propre entity-manager) et transmettre les lignes par blocs.
+   */
+  private Void read(List<Class<?>> ordered, BlockingQueue<Block> queue, boolean toFile) throws Exception {
+    EntityManagerFactory emf = source.getEntityManager().getEntityManagerFactory();
+    EntityManager em = emf.createEntityManager();
+    SqlDialect dialect = target.getSqlDialect();
+    boolean ended = false;
+    try {
+      em.getTransaction().begin();
+      Connection con = em.unwrap(Connection.class);
+      for (Class<?> cl : ordered) {
+        List<ColumnInfo> cols = source.getEntityInfo(cl).getColumns();
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < cols.size(); i++) {
+          sql.append(i > 0 ? ", " : "").append(cols.get(i).getName());
+        }
+        sql.append(" FROM ").append(source.getEntityInfo(cl).getTableName())
+                .append(" ORDER BY ").append(cols.get(0).getName());
+        try (Statement st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+          st.setFetchSize(source.getSqlDialect().getStreamingFetchSize(blockSize));
+          try (ResultSet rs = st.executeQuery(sql.toString())) {
+            if (toFile) {
+              long n = 0;
+              File file = File.createTempFile("dbcopy", ".csv");
+              try (Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 64 * 1024)) {
+                while (rs.next()) {
+                  for (int i = 0; i < cols.size(); i++) {
+                    if (i > 0) {
+                      w.write(',');
+                    }
+                    w.write(dialect.toCsvField(rs.getObject(i + 1)));
+                  }
+                  w.write('\n');
+                  n++;
+                }
+              } catch (Exception ex) {
+                file.delete();
+                throw ex;
+              }
+              queue.put(new Block(cl, null, file, n, true));
+            } else {
+              List<Object[]> rows = new ArrayList<>(blockSize);
+              while (rs.next()) {
+                Object[] row = new Object[cols.size()];
+                for (int i = 0; i < row.length; i++) {
+                  row[i] = rs.getObject(i + 1);
+                }
+                rows.add(row);
+                if (rows.size() == blockSize) {
+                  queue.put(new Block(cl, rows, null, rows.size(), false));
+                  rows = new ArrayList<>(blockSize);
+                }
+              }
+              queue.put(new Block(cl, rows, null, rows.size(), true));
+            }
+          }
+        }
+      }
+      em.getTransaction().commit();
+      queue.put(END);
+      ended = true;
+    } finally {
+      if (em.getTransaction().isActive()) {
+        em.getTransaction().rollback();
+      }
+      em.close();
+      if (!ended && !Thread.currentThread().isInterrupted()) {
+        queue.put(END);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Copie les tables des classes-entités spécifiées de la source vers la
+   * cible, dans l'ordre des clés étrangères, avec une lecture et une
+   * écriture en parallèle.
+   *
+   * @param entities les classes entités managées par JPA à copier
+   *
+   * @return un rapport avec les lignes copiées (et refusées) par classe-entité, la durée et le débit
+   */
+  public BulkReport copy(Class<?>... entities) {
+    BulkReport report = new BulkReport();
+    report.setThreads(2);
+    long start = System.currentTimeMillis();
+    boolean toFile = nativeLoad && target.getSqlDialect().hasBulkLoad();
+    JdbcBatchWriter writer = new JdbcBatchWriter(target);
+    writer.setRowsPerStatement(Math.min(100, blockSize));
+    NativeBulkLoader loader = new NativeBulkLoader(target);
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    BlockingQueue<Block> queue = new ArrayBlockingQueue<>(queueCapacity);
+    Future<Void> reader = null;
+    try {
+      List<Class<?>> ordered = new ArrayList<>();
+      for (List<Class<?>> level : EntityGraph.levels(source.getEntityManager().getMetamodel(), Arrays.asList(entities))) {
+        ordered.addAll(level);
+      }
+      if (resetTarget && target.reset(entities) == 0) {
+        Logger.error(clazz, "target reset failed");
+        report.abort("target reset failed");
+        return report;
+      }
+      reader = pool.submit(() -> read(ordered, queue, toFile));
+      long tableStart = System.currentTimeMillis();
+      long tableRows = 0;
+      Block b;
+      while ((b = queue.take()) != END) {
+        EntityInfo ei = target.getEntityInfo(b.cl);
+        if (b.file != null) {
+          List<String> names = new ArrayList<>();
+          for (ColumnInfo c : ei.getColumns()) {
+            names.add(c.getName());
+          }
+          try {
+            BulkReport r = loader.loadFile(b.cl, b.file, names.toArray(new String[0]));
+            report.addChunk(b.cl, r.getWritten(), b.nbRows - r.getWritten());
+            if (r.isAborted()) {
+              report.abort(r.getError());
+            }
+          } finally {
+            b.file.delete();
+          }
+        } else if (!b.rows.isEmpty()) {
+          int n = writer.insertRows(b.cl, ei.getColumns(), b.rows);
+          report.addChunk(b.cl, n, b.rows.size() - n);
+        }
+        tableRows += b.nbRows;
+        if (b.lastOfTable) {
+          writer.resetPkCounter(b.cl);
+          long ms = Math.max(1, System.currentTimeMillis() - tableStart);
+          Logger.info(clazz, ei.getTableName(), tableRows + " rows", (tableRows * 1000 / ms) + " rows/s");
+          tableStart = System.currentTimeMillis();
+          tableRows = 0;
+        }
+      }
+      reader.get();
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+      report.abort(ex.getMessage());
+    } finally {
+      if (reader != null && !reader.isDone()) {
+        reader.cancel(true);
+        Block b;
+        while ((b = queue.poll()) != null) {
+          if (b.file != null) {
+            b.file.delete();
+          }
+        }
+      }
+      pool.shutdownNow();
+      target.getEntityManager().getEntityManagerFactory().getCache().evictAll();
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+  /**
+   * Copie toutes les tables des classes-entités de l'unité de persistance
+   * source vers la cible (voir copy).
+   *
+   * @return un rapport avec les lignes copiées (et refusées) par classe-entité, la durée et le débit
+   */
+  public BulkReport copyAll() {
+    List<Class<?>> entities = new ArrayList<>();
+    for (EntityType<?> et : source.getEntityManager().getMetamodel().getEntities()) {
+      entities.add(et.getBindableJavaType());
+    }
+    return copy(entities.toArray(new Class<?>[0]));
+  }
+
+}
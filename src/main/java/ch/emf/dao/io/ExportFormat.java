@@ -0,0 +1,176 @@
+package ch.emf.dao.io;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Date;
+
+/**
+ * Format d'une exportation en flux de lignes d'une table (voir JpaDao.export) :<br>
+ * - CSV : une ligne d'en-tête avec les noms des attributs, puis une ligne par
+ * objet avec des champs séparés par ";" (comme les fichiers lus par CsvImporter); <br>
+ * - JSON_LINES : un objet JSON par ligne ("JSON Lines"), sans en-tête. <br>
+ * Les dates sont écrites au format ISO (par ex. 2025-03-17 ou 2025-03-17T10:15:30)
+ * et une valeur nulle donne un champ vide (CSV) ou null (JSON). En CSV, un
+ * texte qui contient le séparateur, un guillemet ou un saut de ligne est écrit
+ * entre guillemets (RFC 4180) : il est relu tel quel par CsvImporter.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public enum ExportFormat {
+  CSV, JSON_LINES;
+
+  private static final char CSV_SEPARATOR = ';';
+  private static final char CSV_QUOTE = '"';
+
+  /**
+   * Méthode privée pour convertir une valeur en texte (dates au format ISO,
+   * énumérations par leur nom).
+   */
+  private static String toText(Object value) {
+    String s;
+    if (value instanceof java.sql.Date || value instanceof java.sql.Time) {
+      s = value.toString();
+    } else if (value instanceof Timestamp) {
+      s = ((Timestamp) value).toLocalDateTime().toString();
+    } else if (value instanceof Date) {
+      s = LocalDateTime.ofInstant(((Date) value).toInstant(), ZoneId.systemDefault()).toString();
+    } else if (value instanceof Enum) {
+      s = ((Enum<?>) value).name();
+    } else if (value instanceof BigDecimal) {
+      s = ((BigDecimal) value).toPlainString();
+    } else {
+      s = String.valueOf(value);
+    }
+    return s;
+  }
+
+  /**
+   * Méthode privée pour écrire un champ CSV, entre guillemets s'il contient
+   * le séparateur, un guillemet ou un saut de ligne.
+   */
+  private static void writeCsvField(Writer w, String s) throws IOException {
+    boolean quoted = false;
+    for (int i = 0; i < s.length() && !quoted; i++) {
+      char c = s.charAt(i);
+      quoted = c == CSV_SEPARATOR || c == CSV_QUOTE || c == '\n' || c == '\r';
+    }
+    if (quoted) {
+      w.write(CSV_QUOTE);
+      w.write(s.replace("\"", "\"\""));
+      w.write(CSV_QUOTE);
+    } else {
+      w.write(s);
+    }
+  }
+
+  /**
+   * Méthode privée pour écrire un texte JSON entre guillemets.
+   */
+  private static void writeJsonString(Writer w, String s) throws IOException {
+    w.write('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+        case '"':
+          w.write("\\\"");
+          break;
+        case '\\':
+          w.write("\\\\");
+          break;
+        case '\n':
+          w.write("\\n");
+          break;
+        case '\r':
+          w.write("\\r");
+          break;
+        case '\t':
+          w.write("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            w.write(String.format("\\u%04x", (int) c));
+          } else {
+            w.write(c);
+          }
+      }
+    }
+    w.write('"');
+  }
+
+  /**
+   * Méthode privée pour écrire une valeur JSON (nombre, booléen, texte ou null).
+   */
+  private static void writeJsonValue(Writer w, Object value) throws IOException {
+    if (value == null) {
+      w.write("null");
+    } else if (value instanceof Boolean) {
+      w.write(value.toString());
+    } else if (value instanceof Double || value instanceof Float) {
+      double d = ((Number) value).doubleValue();
+      w.write((Double.isNaN(d) || Double.isInfinite(d)) ? "null" : value.toString());
+    } else if (value instanceof Number) {
+      w.write(toText(value));
+    } else {
+      writeJsonString(w, toText(value));
+    }
+  }
+
+  /**
+   * Écrit l'en-tête de l'exportation (seulement pour le format CSV).
+   *
+   * @param w le flux de sortie
+   * @param names les noms des attributs exportés
+   * @throws IOException une erreur d'écriture
+   */
+  public void writeHeader(Writer w, String[] names) throws IOException {
+    if (this == CSV) {
+      for (int i = 0; i < names.length; i++) {
+        if (i > 0) {
+          w.write(CSV_SEPARATOR);
+        }
+        writeCsvField(w, names[i]);
+      }
+      w.write('\n');
+    }
+  }
+
+  /**
+   * Écrit une ligne de l'exportation.
+   *
+   * @param w le flux de sortie
+   * @param names les noms des attributs exportés
+   * @param values les valeurs des attributs, dans le même ordre
+   * @throws IOException une erreur d'écriture
+   */
+  public void writeRow(Writer w, String[] names, Object[] values) throws IOException {
+    if (this == CSV) {
+      for (int i = 0; i < names.length; i++) {
+        if (i > 0) {
+          w.write(CSV_SEPARATOR);
+        }
+        if (values[i] != null) {
+          writeCsvField(w, toText(values[i]));
+        }
+      }
+    } else {
+      w.write('{');
+      for (int i = 0; i < names.length; i++) {
+        if (i > 0) {
+          w.write(',');
+        }
+        writeJsonString(w, names[i]);
+        w.write(':');
+        writeJsonValue(w, values[i]);
+      }
+      w.write('}');
+    }
+    w.write('\n');
+  }
+
+}
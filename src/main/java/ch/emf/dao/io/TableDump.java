@@ -0,0 +1,681 @@
+package ch.emf.dao.io;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.bulk.JdbcBatchWriter;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.helpers.EntityGraph;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.BulkReport;
+import ch.emf.dao.models.ColumnInfo;
+import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.transactions.Transaction;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+
+/**
+ * Sauvegarde (dump) et restauration rapides de tables de classes-entités dans
+ * un fichier binaire compact. Le format est déduit du métamodèle : pour chaque
+ * table, le nom de la classe-entité, puis les colonnes avec un code de type,
+ * puis les lignes par blocs préfixés par leur longueur. Chaque valeur est
+ * codée selon le type de sa colonne (entiers de longueur variable, dates en
+ * jours, ...) et les textes répétés (colonnes à faible cardinalité) sont
+ * remplacés par un indice dans un dictionnaire propre à la colonne. Le fichier
+ * se termine par une somme de contrôle CRC32 vérifiée avant toute restauration.<br>
+ * <br>
+ * Les tables sont sauvegardées dans l'ordre des dépendances (voir EntityGraph).
+ * La restauration vide d'abord les tables (enfants d'abord), puis les recharge
+ * dans cet ordre par lots JDBC (voir JdbcBatchWriter), avec leurs PK d'origine,
+ * le tout dans une seule transaction annulée au premier bloc refusé. Les
+ * tables de séquence et les compteurs IDENTITY sont ensuite remis à jour.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   TableDump dump = new TableDump(dao);
+ *   dump.dump(Paths.get("parlement.dump"), EtatCivil.class, Canton.class, Parti.class,
+ *     Conseil.class, Groupe.class, Conseiller.class, Activite.class);
+ *   ...
+ *   dump.restore(Paths.get("parlement.dump"));
+ * </pre>
+ * <br>
+ * Attention, les lignes sont lues et écrites directement avec JDBC : les objets
+ * des tables restaurées sont retirés du cache de 2ème niveau.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JdbcBatchWriter
+ * @depend - - - EntityGraph
+ */
+public class TableDump {
+  private static final byte[] MAGIC = "DAODUMP1".getBytes(StandardCharsets.US_ASCII);
+  private static final int MAX_DICTIONARY = 4096;
+  private static final int MAX_DICTIONARY_STRING = 64;
+
+  private static final byte T_INT = 1;
+  private static final byte T_LONG = 2;
+  private static final byte T_DOUBLE = 3;
+  private static final byte T_BOOLEAN = 4;
+  private static final byte T_STRING = 5;
+  private static final byte T_DECIMAL = 6;
+  private static final byte T_DATE = 7;
+  private static final byte T_TIME = 8;
+  private static final byte T_TIMESTAMP = 9;
+  private static final byte T_BYTES = 10;
+
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private int blockSize;
+
+  /**
+   * Constructeur avec des blocs de 1000 lignes.
+   *
+   * @param dao la couche DAO dont la connexion est utilisée
+   */
+  public TableDump(JpaDaoAPI dao) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.blockSize = 1000;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Définit le nombre de lignes d'un bloc (et d'un lot lors de la restauration).
+   *
+   * @param blockSize le nombre de lignes d'un bloc
+   */
+  public void setBlockSize(int blockSize) {
+    this.blockSize = Math.max(1, blockSize);
+  }
+
+
+
+  /* CODAGE DES VALEURS */
+
+  /**
+   * Méthode privée pour retrouver le code de type d'une colonne.
+   */
+  private static byte typeOf(ColumnInfo c) {
+    Class<?> t = c.getValueType();
+    byte code;
+    if (t == int.class || t == Integer.class || t == short.class || t == Short.class
+            || t == byte.class || t == Byte.class) {
+      code = T_INT;
+    } else if (t == long.class || t == Long.class) {
+      code = T_LONG;
+    } else if (t == double.class || t == Double.class || t == float.class || t == Float.class) {
+      code = T_DOUBLE;
+    } else if (t == boolean.class || t == Boolean.class) {
+      code = T_BOOLEAN;
+    } else if (BigDecimal.class.isAssignableFrom(t) || Number.class.isAssignableFrom(t)) {
+      code = T_DECIMAL;
+    } else if (t == java.sql.Date.class) {
+      code = T_DATE;
+    } else if (t == java.sql.Time.class) {
+      code = T_TIME;
+    } else if (t == Timestamp.class) {
+      code = T_TIMESTAMP;
+    } else if (t == byte[].class) {
+      code = T_BYTES;
+    } else {
+      code = T_STRING;
+    }
+    return code;
+  }
+
+  /**
+   * Méthode privée pour écrire un entier de longueur variable ("zigzag").
+   */
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    long v = (value << 1) ^ (value >> 63);
+    while ((v & ~0x7FL) != 0) {
+      out.writeByte((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int) v);
+  }
+
+  /**
+   * Méthode privée pour lire un entier de longueur variable ("zigzag").
+   */
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long v = 0;
+    int shift = 0;
+    int b;
+    do {
+      b = in.readUnsignedByte();
+      v |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  /**
+   * Méthode privée pour écrire un texte (longueur puis octets UTF-8).
+   */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    writeVarLong(out, b.length);
+    out.write(b);
+  }
+
+  /**
+   * Méthode privée pour lire un texte (longueur puis octets UTF-8).
+   */
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] b = new byte[(int) readVarLong(in)];
+    in.readFully(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Méthode privée pour écrire un texte avec le dictionnaire de sa colonne :
+   * 0 = texte seul, 1 = texte ajouté au dictionnaire, n &gt; 1 = indice n-2.
+   */
+  private static void writeDictString(DataOutputStream out, Map<String, Integer> dict, String s) throws IOException {
+    Integer idx = dict.get(s);
+    if (idx != null) {
+      writeVarLong(out, idx + 2);
+    } else if (dict.size() < MAX_DICTIONARY && s.length() <= MAX_DICTIONARY_STRING) {
+      dict.put(s, dict.size());
+      writeVarLong(out, 1);
+      writeString(out, s);
+    } else {
+      writeVarLong(out, 0);
+      writeString(out, s);
+    }
+  }
+
+  /**
+   * Méthode privée pour lire un texte avec le dictionnaire de sa colonne.
+   */
+  private static String readDictString(DataInputStream in, List<String> dict) throws IOException {
+    int code = (int) readVarLong(in);
+    String s;
+    if (code >= 2) {
+      s = dict.get(code - 2);
+    } else {
+      s = readString(in);
+      if (code == 1) {
+        dict.add(s);
+      }
+    }
+    return s;
+  }
+
+  /**
+   * Méthode privée pour lire une valeur non nulle d'un "ResultSet" et l'écrire.
+   * Retourne FALSE si la valeur est nulle.
+   */
+  private static boolean writeValue(DataOutputStream out, ResultSet rs, int col, byte type,
+          Map<String, Integer> dict) throws Exception {
+    switch (type) {
+      case T_INT:
+      case T_LONG: {
+        long v = rs.getLong(col);
+        if (rs.wasNull()) {
+          return false;
+        }
+        writeVarLong(out, v);
+        break;
+      }
+      case T_DOUBLE: {
+        double v = rs.getDouble(col);
+        if (rs.wasNull()) {
+          return false;
+        }
+        out.writeDouble(v);
+        break;
+      }
+      case T_BOOLEAN: {
+        boolean v = rs.getBoolean(col);
+        if (rs.wasNull()) {
+          return false;
+        }
+        out.writeBoolean(v);
+        break;
+      }
+      case T_DECIMAL: {
+        BigDecimal v = rs.getBigDecimal(col);
+        if (v == null) {
+          return false;
+        }
+        writeString(out, v.toPlainString());
+        break;
+      }
+      case T_DATE: {
+        java.sql.Date v = rs.getDate(col);
+        if (v == null) {
+          return false;
+        }
+        writeVarLong(out, v.toLocalDate().toEpochDay());
+        break;
+      }
+      case T_TIME: {
+        java.sql.Time v = rs.getTime(col);
+        if (v == null) {
+          return false;
+        }
+        writeVarLong(out, v.toLocalTime().toSecondOfDay());
+        break;
+      }
+      case T_TIMESTAMP: {
+        Timestamp v = rs.getTimestamp(col);
+        if (v == null) {
+          return false;
+        }
+        LocalDateTime ldt = v.toLocalDateTime();
+        writeVarLong(out, ldt.toEpochSecond(ZoneOffset.UTC));
+        writeVarLong(out, ldt.getNano());
+        break;
+      }
+      case T_BYTES: {
+        byte[] v = rs.getBytes(col);
+        if (v == null) {
+          return false;
+        }
+        writeVarLong(out, v.length);
+        out.write(v);
+        break;
+      }
+      default: {
+        String v = rs.getString(col);
+        if (v == null) {
+          return false;
+        }
+        writeDictString(out, dict, v);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Méthode privée pour lire une valeur non nulle et la convertir en valeur JDBC.
+   */
+  private static Object readValue(DataInputStream in, byte type, List<String> dict) throws IOException {
+    Object v;
+    switch (type) {
+      case T_INT:
+        v = (int) readVarLong(in);
+        break;
+      case T_LONG:
+        v = readVarLong(in);
+        break;
+      case T_DOUBLE:
+        v = in.readDouble();
+        break;
+      case T_BOOLEAN:
+        v = in.readBoolean();
+        break;
+      case T_DECIMAL:
+        v = new BigDecimal(readString(in));
+        break;
+      case T_DATE:
+        v = java.sql.Date.valueOf(LocalDate.ofEpochDay(readVarLong(in)));
+        break;
+      case T_TIME:
+        v = java.sql.Time.valueOf(LocalTime.ofSecondOfDay(readVarLong(in)));
+        break;
+      case T_TIMESTAMP: {
+        long seconds = readVarLong(in);
+        int nanos = (int) readVarLong(in);
+        v = Timestamp.valueOf(LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+        break;
+      }
+      case T_BYTES: {
+        byte[] b = new byte[(int) readVarLong(in)];
+        in.readFully(b);
+        v = b;
+        break;
+      }
+      default:
+        v = readDictString(in, dict);
+    }
+    return v;
+  }
+
+
+
+  /* SAUVEGARDE */
+
+  /**
+   * Méthode privée pour sauvegarder une table : les colonnes, puis les
+   * lignes par blocs préfixés par leur nombre de lignes et leur longueur.
+   */
+  private long dumpTable(DataOutputStream out, Connection con, EntityInfo ei) throws Exception {
+    List<ColumnInfo> cols = ei.getColumns();
+    byte[] types = new byte[cols.size()];
+    List<Map<String, Integer>> dicts = new ArrayList<>();
+    writeString(out, ei.getEntityClass().getName());
+    writeVarLong(out, cols.size());
+    StringBuilder sql = new StringBuilder("SELECT ");
+    for (int i = 0; i < cols.size(); i++) {
+      types[i] = typeOf(cols.get(i));
+      dicts.add(new HashMap<>());
+      writeString(out, cols.get(i).getName());
+      out.writeByte(types[i]);
+      sql.append(i > 0 ? ", " : "").append(cols.get(i).getName());
+    }
+    sql.append(" FROM ").append(ei.getTableName()).append(" ORDER BY ").append(cols.get(0).getName());
+
+    long total = 0;
+    ByteArrayOutputStream block = new ByteArrayOutputStream(64 * 1024);
+    DataOutputStream bout = new DataOutputStream(block);
+    byte[] nulls = new byte[(cols.size() + 7) / 8];
+    ByteArrayOutputStream row = new ByteArrayOutputStream(256);
+    DataOutputStream rout = new DataOutputStream(row);
+    int rows = 0;
+    try (Statement st = con.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      st.setFetchSize(dao.getSqlDialect().getStreamingFetchSize(blockSize));
+      try (ResultSet rs = st.executeQuery(sql.toString())) {
+        while (rs.next()) {
+          Arrays.fill(nulls, (byte) 0);
+          row.reset();
+          for (int i = 0; i < types.length; i++) {
+            if (!writeValue(rout, rs, i + 1, types[i], dicts.get(i))) {
+              nulls[i >> 3] |= 1 << (i & 7);
+            }
+          }
+          bout.write(nulls);
+          row.writeTo(bout);
+          rows++;
+          if (rows == blockSize) {
+            writeVarLong(out, rows);
+            writeVarLong(out, block.size());
+            block.writeTo(out);
+            block.reset();
+            total += rows;
+            rows = 0;
+          }
+        }
+      }
+    }
+    if (rows > 0) {
+      writeVarLong(out, rows);
+      writeVarLong(out, block.size());
+      block.writeTo(out);
+      total += rows;
+    }
+    writeVarLong(out, 0); // fin de la table
+    return total;
+  }
+
+  /**
+   * Sauvegarde le contenu des tables de plusieurs classes-entités dans un
+   * fichier binaire, dans l'ordre des dépendances (parents d'abord).
+   *
+   * @param path le fichier de sauvegarde (remplacé s'il existe)
+   * @param entities les classes entités managées par JPA à sauvegarder
+   *
+   * @return un rapport avec le nombre de lignes sauvegardées par classe-entité
+   */
+  public BulkReport dump(Path path, Class<?>... entities) {
+    BulkReport report = new BulkReport();
+    report.setThreads(1);
+    long start = System.currentTimeMillis();
+    EntityManager em = dao.getEntityManager();
+    Transaction tr = dao.getTransaction();
+    CRC32 crc = new CRC32();
+    try (OutputStream fos = new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024)) {
+      List<Class<?>> ordered = new ArrayList<>();
+      for (List<Class<?>> level : EntityGraph.levels(Arrays.asList(entities))) {
+        ordered.addAll(level);
+      }
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fos, crc));
+      out.write(MAGIC);
+      writeVarLong(out, ordered.size());
+      tr.beginManualTransaction();
+      try {
+        Connection con = em.unwrap(Connection.class);
+        for (Class<?> cl : ordered) {
+          long n = dumpTable(out, con, dao.getEntityInfo(cl));
+          report.addChunk(cl, n, 0);
+        }
+        tr.commitManualTransaction();
+      } catch (Exception ex) {
+        tr.rollbackManualTransaction();
+        throw ex;
+      } finally {
+        tr.finishManualTransaction();
+      }
+      out.flush();
+      new DataOutputStream(fos).writeLong(crc.getValue());
+    } catch (Exception ex) {
+      Logger.error(clazz, path, ex.getMessage());
+      report.abort(ex.getMessage());
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+
+
+  /* RESTAURATION */
+
+  /**
+   * Méthode privée pour vérifier la somme de contrôle d'une sauvegarde.
+   */
+  private void checkCrc(Path path) throws IOException, JpaException {
+    long size = Files.size(path);
+    if (size < MAGIC.length + 8) {
+      throw new JpaException(clazz.getSimpleName(), "restore", "truncated dump file");
+    }
+    CRC32 crc = new CRC32();
+    long stored;
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+      byte[] buf = new byte[64 * 1024];
+      long remaining = size - 8;
+      while (remaining > 0) {
+        int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+        if (n < 0) {
+          throw new EOFException();
+        }
+        crc.update(buf, 0, n);
+        remaining -= n;
+      }
+      stored = in.readLong();
+    }
+    if (stored != crc.getValue()) {
+      throw new JpaException(clazz.getSimpleName(), "restore", "bad checksum");
+    }
+  }
+
+  /**
+   * Méthode privée pour lire l'en-tête d'une table et retrouver ses colonnes
+   * dans le métamodèle (dans l'ordre de la sauvegarde).
+   */
+  private List<ColumnInfo> readColumns(DataInputStream in, EntityInfo ei, byte[] types) throws Exception {
+    List<ColumnInfo> cols = new ArrayList<>();
+    for (int i = 0; i < types.length; i++) {
+      String name = readString(in);
+      types[i] = in.readByte();
+      ColumnInfo col = null;
+      for (ColumnInfo c : ei.getColumns()) {
+        if (c.getName().equalsIgnoreCase(name)) {
+          col = c;
+        }
+      }
+      if (col == null) {
+        throw new JpaException(clazz.getSimpleName(), "restore", ei.getTableName() + "." + name + " not found");
+      }
+      cols.add(col);
+    }
+    return cols;
+  }
+
+  /**
+   * Méthode privée pour lire la liste des classes-entités d'une sauvegarde
+   * (en sautant les blocs de lignes sans les décoder).
+   */
+  private List<Class<?>> readTableList(Path path) throws Exception {
+    List<Class<?>> tables = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new JpaException(clazz.getSimpleName(), "restore", "not a dump file");
+      }
+      int nbTables = (int) readVarLong(in);
+      for (int t = 0; t < nbTables; t++) {
+        tables.add(Class.forName(readString(in), true, Thread.currentThread().getContextClassLoader()));
+        int nbCols = (int) readVarLong(in);
+        for (int i = 0; i < nbCols; i++) {
+          readString(in);
+          in.readByte();
+        }
+        while (readVarLong(in) > 0) {
+          int len = (int) readVarLong(in);
+          if (in.skipBytes(len) < len) {
+            throw new EOFException();
+          }
+        }
+      }
+    }
+    return tables;
+  }
+
+  /**
+   * Méthode privée pour vider puis recharger les tables d'une sauvegarde dans
+   * la transaction courante. Une exception est levée dès qu'une commande ou
+   * un bloc de lignes est refusé (la transaction est alors annulée).
+   */
+  private void reload(Path path, List<Class<?>> tables, JdbcBatchWriter writer, BulkReport loaded) throws Exception {
+    Transaction tr = dao.getTransaction();
+
+    // vide les tables sauvegardées, enfants d'abord
+    for (int i = tables.size() - 1; i >= 0; i--) {
+      String table = dao.getEntityInfo(tables.get(i)).getTableName();
+      dao.executeCommand("DELETE FROM " + table);
+      if (tr.isRollbackOnly()) {
+        throw new JpaException(clazz.getSimpleName(), "restore", table + " not emptied");
+      }
+    }
+
+    // recharge les tables, parents d'abord
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024))) {
+      in.skipBytes(MAGIC.length);
+      readVarLong(in);
+      for (Class<?> cl : tables) {
+        readString(in);
+        EntityInfo ei = dao.getEntityInfo(cl);
+        byte[] types = new byte[(int) readVarLong(in)];
+        List<ColumnInfo> cols = readColumns(in, ei, types);
+        List<List<String>> dicts = new ArrayList<>();
+        for (int i = 0; i < types.length; i++) {
+          dicts.add(new ArrayList<>());
+        }
+        byte[] nulls = new byte[(types.length + 7) / 8];
+        int nbRows;
+        while ((nbRows = (int) readVarLong(in)) > 0) {
+          byte[] block = new byte[(int) readVarLong(in)];
+          in.readFully(block);
+          DataInputStream bin = new DataInputStream(new ByteArrayInputStream(block));
+          List<Object[]> rows = new ArrayList<>(nbRows);
+          for (int r = 0; r < nbRows; r++) {
+            bin.readFully(nulls);
+            Object[] row = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+              if ((nulls[i >> 3] & (1 << (i & 7))) == 0) {
+                row[i] = readValue(bin, types[i], dicts.get(i));
+              }
+            }
+            rows.add(row);
+          }
+          int n = writer.insertRows(cl, cols, rows);
+          if (n < rows.size() || tr.isRollbackOnly()) {
+            throw new JpaException(clazz.getSimpleName(), "restore",
+                    cl.getSimpleName() + ": " + (rows.size() - n) + " rows rejected");
+          }
+          loaded.addChunk(cl, n, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Restaure une sauvegarde : la somme de contrôle est d'abord vérifiée, puis
+   * les tables sauvegardées sont vidées (enfants d'abord) et rechargées par
+   * lots JDBC dans l'ordre des dépendances, avec les PK d'origine. Le vidage
+   * et le rechargement se font dans une seule transaction : au premier bloc
+   * refusé, la restauration s'arrête, tout est annulé et le rapport est marqué
+   * comme interrompu (les tables gardent alors leur contenu d'avant). Les
+   * compteurs de PK sont remis à jour après la validation (une commande
+   * ALTER TABLE valide implicitement la transaction avec MySQL).
+   *
+   * @param path le fichier de sauvegarde
+   *
+   * @return un rapport avec le nombre de lignes restaurées par classe-entité
+   */
+  public BulkReport restore(Path path) {
+    BulkReport report = new BulkReport();
+    report.setThreads(1);
+    long start = System.currentTimeMillis();
+    JdbcBatchWriter writer = new JdbcBatchWriter(dao);
+    writer.setRowsPerStatement(Math.min(100, blockSize));
+    try {
+      checkCrc(path);
+      List<Class<?>> tables = readTableList(path);
+      BulkReport loaded = new BulkReport();
+      try {
+        dao.inTransaction(() -> {
+          try {
+            reload(path, tables, writer, loaded);
+          } catch (Exception ex) {
+            throw new PersistenceException(ex.getMessage(), ex);
+          }
+          return null;
+        });
+      } finally {
+        for (Class<?> cl : tables) {
+          dao.getEntityManager().getEntityManagerFactory().getCache().evict(cl);
+        }
+      }
+      report.addReport(loaded);
+      for (Class<?> cl : tables) {
+        writer.resetPkCounter(cl);
+      }
+    } catch (Exception ex) {
+      Logger.error(clazz, path, ex.getMessage());
+      report.abort(ex.getMessage());
+    }
+    report.setElapsedMillis(System.currentTimeMillis() - start);
+    Logger.debug(clazz, report);
+    return report;
+  }
+
+}
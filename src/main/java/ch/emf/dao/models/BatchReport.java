@@ -0,0 +1,156 @@
+package ch.emf.dao.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Rapport d'une écriture par lots avec isolation des erreurs (voir
+ * JpaDao.insertBatch et JpaDao.updateBatch). Il mémorise les objets
+ * écrits avec succès, ainsi que les objets refusés avec leur position
+ * dans la liste d'origine et la cause de l'erreur.
+ *
+ * @author jcstritt
+ *
+ * @param <E> une classe-entité générique
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class BatchReport<E> {
+  private final List<E> succeeded;
+  private final List<Failure<E>> failures;
+  private int inserted;
+  private int updated;
+  private int transactions;
+
+  public BatchReport() {
+    succeeded = new ArrayList<>();
+    failures = new ArrayList<>();
+    inserted = 0;
+    updated = 0;
+    transactions = 0;
+  }
+
+  /**
+   * Ajoute un lot d'objets écrits avec succès.
+   *
+   * @param items les objets validés dans la BD
+   * @param nbUpdated le nombre d'objets modifiés dans ce lot
+   * @param nbInserted le nombre d'objets ajoutés dans ce lot
+   */
+  public void addSucceeded(List<E> items, int nbUpdated, int nbInserted) {
+    succeeded.addAll(items);
+    updated += nbUpdated;
+    inserted += nbInserted;
+  }
+
+  /**
+   * Ajoute un objet refusé.
+   *
+   * @param index la position de l'objet dans la liste d'origine
+   * @param item l'objet refusé
+   * @param cause l'exception qui a provoqué le refus
+   */
+  public void addFailure(int index, E item, Throwable cause) {
+    failures.add(new Failure<>(index, item, cause));
+  }
+
+  /**
+   * Compte une transaction supplémentaire (lot ou sous-lot rejoué).
+   */
+  public void addTransaction() {
+    transactions++;
+  }
+
+  public List<E> getSucceeded() {
+    return Collections.unmodifiableList(succeeded);
+  }
+
+  public List<Failure<E>> getFailures() {
+    return Collections.unmodifiableList(failures);
+  }
+
+  public int getSucceededCount() {
+    return succeeded.size();
+  }
+
+  public int getFailedCount() {
+    return failures.size();
+  }
+
+  public int getInserted() {
+    return inserted;
+  }
+
+  public int getUpdated() {
+    return updated;
+  }
+
+  public int getTransactions() {
+    return transactions;
+  }
+
+  /**
+   * Retourne TRUE si tous les objets ont pu être écrits.
+   *
+   * @return true si aucun objet n'a été refusé
+   */
+  public boolean isComplete() {
+    return failures.isEmpty();
+  }
+
+  @Override
+  public String toString() {
+    return "BatchReport{succeeded=" + succeeded.size() + " (inserted=" + inserted
+            + ", updated=" + updated + "), failed=" + failures.size()
+            + ", transactions=" + transactions + "}";
+  }
+
+  /**
+   * Objet refusé avec sa position dans la liste d'origine et la cause de l'erreur.
+   *
+   * @param <E> une classe-entité générique
+   */
+  public static class Failure<E> {
+    private final int index;
+    private final E item;
+    private final Throwable cause;
+
+    public Failure(int index, E item, Throwable cause) {
+      this.index = index;
+      this.item = item;
+      this.cause = cause;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public E getItem() {
+      return item;
+    }
+
+    public Throwable getCause() {
+      return cause;
+    }
+
+    /**
+     * Retourne le message de la cause première (par exemple l'erreur SQL).
+     *
+     * @return le message de l'erreur
+     */
+    public String getMessage() {
+      Throwable t = cause;
+      while (t != null && t.getCause() != null && t.getCause() != t) {
+        t = t.getCause();
+      }
+      return (t == null) ? "" : t.getMessage();
+    }
+
+    @Override
+    public String toString() {
+      return "[" + index + "] " + item + " : " + getMessage();
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package ch.emf.dao.models;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Rapport d'une écriture en masse (voir ParallelBulkWriter) : nombre de lignes
+ * écrites et refusées par classe-entité, nombre de lots, durée et débit global.
+ * Les compteurs peuvent être mis à jour depuis plusieurs threads.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class BulkReport {
+  private final Map<String, Long> writtenByClass;
+  private long written;
+  private long failed;
+  private long orphans;
+  private int chunks;
+  private int threads;
+  private long elapsedMillis;
+  private String error;
+
+  public BulkReport() {
+    writtenByClass = new LinkedHashMap<>();
+    written = 0;
+    failed = 0;
+    orphans = 0;
+    chunks = 0;
+    threads = 0;
+    elapsedMillis = 0;
+    error = null;
+  }
+
+  /**
+   * Ajoute le résultat d'un lot.
+   *
+   * @param cl la classe-entité du lot
+   * @param nbWritten le nombre de lignes écrites
+   * @param nbFailed le nombre de lignes refusées
+   */
+  public synchronized void addChunk(Class<?> cl, long nbWritten, long nbFailed) {
+    writtenByClass.merge(cl.getSimpleName(), nbWritten, Long::sum);
+    written += nbWritten;
+    failed += nbFailed;
+    chunks++;
+  }
+
+  /**
+   * Ajoute les compteurs d'un autre rapport (par exemple d'une étape d'une
+   * écriture en plusieurs étapes).
+   *
+   * @param other un autre rapport
+   */
+  public synchronized void addReport(BulkReport other) {
+    for (Map.Entry<String, Long> entry : other.getWrittenByClass().entrySet()) {
+      writtenByClass.merge(entry.getKey(), entry.getValue(), Long::sum);
+    }
+    written += other.getWritten();
+    failed += other.getFailed();
+    orphans += other.getOrphans();
+    chunks += other.getChunks();
+    if (other.isAborted()) {
+      abort(other.getError());
+    }
+  }
+
+  public synchronized Map<String, Long> getWrittenByClass() {
+    return Collections.unmodifiableMap(new LinkedHashMap<>(writtenByClass));
+  }
+
+  public synchronized long getWritten() {
+    return written;
+  }
+
+  public synchronized long getFailed() {
+    return failed;
+  }
+
+  /**
+   * Ajoute des lignes dont une clé étrangère ne référence aucune ligne
+   * (trouvées lors de la validation qui suit un chargement sans contrôle des
+   * clés étrangères).
+   *
+   * @param nbOrphans le nombre de lignes orphelines
+   */
+  public synchronized void addOrphans(long nbOrphans) {
+    orphans += nbOrphans;
+  }
+
+  public synchronized long getOrphans() {
+    return orphans;
+  }
+
+  public synchronized int getChunks() {
+    return chunks;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  public long getElapsedMillis() {
+    return elapsedMillis;
+  }
+
+  public void setElapsedMillis(long elapsedMillis) {
+    this.elapsedMillis = elapsedMillis;
+  }
+
+  /**
+   * Retourne le débit global de l'écriture.
+   *
+   * @return le nombre de lignes écrites par seconde
+   */
+  public synchronized double getRowsPerSecond() {
+    return (elapsedMillis > 0) ? written * 1000.0 / elapsedMillis : 0;
+  }
+
+  /**
+   * Signale que l'écriture a été interrompue par une erreur : les compteurs ne
+   * portent alors que sur une partie des données. Seule la première erreur
+   * est gardée.
+   *
+   * @param error la cause de l'interruption
+   */
+  public synchronized void abort(String error) {
+    if (this.error == null) {
+      this.error = (error != null) ? error : "aborted";
+    }
+  }
+
+  public synchronized boolean isAborted() {
+    return error != null;
+  }
+
+  public synchronized String getError() {
+    return error;
+  }
+
+  /**
+   * Retourne TRUE si toutes les lignes ont pu être écrites (sans ligne orpheline
+   * et sans interruption).
+   *
+   * @return true si aucune ligne n'a été refusée et si l'écriture est allée à son terme
+   */
+  public synchronized boolean isComplete() {
+    return failed == 0 && orphans == 0 && error == null;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "BulkReport{written=" + written + " " + writtenByClass + ", failed=" + failed
+            + (orphans > 0 ? ", orphans=" + orphans : "") + ", chunks=" + chunks
+            + ", threads=" + threads + ", elapsed=" + elapsedMillis + " ms"
+            + ", rows/s=" + Math.round(getRowsPerSecond())
+            + (error != null ? ", aborted=" + error : "") + "}";
+  }
+
+}
@@ -0,0 +1,249 @@
+package ch.emf.dao.models;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Date;
+import javax.persistence.AttributeOverride;
+import javax.persistence.AttributeOverrides;
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.JoinColumn;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Permet de mémoriser les informations d'une colonne de la table d'une
+ * classe-entité JPA, soit :<br>
+ * - l'attribut de la classe-entité; <br>
+ * - le nom de la colonne (@Column, @JoinColumn ou @AttributeOverride); <br>
+ * - le rôle de la colonne (PK, version, clé étrangère); <br>
+ * - l'attribut @Embedded qui contient l'attribut, le cas échéant. <br>
+ * Cela permet de construire des requêtes SQL natives à partir du métamodèle
+ * et de convertir les valeurs d'un objet en valeurs JDBC.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class ColumnInfo {
+  private final Field holder;
+  private final Field field;
+  private final String name;
+  private final boolean pk;
+  private final boolean version;
+  private final Field refPkField;
+  private Method getter;
+
+  /**
+   * Constructeur.
+   *
+   * @param field      l'attribut de la classe-entité
+   * @param pk         TRUE s'il s'agit de la PK
+   * @param version    TRUE s'il s'agit de l'attribut de version (@Version)
+   * @param refPkField la PK de la classe-entité liée (relation) ou null
+   */
+  public ColumnInfo(Field field, boolean pk, boolean version, Field refPkField) {
+    this(null, field, pk, version, refPkField);
+  }
+
+  /**
+   * Constructeur pour un attribut d'un objet @Embedded.
+   *
+   * @param holder     l'attribut @Embedded de la classe-entité (ou null)
+   * @param field      l'attribut de la classe (classe-entité ou classe @Embeddable)
+   * @param pk         TRUE s'il s'agit de la PK
+   * @param version    TRUE s'il s'agit de l'attribut de version (@Version)
+   * @param refPkField la PK de la classe-entité liée (relation) ou null
+   */
+  public ColumnInfo(Field holder, Field field, boolean pk, boolean version, Field refPkField) {
+    this.holder = holder;
+    this.field = field;
+    this.pk = pk;
+    this.version = version;
+    this.refPkField = refPkField;
+    this.name = findColumnName();
+    field.setAccessible(true);
+    if (holder != null) {
+      holder.setAccessible(true);
+    }
+    String fn = field.getName();
+    try {
+      getter = field.getDeclaringClass().getMethod("get" + Character.toUpperCase(fn.charAt(0)) + fn.substring(1));
+    } catch (NoSuchMethodException ex) {
+      getter = null;
+    }
+  }
+
+  /**
+   * Méthode privée pour retrouver le nom de la colonne dans la table.
+   */
+  private String findColumnName() {
+    String result = null;
+    if (refPkField != null) {
+      JoinColumn jc = field.getAnnotation(JoinColumn.class);
+      if (jc != null && !jc.name().isEmpty()) {
+        result = jc.name();
+      } else {
+        Column rc = refPkField.getAnnotation(Column.class);
+        result = field.getName() + "_" + ((rc != null && !rc.name().isEmpty()) ? rc.name() : refPkField.getName());
+      }
+    } else {
+      Column c = findColumn();
+      result = (c != null && !c.name().isEmpty()) ? c.name() : field.getName();
+    }
+    return result;
+  }
+
+  /**
+   * Méthode privée pour retrouver l'annotation @Column de l'attribut, redéfinie
+   * le cas échéant par l'attribut @Embedded (@AttributeOverride), ou null.
+   */
+  private Column findColumn() {
+    Column result = field.getAnnotation(Column.class);
+    if (holder != null) {
+      AttributeOverrides aos = holder.getAnnotation(AttributeOverrides.class);
+      AttributeOverride[] list = (aos != null) ? aos.value() : holder.getAnnotationsByType(AttributeOverride.class);
+      for (AttributeOverride ao : list) {
+        if (ao.name().equals(field.getName())) {
+          result = ao.column();
+        }
+      }
+    }
+    return result;
+  }
+
+  public Field getField() {
+    return field;
+  }
+
+  public Field getHolder() {
+    return holder;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isPk() {
+    return pk;
+  }
+
+  public boolean isVersion() {
+    return version;
+  }
+
+  /**
+   * Retourne TRUE si JPA écrit cette colonne lors d'une insertion
+   * (insertable de @Column ou @JoinColumn).
+   *
+   * @return true or false
+   */
+  public boolean isInsertable() {
+    JoinColumn jc = field.getAnnotation(JoinColumn.class);
+    Column c = findColumn();
+    return (jc == null || jc.insertable()) && (c == null || c.insertable());
+  }
+
+  /**
+   * Retourne TRUE si JPA écrit cette colonne lors d'une modification
+   * (updatable de @Column ou @JoinColumn).
+   *
+   * @return true or false
+   */
+  public boolean isUpdatable() {
+    JoinColumn jc = field.getAnnotation(JoinColumn.class);
+    Column c = findColumn();
+    return (jc == null || jc.updatable()) && (c == null || c.updatable());
+  }
+
+  /**
+   * Retourne TRUE si la colonne est une clé étrangère (relation vers une autre classe-entité).
+   *
+   * @return true or false
+   */
+  public boolean isJoin() {
+    return refPkField != null;
+  }
+
+  /**
+   * Retourne la classe-entité liée par une clé étrangère ou null.
+   *
+   * @return la classe-entité référencée (ManyToOne ou OneToOne)
+   */
+  public Class<?> getRefClass() {
+    return (refPkField != null) ? field.getType() : null;
+  }
+
+  /**
+   * Retourne le type Java des valeurs JDBC de cette colonne (voir toJdbcValue) :
+   * le type de la PK liée pour une clé étrangère, une date SQL selon @Temporal,
+   * un texte ou un entier pour une énumération (selon @Enumerated).
+   *
+   * @return le type des valeurs JDBC de la colonne
+   */
+  public Class<?> getValueType() {
+    Class<?> type = field.getType();
+    if (refPkField != null) {
+      type = refPkField.getType();
+    } else if (Date.class.isAssignableFrom(type) && !java.sql.Date.class.isAssignableFrom(type)
+            && !java.sql.Time.class.isAssignableFrom(type) && !java.sql.Timestamp.class.isAssignableFrom(type)) {
+      Temporal t = field.getAnnotation(Temporal.class);
+      if (t != null && t.value() == TemporalType.DATE) {
+        type = java.sql.Date.class;
+      } else if (t != null && t.value() == TemporalType.TIME) {
+        type = java.sql.Time.class;
+      } else {
+        type = java.sql.Timestamp.class;
+      }
+    } else if (type.isEnum()) {
+      Enumerated en = field.getAnnotation(Enumerated.class);
+      type = (en != null && en.value() == EnumType.STRING) ? String.class : Integer.class;
+    }
+    return type;
+  }
+
+  /**
+   * Lit la valeur de cet attribut dans un objet et la convertit en valeur JDBC :
+   * un objet lié est remplacé par sa PK, une date par une date SQL (selon
+   * @Temporal) et une énumération par son nom ou son ordinal (selon @Enumerated).
+   *
+   * @param e un objet de la classe-entité
+   * @return la valeur à transmettre au pilote JDBC
+   * @throws ReflectiveOperationException une erreur d'introspection
+   */
+  public Object toJdbcValue(Object e) throws ReflectiveOperationException {
+    Object owner = (holder != null) ? holder.get(e) : e;
+    if (owner == null) {
+      return null;
+    }
+    Object value = (getter != null) ? getter.invoke(owner) : field.get(owner);
+    if (value == null) {
+      return null;
+    }
+    if (refPkField != null) {
+      refPkField.setAccessible(true);
+      value = refPkField.get(value);
+    } else if (value instanceof Date && !(value instanceof java.sql.Date || value instanceof java.sql.Timestamp)) {
+      Temporal t = field.getAnnotation(Temporal.class);
+      long ms = ((Date) value).getTime();
+      if (t != null && t.value() == TemporalType.DATE) {
+        value = new java.sql.Date(ms);
+      } else if (t != null && t.value() == TemporalType.TIME) {
+        value = new java.sql.Time(ms);
+      } else {
+        value = new java.sql.Timestamp(ms);
+      }
+    } else if (value instanceof Enum) {
+      Enumerated en = field.getAnnotation(Enumerated.class);
+      value = (en != null && en.value() == EnumType.STRING) ? ((Enum<?>) value).name() : ((Enum<?>) value).ordinal();
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return name + (pk ? " (pk)" : "") + (version ? " (version)" : "") + (isJoin() ? " (fk)" : "");
+  }
+
+}
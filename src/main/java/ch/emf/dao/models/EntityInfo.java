@@ -14,12 +14,15 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
+import javax.persistence.metamodel.Attribute.PersistentAttributeType;
+import javax.persistence.metamodel.Metamodel;
 
 /**
  * Permet de mémoriser les informations d'une "classe-entité" JPA, soit :<br>
- * - la classe elle-même; <br>
+ * - la classe elle-même et son nom d'entité (@Entity); <br>
  * - le nom de sa PK; <br>
- * - le type de la PK. <br>
+ * - le type de la PK; <br>
+ * - les colonnes de sa table (d'après le métamodèle JPA s'il est fourni). <br>
  * Par rapport aux informations mémorisées, cela permet aussi toutes sortes d'opérations
  * de construction d'une requête JPQL.
  *
@@ -30,9 +33,14 @@ import java.util.Properties;
 public class EntityInfo {
 
   private Class<?> cl;
+  private Metamodel mm;
+  private String entityName;
   private String pkName;
   private Type pkType;
   private boolean tableSeqUsed;
+  private boolean identityUsed;
+  private Field versionField;
+  private List<ColumnInfo> columns;
 
   /**
    * Constructeur.
@@ -40,7 +48,21 @@ public class EntityInfo {
    * @param cl la classe "entity" à gérer
    */
   public EntityInfo(Class<?> cl) {
+    this(cl, null);
+  }
+
+  /**
+   * Constructeur avec le métamodèle JPA, utilisé pour retrouver les colonnes
+   * de la table (voir getColumns).
+   *
+   * @param cl la classe "entity" à gérer
+   * @param mm le métamodèle de l'unité de persistance (em.getMetamodel()) ou null
+   */
+  public EntityInfo(Class<?> cl, Metamodel mm) {
     this.cl = cl;
+    this.mm = mm;
+    javax.persistence.Entity en = cl.getAnnotation(javax.persistence.Entity.class);
+    this.entityName = (en != null && !en.name().isEmpty()) ? en.name() : cl.getSimpleName();
     findPkInfo();
   }
 
@@ -53,6 +75,15 @@ public class EntityInfo {
     return cl;
   }
 
+  /**
+   * Retourne le nom de l'entité dans les requêtes JPQL (@Entity ou nom de la classe).
+   *
+   * @return entity name
+   */
+  public String getEntityName() {
+    return entityName;
+  }
+
   /**
    * Retourne le nom de la PK.
    *
@@ -80,6 +111,135 @@ public class EntityInfo {
     return tableSeqUsed;
   }
 
+  /**
+   * Retourne TRUE si la PK est générée par la BD (GenerationType.IDENTITY).
+   *
+   * @return true or false
+   */
+  public boolean isIdentityUsed() {
+    return identityUsed;
+  }
+
+  /**
+   * Retourne l'attribut annoté avec @Version (verrouillage optimiste)
+   * ou null si la classe-entité n'en possède pas.
+   *
+   * @return version field
+   */
+  public Field getVersionField() {
+    return versionField;
+  }
+
+  /**
+   * Retourne le nom de la table de la classe-entité (@Table ou nom de l'entité).
+   *
+   * @return table name
+   */
+  public String getTableName() {
+    javax.persistence.Table t = cl.getAnnotation(javax.persistence.Table.class);
+    return (t != null && !t.name().isEmpty()) ? t.name() : entityName;
+  }
+
+  /**
+   * Retourne la liste des colonnes de la table de la classe-entité, soit les
+   * attributs persistants (hérités d'une @MappedSuperclass compris), les
+   * attributs des objets @Embedded et les relations avec une clé étrangère
+   * (ManyToOne ou OneToOne propriétaire). Les attributs sont ceux du métamodèle
+   * JPA s'il a été fourni, sinon ils sont retrouvés d'après leurs annotations.
+   * Les collections (OneToMany, ManyToMany) et les colonnes que JPA n'écrit
+   * pas lors d'une insertion (insertable=false) ne sont pas prises en compte.
+   *
+   * @return la liste des colonnes (la PK en premier)
+   */
+  public synchronized List<ColumnInfo> getColumns() {
+    if (columns == null) {
+      List<ColumnInfo> list = new ArrayList<>();
+      for (Field fld : getMappedFields(cl)) {
+        PersistentAttributeType type = getAttributeType(cl, fld);
+        if (type == PersistentAttributeType.EMBEDDED) {
+          for (Field fld2 : getMappedFields(fld.getType())) {
+            if (getAttributeType(fld.getType(), fld2) == PersistentAttributeType.BASIC) {
+              addColumn(list, new ColumnInfo(fld, fld2, false, false, null));
+            }
+          }
+        } else if (type == PersistentAttributeType.BASIC) {
+          addColumn(list, new ColumnInfo(fld, fld.getName().equals(pkName), fld.equals(versionField), null));
+        } else if (type == PersistentAttributeType.MANY_TO_ONE || type == PersistentAttributeType.ONE_TO_ONE) {
+          EntityInfo ref = new EntityInfo(fld.getType(), mm);
+          addColumn(list, new ColumnInfo(fld, false, false, ref.findField(ref.getPkName())));
+        }
+      }
+      columns = list;
+    }
+    return columns;
+  }
+
+  /**
+   * Méthode privée pour ajouter une colonne (la PK en premier, sans les
+   * colonnes non insérables).
+   */
+  private static void addColumn(List<ColumnInfo> list, ColumnInfo ci) {
+    if (ci.isPk()) {
+      list.add(0, ci);
+    } else if (ci.isInsertable()) {
+      list.add(ci);
+    }
+  }
+
+  /**
+   * Méthode privée pour retrouver les attributs d'une classe, précédés de ceux
+   * de ses classes parentes annotées avec @MappedSuperclass.
+   */
+  private static List<Field> getMappedFields(Class<?> c) {
+    List<Field> fields = new ArrayList<>();
+    Class<?> sc = c.getSuperclass();
+    if (sc != null && sc.getAnnotation(javax.persistence.MappedSuperclass.class) != null) {
+      fields.addAll(getMappedFields(sc));
+    }
+    fields.addAll(Arrays.asList(c.getDeclaredFields()));
+    return fields;
+  }
+
+  /**
+   * Méthode privée pour retrouver le type d'un attribut persistant d'une classe
+   * (classe-entité ou @Embeddable) d'après le métamodèle ou les annotations.
+   * Retourne null pour un attribut non persistant ou une relation OneToOne
+   * non propriétaire (mappedBy).
+   */
+  private PersistentAttributeType getAttributeType(Class<?> owner, Field fld) {
+    int mod = fld.getModifiers();
+    if (Modifier.isStatic(mod) || Modifier.isTransient(mod) || fld.getName().startsWith("_persistence")
+            || fld.getAnnotation(javax.persistence.Transient.class) != null) {
+      return null;
+    }
+    PersistentAttributeType type;
+    if (mm != null) {
+      try {
+        type = mm.managedType(owner).getAttribute(fld.getName()).getPersistentAttributeType();
+      } catch (IllegalArgumentException ex) {
+        type = null;
+      }
+    } else if (fld.getAnnotation(javax.persistence.OneToMany.class) != null) {
+      type = PersistentAttributeType.ONE_TO_MANY;
+    } else if (fld.getAnnotation(javax.persistence.ManyToMany.class) != null) {
+      type = PersistentAttributeType.MANY_TO_MANY;
+    } else if (fld.getAnnotation(javax.persistence.ManyToOne.class) != null) {
+      type = PersistentAttributeType.MANY_TO_ONE;
+    } else if (fld.getAnnotation(javax.persistence.OneToOne.class) != null) {
+      type = PersistentAttributeType.ONE_TO_ONE;
+    } else if (fld.getAnnotation(javax.persistence.Embedded.class) != null
+            || fld.getType().getAnnotation(javax.persistence.Embeddable.class) != null) {
+      type = PersistentAttributeType.EMBEDDED;
+    } else {
+      type = PersistentAttributeType.BASIC;
+    }
+    javax.persistence.OneToOne oto = fld.getAnnotation(javax.persistence.OneToOne.class);
+    if (type == PersistentAttributeType.ONE_TO_ONE && oto != null && !oto.mappedBy().isEmpty()) {
+      type = null;
+    }
+    return type;
+  }
+
   /**
    * Méthode privée pour retrouver par introspection les infos de la PK.
    */
@@ -87,12 +247,14 @@ public class EntityInfo {
     boolean ok1 = false;
     boolean ok2 = false;
     tableSeqUsed = false;
-    for (Field fld : cl.getDeclaredFields()) {
+    for (Field fld : getMappedFields(cl)) {
       Annotation an1 = fld.getAnnotation(javax.persistence.Id.class);
       Annotation an2 = fld.getAnnotation(javax.persistence.TableGenerator.class);
       if (an1 != null) {
         pkName = fld.getName();
         pkType = fld.getType();
+        javax.persistence.GeneratedValue gv = fld.getAnnotation(javax.persistence.GeneratedValue.class);
+        identityUsed = gv != null && gv.strategy() == javax.persistence.GenerationType.IDENTITY;
         ok1 = true;
       }
       if (an2 != null) {
@@ -103,6 +265,14 @@ public class EntityInfo {
         break;
       }
     }
+    versionField = null;
+    for (Field fld : getMappedFields(cl)) {
+      if (fld.getAnnotation(javax.persistence.Version.class) != null) {
+        versionField = fld;
+        versionField.setAccessible(true);
+        break;
+      }
+    }
   }
 
   /**
@@ -110,7 +280,7 @@ public class EntityInfo {
    */
   private String getTableGeneratorValue(String key) {
     String value = "";
-    for (Field fld : cl.getDeclaredFields()) {
+    for (Field fld : getMappedFields(cl)) {
       Annotation an = fld.getAnnotation(javax.persistence.TableGenerator.class);
       if (an != null) {
         String a = an.toString();
@@ -121,7 +291,11 @@ public class EntityInfo {
         for (String t1 : t) {
           String[] p = t1.trim().split("=");
           if (p.length > 0) {
-            pr.put(p[0], (p.length > 1) ? p[1] : "");
+            String v = (p.length > 1) ? p[1] : "";
+            if (v.length() > 1 && v.startsWith("\"") && v.endsWith("\"")) {
+              v = v.substring(1, v.length() - 1); // Java 9+ (valeurs entre guillemets)
+            }
+            pr.put(p[0], v);
           }
         }
         value = pr.getProperty(key);
@@ -157,7 +331,7 @@ public class EntityInfo {
    * @return une chaine de caractères avec la clause FROM
    */
   public String buildFromClause() {
-    return "FROM " + cl.getSimpleName() + " e";
+    return "FROM " + entityName + " e";
   }
 
   /**
@@ -169,6 +343,20 @@ public class EntityInfo {
     return "SELECT e " + buildFromClause();
   }
 
+  /**
+   * Retourne une clause SELECT qui ne récupère que certaines propriétés de la classe-entité.
+   *
+   * @param props la ou les propriétés à récupérer
+   * @return une chaîne de caractères avec la clause SELECT
+   */
+  public String buildSelectClause(String... props) {
+    StringBuilder sb = new StringBuilder("SELECT ");
+    for (int i = 0; i < props.length; i++) {
+      sb.append(i > 0 ? ", e." : "e.").append(props[i]);
+    }
+    return sb.append(" ").append(buildFromClause()).toString();
+  }
+
   /**
    * Retourne une clause DELETE avec le nom de la classe-entité.
    *
@@ -178,6 +366,19 @@ public class EntityInfo {
     return "DELETE " + buildFromClause();
   }
 
+  /**
+   * Retourne une clause UPDATE qui incrémente directement dans la BD une propriété
+   * numérique avec un delta encore à fournir comme paramètre de la requête.
+   *
+   * @param prop une propriété numérique à incrémenter
+   * @param paramIndex le numéro du paramètre qui contiendra le delta
+   * @return une chaîne de caractères avec la clause UPDATE
+   */
+  public String buildIncrementClause(String prop, int paramIndex) {
+    return "UPDATE " + entityName + " e"
+            + " SET e." + prop + " = e." + prop + " + ?" + paramIndex;
+  }
+
   /**
    * Retourne une clause WHERE simple avec une propriété dont la valeur sera encore à
    * compléter.
@@ -193,6 +394,77 @@ public class EntityInfo {
     return s;
   }
 
+  /**
+   * Retourne une clause WHERE de pagination par clé ("keyset") : seules les
+   * lignes dont la propriété est plus grande que la dernière valeur lue
+   * (1er paramètre de la requête) sont retournées.
+   *
+   * @param prop une propriété ordonnée (en général la PK)
+   * @return une chaîne de caractères avec la clause WHERE
+   */
+  public String buildKeysetWhereClause(String prop) {
+    return " WHERE e." + prop + " > ?1";
+  }
+
+  /**
+   * Retourne une clause WHERE avec un opérateur IN sur une propriété dont la liste
+   * de valeurs sera encore à fournir comme 1er paramètre de la requête.
+   *
+   * @param prop une propriété avec une liste de valeurs encore à fournir
+   * @return une chaîne de caractères avec la clause WHERE
+   */
+  public String buildWhereInClause(String prop) {
+    return " WHERE e." + prop + " IN ?1";
+  }
+
+  /**
+   * Retourne une clause WHERE qui retrouve une liste de clés (simples ou composées
+   * de plusieurs propriétés). Une clé simple utilise l'opérateur IN, une clé composée
+   * une suite de conditions "(e.a = ? AND e.b = ?) OR (...)". Une valeur nulle est
+   * testée avec IS NULL. Les valeurs des paramètres sont ajoutées à la liste "params".
+   *
+   * @param props les propriétés qui forment la clé
+   * @param keys les valeurs des clés à retrouver (un tableau par clé)
+   * @param params la liste des paramètres de la requête (entrée-sortie)
+   * @return une chaîne de caractères avec la clause WHERE
+   */
+  public String buildKeysWhereClause(String[] props, List<Object[]> keys, List<Object> params) {
+    StringBuilder sb = new StringBuilder();
+    if (props.length == 1) {
+      List<Object> values = new ArrayList<>();
+      boolean withNull = false;
+      for (Object[] key : keys) {
+        if (key[0] == null) {
+          withNull = true;
+        } else {
+          values.add(key[0]);
+        }
+      }
+      if (!values.isEmpty()) {
+        params.add(values);
+        sb.append(" WHERE e.").append(props[0]).append(" IN ?").append(params.size());
+      }
+      if (withNull) {
+        sb.append(sb.length() == 0 ? " WHERE " : " OR ").append("e.").append(props[0]).append(" IS NULL");
+      }
+    } else {
+      for (Object[] key : keys) {
+        sb.append(sb.length() == 0 ? " WHERE (" : " OR (");
+        for (int i = 0; i < props.length; i++) {
+          sb.append((i > 0) ? " AND e." : "e.").append(props[i]);
+          if (key[i] == null) {
+            sb.append(" IS NULL");
+          } else {
+            params.add(key[i]);
+            sb.append(" = ?").append(params.size());
+          }
+        }
+        sb.append(")");
+      }
+    }
+    return sb.toString();
+  }
+
   /**
    * Retourne une clause SELECT avec l'une des functions d'agrégation AVG, SUM, MIN, MAX
    * ou COUNT.
@@ -243,6 +515,66 @@ public class EntityInfo {
             + getTableGeneratorValue("pkColumnValue") + "'";
   }
 
+  /**
+   * Construit une requête native qui réserve un bloc de PK dans la table de séquence
+   * en incrémentant sa valeur courante.
+   *
+   * @param blockSize la taille du bloc à réserver
+   * @return une requête SQL native de mise à jour de la table de séquence
+   */
+  public String buildSeqIncrementClause(long blockSize) {
+    String col = getTableGeneratorValue("valueColumnName");
+    return "UPDATE " + getTableGeneratorValue("table")
+            + " SET " + col + "=" + col + "+" + blockSize
+            + " WHERE " + getTableGeneratorValue("pkColumnName") + "='"
+            + getTableGeneratorValue("pkColumnValue") + "'";
+  }
+
+  /**
+   * Construit une requête native qui lit la valeur courante dans la table de séquence.
+   *
+   * @return une requête SQL native de lecture de la table de séquence
+   */
+  public String buildSeqSelectClause() {
+    return "SELECT " + getTableGeneratorValue("valueColumnName")
+            + " FROM " + getTableGeneratorValue("table")
+            + " WHERE " + getTableGeneratorValue("pkColumnName") + "='"
+            + getTableGeneratorValue("pkColumnValue") + "'";
+  }
+
+  /**
+   * Construit une requête native qui crée la ligne de la classe-entité
+   * dans la table de séquence.
+   *
+   * @param value la valeur initiale de la séquence
+   * @return une requête SQL native d'insertion dans la table de séquence
+   */
+  public String buildSeqInsertClause(long value) {
+    return "INSERT INTO " + getTableGeneratorValue("table")
+            + " (" + getTableGeneratorValue("pkColumnName") + ", "
+            + getTableGeneratorValue("valueColumnName") + ") VALUES ('"
+            + getTableGeneratorValue("pkColumnValue") + "', " + value + ")";
+  }
+
+  /**
+   * Retrouve un attribut dans la classe-entité JPA traitée (ou dans l'une
+   * de ses classes parentes) et le rend accessible.
+   *
+   * @param name le nom de l'attribut à retrouver
+   * @return l'objet Field recherché ou null s'il n'existe pas
+   */
+  public Field findField(String name) {
+    for (Class<?> c = cl; c != null && c != Object.class; c = c.getSuperclass()) {
+      try {
+        Field fld = c.getDeclaredField(name);
+        fld.setAccessible(true);
+        return fld;
+      } catch (NoSuchFieldException ex) {
+      }
+    }
+    return null;
+  }
+
   /**
    * Retrouve une méthode dans la classe-entité JPA traitée.
    *
@@ -250,9 +582,11 @@ public class EntityInfo {
    * @return l'objet Method recherché
    */
   public Method findMethod(String method) {
-    for (Method m : cl.getDeclaredMethods()) {
-      if (m.getName().toLowerCase().contains(method.toLowerCase())) {
-        return m;
+    for (Class<?> c = cl; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Method m : c.getDeclaredMethods()) {
+        if (m.getName().toLowerCase().contains(method.toLowerCase())) {
+          return m;
+        }
       }
     }
     return null;
@@ -389,6 +723,20 @@ public class EntityInfo {
     return q;
   }
 
+  /**
+   * Retourne la clause "WHERE" d'une requête JPQL avec les filtres d'un objet
+   * "Search" et une condition de pagination par clé ("keyset") sur la PK :
+   * la dernière PK lue est le paramètre qui suit ceux des filtres.
+   *
+   * @param search l'objet de recherche qui limite la recherche
+   * @return la clause "where" en JPQL
+   */
+  public String getKeysetWhereClause(Search search) {
+    String where = getWhereClause(search);
+    String q = where.isEmpty() ? " WHERE " : " WHERE (" + where.substring(" WHERE".length()).trim() + ") AND ";
+    return q + "e." + getPkName() + " > ?" + (getParams(search).length + 1);
+  }
+
   /**
    * Retourne la clause "GROUP BY" d'une requête JPQL en utilisant la liste des champs
    * ajoutés dans un objet "Search" avec des "addGroupByField".
@@ -0,0 +1,92 @@
+package ch.emf.dao.models;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Options de l'exécution en flux d'un script SQL (voir JpaDao.executeScript) :<br>
+ * - un ancien et un nouveau nom de BD (commandes "CREATE/DROP SCHEMA" et "USE"); <br>
+ * - le nombre de commandes de mise à jour consécutives regroupées dans un lot JDBC; <br>
+ * - le nombre de commandes entre deux validations (0 = une seule transaction); <br>
+ * - le nombre de commandes déjà exécutées à sauter (reprise d'un script interrompu); <br>
+ * - un écouteur informé du nombre de commandes validées après chaque validation. <br>
+ * <br>
+ * Pour reprendre un script interrompu, il suffit de mémoriser la dernière
+ * valeur reçue par l'écouteur et de la donner à setSkipStatements.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class ScriptOptions {
+  private String oldDbName;
+  private String newDbName;
+  private int batchSize;
+  private int commitInterval;
+  private long skipStatements;
+  private LongConsumer progressListener;
+
+  /**
+   * Constructeur avec des lots de 500 commandes et une seule transaction.
+   */
+  public ScriptOptions() {
+    this.oldDbName = null;
+    this.newDbName = null;
+    this.batchSize = 500;
+    this.commitInterval = 0;
+    this.skipStatements = 0;
+    this.progressListener = null;
+  }
+
+  public String getOldDbName() {
+    return oldDbName;
+  }
+
+  public String getNewDbName() {
+    return newDbName;
+  }
+
+  /**
+   * Définit un ancien nom de BD contenu dans le script et le nouveau nom qui
+   * le remplace.
+   *
+   * @param oldDbName un ancien nom de BD contenu dans le script
+   * @param newDbName un nouveau nom de BD
+   */
+  public void setDbNames(String oldDbName, String newDbName) {
+    this.oldDbName = oldDbName;
+    this.newDbName = newDbName;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize) {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  public int getCommitInterval() {
+    return commitInterval;
+  }
+
+  public void setCommitInterval(int commitInterval) {
+    this.commitInterval = Math.max(0, commitInterval);
+  }
+
+  public long getSkipStatements() {
+    return skipStatements;
+  }
+
+  public void setSkipStatements(long skipStatements) {
+    this.skipStatements = Math.max(0, skipStatements);
+  }
+
+  public LongConsumer getProgressListener() {
+    return progressListener;
+  }
+
+  public void setProgressListener(LongConsumer progressListener) {
+    this.progressListener = progressListener;
+  }
+
+}
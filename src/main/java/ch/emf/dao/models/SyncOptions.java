@@ -0,0 +1,73 @@
+package ch.emf.dao.models;
+
+/**
+ * Options d'une synchronisation complète d'une table avec une liste d'objets
+ * (voir JpaDao.syncList) :<br>
+ * - le ou les attributs qui identifient un objet (par défaut la PK); <br>
+ * - la suppression ou non des lignes absentes de la liste; <br>
+ * - la taille des lots de lecture et d'écriture; <br>
+ * - les attributs ignorés lors de la comparaison du contenu. <br>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class SyncOptions {
+  private String[] keyFields;
+  private boolean deleteMissing;
+  private int chunkSize;
+  private String[] ignoredFields;
+
+  /**
+   * Constructeur avec la PK comme clé, sans suppression et avec des lots de 500 objets.
+   */
+  public SyncOptions() {
+    this.keyFields = new String[0];
+    this.deleteMissing = false;
+    this.chunkSize = 500;
+    this.ignoredFields = new String[0];
+  }
+
+  /**
+   * Constructeur avec une clé naturelle (simple ou composée).
+   *
+   * @param keyFields le ou les attributs qui forment la clé naturelle
+   */
+  public SyncOptions(String... keyFields) {
+    this();
+    this.keyFields = keyFields;
+  }
+
+  public String[] getKeyFields() {
+    return keyFields;
+  }
+
+  public void setKeyFields(String... keyFields) {
+    this.keyFields = keyFields;
+  }
+
+  public boolean isDeleteMissing() {
+    return deleteMissing;
+  }
+
+  public void setDeleteMissing(boolean deleteMissing) {
+    this.deleteMissing = deleteMissing;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize) {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  public String[] getIgnoredFields() {
+    return ignoredFields;
+  }
+
+  public void setIgnoredFields(String... ignoredFields) {
+    this.ignoredFields = ignoredFields;
+  }
+
+}
@@ -0,0 +1,105 @@
+package ch.emf.dao.models;
+
+/**
+ * Résumé des différences traitées par une synchronisation complète d'une
+ * table (voir JpaDao.syncList) : nombre de lignes ajoutées, modifiées,
+ * supprimées et inchangées.
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class SyncReport {
+  private int inserted;
+  private int updated;
+  private int deleted;
+  private int unchanged;
+  private int duplicates;
+  private boolean complete;
+
+  public SyncReport() {
+    inserted = 0;
+    updated = 0;
+    deleted = 0;
+    unchanged = 0;
+    duplicates = 0;
+    complete = true;
+  }
+
+  public int getInserted() {
+    return inserted;
+  }
+
+  public void setInserted(int inserted) {
+    this.inserted = inserted;
+  }
+
+  public int getUpdated() {
+    return updated;
+  }
+
+  public void setUpdated(int updated) {
+    this.updated = updated;
+  }
+
+  public int getDeleted() {
+    return deleted;
+  }
+
+  public void setDeleted(int deleted) {
+    this.deleted = deleted;
+  }
+
+  public int getUnchanged() {
+    return unchanged;
+  }
+
+  public void setUnchanged(int unchanged) {
+    this.unchanged = unchanged;
+  }
+
+  /**
+   * Retourne le nombre d'objets ignorés car leur clé apparaît plusieurs fois
+   * dans la liste (seul le premier objet est pris en compte).
+   *
+   * @return le nombre de doublons
+   */
+  public int getDuplicates() {
+    return duplicates;
+  }
+
+  public void setDuplicates(int duplicates) {
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * Retourne FALSE si une des écritures (ajouts, modifications ou suppressions)
+   * a échoué. Les compteurs indiquent alors les écritures réellement effectuées.
+   *
+   * @return true si toutes les écritures ont réussi
+   */
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public void setComplete(boolean complete) {
+    this.complete = complete;
+  }
+
+  /**
+   * Retourne le nombre total d'écritures effectuées dans la BD.
+   *
+   * @return le nombre d'ajouts, de modifications et de suppressions
+   */
+  public int getWriteCount() {
+    return inserted + updated + deleted;
+  }
+
+  @Override
+  public String toString() {
+    return "SyncReport{inserted=" + inserted + ", updated=" + updated + ", deleted=" + deleted
+            + ", unchanged=" + unchanged + ", duplicates=" + duplicates
+            + (complete ? "" : ", incomplete") + "}";
+  }
+
+}
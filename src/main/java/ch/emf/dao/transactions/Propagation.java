@@ -0,0 +1,23 @@
+package ch.emf.dao.transactions;
+
+/**
+ * Mode de propagation d'un scope transactionnel (voir JpaDao.inTransaction).
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public enum Propagation {
+
+  /**
+   * Se joint à la transaction en cours ou en démarre une nouvelle s'il n'y en a pas.
+   */
+  REQUIRED,
+
+  /**
+   * Suspend la transaction en cours et démarre une transaction indépendante
+   * (sur un entity-manager séparé), validée à la fin du scope.
+   */
+  REQUIRES_NEW
+
+}
@@ -0,0 +1,295 @@
+package ch.emf.dao.transactions;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+
+/**
+ * Politique de reprise automatique d'une unité de travail de la couche DAO
+ * lorsqu'une erreur passagère survient (conflit de verrouillage optimiste,
+ * deadlock, délai d'attente d'un verrou dépassé).<br>
+ * <br>
+ * Entre deux tentatives, une pause exponentielle avec une part aléatoire
+ * ("jitter") est effectuée pour éviter que les transactions concurrentes
+ * se rencontrent à nouveau. Par défaut, aucune reprise n'est effectuée
+ * (une seule tentative).<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   RetryPolicy policy = new RetryPolicy(5, 20, 1000);
+ *   policy.setMergeOnConflict(true);
+ *   dao.setRetryPolicy(policy);
+ *   ...
+ *   System.out.println(policy.getRetryCount() + " / " + policy.getGiveUpCount());
+ * </pre>
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ */
+public class RetryPolicy {
+  private static final int MYSQL_DEADLOCK = 1213;
+  private static final int MYSQL_LOCK_WAIT_TIMEOUT = 1205;
+
+  private int maxAttempts;
+  private long initialDelay;
+  private long maxDelay;
+  private boolean mergeOnConflict;
+  private final List<Class<? extends Throwable>> retryableExceptions;
+  private final Set<String> retryableSqlStates;
+  private final Set<Integer> retryableErrorCodes;
+
+  private final AtomicLong retryCount;
+  private final AtomicLong giveUpCount;
+
+  /**
+   * Constructeur complet.
+   *
+   * @param maxAttempts  le nombre maximum de tentatives (1 = pas de reprise)
+   * @param initialDelay la pause initiale avant la 1ère reprise [ms]
+   * @param maxDelay     la pause maximale entre deux tentatives [ms]
+   */
+  public RetryPolicy(int maxAttempts, long initialDelay, long maxDelay) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    this.initialDelay = Math.max(0, initialDelay);
+    this.maxDelay = Math.max(this.initialDelay, maxDelay);
+    this.mergeOnConflict = false;
+    retryableExceptions = new ArrayList<>();
+    retryableExceptions.add(OptimisticLockException.class);
+    retryableExceptions.add(org.eclipse.persistence.exceptions.OptimisticLockException.class);
+    retryableExceptions.add(PessimisticLockException.class);
+    retryableExceptions.add(LockTimeoutException.class);
+    retryableExceptions.add(SQLTransactionRollbackException.class);
+    retryableSqlStates = new HashSet<>();
+    retryableSqlStates.add("40001"); // serialization failure / deadlock
+    retryableSqlStates.add("40P01"); // deadlock (PostgreSQL)
+    retryableSqlStates.add("HYT00"); // lock timeout (H2)
+    retryableErrorCodes = new HashSet<>();
+    retryableErrorCodes.add(MYSQL_DEADLOCK);
+    retryableErrorCodes.add(MYSQL_LOCK_WAIT_TIMEOUT);
+    retryCount = new AtomicLong();
+    giveUpCount = new AtomicLong();
+  }
+
+  /**
+   * Constructeur par défaut : une seule tentative (pas de reprise).
+   */
+  public RetryPolicy() {
+    this(1, 0, 0);
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+  }
+
+  public long getInitialDelay() {
+    return initialDelay;
+  }
+
+  public void setInitialDelay(long initialDelay) {
+    this.initialDelay = Math.max(0, initialDelay);
+  }
+
+  public long getMaxDelay() {
+    return maxDelay;
+  }
+
+  public void setMaxDelay(long maxDelay) {
+    this.maxDelay = Math.max(initialDelay, maxDelay);
+  }
+
+  /**
+   * Retourne TRUE si, lors d'un conflit de verrouillage optimiste dans un
+   * "update", l'objet doit être fusionné à nouveau avec la version actuelle
+   * de la BD (la dernière modification l'emporte).
+   *
+   * @return true si la fusion est autorisée après un conflit
+   */
+  public boolean isMergeOnConflict() {
+    return mergeOnConflict;
+  }
+
+  public void setMergeOnConflict(boolean mergeOnConflict) {
+    this.mergeOnConflict = mergeOnConflict;
+  }
+
+  /**
+   * Ajoute un type d'exception (et ses sous-classes) à considérer comme passagère.
+   *
+   * @param exClass une classe d'exception
+   */
+  public void addRetryableException(Class<? extends Throwable> exClass) {
+    retryableExceptions.add(exClass);
+  }
+
+  /**
+   * Ajoute un code SQLSTATE à considérer comme une erreur passagère.
+   *
+   * @param sqlState un code SQLSTATE (ex: "40001")
+   */
+  public void addRetryableSqlState(String sqlState) {
+    retryableSqlStates.add(sqlState);
+  }
+
+  /**
+   * Ajoute un code d'erreur propre au SGBD à considérer comme une erreur passagère.
+   *
+   * @param errorCode un code d'erreur du pilote JDBC (ex: 1213 pour MySQL)
+   */
+  public void addRetryableErrorCode(int errorCode) {
+    retryableErrorCodes.add(errorCode);
+  }
+
+
+
+  /**
+   * Retourne le nombre total de reprises effectuées avec cette politique.
+   *
+   * @return le nombre de reprises
+   */
+  public long getRetryCount() {
+    return retryCount.get();
+  }
+
+  /**
+   * Retourne le nombre d'abandons (erreur passagère encore présente après
+   * la dernière tentative).
+   *
+   * @return le nombre d'abandons
+   */
+  public long getGiveUpCount() {
+    return giveUpCount.get();
+  }
+
+  /**
+   * Remet à zéro les compteurs de reprises et d'abandons.
+   */
+  public void resetCounters() {
+    retryCount.set(0);
+    giveUpCount.set(0);
+  }
+
+
+
+  /**
+   * Détermine si une exception (ou l'une de ses causes) représente une erreur
+   * passagère qui justifie une nouvelle tentative.
+   *
+   * @param ex l'exception levée lors de l'unité de travail
+   * @return true si l'erreur est passagère
+   */
+  public boolean isRetryable(Throwable ex) {
+    Set<Throwable> seen = new HashSet<>();
+    Throwable t = ex;
+    while (t != null && seen.add(t)) {
+      for (Class<? extends Throwable> exClass : retryableExceptions) {
+        if (exClass.isInstance(t)) {
+          return true;
+        }
+      }
+      if (t instanceof SQLException) {
+        SQLException sqlEx = (SQLException) t;
+        if ((sqlEx.getSQLState() != null && retryableSqlStates.contains(sqlEx.getSQLState()))
+                || retryableErrorCodes.contains(sqlEx.getErrorCode())) {
+          return true;
+        }
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Détermine si une exception (ou l'une de ses causes) représente un conflit
+   * de verrouillage optimiste.
+   *
+   * @param ex l'exception levée lors de l'unité de travail
+   * @return true s'il s'agit d'un conflit de verrouillage optimiste
+   */
+  public boolean isConflict(Throwable ex) {
+    Set<Throwable> seen = new HashSet<>();
+    Throwable t = ex;
+    while (t != null && seen.add(t)) {
+      if (t instanceof OptimisticLockException
+              || t instanceof org.eclipse.persistence.exceptions.OptimisticLockException) {
+        return true;
+      }
+      t = t.getCause();
+    }
+    return false;
+  }
+
+  /**
+   * Détermine si une nouvelle tentative doit être effectuée après l'échec
+   * de la tentative spécifiée. Met à jour les compteurs de reprises et d'abandons.
+   *
+   * @param ex      l'exception levée lors de l'unité de travail
+   * @param attempt le numéro de la tentative qui a échoué (dès 1)
+   * @return true s'il faut effectuer une nouvelle tentative
+   */
+  public boolean shouldRetry(Throwable ex, int attempt) {
+    boolean retry = false;
+    if (isRetryable(ex)) {
+      retry = attempt < maxAttempts;
+      if (retry) {
+        retryCount.incrementAndGet();
+      } else if (maxAttempts > 1) {
+        giveUpCount.incrementAndGet();
+      }
+    }
+    return retry;
+  }
+
+  /**
+   * Calcule la pause avant la tentative suivante : croissance exponentielle
+   * limitée à "maxDelay", puis tirage aléatoire entre la moitié et la
+   * totalité de cette valeur.
+   *
+   * @param attempt le numéro de la tentative qui a échoué (dès 1)
+   * @return la pause en millisecondes
+   */
+  public long getDelay(int attempt) {
+    long delay = initialDelay;
+    for (int i = 1; i < attempt && delay < maxDelay; i++) {
+      delay = delay * 2;
+    }
+    delay = Math.min(delay, maxDelay);
+    if (delay > 1) {
+      delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+    return delay;
+  }
+
+  /**
+   * Effectue la pause prévue avant la tentative suivante.
+   *
+   * @param attempt le numéro de la tentative qui a échoué (dès 1)
+   */
+  public void pause(int attempt) {
+    long delay = getDelay(attempt);
+    if (delay > 0) {
+      try {
+        Thread.sleep(delay);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+}
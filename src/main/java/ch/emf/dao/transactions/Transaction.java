@@ -1,6 +1,7 @@
 package ch.emf.dao.transactions;
 
 import javax.persistence.EntityTransaction;
+import javax.persistence.RollbackException;
 import javax.transaction.Status;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
@@ -11,9 +12,13 @@ import javax.transaction.UserTransaction;
  * <br>
  * Le mode par défaut est le mode "autocommit" où chaque modification de type
  * CRUD  sera validée automatiquement et immédiatement dans la BD. <br>
+ * Une transaction n'est démarrée qu'au moment de la première écriture (début
+ * "paresseux") et aucune transaction ne reste ouverte entre deux appels à la
+ * couche DAO. <br>
  * Exemple d'utilisation interne pour un "create" :<br>
  * <pre>
  *   try {
+ *     tr.beginIfNeeded();
  *     em.persist(p);
  *     tr.commit();
  *   } catch (Exception ex1) {
@@ -46,6 +51,11 @@ import javax.transaction.UserTransaction;
  *     tr.finishManualTransaction();
  *   }
  * </pre>
+ * <br>
+ * Plusieurs appels à la couche DAO peuvent aussi partager une seule validation
+ * grâce à un "scope" transactionnel (voir JpaDao.inTransaction). À l'intérieur
+ * d'un scope, les transactions manuelles des méthodes de la couche DAO se joignent
+ * à la transaction du scope et une erreur la marque pour une annulation finale.
  *
  * @author P.-A. mettraux / J.-C. Stritt
  *
@@ -57,6 +67,7 @@ public class Transaction {
   private EntityTransaction et;
   private UserTransaction ut;
   private boolean autoCommit; 
+  private int depth;
 
   public Transaction(EntityTransaction et) {
     this.et = et;
@@ -71,6 +82,7 @@ public class Transaction {
   }
 
   private void init(boolean auto) {
+    depth = 0;
     autoCommit = isActive(); // false; // change JCS 30.12.2016
     if (auto) {
       setAutoCommitOn();
@@ -90,12 +102,15 @@ public class Transaction {
   private void commitNow() throws Exception {
     if (isActive()) {
       if (et != null) {
+        if (et.getRollbackOnly()) {
+          et.rollback();
+          throw new RollbackException("Transaction marked for rollback only");
+        }
         et.commit();
       } else if (ut != null) {
         ut.commit();
       }
     }
-    if (autoCommit) begin();
   }
 
   private void rollbackNow() throws Exception {
@@ -106,7 +121,6 @@ public class Transaction {
         ut.rollback();
       }
     }
-    if (autoCommit) begin();
   }
 
   private void setAutoCommitOn() {
@@ -185,6 +199,122 @@ public class Transaction {
     }
   }
 
+  /**
+   * Débute une transaction seulement si aucune n'est déjà engagée (début "paresseux"
+   * juste avant une écriture). Sans effet pour une transaction JTA (UserTransaction)
+   * qui reste sous le contrôle de l'appelant.
+   *
+   * @throws java.lang.Exception l'exception remontée au niveau supérieur
+   */
+  public void beginIfNeeded() throws Exception {
+    if (et != null && !et.isActive()) {
+      et.begin();
+    }
+  }
+
+  /**
+   * Marque la transaction courante pour qu'elle soit annulée lors de sa validation.
+   */
+  public void setRollbackOnly() {
+    try {
+      if (isActive()) {
+        if (et != null) {
+          et.setRollbackOnly();
+        } else if (ut != null) {
+          ut.setRollbackOnly();
+        }
+      }
+    } catch (Exception e) {
+    }
+  }
+
+  /**
+   * Retourne TRUE si la transaction courante est marquée pour être annulée.
+   *
+   * @return true si la transaction sera annulée
+   */
+  public boolean isRollbackOnly() {
+    boolean ro = false;
+    try {
+      if (et != null) {
+        ro = et.isActive() && et.getRollbackOnly();
+      } else if (ut != null) {
+        ro = ut.getStatus() == Status.STATUS_MARKED_ROLLBACK;
+      }
+    } catch (Exception e) {
+    }
+    return ro;
+  }
+
+  /**
+   * Retourne le niveau d'imbrication des scopes transactionnels en cours
+   * (0 = aucun scope).
+   *
+   * @return le niveau d'imbrication
+   */
+  public int getNestingLevel() {
+    return depth;
+  }
+
+  /**
+   * Entre dans un scope transactionnel. Le premier scope (celui qui démarre
+   * la transaction) passe en mode manuel et débute la transaction, les scopes
+   * imbriqués se joignent simplement à celle-ci.
+   *
+   * @return TRUE si ce scope est propriétaire de la transaction (il doit la valider)
+   */
+  public boolean enterScope() {
+    boolean owner = autoCommit;
+    if (owner) {
+      setAutoCommitOff();
+      try {
+        beginIfNeeded();
+      } catch (Exception e) {
+      }
+    }
+    depth++;
+    return owner;
+  }
+
+  /**
+   * Valide (ou annule si elle est marquée comme telle) la transaction d'un scope
+   * propriétaire.
+   *
+   * @throws java.lang.Exception l'exception remontée au niveau supérieur
+   */
+  public void commitScope() throws Exception {
+    commitNow();
+  }
+
+  /**
+   * Annule la transaction d'un scope propriétaire ou marque la transaction
+   * pour une annulation finale depuis un scope imbriqué.
+   *
+   * @param owner TRUE si le scope est propriétaire de la transaction
+   */
+  public void rollbackScope(boolean owner) {
+    if (owner) {
+      try {
+        rollbackNow();
+      } catch (Exception e) {
+      }
+    } else {
+      setRollbackOnly();
+    }
+  }
+
+  /**
+   * Sort d'un scope transactionnel. Le scope propriétaire remet l'autocommit à true.
+   *
+   * @param owner TRUE si le scope est propriétaire de la transaction
+   */
+  public void exitScope(boolean owner) {
+    depth = Math.max(0, depth - 1);
+    if (owner) {
+      setAutoCommitOn();
+    }
+  }
+
   /**
    * Validation automatique d'une transaction dans JpaDao si l'autocommit est à true.
    *
@@ -209,37 +339,54 @@ public class Transaction {
 
   /**
    * Débute une transaction manuelle en mettant l'auto-commit à false.
+   * Dans un scope transactionnel, la transaction du scope est simplement reprise.
    */
   public void beginManualTransaction() {
-    setAutoCommit(false);
+    if (depth == 0) {
+      setAutoCommit(false);
+      try {
+        beginIfNeeded();
+      } catch (Exception e) {
+      }
+    }
   }
 
   /**
    * Termine une transaction manuelle en remettant l'auto-commit à true.
+   * Sans effet dans un scope transactionnel.
    */
   public void finishManualTransaction() {
-    setAutoCommit(true);
+    if (depth == 0) {
+      setAutoCommit(true);
+    }
   }
 
   /**
    * Validation manuelle d'une transaction si l'autocommit est à false.
+   * Dans un scope transactionnel, la validation est laissée au scope.
    *
    * @throws java.lang.Exception l'exception remontée au niveau supérieur
    */
   public void commitManualTransaction() throws Exception {
-    if (!autoCommit) {
+    if (!autoCommit && depth == 0) {
       commitNow();
     }
   }
 
   /**
    * Annulation manuelle d'une transaction si l'autocommit est à false.
+   * Dans un scope transactionnel, la transaction est seulement marquée
+   * pour être annulée par le scope.
    *
    * @throws java.lang.Exception l'exception remontée au niveau supérieur
    */
   public void rollbackManualTransaction() throws Exception {
     if (!autoCommit) {
-      rollbackNow();
+      if (depth == 0) {
+        rollbackNow();
+      } else {
+        setRollbackOnly();
+      }
     }
   }
 
@@ -0,0 +1,408 @@
+package ch.emf.dao.transactions;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.helpers.Logger;
+import ch.emf.dao.models.EntityInfo;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tampon d'écriture différée ("write-behind") avec validation groupée.
+ * Les ajouts, modifications et suppressions sont mis en file d'attente et écrits
+ * dans la BD par lots, chaque lot dans une seule transaction (un seul "commit").
+ * Un lot est écrit dès que la taille maximale est atteinte, périodiquement si
+ * l'écriture périodique est démarrée, ou lors d'un appel explicite à "flush".
+ * Les écritures déclenchées par la taille maximale sont confiées au "thread"
+ * d'écriture du tampon : le thread qui dépose une opération n'est jamais
+ * bloqué par un "flush".<br>
+ * <br>
+ * Chaque opération retourne un "future" qui est complété après la validation
+ * de son lot (avec le code de retour de la couche DAO). Si un lot échoue, il est
+ * coupé en deux et chaque moitié est rejouée dans sa propre transaction, ceci
+ * jusqu'à isoler les seules opérations fautives dont le "future" est alors
+ * complété avec une exception.<br>
+ * <br>
+ * Exemple d'utilisation :<br>
+ * <pre>
+ *   WriteBehindBuffer wb = new WriteBehindBuffer(dao, 500);
+ *   wb.start(200, TimeUnit.MILLISECONDS);
+ *   ...
+ *   CompletableFuture&lt;Integer&gt; f = wb.create(activite);
+ *   ...
+ *   wb.stop(); // écrit encore les opérations en attente
+ * </pre>
+ * <br>
+ * Attention, l'entity-manager de la couche DAO n'est pas "thread-safe". Les
+ * opérations peuvent être déposées depuis plusieurs threads, mais la couche DAO
+ * fournie doit être dédiée à ce tampon (connectée avec sa propre unité de
+ * persistance), car les écritures se font depuis le thread d'écriture du
+ * tampon (ou depuis le thread qui appelle "flush" ou "stop").
+ *
+ * @author jcstritt
+ *
+ * @opt nodefillcolor LemonChiffon
+ * @depend - - - JpaDaoAPI
+ */
+public class WriteBehindBuffer {
+  private final Class<?> clazz;
+  private final JpaDaoAPI dao;
+  private final ConcurrentLinkedQueue<Mutation> queue;
+  private final AtomicInteger pending;
+  private final AtomicLong committedCount;
+  private final AtomicLong failedCount;
+  private final AtomicLong transactionCount;
+  private final AtomicBoolean flushRequested;
+  private final Object flushLock;
+  private int maxBatchSize;
+  private ScheduledExecutorService scheduler;
+  private ScheduledFuture<?> periodic;
+
+  /**
+   * Constructeur.
+   *
+   * @param dao          la couche DAO utilisée pour écrire les lots dans la BD
+   * @param maxBatchSize le nombre d'opérations en attente qui déclenche un "flush"
+   */
+  public WriteBehindBuffer(JpaDaoAPI dao, int maxBatchSize) {
+    this.clazz = this.getClass();
+    this.dao = dao;
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+    this.queue = new ConcurrentLinkedQueue<>();
+    this.pending = new AtomicInteger();
+    this.committedCount = new AtomicLong();
+    this.failedCount = new AtomicLong();
+    this.transactionCount = new AtomicLong();
+    this.flushRequested = new AtomicBoolean();
+    this.flushLock = new Object();
+    this.scheduler = null;
+    this.periodic = null;
+  }
+
+
+
+  /* GETTER AND SETTER */
+
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  public void setMaxBatchSize(int maxBatchSize) {
+    this.maxBatchSize = Math.max(1, maxBatchSize);
+  }
+
+  /**
+   * Retourne le nombre d'opérations en attente d'écriture.
+   *
+   * @return le nombre d'opérations en attente
+   */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /**
+   * Retourne le nombre d'opérations validées dans la BD.
+   *
+   * @return le nombre d'opérations validées
+   */
+  public long getCommittedCount() {
+    return committedCount.get();
+  }
+
+  /**
+   * Retourne le nombre d'opérations isolées en erreur.
+   *
+   * @return le nombre d'opérations en erreur
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  /**
+   * Retourne le nombre de transactions effectuées (y compris celles
+   * des lots rejoués après une erreur).
+   *
+   * @return le nombre de transactions
+   */
+  public long getTransactionCount() {
+    return transactionCount.get();
+  }
+
+
+
+  /**
+   * Méthode privée pour retourner le "thread" d'écriture du tampon (créé
+   * lors du premier appel).
+   */
+  private synchronized ScheduledExecutorService getScheduler() {
+    if (scheduler == null) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "write-behind-buffer");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return scheduler;
+  }
+
+  /**
+   * Méthode privée pour écrire les opérations en attente depuis le "thread"
+   * d'écriture du tampon (les erreurs sont seulement journalisées).
+   */
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (Exception ex) {
+      Logger.error(clazz, ex.getMessage());
+    }
+  }
+
+  /**
+   * Méthode privée pour mettre une opération en file d'attente et demander
+   * un "flush" au thread d'écriture si la taille maximale d'un lot est atteinte.
+   */
+  private CompletableFuture<Integer> enqueue(Mutation m) {
+    queue.add(m);
+    if (pending.incrementAndGet() >= maxBatchSize && flushRequested.compareAndSet(false, true)) {
+      getScheduler().execute(() -> {
+        flushRequested.set(false);
+        flushQuietly();
+      });
+    }
+    return m.future;
+  }
+
+  /**
+   * Ajoute un objet dans la persistance lors du prochain "flush".
+   *
+   * @param e l'objet à ajouter
+   * @return un "future" complété avec le résultat de "create" après la validation
+   */
+  public CompletableFuture<Integer> create(Object e) {
+    return enqueue(new Mutation(Operation.CREATE, e.getClass(), e, null));
+  }
+
+  /**
+   * Modifie un objet dans la persistance lors du prochain "flush".
+   *
+   * @param e l'objet à modifier
+   * @return un "future" complété avec le résultat de "update" après la validation
+   */
+  public CompletableFuture<Integer> update(Object e) {
+    return enqueue(new Mutation(Operation.UPDATE, e.getClass(), e, null));
+  }
+
+  /**
+   * Supprime un objet de la persistance lors du prochain "flush".
+   *
+   * @param cl une classe entité managée par JPA
+   * @param pk une pk pour identifier l'objet à supprimer
+   * @return un "future" complété avec le résultat de "delete" après la validation
+   */
+  public CompletableFuture<Integer> delete(Class<?> cl, Object pk) {
+    return enqueue(new Mutation(Operation.DELETE, cl, null, pk));
+  }
+
+  /**
+   * Écrit dans la BD toutes les opérations en attente, par lots de
+   * "maxBatchSize" opérations (une transaction par lot).
+   *
+   * @return le nombre d'opérations validées dans la BD
+   */
+  public int flush() {
+    int n = 0;
+    synchronized (flushLock) {
+      List<Mutation> batch = new ArrayList<>();
+      Mutation m;
+      while ((m = queue.poll()) != null) {
+        pending.decrementAndGet();
+        batch.add(m);
+        if (batch.size() >= maxBatchSize) {
+          n += commitBatch(batch);
+          batch = new ArrayList<>();
+        }
+      }
+      if (!batch.isEmpty()) {
+        n += commitBatch(batch);
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour écrire un lot dans une seule transaction. En cas d'erreur,
+   * le lot est coupé en deux et chaque moitié est rejouée séparément.
+   */
+  private int commitBatch(List<Mutation> batch) {
+    int n = 0;
+    transactionCount.incrementAndGet();
+    try {
+      List<Integer> results = dao.inTransaction(() -> {
+        List<Integer> r = new ArrayList<>(batch.size());
+        for (Mutation m : batch) {
+          r.add(apply(m));
+        }
+        return r;
+      });
+      for (int i = 0; i < batch.size(); i++) {
+        batch.get(i).future.complete(results.get(i));
+      }
+      n = batch.size();
+      committedCount.addAndGet(n);
+    } catch (RuntimeException ex) {
+      for (Mutation m : batch) {
+        m.restore();
+      }
+      dao.clear();
+      if (batch.size() == 1) {
+        Mutation m = batch.get(0);
+        failedCount.incrementAndGet();
+        Logger.error(clazz, m, ex.getMessage());
+        m.future.completeExceptionally(new JpaException(clazz.getSimpleName(), m.toString(), ex.getMessage()));
+      } else {
+        int half = batch.size() / 2;
+        n += commitBatch(new ArrayList<>(batch.subList(0, half)));
+        n += commitBatch(new ArrayList<>(batch.subList(half, batch.size())));
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Méthode privée pour appliquer une opération avec la couche DAO
+   * (à l'intérieur de la transaction du lot).
+   */
+  private int apply(Mutation m) {
+    int n;
+    switch (m.op) {
+      case CREATE:
+        n = dao.create(m.entity);
+        break;
+      case UPDATE:
+        n = dao.update(m.entity);
+        break;
+      default:
+        n = dao.delete(m.cl, m.pk);
+        break;
+    }
+    return n;
+  }
+
+  /**
+   * Démarre l'écriture périodique des opérations en attente.
+   *
+   * @param period la période entre deux écritures
+   * @param unit   l'unité de temps de cette période
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (periodic == null) {
+      periodic = getScheduler().scheduleWithFixedDelay(this::flushQuietly, period, period, unit);
+    }
+  }
+
+  /**
+   * Arrête l'écriture périodique (et le thread d'écriture) et écrit encore
+   * une dernière fois les opérations en attente.
+   */
+  public void stop() {
+    ScheduledExecutorService s;
+    synchronized (this) {
+      s = scheduler;
+      scheduler = null;
+      periodic = null;
+    }
+    if (s != null) {
+      s.shutdown();
+      try {
+        s.awaitTermination(30, TimeUnit.SECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flush();
+  }
+
+  /**
+   * Type d'opération mise en file d'attente.
+   */
+  private enum Operation {
+    CREATE, UPDATE, DELETE
+  }
+
+  /**
+   * Opération en attente avec son "future". La PK et la version de l'objet
+   * sont mémorisées pour pouvoir rejouer l'opération après une annulation
+   * (un ajout retrouve sa PK d'origine, une modification sa version).
+   */
+  private class Mutation {
+    private final Operation op;
+    private final Class<?> cl;
+    private final Object entity;
+    private final Object pk;
+    private final CompletableFuture<Integer> future;
+    private Object savedPk;
+    private Object savedVersion;
+
+    Mutation(Operation op, Class<?> cl, Object entity, Object pk) {
+      this.op = op;
+      this.cl = cl;
+      this.entity = entity;
+      this.pk = pk;
+      this.future = new CompletableFuture<>();
+      EntityInfo ei = (entity != null) ? dao.getEntityInfo(cl) : null;
+      if (ei != null) {
+        try {
+          Method getter = ei.findMethod("getPk");
+          if (getter != null) {
+            getter.setAccessible(true);
+            savedPk = getter.invoke(entity);
+          }
+          Field vf = ei.getVersionField();
+          if (vf != null) {
+            savedVersion = vf.get(entity);
+          }
+        } catch (Exception ex) {
+          Logger.error(clazz, ex.getMessage());
+        }
+      }
+    }
+
+    void restore() {
+      EntityInfo ei = dao.getEntityInfo(cl);
+      if (entity == null) {
+        dao.getEntityManager().getEntityManagerFactory().getCache().evict(cl, pk);
+      } else if (ei != null) {
+        try {
+          Method setter = (op == Operation.CREATE) ? ei.findMethod("setPk") : null;
+          if (setter != null) {
+            setter.setAccessible(true);
+            setter.invoke(entity, savedPk);
+          }
+          Field vf = ei.getVersionField();
+          if (vf != null && savedVersion != null) {
+            vf.set(entity, savedVersion);
+          }
+        } catch (Exception ex) {
+          Logger.error(clazz, ex.getMessage());
+        }
+      }
+    }
+
+    @Override
+    public String toString() {
+      return op + " " + cl.getSimpleName() + ((pk != null) ? "[" + pk + "]" : "");
+    }
+  }
+
+}
@@ -1,8 +1,6 @@
 package helpers;
 
 import ch.emf.dao.JpaDaoAPI;
-import ch.emf.dao.filtering.Search;
-import ch.emf.dao.transactions.Transaction;
 import ch.jcsinfo.file.TextFileReader;
 import com.google.inject.Inject;
 import java.util.ArrayList;
@@ -10,6 +8,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import models.Activite;
 import models.Canton;
 import models.Conseil;
@@ -44,22 +43,22 @@ public class DbRebuilder {
     System.out.println("Reconstitution de la BD 'parlement' ...");
     System.out.println("  - nb de lignes lues: " + conseillers.size());
 
-    // création de hashmap pour disposer d'entrées uniques triées
+    // création de tables triées pour disposer d'entrées uniques
     System.out.println("  - création de listes simples ... ");
-    Map<String, EtatCivil> mapEtatsCivils = new HashMap<>();
-    Map<String, Canton> mapCantons = new HashMap<>();
-    Map<String, Parti> mapPartis = new HashMap<>();
-    Map<String, Conseil> mapConseils = new HashMap<>();
-    Map<String, Groupe> mapGroupes = new HashMap<>();
+    Map<String, EtatCivil> csvEtatsCivils = new TreeMap<>();
+    Map<String, Canton> csvCantons = new TreeMap<>();
+    Map<String, Parti> csvPartis = new TreeMap<>();
+    Map<String, Conseil> csvConseils = new TreeMap<>();
+    Map<String, Groupe> csvGroupes = new TreeMap<>();
     Map<String, Conseiller> mapConseillers = new HashMap<>();
 
-    // on remplit les hashmap
+    // on remplit les tables
     for (Conseiller c : conseillers) {
-      mapEtatsCivils.put(c.getEtatCivil().getAbrev(), c.getEtatCivil());
-      mapCantons.put(c.getCanton().getAbrev(), c.getCanton());
-      mapPartis.put(c.getParti().getAbrev(), c.getParti());
-      mapConseils.put(c.getConseil().getAbrev(), c.getConseil());
-      mapGroupes.put(c.getGroupe().getAbrev(), c.getGroupe());
+      csvEtatsCivils.put(c.getEtatCivil().getAbrev(), c.getEtatCivil());
+      csvCantons.put(c.getCanton().getAbrev(), c.getCanton());
+      csvPartis.put(c.getParti().getAbrev(), c.getParti());
+      csvConseils.put(c.getConseil().getAbrev(), c.getConseil());
+      csvGroupes.put(c.getGroupe().getAbrev(), c.getGroupe());
 
       // traitement spécial pour la haspmap des conseillers
       Conseiller c2 = mapConseillers.get(c.getKey());
@@ -78,52 +77,28 @@ public class DbRebuilder {
     }
 
     // tri par ordre alphabétique
-    System.out.println("  - tri des listes simples ...");
-    List<EtatCivil> etatsCivils = new ArrayList<>(mapEtatsCivils.values());
-    Collections.sort(etatsCivils);
-    List<Canton> cantons = new ArrayList<>(mapCantons.values());
-    Collections.sort(cantons);
-    List<Parti> partis = new ArrayList<>(mapPartis.values());
-    Collections.sort(partis);
-    List<Conseil> conseils = new ArrayList<>(mapConseils.values());
-    Collections.sort(conseils);
-    List<Groupe> groupes = new ArrayList<>(mapGroupes.values());
-    Collections.sort(groupes);
+    System.out.println("  - tri des conseillers ...");
     List<Conseiller> conseillers2 = new ArrayList<>(mapConseillers.values());
     Collections.sort(conseillers2);
 
-    // ajout dans la BD
+    // objets de la BD (les objets absents sont ajoutés dans l'ordre des abréviations)
     System.out.println("  - ajout des listes simples dans la BD ...");
-    n[0] = dao.insertList(EtatCivil.class, etatsCivils, false);
-    n[1] = dao.insertList(Canton.class, cantons, false);
-    n[2] = dao.insertList(Parti.class, partis, false);
-    n[3] = dao.insertList(Conseil.class,conseils, false);
-    n[4] = dao.insertList(Groupe.class, groupes, false);
-
-    // maj des hashmap avec les objets de la BD
-    for (EtatCivil ec : etatsCivils) {
-      mapEtatsCivils.replace(ec.getAbrev(), ec);
-    }
-    for (Canton ct : cantons) {
-      mapCantons.replace(ct.getAbrev(), ct);
-    }
-    for (Parti pa : partis) {
-      mapPartis.replace(pa.getAbrev(), pa);
-    }
-    for (Conseil co : conseils) {
-      mapConseils.replace(co.getAbrev(), co);
-    }
-    for (Groupe gr : groupes) {
-      mapGroupes.replace(gr.getAbrev(), gr);
-    }
+    Map<String, EtatCivil> mapEtatsCivils = dao.resolve(EtatCivil.class, "abrev", csvEtatsCivils.keySet(), csvEtatsCivils::get);
+    Map<String, Canton> mapCantons = dao.resolve(Canton.class, "abrev", csvCantons.keySet(), csvCantons::get);
+    Map<String, Parti> mapPartis = dao.resolve(Parti.class, "abrev", csvPartis.keySet(), csvPartis::get);
+    Map<String, Conseil> mapConseils = dao.resolve(Conseil.class, "abrev", csvConseils.keySet(), csvConseils::get);
+    Map<String, Groupe> mapGroupes = dao.resolve(Groupe.class, "abrev", csvGroupes.keySet(), csvGroupes::get);
+    n[0] = mapEtatsCivils.size();
+    n[1] = mapCantons.size();
+    n[2] = mapPartis.size();
+    n[3] = mapConseils.size();
+    n[4] = mapGroupes.size();
 
     // maj des conseillers avec les bons objets récupérés des hashmap
     System.out.println("  - màj des conseillers avec les objets de la BD ...");
-    for (Conseiller c : conseillers2) {
-      c.setEtatCivil(mapEtatsCivils.get(c.getEtatCivil().getAbrev()));
-      c.setCanton(mapCantons.get(c.getCanton().getAbrev()));
-      c.setParti(mapPartis.get(c.getParti().getAbrev()));
-    }
+    dao.rewire(conseillers2, "etatCivil", "abrev", mapEtatsCivils);
+    dao.rewire(conseillers2, "canton", "abrev", mapCantons);
+    dao.rewire(conseillers2, "parti", "abrev", mapPartis);
 
     // ajout des conseillers dans la BD et maj de la hashmap avec les objets de la BD
     System.out.println("  - ajout des conseillers dans la BD ...");
@@ -133,43 +108,22 @@ public class DbRebuilder {
     }
 
     System.out.println("  - ajout des activités dans la BD ...");
-    Transaction tr = dao.getTransaction();
-    tr.beginManualTransaction();
-    int i = 0;
+    List<Activite> activites = new ArrayList<>();
     for (Conseiller c : conseillers) {
       Activite act = c.getActivite();
-      act.setConseil(mapConseils.get(c.getConseil().getAbrev()));
-      act.setGroupe(mapGroupes.get(c.getGroupe().getAbrev()));
+      act.setConseil(c.getConseil());
+      act.setGroupe(c.getGroupe());
       act.setConseiller(mapConseillers.get(c.getKey()));
-      n[6] += ajouterActivite(act);
-    }
-    try {
-      tr.commitManualTransaction();
-    } catch (Exception ex) {
+      activites.add(act);
     }
-    tr.finishManualTransaction();
+    dao.rewire(activites, "conseil", "abrev", mapConseils);
+    dao.rewire(activites, "groupe", "abrev", mapGroupes);
+    n[6] = dao.insertIfAbsent(Activite.class, activites,
+            "dateEntree", "dateSortie", "conseiller", "conseil", "groupe")[0];
     System.out.println("Fin de la reconstitution de la BD ... " + n[6]);
 
     // résultat
     return n[0] > 0 && n[1] > 0 && n[2] > 0 && n[3] > 0 && n[4] > 0 && n[5] > 0 && n[6] > 0;
   }
 
-  private int ajouterActivite(Activite activite) {
-    Search s = new Search(Activite.class);
-    s.addFilterEqual("dateEntree", activite.getDateEntree());
-    s.addFilterAnd();
-    s.addFilterEqual("dateSortie", activite.getDateSortie());
-    s.addFilterAnd();
-    s.addFilterEqual("conseiller", activite.getConseiller());
-    s.addFilterAnd();
-    s.addFilterEqual("conseil", activite.getConseil());
-    s.addFilterAnd();
-    s.addFilterEqual("groupe", activite.getGroupe());
-    int n = 0;
-    if (dao.getSingleResult(s) == null) {
-      n = dao.create(activite);
-    }
-    return n;
-  }
-
 }
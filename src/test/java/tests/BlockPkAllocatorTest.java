@@ -0,0 +1,175 @@
+package tests;
+
+import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.counters.BlockPkAllocator;
+import ch.emf.dao.exceptions.JpaException;
+import ch.emf.dao.models.EntityInfo;
+import ch.jcsinfo.system.StackTracer;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.TableGenerator;
+import org.junit.AfterClass;
+import static org.junit.Assert.*;
+import org.junit.BeforeClass;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Classe de test de la classe BlockPkAllocator (réservation de blocs de PK
+ * dans une table de séquence de test, créée puis supprimée).
+ *
+ * @author jcstritt
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class BlockPkAllocatorTest {
+  private static final String SEQ_TABLE = "t_seq_test";
+  private static final int BLOCK_SIZE = 10;
+  private static final int THREADS = 4;
+  private static final int PKS_PER_THREAD = 250;
+
+  private static JpaDaoAPI dao;
+
+  /**
+   * Classe-entité de test avec une PK générée par une table de séquence
+   * (seule l'introspection de EntityInfo est utilisée).
+   */
+  public static class SeqTest {
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "seqTest")
+    @TableGenerator(name = "seqTest", table = SEQ_TABLE, pkColumnName = "seqName",
+            valueColumnName = "seqValue", pkColumnValue = "test", initialValue = 0, allocationSize = 1)
+    private Integer pk;
+
+    public Integer getPk() {
+      return pk;
+    }
+
+    public void setPk(Integer pk) {
+      this.pk = pk;
+    }
+  }
+
+
+  /*
+   * METHODES APPELEES AVANT ET APRES LES TESTS
+   */
+  @BeforeClass
+  public static void setUpClass() {
+    Injector inj = Guice.createInjector(new GuiceModule());
+    dao = inj.getInstance(JpaDaoAPI.class);
+    try {
+      dao.connect("parlementPU");
+      dao.executeCommand("DROP TABLE IF EXISTS " + SEQ_TABLE);
+      dao.executeCommand("CREATE TABLE " + SEQ_TABLE
+              + " (seqName VARCHAR(50) NOT NULL PRIMARY KEY, seqValue BIGINT NOT NULL)");
+    } catch (JpaException ex) {
+      System.out.println(ex.getMessage());
+    }
+  }
+
+
+  @AfterClass
+  public static void tearDownClass() {
+    if (dao.isConnected()) {
+      dao.executeCommand("DROP TABLE IF EXISTS " + SEQ_TABLE);
+      dao.disconnect();
+    }
+  }
+
+
+  /*
+   * TESTS
+   */
+  @Test
+  public void test01_getTableGeneratorValue() {
+    StackTracer.printCurrentTestMethod();
+    EntityInfo ei = new EntityInfo(SeqTest.class);
+    String select = ei.buildSeqSelectClause();
+    String insert = ei.buildSeqInsertClause(10);
+    boolean ok = ei.isTableSeqUsed() && ei.getPkInitialValue() == 0 && ei.getPkAllocationSize() == 1;
+    ok = ok && select.equals("SELECT seqValue FROM " + SEQ_TABLE + " WHERE seqName='test'");
+    ok = ok && insert.equals("INSERT INTO " + SEQ_TABLE + " (seqName, seqValue) VALUES ('test', 10)");
+    StackTracer.printTestResult("Select", select, "Insert", insert);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test02_assignPks() {
+    StackTracer.printCurrentTestMethod();
+    BlockPkAllocator allocator = new BlockPkAllocator(BLOCK_SIZE);
+    List<SeqTest> list = new ArrayList<>();
+    int n = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      for (int i = 0; i < 25; i++) {
+        list.add(new SeqTest());
+      }
+      list.get(0).setPk(-1);
+      EntityManagerFactory emf = dao.getEntityManager().getEntityManagerFactory();
+      n = allocator.assignPks(emf, new EntityInfo(SeqTest.class), list);
+      ok = (n == 24) && (list.get(0).getPk() == -1) && (list.get(1).getPk() == 1)
+              && (list.get(24).getPk() == 24) && (allocator.getBlockCount() == 3);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Assigned", n, "Blocks", allocator.getBlockCount());
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test03_next_concurrent() throws Exception {
+    StackTracer.printCurrentTestMethod();
+    Set<Object> pks = ConcurrentHashMap.newKeySet();
+    int total = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // deux allocateurs (comme deux serveurs) se partagent la même table de séquence
+      BlockPkAllocator a1 = new BlockPkAllocator(BLOCK_SIZE);
+      BlockPkAllocator a2 = new BlockPkAllocator(BLOCK_SIZE);
+      EntityManagerFactory emf = dao.getEntityManager().getEntityManagerFactory();
+      EntityInfo ei = new EntityInfo(SeqTest.class);
+      ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+      List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        BlockPkAllocator allocator = (t % 2 == 0) ? a1 : a2;
+        futures.add(pool.submit(() -> {
+          int cnt = 0;
+          for (int i = 0; i < PKS_PER_THREAD; i++) {
+            if (pks.add(allocator.next(emf, ei))) {
+              cnt++;
+            }
+          }
+          return cnt;
+        }));
+      }
+      for (Future<Integer> f : futures) {
+        total += f.get();
+      }
+      pool.shutdown();
+      ok = (total == THREADS * PKS_PER_THREAD) && (pks.size() == total)
+              && (a1.getBlockCount() + a2.getBlockCount() <= total / BLOCK_SIZE + 2);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Distinct", pks.size(), "Total", total);
+    assertTrue(ok);
+  }
+
+}
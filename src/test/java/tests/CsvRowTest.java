@@ -0,0 +1,160 @@
+package tests;
+
+import ch.emf.dao.io.CsvImporter;
+import ch.emf.dao.io.CsvRow;
+import ch.emf.dao.io.ExportFormat;
+import ch.emf.dao.models.BulkReport;
+import ch.jcsinfo.system.StackTracer;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Classe de test de la classe CsvRow (sans BD).
+ *
+ * @author jcstritt
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class CsvRowTest {
+
+  /*
+   * METHODE PRIVEE POUR DECOUPER UNE LIGNE
+   */
+  private static CsvRow row(String line) {
+    CsvRow row = new CsvRow(';', '"');
+    char[] buf = line.toCharArray();
+    row.tokenize(buf, 0, buf.length, 1);
+    return row;
+  }
+
+
+  /*
+   * TESTS
+   */
+  @Test
+  public void test01_tokenize() {
+    StackTracer.printCurrentTestMethod();
+    CsvRow row = row("a;\"b;c\";\"d\"\"e\";;f\r");
+    boolean ok = row.size() == 5 && row.getString(0).equals("a") && row.getString(1).equals("b;c");
+    ok = ok && row.getString(2).equals("d\"e") && row.isEmpty(3) && row.getString(4).equals("f");
+    ok = ok && row.isEmpty(5) && row.getString(5).isEmpty();
+    StackTracer.printTestResult("Size", row.size(), "Row", row);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test02_getLong() {
+    StackTracer.printCurrentTestMethod();
+    CsvRow row = row(" 12 ;-9223372036854775808;+7;;12a;1.5;9223372036854775808;-");
+    boolean ok = row.getLong(0) == 12 && row.getLong(1) == Long.MIN_VALUE && row.getLong(2) == 7;
+    ok = ok && row.getLong(3) == null && row.getLong(3, -1) == -1;
+    for (int i = 4; i < row.size(); i++) {
+      ok = ok && row.getLong(i, -1) == -1;
+      try {
+        row.getLong(i);
+        ok = false;
+      } catch (NumberFormatException ex) {
+        StackTracer.printTestResult("Field " + i, ex.getMessage());
+      }
+    }
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test03_getInt() {
+    StackTracer.printCurrentTestMethod();
+    CsvRow row = row("2147483647;-2147483648;2147483648;4294967297;");
+    boolean ok = row.getInt(0) == Integer.MAX_VALUE && row.getInt(1) == Integer.MIN_VALUE;
+    ok = ok && row.getInt(2, -1) == -1 && row.getInt(3, -1) == -1 && row.getInt(4) == null;
+    try {
+      row.getInt(3);
+      ok = false;
+    } catch (NumberFormatException ex) {
+      StackTracer.printTestResult("Overflow", ex.getMessage());
+    }
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test04_getDecimals() {
+    StackTracer.printCurrentTestMethod();
+    CsvRow row = row("1.5;abc;12.30;");
+    boolean ok = row.getDouble(0) == 1.5 && row.getDouble(1, -1) == -1 && row.getDouble(3) == null;
+    ok = ok && row.getBigDecimal(2).equals(new BigDecimal("12.30")) && row.getBigDecimal(3) == null;
+    try {
+      row.getBigDecimal(1);
+      ok = false;
+    } catch (NumberFormatException ex) {
+      StackTracer.printTestResult("BigDecimal", row.getString(1), "Double", row.getDouble(0));
+    }
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test05_getDate() {
+    StackTracer.printCurrentTestMethod();
+    CsvRow row = row("2024-02-29;2024-02-30;29.02.2024;");
+    boolean ok = row.getDate(0, "yyyy-MM-dd") != null && row.getDate(3, "yyyy-MM-dd") == null;
+    try {
+      row.getDate(2, "yyyy-MM-dd");
+      ok = false;
+    } catch (DateTimeParseException ex) {
+      StackTracer.printTestResult("Date", row.getDate(0, "yyyy-MM-dd"), "Error", ex.getMessage());
+    }
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test06_exportRoundTrip() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    String[] names = {"pk", "nom", "remarque"};
+    List<Object[]> rows = new ArrayList<>();
+    rows.add(new Object[]{1, "Fribourg", "ligne 1\r\nligne 2"});
+    rows.add(new Object[]{2, "Vaud; \"VD\"", null});
+    rows.add(new Object[]{3, "Genève", "a\nb"});
+    for (int i = 4; i <= 200; i++) {
+      rows.add(new Object[]{i, "nom " + i + ", \"" + i + "\"", "ligne 1;\nligne \"2\""});
+    }
+    File file = File.createTempFile("export", ".csv");
+    try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      ExportFormat.CSV.writeHeader(w, names);
+      for (Object[] values : rows) {
+        ExportFormat.CSV.writeRow(w, names, values);
+      }
+    }
+
+    // relecture avec CsvImporter (petits lots : des limites tombent entre des lignes d'un même texte)
+    CsvImporter importer = new CsvImporter(null);
+    importer.setSkipLines(1);
+    importer.setChunkSize(1024);
+    importer.setParallelism(2);
+    List<String> lines = new ArrayList<>();
+    BulkReport report = importer.importFile(file, String.class,
+            row -> row.getString(0) + "|" + row.getString(1) + "|" + row.getString(2),
+            list -> {
+              lines.addAll(list);
+              return list.size();
+            });
+    file.delete();
+    List<String> expected = new ArrayList<>();
+    for (Object[] values : rows) {
+      expected.add(values[0] + "|" + values[1] + "|" + (values[2] == null ? "" : values[2]));
+    }
+    StackTracer.printTestResult("Report", report, "Lines", lines.subList(0, 4));
+    assertTrue(report.isComplete() && report.getChunks() > 1);
+    assertEquals(expected, lines);
+  }
+
+}
@@ -1,11 +1,29 @@
 package tests;
 
+import ch.emf.dao.JpaDao;
 import ch.emf.dao.JpaDaoAPI;
+import ch.emf.dao.batch.Archiver;
+import ch.emf.dao.batch.ChunkJob;
+import ch.emf.dao.bulk.GraphImporter;
+import ch.emf.dao.bulk.JdbcBatchWriter;
+import ch.emf.dao.bulk.NativeBulkLoader;
+import ch.emf.dao.bulk.ParallelBulkWriter;
 import ch.emf.dao.exceptions.JpaException;
 import ch.emf.dao.filtering.Search;
 import ch.emf.dao.filtering.Search2;
+import ch.emf.dao.helpers.SqlDialect;
+import ch.emf.dao.io.CsvImporter;
+import ch.emf.dao.io.DbCopier;
+import ch.emf.dao.io.ExportFormat;
+import ch.emf.dao.io.TableDump;
+import ch.emf.dao.models.BatchReport;
+import ch.emf.dao.models.BulkReport;
 import ch.emf.dao.models.EntityInfo;
+import ch.emf.dao.models.SyncOptions;
+import ch.emf.dao.models.SyncReport;
+import ch.emf.dao.transactions.RetryPolicy;
 import ch.emf.dao.transactions.Transaction;
+import ch.emf.dao.transactions.WriteBehindBuffer;
 import ch.jcsinfo.datetime.DateTimeLib;
 import ch.jcsinfo.file.FileHelper;
 import ch.jcsinfo.system.StackTracer;
@@ -13,18 +31,32 @@ import ch.jcsinfo.util.ConvertLib;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import helpers.DbRebuilder;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
 import models.Activite;
 import models.Canton;
 import models.Conseil;
 import models.Conseiller;
 import models.EtatCivil;
+import models.Login;
 import models.Parti;
 import org.junit.AfterClass;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 import org.junit.BeforeClass;
 import org.junit.FixMethodOrder;
 import org.junit.Test;
@@ -42,7 +74,6 @@ public class JpaDaoTest {
   private static final int LIST_MAXSIZE = 4; // le maximum d'entrées affichées pour les longues listes
   private static final String CHEMIN_DONNEES = "data";
   private static final String FICHIER_CONSEILLERS = "Ratsmitglieder_1848_FR_2025_03_17.csv";
-  private static final String SCRIPT_DELETE_ALL = "db-delete-all.sql";
   private static final String SCRIPT_IMPORT_LOGINS = "db-import-logins.sql";
 
   private static JpaDaoAPI dao;
@@ -73,7 +104,7 @@ public class JpaDaoTest {
       
       // si ok et s'il faut importer de nouvelles données
       if (IMPORT_DB) {
-        int n1 = dao.executeScript(FileHelper.normalizeFileName(CHEMIN_DONNEES + "/" + SCRIPT_DELETE_ALL));
+        int n1 = dao.resetAll();
         int n2 = dao.executeScript(FileHelper.normalizeFileName(CHEMIN_DONNEES + "/" + SCRIPT_IMPORT_LOGINS));
         DbRebuilder fileWrk = new DbRebuilder(dao);
         fileWrk.importerDonneesFichier(FileHelper.normalizeFileName(CHEMIN_DONNEES + "/" + FICHIER_CONSEILLERS));
@@ -826,7 +857,873 @@ public class JpaDaoTest {
   }
 
   @Test
-  public void test30_disconnect() {
+  public void test30_increment() {
+    StackTracer.printCurrentTestMethod();
+    long before = 0;
+    long after = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // on incrémente puis décrémente un compteur directement dans la BD
+      List<Login> logins = dao.getList(Login.class, "nom");
+      ok = !logins.isEmpty();
+      if (ok) {
+        Login login = logins.get(0);
+        before = login.getVersion();
+        after = dao.incrementAndGet(Login.class, login.getPk(), "version", 1);
+        int n = dao.increment(Login.class, login.getPk(), "version", -1);
+        ok = (after == before + 1) && (n == 1);
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Class", Login.class.getSimpleName(), "Before", before, "After", after);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test31_refreshList() {
+    StackTracer.printCurrentTestMethod();
+    int n1 = 0;
+    int n2 = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // on rafraichit toute la liste, puis seulement les objets modifiés
+      List<Conseiller> conseillers = dao.getList(Conseiller.class, "actif", true, "nom,prenom");
+      List<Integer> pks = new ArrayList<>();
+      for (Conseiller c : conseillers) {
+        pks.add(c.getPkConseiller());
+      }
+      n1 = dao.refreshList(conseillers, false);
+      n2 = dao.refreshList(conseillers, true);
+      ok = (n1 == conseillers.size());
+      for (int i = 0; ok && i < conseillers.size(); i++) {
+        ok = pks.get(i).equals(conseillers.get(i).getPkConseiller());
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Class", Conseiller.class.getSimpleName(), "Refreshed", n1, "Changed", n2);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test32_inTransaction() {
+    StackTracer.printCurrentTestMethod();
+    long before = 0;
+    long after = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // un scope qui échoue ne doit rien laisser dans la BD
+      before = dao.count(Parti.class);
+      try {
+        dao.inTransaction(() -> {
+          Parti p = new Parti();
+          p.setNom("???");
+          dao.create(p);
+          throw new IllegalStateException("rollback attendu");
+        });
+      } catch (IllegalStateException ex) {
+      }
+      after = dao.count(Parti.class);
+      ok = (after == before) && !dao.getTransaction().isActive();
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Class", Parti.class.getSimpleName(), "Before", before, "After", after);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test33_syncList() {
+    StackTracer.printCurrentTestMethod();
+    SyncReport report = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // une liste identique au contenu de la table ne doit provoquer aucune écriture
+      List<Canton> cantons = dao.getList(Canton.class, "abrev");
+      dao.detachList(cantons);
+      report = dao.syncList(Canton.class, cantons, new SyncOptions("abrev"));
+      ok = report.isComplete() && report.getWriteCount() == 0 && report.getUnchanged() == cantons.size();
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Class", Canton.class.getSimpleName(), "Report", report);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test34_reset() {
+    StackTracer.printCurrentTestMethod();
+    int tables = 0;
+    int added = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected() && activites != null;
+    if (ok) {
+      tables = dao.reset(Activite.class);
+      ok = (tables == 1) && (dao.count(Activite.class) == 0);
+
+      // refusé dans un scope transactionnel (TRUNCATE valide la transaction)
+      ok = ok && dao.inTransaction(() -> dao.reset(Activite.class)) == 0;
+
+      // refusé pour des cantons encore référencés par des conseillers (pas de FK orphelines)
+      long cantons = dao.count(Canton.class);
+      ok = ok && dao.reset(Canton.class) == 0 && (dao.count(Canton.class) == cantons);
+
+      // on remet les activités comme avant
+      added = dao.insertList(Activite.class, activites, true);
+      ok = ok && (added == activites.size()) && (dao.count(Activite.class) == added);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Class", Activite.class.getSimpleName(), "Tables", tables, "Added", added);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test35_getVersionToken() {
+    StackTracer.printCurrentTestMethod();
+    String before = null;
+    String after = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      before = dao.getVersionToken(Canton.class, Activite.class);
+
+      // une seule ligne modifiée, puis remise comme avant
+      List<Canton> cantons = dao.getList(Canton.class, "abrev");
+      Canton canton = cantons.get(0);
+      String nom = canton.getNom();
+      canton.setNom(nom + "_");
+      ok = dao.update(canton) == 1;
+      after = dao.getVersionToken(Canton.class, Activite.class);
+      ok = ok && !before.equals(after) && after.equals(dao.getVersionToken(Canton.class, Activite.class));
+      canton.setNom(nom);
+      ok = ok && dao.update(canton) == 1;
+
+      // une transaction annulée ne change pas la version
+      String token = dao.getVersionToken(Canton.class, Activite.class);
+      try {
+        dao.inTransaction(() -> {
+          canton.setNom(nom + "_");
+          dao.update(canton);
+          throw new IllegalStateException("rollback");
+        });
+        ok = false;
+      } catch (IllegalStateException ex) {
+        ok = ok && token.equals(dao.getVersionToken(Canton.class, Activite.class));
+      }
+      canton.setNom(nom);
+      Canton reread = dao.read(Canton.class, canton.getPkCanton(), true, true);
+      ok = ok && reread.getNom().equals(nom);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Before", before, "After", after);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test36_update_with_retry() {
+    StackTracer.printCurrentTestMethod();
+    RetryPolicy policy = new RetryPolicy(3, 10, 50);
+    int n1 = 0;
+    int n2 = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      List<Login> logins = dao.getList(Login.class, "nom");
+      ok = !logins.isEmpty();
+      if (ok) {
+        dao.setRetryPolicy(policy);
+        Object pk = logins.get(0).getPk();
+
+        // conflit sans fusion autorisée : abandon immédiat
+        Login login = dao.read(Login.class, pk, false, true);
+        dao.increment(Login.class, pk, "version", 1);
+        n1 = dao.update(login);
+
+        // conflit avec fusion autorisée : une reprise avec la version actuelle
+        policy.setMergeOnConflict(true);
+        login = dao.read(Login.class, pk, false, true);
+        dao.increment(Login.class, pk, "version", 1);
+        n2 = dao.update(login);
+        dao.setRetryPolicy(null);
+        ok = (n1 == -1) && (n2 == 1) && (policy.getRetryCount() == 1) && (policy.getGiveUpCount() == 0);
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Without merge", n1, "With merge", n2, "Retries", policy.getRetryCount());
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test37_writeBehindBuffer() {
+    StackTracer.printCurrentTestMethod();
+    WriteBehindBuffer wb = new WriteBehindBuffer(dao, 100);
+    boolean failed = false;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      List<Login> logins = dao.getList(Login.class, "nom");
+      ok = logins.size() >= 2;
+      if (ok) {
+
+        // la 2e modification est en conflit : le lot est coupé en deux et rejoué
+        Login l1 = dao.read(Login.class, logins.get(0).getPk(), false, true);
+        Login l2 = dao.read(Login.class, logins.get(1).getPk(), false, true);
+        dao.increment(Login.class, l2.getPk(), "version", 1);
+        CompletableFuture<Integer> f1 = wb.update(l1);
+        CompletableFuture<Integer> f2 = wb.update(l2);
+        wb.flush();
+        failed = f2.isCompletedExceptionally();
+        ok = (f1.join() == 1) && failed && (wb.getCommittedCount() == 1) && (wb.getFailedCount() == 1);
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Committed", wb.getCommittedCount(), "Failed", wb.getFailedCount(),
+            "Transactions", wb.getTransactionCount());
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test38_updateBatch() {
+    StackTracer.printCurrentTestMethod();
+    BatchReport<Login> report = new BatchReport<>();
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      List<Login> logins = dao.getList(Login.class, "nom");
+      ok = logins.size() >= 3;
+      if (ok) {
+
+        // la 3e modification est en conflit : les deux autres sont rejouées
+        List<Login> list = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+          Login login = dao.read(Login.class, logins.get(i).getPk(), false, true);
+          login.setTimestamp(new Date());
+          list.add(login);
+        }
+        dao.increment(Login.class, list.get(2).getPk(), "version", 1);
+        long version = list.get(0).getVersion();
+        report = dao.updateBatch(Login.class, list, 10);
+        Login l1 = dao.read(Login.class, list.get(0).getPk(), true, true);
+        ok = (report.getUpdated() == 2) && (report.getInserted() == 0) && (report.getFailedCount() == 1)
+                && (report.getFailures().get(0).getIndex() == 2) && (l1.getVersion() == version + 1);
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Report", report);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test39_insertIfAbsent() {
+    StackTracer.printCurrentTestMethod();
+    int n[] = new int[] {0, 0};
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      List<Login> logins = dao.getList(Login.class, "nom");
+      ok = !logins.isEmpty();
+      if (ok) {
+        Login existing = logins.get(0);
+
+        // le 1er lot échoue (initiales trop longues), la même clé doit être réessayée dans le 2e lot
+        List<Login> list = new ArrayList<>();
+        Login bad = new Login("insertIfAbsent", existing.getDomaine(), existing.getMotDePasse(), null, null,
+                String.format("%300s", "x"), "fr");
+        bad.setPk(null);
+        list.add(bad);
+        for (int i = 0; i < 499; i++) {
+          Login copy = new Login(existing.getNom(), existing.getDomaine(), existing.getMotDePasse(), null, null, null, "fr");
+          copy.setPk(null);
+          list.add(copy);
+        }
+        Login good = new Login("insertIfAbsent", existing.getDomaine(), existing.getMotDePasse(), null, null, "IA", "fr");
+        good.setPk(null);
+        list.add(good);
+        n = dao.insertIfAbsent(Login.class, list, "nom");
+        ok = (n[0] == 1) && (n[1] == 499) && (good.getPk() != null) && (good.getPk() > 0);
+        if (good.getPk() != null) {
+          dao.delete(Login.class, good.getPk());
+        }
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Inserted", n[0], "Ignored", n[1]);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test40_rewire() {
+    StackTracer.printCurrentTestMethod();
+    int n = 0;
+    Map<String, Canton> cantons = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // deux conseillers avec des cantons provisoires, dont un inconnu
+      List<Conseiller> list = new ArrayList<>();
+      for (String abrev : Arrays.asList("FR", "??")) {
+        Canton tmp = new Canton();
+        tmp.setAbrev(abrev);
+        Conseiller c = getNewConseiller();
+        c.setCanton(tmp);
+        list.add(c);
+      }
+      cantons = dao.resolve(Canton.class, "abrev", Arrays.asList("FR", "??"));
+      n = dao.rewire(list, "canton", "abrev", cantons);
+      ok = (n == 1) && (cantons.size() == 1) && (list.get(0).getCanton() == cantons.get("FR"))
+              && (list.get(0).getCanton().getPkCanton() != null) && (list.get(1).getCanton() == null);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Resolved", cantons, "Rewired", n);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test41_jdbcBatchWriter() {
+    StackTracer.printCurrentTestMethod();
+    JdbcBatchWriter writer = new JdbcBatchWriter(dao);
+    int n1 = 0;
+    int n2 = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      Login l1 = new Login("jdbc1", "test", "pwd", null, null, "J1", "fr");
+      Login l2 = new Login("jdbc2", "test", "pwd", null, null, "J2", "fr");
+      l1.setPk(null);
+      l2.setPk(null);
+      n1 = writer.insert(Login.class, Arrays.asList(l1, l2));
+      ok = (n1 == 2) && (l1.getPk() != null) && (l2.getPk() != null) && (l2.getPk() > l1.getPk());
+
+      // en cas d'erreur, les PK sont remises à leurs valeurs d'avant l'appel
+      Login l3 = new Login("jdbc3", "test", "pwd", null, null, "J3", "fr");
+      Login l4 = new Login("jdbc4", "test", "pwd", null, null, String.format("%300s", "x"), "fr");
+      l3.setPk(null);
+      n2 = writer.insert(Login.class, Arrays.asList(l3, l4));
+      ok = ok && (n2 == 0) && (l3.getPk() == null) && (l4.getPk() == 0);
+      for (Login l : Arrays.asList(l1, l2)) {
+        if (l.getPk() != null) {
+          dao.delete(Login.class, l.getPk());
+        }
+      }
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Inserted", n1, "After error", n2);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test42_parallelBulkWriter_aborted() {
+    StackTracer.printCurrentTestMethod();
+    ParallelBulkWriter writer = new ParallelBulkWriter(dao, 2);
+    BulkReport report = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // la source échoue avant le premier lot : le rapport doit être incomplet
+      Iterable<Canton> failing = () -> new Iterator<Canton>() {
+        @Override
+        public boolean hasNext() {
+          return true;
+        }
+
+        @Override
+        public Canton next() {
+          throw new IllegalStateException("source failure");
+        }
+      };
+      writer.add(Canton.class, failing);
+      report = writer.execute();
+      ok = report.isAborted() && !report.isComplete() && report.getWritten() == 0;
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Report", report);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test43_deleteTenant() {
+    StackTracer.printCurrentTestMethod();
+    Map<String, Long> counts = null;
+    int n = 0;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+      long conseillers = dao.count(Conseiller.class);
+
+      // enfants d'abord, et la valeur du tenant est un paramètre (pas d'injection SQL)
+      counts = dao.deleteTenant("nom", "x' OR '1'='1", "t_canton", "t_conseiller");
+      ok = (counts != null) && new ArrayList<>(counts.keySet()).equals(Arrays.asList("t_conseiller", "t_canton"))
+              && (counts.get("t_conseiller") == 0) && (counts.get("t_canton") == 0)
+              && (dao.count(Canton.class) == cantons) && (dao.count(Conseiller.class) == conseillers);
+
+      // un nom de colonne incorrect est refusé
+      ok = ok && dao.deleteTenant("nom = nom OR 1", 1, "t_canton") == null;
+
+      // refusé dans une transaction (les lots sont validés sur d'autres connexions)
+      ok = ok && dao.inTransaction(() -> dao.deleteTenant("nom", "x", "t_canton")) == null
+              && dao.inTransaction(() -> dao.deleteAll("nom", 1, "t_canton")) == 0;
+
+      // sans LIMIT (SQL:2008), un lot est choisi dans l'ordre de la PK
+      ok = ok && SqlDialect.STANDARD.buildDeleteLimit("t_canton", "pkCanton", "nom = ?", 2).equals(
+              "DELETE FROM t_canton WHERE pkCanton IN (SELECT pkCanton FROM t_canton WHERE nom = ?"
+              + " ORDER BY pkCanton FETCH FIRST 2 ROWS ONLY)");
+
+      // trois cantons de test, effacés par lots de 2 (dialecte de la BD), puis par tenant
+      for (int i = 0; i < 3; i++) {
+        Canton canton = new Canton();
+        canton.setAbrev("T" + i);
+        canton.setNom("tenant_test");
+        ok = ok && dao.create(canton) == 1;
+      }
+      n = dao.executeCommand(dao.getSqlDialect().buildDeleteLimit("t_canton", "pkCanton", "nom = 'tenant_test'", 2));
+      counts = dao.deleteTenant("nom", "tenant_test", "t_canton");
+      ok = ok && (n == 2) && (counts != null) && (counts.get("t_canton") == 1) && (dao.count(Canton.class) == cantons);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Chunk", n, "Counts", counts);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test44_versionTable() {
+    StackTracer.printCurrentTestMethod();
+    String before = null;
+    String after = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      ok = dao.setVersionTable("t_table_version");
+      before = dao.getVersionToken(Canton.class);
+
+      // incréments concurrents (aucun ne doit être perdu)
+      List<CompletableFuture<Void>> futures = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        futures.add(CompletableFuture.runAsync(() -> {
+          for (int i = 0; i < 50; i++) {
+            dao.incrementVersion(Canton.class);
+          }
+        }));
+      }
+      CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+      after = dao.getVersionToken(Canton.class);
+      ok = ok && (Long.parseLong(after) - Long.parseLong(before) == 200);
+      dao.setVersionTable(null);
+      dao.executeCommand("DROP TABLE t_table_version");
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Before", before, "After", after);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test45_upsertList() {
+    StackTracer.printCurrentTestMethod();
+    int n = 0;
+    Canton modified = null;
+    Canton added = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+
+      // un canton existant modifié et un nouveau canton avec sa PK
+      Canton existing = dao.read(Canton.class, dao.getMinIntValue(Canton.class, "pkCanton"), true, true);
+      String nom = existing.getNom();
+      existing.setNom(nom + "_upsert");
+      Canton canton = new Canton();
+      canton.setPkCanton(dao.getMaxIntValue(Canton.class, "pkCanton") + 1);
+      canton.setAbrev("UP");
+      canton.setNom("upsert_test");
+      n = dao.upsertList(Canton.class, Arrays.asList(existing, canton));
+      modified = dao.read(Canton.class, existing.getPkCanton(), true, true);
+      added = dao.read(Canton.class, canton.getPkCanton(), true, true);
+      ok = (n == 2) && (dao.count(Canton.class) == cantons + 1)
+              && (modified != null) && modified.getNom().equals(nom + "_upsert")
+              && (added != null) && added.getNom().equals("upsert_test") && added.getAbrev().equals("UP");
+
+      // on remet le canton modifié comme avant
+      existing.setNom(nom);
+      ok = ok && dao.upsertList(Canton.class, Arrays.asList(existing)) == 1
+              && dao.delete(Canton.class, canton.getPkCanton()) == 1;
+      Canton restored = dao.read(Canton.class, existing.getPkCanton(), true, true);
+      ok = ok && (dao.count(Canton.class) == cantons) && restored.getNom().equals(nom);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Written", n, "Modified", modified, "Added", added);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test46_nativeBulkLoader() throws Exception {
+    StackTracer.printCurrentTestMethod();
+    NativeBulkLoader loader = new NativeBulkLoader(dao);
+    BulkReport r1 = null;
+    BulkReport r2 = null;
+
+    // seulement si la BD accepte le chargement natif d'un fichier local
+    SqlDialect dialect = dao.getSqlDialect();
+    boolean available = dialect == SqlDialect.H2;
+    if (dialect == SqlDialect.MYSQL && dao.getConnectionURL().contains("allowLoadLocalInfile=true")) {
+      List<Object> infile = dao.getList("SELECT @@local_infile", null);
+      available = !infile.isEmpty() && String.valueOf(infile.get(0)).equals("1");
+    }
+    assumeTrue(available);
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+      List<Canton> list = new ArrayList<>();
+      for (String abrev : Arrays.asList("L1", "L2")) {
+        Canton canton = new Canton();
+        canton.setAbrev(abrev);
+        canton.setNom("bulk_test, \"native\"");
+        list.add(canton);
+      }
+      r1 = loader.load(Canton.class, list);
+      ok = r1.isComplete() && (r1.getWritten() == 2) && (r1.getFailed() == 0)
+              && (dao.count(Canton.class, "nom", "bulk_test, \"native\"") == 2);
+
+      // un fichier préparé avec une PK déjà présente : la ligne est ignorée par
+      // MySQL (avertissement) et comptée comme rejetée, H2 annule le chargement
+      int pkMax = dao.getMaxIntValue(Canton.class, "pkCanton");
+      File file = File.createTempFile("bulk_test", ".csv");
+      Files.write(file.toPath(), Arrays.asList(pkMax + ",\"L3\",\"bulk_test\"", (pkMax + 1) + ",\"L4\",\"bulk_test\""),
+              StandardCharsets.UTF_8);
+      r2 = loader.loadFile(Canton.class, file, "pkCanton", "abrev", "nom");
+      file.delete();
+      if (dialect == SqlDialect.MYSQL) {
+        ok = ok && (r2.getWritten() == 1) && (r2.getFailed() == 1) && !r2.isComplete();
+      } else {
+        ok = ok && r2.isAborted() && (r2.getWritten() == 0);
+      }
+      dao.executeCommand("DELETE FROM t_canton WHERE nom LIKE 'bulk_test%'");
+      dao.clearCache();
+      ok = ok && (dao.count(Canton.class) == cantons);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("List", r1, "File", r2);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test47_exportImport() throws Exception {
+    StackTracer.printCurrentTestMethod();
+    long exported = 0;
+    BulkReport report = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+      List<String> noms = Arrays.asList("export_test, 1", "export_test \"2\"; deux", "export_test 3\r\nligne 2\nligne 3");
+      for (int i = 0; i < noms.size(); i++) {
+        Canton canton = new Canton();
+        canton.setAbrev("E" + i);
+        canton.setNom(noms.get(i));
+        ok = ok && dao.create(canton) == 1;
+      }
+
+      // exportation CSV, effacement, puis relecture du fichier avec CsvImporter
+      Search search = new Search(Canton.class);
+      search.addFilterLike("nom", "export_test%");
+      search.addSortAsc("pkCanton");
+      File file = File.createTempFile("export_test", ".csv");
+      try (OutputStream out = new FileOutputStream(file)) {
+        exported = dao.export(search, out, ExportFormat.CSV);
+      }
+      dao.executeCommand("DELETE FROM t_canton WHERE nom LIKE 'export_test%'");
+      dao.clearCache();
+      CsvImporter importer = new CsvImporter(dao);
+      importer.setSkipLines(1);
+      report = importer.importFile(file, Canton.class, row -> {
+        Canton canton = new Canton();
+        canton.setAbrev(row.getString(1));
+        canton.setNom(row.getString(2));
+        return canton;
+      });
+      file.delete();
+      List<Canton> list = dao.getList(search);
+      List<String> imported = new ArrayList<>();
+      for (Canton canton : list) {
+        imported.add(canton.getNom());
+      }
+      ok = ok && (exported == 3) && report.isComplete() && imported.equals(noms);
+      dao.executeCommand("DELETE FROM t_canton WHERE nom LIKE 'export_test%'");
+      dao.clearCache();
+      ok = ok && (dao.count(Canton.class) == cantons);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Exported", exported, "Report", report);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test48_tableDump() throws Exception {
+    StackTracer.printCurrentTestMethod();
+    TableDump dump = new TableDump(dao);
+    BulkReport r1 = null;
+    BulkReport r2 = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long logins = dao.count(Login.class);
+      long nbActivites = dao.count(Activite.class);
+      int pkMin = dao.getMinIntValue(Activite.class, "pkActivite");
+      Activite first = dao.read(Activite.class, pkMin, true, true);
+
+      // sauvegarde, quelques lignes effacées, puis restauration
+      Path path = File.createTempFile("dump_test", ".dump").toPath();
+      r1 = dump.dump(path, Login.class, Activite.class);
+      ok = r1.isComplete() && (r1.getWritten() == logins + nbActivites);
+      dao.executeCommand("DELETE FROM t_activite WHERE pkActivite < " + (pkMin + 10));
+      dao.clearCache();
+      ok = ok && (dao.count(Activite.class) == nbActivites - 10);
+      r2 = dump.restore(path);
+      Files.delete(path);
+      Activite restored = dao.read(Activite.class, pkMin, true, true);
+      ok = ok && r2.isComplete() && (r2.getWrittenByClass().get("Activite") == nbActivites)
+              && (dao.count(Login.class) == logins) && (dao.count(Activite.class) == nbActivites)
+              && (restored != null) && restored.getDateEntree().equals(first.getDateEntree())
+              && restored.getConseiller().getPkConseiller().equals(first.getConseiller().getPkConseiller());
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Dump", r1, "Restore", r2);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test49_graphImporter() {
+    StackTracer.printCurrentTestMethod();
+    GraphImporter importer = new GraphImporter(dao, 2);
+    BulkReport report = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+
+      // trois conseillers avec deux copies du même nouveau canton (même clé naturelle)
+      List<Canton> copies = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        Canton canton = new Canton();
+        canton.setAbrev("G1");
+        canton.setNom("graph_test");
+        copies.add(canton);
+      }
+      List<Conseiller> list = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        Conseiller c = getNewConseiller();
+        c.setNom("graph_test");
+        c.setCanton(copies.get(i % 2));
+        list.add(c);
+      }
+      ok = importer.setKey(Canton.class, "abrev");
+      report = importer.importGraph(list);
+      Integer pkCanton = copies.get(0).getPkCanton();
+      ok = ok && report.isComplete() && (report.getWritten() == 4) && (importer.getRelinked() == 1)
+              && (pkCanton != null) && (dao.count(Canton.class) == cantons + 1)
+              && (dao.count(Conseiller.class, "nom", "graph_test") == 3);
+      for (Conseiller c : list) {
+        ok = ok && (c.getPkConseiller() != null) && (c.getCanton() == copies.get(0));
+      }
+      dao.executeCommand("DELETE FROM t_conseiller WHERE nom = 'graph_test'");
+      dao.executeCommand("DELETE FROM t_canton WHERE nom = 'graph_test'");
+      dao.clearCache();
+      ok = ok && (dao.count(Canton.class) == cantons);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Report", report, "Relinked", importer.getRelinked());
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test50_chunkJob() {
+    StackTracer.printCurrentTestMethod();
+    BulkReport r1 = null;
+    BulkReport r2 = null;
+    BulkReport r3 = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+      int[] calls = {0};
+      ChunkJob<Canton> job = new ChunkJob<>(dao, "test_job", new Search(Canton.class), c -> {
+        if (!c.getNom().endsWith("_job")) {
+          c.setNom(c.getNom() + "_job"); // un lot en cours lors de l'erreur peut être rejoué
+        }
+        return c;
+      });
+      job.setChunkSize(5);
+      job.setWriter((em, items) -> {
+        if (++calls[0] == 3) {
+          throw new IllegalStateException("injected failure");
+        }
+        for (Canton c : items) {
+          em.merge(c);
+        }
+      });
+      job.resetCheckpoint();
+
+      // le 3e lot échoue : le 2e appel reprend après le 2e lot (point de reprise)
+      r1 = job.run();
+      r2 = job.run();
+      dao.clearCache();
+      Search done = new Search(Canton.class);
+      done.addFilterLike("nom", "%_job");
+      Search twice = new Search(Canton.class);
+      twice.addFilterLike("nom", "%_job_job");
+      ok = !r1.isComplete() && (r1.getWritten() == 10) && (r1.getFailed() == 5)
+              && r2.isComplete() && (r2.getWritten() == cantons - 10)
+              && (dao.count(done) == cantons) && (dao.count(twice) == 0);
+
+      // on remet les noms comme avant
+      ChunkJob<Canton> undo = new ChunkJob<>(dao, "test_job_undo", new Search(Canton.class), c -> {
+        c.setNom(c.getNom().substring(0, c.getNom().length() - "_job".length()));
+        return c;
+      });
+      r3 = undo.run();
+      dao.clearCache();
+      ok = ok && r3.isComplete() && (r3.getWritten() == cantons) && (dao.count(done) == 0);
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Failed run", r1, "Restart", r2, "Undo", r3);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test51_dbCopier() throws JpaException {
+    StackTracer.printCurrentTestMethod();
+    JpaDao target = new JpaDao();
+    BulkReport report = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+
+      // une 2e BD (même serveur, même unité de persistance) créée si nécessaire
+      String url = dao.getConnectionProperty("javax.persistence.jdbc.url").replaceFirst("/parlement([?;]|$)", "/parlement_copy$1");
+      if (url.startsWith("jdbc:mysql:")) {
+        url += (url.contains("?") ? "&" : "?") + "createDatabaseIfNotExist=true";
+      }
+      Properties props = new Properties();
+      props.setProperty("javax.persistence.jdbc.url", url);
+      props.setProperty("eclipselink.session-name", "parlementCopy");
+      props.setProperty("eclipselink.ddl-generation", "create-tables");
+      target.connect("parlementPU", Optional.of(props));
+
+      // copie de toutes les tables, puis comparaison des nombres de lignes
+      DbCopier copier = new DbCopier(dao, target);
+      copier.setResetTarget(true);
+      report = copier.copyAll();
+      ok = report.isComplete() && report.getWritten() > 0;
+      for (Class<?> cl : dao.getEntitiesMap().keySet()) {
+        ok = ok && (target.count(cl) == dao.count(cl));
+      }
+      Conseiller c1 = dao.read(Conseiller.class, dao.getMinIntValue(Conseiller.class, "pkConseiller"), true, true);
+      Conseiller c2 = target.read(Conseiller.class, c1.getPkConseiller(), true, true);
+      ok = ok && (c2 != null) && c2.getNom().equals(c1.getNom())
+              && c2.getCanton().getAbrev().equals(c1.getCanton().getAbrev());
+      target.disconnect();
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Report", report);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test52_archiver() {
+    StackTracer.printCurrentTestMethod();
+    Archiver archiver = new Archiver(dao);
+    BulkReport r1 = null;
+    BulkReport r2 = null;
+
+    // si une connexion valide est présente
+    boolean ok = dao.isConnected();
+    if (ok) {
+      long cantons = dao.count(Canton.class);
+
+      // 5 cantons à archiver et 2 cantons à effacer
+      for (int i = 0; i < 7; i++) {
+        Canton canton = new Canton();
+        canton.setAbrev("Z" + i);
+        canton.setNom((i < 5) ? "archive_test" : "purge_test");
+        ok = ok && (dao.create(canton) == 1);
+      }
+      archiver.setChunkSize(2);
+
+      // un nom de table invalide et une transaction en cours sont refusés
+      Search archived = new Search(Canton.class);
+      archived.addFilterEqual("nom", "archive_test");
+      ok = ok && !archiver.archive(archived, "t_canton_archive; DROP TABLE t_canton").isComplete();
+      ok = ok && !dao.inTransaction(() -> archiver.archive(archived, "t_canton_archive").isComplete());
+
+      // archivage (copie puis effacement), puis purge
+      r1 = archiver.archive(archived, "t_canton_archive");
+      ok = ok && r1.isComplete() && (r1.getWritten() == 5) && (dao.count(Canton.class, "nom", "archive_test") == 0);
+      Search purged = new Search(Canton.class);
+      purged.addFilterEqual("nom", "purge_test");
+      r2 = archiver.purge(purged);
+      ok = ok && r2.isComplete() && (r2.getWritten() == 2) && (dao.count(Canton.class) == cantons);
+      ok = ok && (dao.executeCommand("DELETE FROM t_canton_archive WHERE nom = 'archive_test'") == 5);
+      dao.executeCommand("DROP TABLE t_canton_archive");
+    }
+
+    // on affiche le résultat
+    StackTracer.printTestResult("Archive", r1, "Purge", r2);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test99_disconnect() {
     StackTracer.printCurrentTestMethod();
        // si une connexion valide est présente
     boolean ok = dao.isConnected();
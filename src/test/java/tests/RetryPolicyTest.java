@@ -0,0 +1,74 @@
+package tests;
+
+import ch.emf.dao.transactions.RetryPolicy;
+import ch.jcsinfo.system.StackTracer;
+import java.sql.SQLException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import javax.persistence.RollbackException;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Classe de test de la classe RetryPolicy (sans BD).
+ *
+ * @author jcstritt
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class RetryPolicyTest {
+
+  /*
+   * TESTS
+   */
+  @Test
+  public void test01_isRetryable() {
+    StackTracer.printCurrentTestMethod();
+    RetryPolicy policy = new RetryPolicy(3, 0, 0);
+    Exception deadlock = new PersistenceException(new RuntimeException(new SQLException("deadlock", "40001")));
+    Exception mysql = new PersistenceException(new SQLException("lock wait", "HY000", 1205));
+    Exception other = new PersistenceException(new SQLException("syntax", "42000"));
+    boolean ok = policy.isRetryable(deadlock) && policy.isRetryable(mysql) && !policy.isRetryable(other);
+    StackTracer.printTestResult("Deadlock", policy.isRetryable(deadlock), "Other", policy.isRetryable(other));
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test02_isConflict() {
+    StackTracer.printCurrentTestMethod();
+    RetryPolicy policy = new RetryPolicy();
+    Exception wrapped = new RollbackException(new PersistenceException(new OptimisticLockException("stale")));
+    Exception other = new RollbackException(new SQLException("deadlock", "40001"));
+    boolean ok = policy.isConflict(wrapped) && !policy.isConflict(other);
+    StackTracer.printTestResult("Wrapped", policy.isConflict(wrapped), "Other", policy.isConflict(other));
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test03_shouldRetry() {
+    StackTracer.printCurrentTestMethod();
+    RetryPolicy policy = new RetryPolicy(3, 0, 0);
+    Exception ex = new SQLException("deadlock", "40001");
+    boolean ok = policy.shouldRetry(ex, 1) && policy.shouldRetry(ex, 2) && !policy.shouldRetry(ex, 3);
+    ok = ok && policy.getRetryCount() == 2 && policy.getGiveUpCount() == 1;
+    ok = ok && !policy.shouldRetry(new SQLException("syntax", "42000"), 1) && policy.getGiveUpCount() == 1;
+    StackTracer.printTestResult("Retries", policy.getRetryCount(), "GiveUps", policy.getGiveUpCount());
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test04_getDelay() {
+    StackTracer.printCurrentTestMethod();
+    RetryPolicy policy = new RetryPolicy(10, 20, 100);
+    boolean ok = true;
+    for (int i = 0; i < 100; i++) {
+      long d1 = policy.getDelay(1);
+      long d5 = policy.getDelay(5);
+      ok = ok && d1 >= 10 && d1 <= 20 && d5 >= 50 && d5 <= 100;
+    }
+    StackTracer.printTestResult("Delay1", policy.getDelay(1), "Delay5", policy.getDelay(5));
+    assertTrue(ok);
+  }
+
+}
@@ -0,0 +1,120 @@
+package tests;
+
+import ch.emf.dao.helpers.ScriptHelper;
+import ch.emf.dao.helpers.SqlScriptReader;
+import ch.jcsinfo.system.StackTracer;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.FixMethodOrder;
+import org.junit.Test;
+import org.junit.runners.MethodSorters;
+
+/**
+ * Classe de test de la classe SqlScriptReader (sans BD).
+ *
+ * @author jcstritt
+ */
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class SqlScriptReaderTest {
+
+  /*
+   * METHODE PRIVEE POUR LIRE TOUTES LES COMMANDES D'UN SCRIPT
+   */
+  private static List<String> read(String script, boolean mysqlSyntax) throws IOException {
+    List<String> list = new ArrayList<>();
+    byte[] bytes = script.getBytes(StandardCharsets.UTF_8);
+    try (SqlScriptReader reader = new SqlScriptReader(
+            Channels.newChannel(new ByteArrayInputStream(bytes)), StandardCharsets.UTF_8, mysqlSyntax)) {
+      String sql;
+      while ((sql = reader.next()) != null) {
+        list.add(sql);
+      }
+    }
+    return list;
+  }
+
+
+  /*
+   * TESTS
+   */
+  @Test
+  public void test01_quotes() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    List<String> list = read("INSERT INTO t VALUES ('a;b', \"c;d\", `e;f`, 'it''s;');\nSELECT\n1;", false);
+    List<String> expected = Arrays.asList(
+            "INSERT INTO t VALUES ('a;b', \"c;d\", `e;f`, 'it''s;')", "SELECT 1");
+    StackTracer.printTestResult("Commands", list);
+    assertEquals(expected, list);
+  }
+
+  @Test
+  public void test02_escapes() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    List<String> mysql = read("SELECT 'a\\';b';\nSELECT 2;", true);
+    List<String> standard = read("SELECT 'C:\\dir\\';\nSELECT 2;", false);
+    boolean ok = mysql.equals(Arrays.asList("SELECT 'a\\';b'", "SELECT 2"));
+    ok = ok && standard.equals(Arrays.asList("SELECT 'C:\\dir\\'", "SELECT 2"));
+    StackTracer.printTestResult("MySQL", mysql, "Standard", standard);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test03_comments() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    String script = "-- commentaire; SELECT 0;\nSELECT 1--1;\n/* bloc;\n */ SELECT 2; # mysql;\nSELECT 3;";
+    List<String> mysql = read(script, true);
+    List<String> standard = read(script, false);
+    boolean ok = mysql.equals(Arrays.asList("SELECT 1--1", "SELECT 2", "SELECT 3"));
+    ok = ok && standard.equals(Arrays.asList("SELECT 1--1", "SELECT 2", "# mysql", "SELECT 3"));
+    StackTracer.printTestResult("MySQL", mysql, "Standard", standard);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test04_conditionalComments() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    String script = "/*!40101 SET NAMES\nutf8 */;\nSELECT 1;";
+    List<String> mysql = read(script, true);
+    List<String> standard = read(script, false);
+    boolean ok = mysql.equals(Arrays.asList("/*!40101 SET NAMES utf8 */", "SELECT 1"));
+    ok = ok && standard.equals(Arrays.asList("SELECT 1"));
+    StackTracer.printTestResult("MySQL", mysql, "Standard", standard);
+    assertTrue(ok);
+  }
+
+  @Test
+  public void test05_delimiter() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    String script = "DELIMITER $$\nCREATE PROCEDURE p()\nBEGIN\nSELECT 1;\nSELECT 2;\nEND$$\n"
+            + "DELIMITER ;\nSELECT 3;\n";
+    List<String> list = read(script, true);
+    List<String> expected = Arrays.asList(
+            "CREATE PROCEDURE p() BEGIN SELECT 1; SELECT 2; END", "SELECT 3");
+    StackTracer.printTestResult("Commands", list);
+    assertEquals(expected, list);
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void test06_defaultDialect() throws IOException {
+    StackTracer.printCurrentTestMethod();
+    File file = File.createTempFile("script", ".sql");
+    Files.write(file.toPath(), "USE old_db;\nSELECT 'a\\';b'; # mysql\n".getBytes(StandardCharsets.UTF_8));
+    List<String> list = ScriptHelper.readSqlScriptFile(file.getAbsolutePath());
+    List<String> renamed = ScriptHelper.readSqlScriptFile(file.getAbsolutePath(), "old_db", "new_db");
+    file.delete();
+    boolean ok = list.equals(Arrays.asList("USE old_db", "SELECT 'a\\';b'"));
+    ok = ok && renamed.equals(Arrays.asList("USE new_db", "SELECT 'a\\';b'"));
+    StackTracer.printTestResult("Commands", list, "Renamed", renamed);
+    assertTrue(ok);
+  }
+
+}